@@ -0,0 +1,69 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.benchmark;
+
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import se.swedenconnect.ca.engine.ca.issuer.CertificateIssuerModel;
+import se.swedenconnect.ca.engine.ca.repository.CARepository;
+import se.swedenconnect.ca.engine.revocation.crl.CRLIssuerModel;
+import se.swedenconnect.ca.headless.ca.HeadlessCAService;
+import se.swedenconnect.security.credential.BasicCredential;
+
+import java.security.KeyPair;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Creates Headless CA service instances with a soft CA key for benchmarking.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+public class BenchmarkCA {
+
+  /** Name of the benchmark CA instance */
+  public static final String INSTANCE = "bench";
+
+  /** CRL distribution point of the benchmark CA instance */
+  public static final String CRL_DP_URL = "http://localhost:8080/crl/" + INSTANCE + ".crl";
+
+  private BenchmarkCA() {
+  }
+
+  /**
+   * Create a CA service using a new soft CA key.
+   *
+   * @param caKeyType the CA key type, e.g. "RSA-3072"
+   * @param caRepository the CA repository of the service
+   * @return CA service
+   * @throws Exception error creating the CA service
+   */
+  public static HeadlessCAService createCAService(String caKeyType, CARepository caRepository) throws Exception {
+    KeyPair caKeyPair = BenchmarkCertificates.generateKeyPair(caKeyType);
+    X509CertificateHolder caCertificate = BenchmarkCertificates.createCaCertificate(caKeyPair, "Benchmark CA");
+    BasicCredential caCredential = new BasicCredential(
+      new JcaX509CertificateConverter().getCertificate(caCertificate), caKeyPair.getPrivate());
+    CertificateIssuerModel certificateIssuerModel =
+      new CertificateIssuerModel(BenchmarkCertificates.CA_ALGORITHM, Duration.ofDays(365));
+    CRLIssuerModel crlIssuerModel = new CRLIssuerModel(caCertificate, BenchmarkCertificates.CA_ALGORITHM,
+      Duration.ofHours(2), caRepository.getCRLRevocationDataProvider(), CRL_DP_URL);
+    return new HeadlessCAService(INSTANCE, caCredential, caRepository, certificateIssuerModel, crlIssuerModel,
+      List.of(CRL_DP_URL));
+  }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.benchmark;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.DefaultSignatureAlgorithmIdentifierFinder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Date;
+
+/**
+ * Test keys and certificates used as benchmark input.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+public class BenchmarkCertificates {
+
+  /** Signature algorithm of the benchmark CA */
+  public static final String CA_ALGORITHM = "http://www.w3.org/2001/04/xmldsig-more#rsa-sha256";
+
+  private static final long DAY_MILLIS = 24 * 3600 * 1000L;
+
+  private BenchmarkCertificates() {
+  }
+
+  /**
+   * Generate a soft key pair.
+   *
+   * @param keyType "RSA-&lt;key length&gt;" or "EC-&lt;curve&gt;", e.g. "RSA-3072" or "EC-P256"
+   * @return key pair
+   * @throws Exception error generating the key pair
+   */
+  public static KeyPair generateKeyPair(String keyType) throws Exception {
+    String[] keyTypeParts = keyType.split("-");
+    if ("RSA".equals(keyTypeParts[0])) {
+      KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+      generator.initialize(Integer.parseInt(keyTypeParts[1]));
+      return generator.generateKeyPair();
+    }
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+    generator.initialize(new ECGenParameterSpec(switch (keyTypeParts[1]) {
+      case "P384" -> "secp384r1";
+      case "P521" -> "secp521r1";
+      default -> "secp256r1";
+    }));
+    return generator.generateKeyPair();
+  }
+
+  /**
+   * Create a self-signed CA certificate.
+   *
+   * @param caKeyPair the CA key pair
+   * @param name the CA name
+   * @return CA certificate
+   * @throws Exception error creating the certificate
+   */
+  public static X509CertificateHolder createCaCertificate(KeyPair caKeyPair, String name) throws Exception {
+    X500Name caName = new X500Name("CN=" + name);
+    long now = System.currentTimeMillis();
+    JcaX509ExtensionUtils extensionUtils = new JcaX509ExtensionUtils();
+    X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(caName, BigInteger.ONE,
+      new Date(now - DAY_MILLIS), new Date(now + 3650 * DAY_MILLIS), caName, caKeyPair.getPublic())
+      .addExtension(Extension.basicConstraints, true, new BasicConstraints(true))
+      .addExtension(Extension.keyUsage, true, new KeyUsage(KeyUsage.keyCertSign | KeyUsage.cRLSign))
+      .addExtension(Extension.subjectKeyIdentifier, false,
+        extensionUtils.createSubjectKeyIdentifier(caKeyPair.getPublic()));
+    ContentSigner signer = new JcaContentSignerBuilder("SHA256withRSA").build(caKeyPair.getPrivate());
+    return builder.build(signer);
+  }
+
+  /**
+   * Create an end entity certificate with a unique subject name. Certificates are signed with a fixed dummy signature
+   * value, which makes it possible to generate large populations of certificates quickly. These certificates are used
+   * where the signature is never validated.
+   *
+   * @param serialNumber the serial number of the certificate, also used in the subject name
+   * @param issuer the issuer name
+   * @param subjectPublicKey the subject public key
+   * @param notBefore start of the validity period
+   * @param notAfter end of the validity period
+   * @return certificate
+   */
+  public static X509CertificateHolder createEndEntityCertificate(BigInteger serialNumber, X500Name issuer,
+    SubjectPublicKeyInfo subjectPublicKey, Date notBefore, Date notAfter) {
+    X509v3CertificateBuilder builder = new X509v3CertificateBuilder(issuer, serialNumber, notBefore, notAfter,
+      new X500Name("CN=Subject " + serialNumber.toString(16)), subjectPublicKey);
+    return builder.build(DUMMY_SIGNER);
+  }
+
+  private static final ContentSigner DUMMY_SIGNER = new ContentSigner() {
+    private final AlgorithmIdentifier algorithmIdentifier =
+      new DefaultSignatureAlgorithmIdentifierFinder().find("SHA256withRSA");
+
+    @Override public AlgorithmIdentifier getAlgorithmIdentifier() {
+      return algorithmIdentifier;
+    }
+
+    @Override public OutputStream getOutputStream() {
+      return OutputStream.nullOutputStream();
+    }
+
+    @Override public byte[] getSignature() {
+      return new byte[256];
+    }
+  };
+
+}
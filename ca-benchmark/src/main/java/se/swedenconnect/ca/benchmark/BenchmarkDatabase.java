@@ -0,0 +1,92 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.benchmark;
+
+import org.springframework.boot.SpringBootConfiguration;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import se.swedenconnect.ca.headless.ca.db.DBCARepository;
+import se.swedenconnect.ca.headless.ca.db.DBCRLJPARepository;
+import se.swedenconnect.ca.headless.ca.db.DBCRLMetadataRepository;
+import se.swedenconnect.ca.headless.ca.db.DBJPARepository;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Embedded H2 database holding the tables of the database CA repository.
+ *
+ * <p>Only the JPA repositories of the Headless CA are started, not the CA service application.</p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@SpringBootConfiguration
+@EnableAutoConfiguration
+@EnableJpaRepositories(basePackageClasses = DBJPARepository.class)
+@EntityScan(basePackageClasses = DBJPARepository.class)
+public class BenchmarkDatabase implements AutoCloseable {
+
+  private final ConfigurableApplicationContext context;
+
+  private BenchmarkDatabase(ConfigurableApplicationContext context) {
+    this.context = context;
+  }
+
+  /**
+   * Start a new and empty in memory database.
+   *
+   * @return the started database
+   */
+  public static BenchmarkDatabase start() {
+    ConfigurableApplicationContext context = new SpringApplicationBuilder(BenchmarkDatabase.class)
+      .web(WebApplicationType.NONE)
+      .logStartupInfo(false)
+      .properties(
+        "spring.main.banner-mode=off",
+        "spring.datasource.url=jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1",
+        "spring.datasource.username=sa",
+        "spring.jpa.hibernate.ddl-auto=create",
+        "logging.level.root=WARN")
+      .run();
+    return new BenchmarkDatabase(context);
+  }
+
+  /**
+   * Create a database CA repository using this database.
+   *
+   * @param instance the instance name
+   * @param crlFile the file used to store the CRL of the instance
+   * @return database CA repository
+   * @throws IOException error creating the repository
+   */
+  public DBCARepository createRepository(String instance, File crlFile) throws IOException {
+    return new DBCARepository(crlFile, context.getBean(DBJPARepository.class), instance,
+      new DBCRLMetadataRepository(context.getBean(DBCRLJPARepository.class)));
+  }
+
+  /** {@inheritDoc} */
+  @Override public void close() {
+    context.close();
+  }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.benchmark;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.cert.X509CRLHolder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.swedenconnect.ca.headless.ca.HeadlessCAService;
+
+import java.math.BigInteger;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of generating and publishing a new CRL with a varying number of revoked certificates.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class CrlGenerationBenchmark {
+
+  /** Number of revoked certificates listed in the CRL */
+  @Param({ "0", "1000", "10000", "100000" })
+  public int revokedCount;
+
+  private HeadlessCAService caService;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    InMemoryCARepository repository = new InMemoryCARepository(BenchmarkCA.INSTANCE);
+    X500Name issuer = new X500Name("CN=Benchmark CA");
+    SubjectPublicKeyInfo subjectPublicKey = SubjectPublicKeyInfo.getInstance(
+      BenchmarkCertificates.generateKeyPair("EC-P256").getPublic().getEncoded());
+    long now = System.currentTimeMillis();
+    Date notBefore = new Date(now - 60000L);
+    Date notAfter = new Date(now + 365 * 24 * 3600 * 1000L);
+    for (int i = 1; i <= revokedCount; i++) {
+      repository.putCertificate(BenchmarkCertificates.createEndEntityCertificate(BigInteger.valueOf(i), issuer,
+        subjectPublicKey, notBefore, notAfter), true);
+    }
+    caService = BenchmarkCA.createCAService("RSA-3072", repository);
+  }
+
+  @Benchmark
+  public X509CRLHolder publishNewCrl() throws Exception {
+    return caService.publishNewCrl();
+  }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.benchmark;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import se.swedenconnect.ca.engine.ca.repository.CertificateRecord;
+import se.swedenconnect.ca.headless.ca.db.DBCARepository;
+import se.swedenconnect.ca.headless.ca.db.DBCertificateRecord;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the database CA repository against an embedded H2 database.
+ *
+ * <p>Adding and revoking certificates changes the repository, so these operations are measured as batches of
+ * {@link #BATCH_SIZE} operations on certificates prepared before each iteration. Lookups are measured one by one.</p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DBCARepositoryBenchmark {
+
+  /** The number of operations in each measured batch of add or revoke operations */
+  public static final int BATCH_SIZE = 1000;
+
+  /** Number of certificates in the repository before the benchmark */
+  @Param({ "10000", "100000" })
+  public int repositorySize;
+
+  private BenchmarkDatabase database;
+  private DBCARepository repository;
+  private X500Name issuer;
+  private SubjectPublicKeyInfo subjectPublicKey;
+  private long nextSerial;
+  private List<X509CertificateHolder> certificatesToAdd;
+  private List<BigInteger> certificatesToRevoke;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    database = BenchmarkDatabase.start();
+    repository = database.createRepository(BenchmarkCA.INSTANCE,
+      Files.createTempDirectory("ca-benchmark").resolve("bench.crl").toFile());
+    issuer = new X500Name("CN=Benchmark CA");
+    subjectPublicKey = SubjectPublicKeyInfo.getInstance(
+      BenchmarkCertificates.generateKeyPair("EC-P256").getPublic().getEncoded());
+    nextSerial = 1;
+    // Populate the repository in bulk, since this is not what is measured
+    List<DBCertificateRecord> records = new ArrayList<>();
+    for (int i = 0; i < repositorySize; i++) {
+      records.add(toRecord(nextCertificate()));
+      if (records.size() == BATCH_SIZE) {
+        repository.getDbRepository().saveAll(records);
+        records.clear();
+      }
+    }
+    repository.getDbRepository().saveAll(records);
+  }
+
+  @Setup(Level.Iteration)
+  public void prepareBatch() throws Exception {
+    certificatesToAdd = new ArrayList<>();
+    certificatesToRevoke = new ArrayList<>();
+    List<DBCertificateRecord> records = new ArrayList<>();
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      certificatesToAdd.add(nextCertificate());
+      X509CertificateHolder certificateToRevoke = nextCertificate();
+      records.add(toRecord(certificateToRevoke));
+      certificatesToRevoke.add(certificateToRevoke.getSerialNumber());
+    }
+    repository.getDbRepository().saveAll(records);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    database.close();
+  }
+
+  private X509CertificateHolder nextCertificate() {
+    long now = System.currentTimeMillis();
+    return BenchmarkCertificates.createEndEntityCertificate(BigInteger.valueOf(nextSerial++), issuer, subjectPublicKey,
+      new Date(now - 60000L), new Date(now + 365 * 24 * 3600 * 1000L));
+  }
+
+  private DBCertificateRecord toRecord(X509CertificateHolder certificate) throws IOException {
+    return new DBCertificateRecord(certificate.getEncoded(), certificate.getSerialNumber(), certificate.getNotBefore(),
+      certificate.getNotAfter(), false, null, null, BenchmarkCA.INSTANCE);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  public void addCertificates() throws Exception {
+    for (X509CertificateHolder certificate : certificatesToAdd) {
+      repository.addCertificate(certificate);
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  public void revokeCertificates() throws Exception {
+    for (BigInteger serialNumber : certificatesToRevoke) {
+      repository.revokeCertificate(serialNumber, CRLReason.keyCompromise, new Date());
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public CertificateRecord getCertificate() {
+    return repository.getCertificate(BigInteger.valueOf(ThreadLocalRandom.current().nextLong(1, repositorySize + 1)));
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public int getCertificateCount() {
+    return repository.getCertificateCount(true);
+  }
+
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.benchmark;
+
+import org.bouncycastle.asn1.x509.CRLNumber;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.cert.X509CRLHolder;
+import org.bouncycastle.cert.X509CertificateHolder;
+import se.swedenconnect.ca.engine.ca.repository.CARepository;
+import se.swedenconnect.ca.engine.ca.repository.CertificateRecord;
+import se.swedenconnect.ca.engine.ca.repository.SortBy;
+import se.swedenconnect.ca.engine.revocation.CertificateRevocationException;
+import se.swedenconnect.ca.engine.revocation.crl.CRLMetadata;
+import se.swedenconnect.ca.engine.revocation.crl.CRLRevocationDataProvider;
+import se.swedenconnect.ca.engine.revocation.crl.RevokedCertificate;
+import se.swedenconnect.ca.headless.ca.db.DBCertificateRecord;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Collectors;
+
+/**
+ * CA repository holding all data in memory. Used where a benchmark should measure the cost of the code consuming the
+ * repository rather than the cost of the repository storage.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+public class InMemoryCARepository implements CARepository, CRLRevocationDataProvider {
+
+  private final Map<BigInteger, DBCertificateRecord> certificateMap = new ConcurrentSkipListMap<>();
+  private final String instance;
+  private X509CRLHolder currentCrl;
+  private CRLMetadata crlMetadata;
+
+  /**
+   * Constructor.
+   *
+   * @param instance the name of the instance
+   */
+  public InMemoryCARepository(String instance) {
+    this.instance = instance;
+    this.crlMetadata = CRLMetadata.builder()
+      .crlNumber(BigInteger.ZERO)
+      .issueTime(Instant.ofEpochMilli(0L))
+      .nextUpdate(Instant.ofEpochMilli(0L))
+      .revokedCertCount(0)
+      .build();
+  }
+
+  /**
+   * Add a certificate record without any checks.
+   *
+   * @param certificate the certificate to add
+   * @param revoked true to add the certificate as revoked
+   * @throws IOException error encoding the certificate
+   */
+  public void putCertificate(X509CertificateHolder certificate, boolean revoked) throws IOException {
+    certificateMap.put(certificate.getSerialNumber(), new DBCertificateRecord(certificate.getEncoded(),
+      certificate.getSerialNumber(), certificate.getNotBefore(), certificate.getNotAfter(), revoked,
+      revoked ? 0 : null, revoked ? new Date() : null, instance));
+  }
+
+  @Override public List<BigInteger> getAllCertificates() {
+    return new ArrayList<>(certificateMap.keySet());
+  }
+
+  @Override public CertificateRecord getCertificate(BigInteger serialNumber) {
+    return certificateMap.get(serialNumber);
+  }
+
+  @Override public void addCertificate(X509CertificateHolder certificate) throws IOException {
+    if (certificateMap.containsKey(certificate.getSerialNumber())) {
+      throw new IOException("This certificate already exists in the certificate repository");
+    }
+    putCertificate(certificate, false);
+  }
+
+  @Override public void revokeCertificate(BigInteger serialNumber, int reason, Date revocationTime)
+    throws CertificateRevocationException {
+    DBCertificateRecord certificateRecord = certificateMap.get(serialNumber);
+    if (certificateRecord == null) {
+      throw new CertificateRevocationException("No such certificate (" + serialNumber.toString(16) + ")");
+    }
+    certificateRecord.setRevoked(true);
+    certificateRecord.setReason(reason);
+    certificateRecord.setRevocationTime(revocationTime);
+  }
+
+  @Override public CRLRevocationDataProvider getCRLRevocationDataProvider() {
+    return this;
+  }
+
+  @Override public int getCertificateCount(boolean notRevoked) {
+    return notRevoked
+      ? (int) certificateMap.values().stream().filter(certificateRecord -> !certificateRecord.isRevoked()).count()
+      : certificateMap.size();
+  }
+
+  @Override public List<CertificateRecord> getCertificateRange(int page, int pageSize, boolean notRevoked,
+    SortBy sortBy, boolean descending) {
+    Comparator<CertificateRecord> comparator = sortBy == SortBy.serialNumber
+      ? Comparator.comparing(CertificateRecord::getSerialNumber)
+      : Comparator.comparing(CertificateRecord::getIssueDate);
+    return certificateMap.values().stream()
+      .filter(certificateRecord -> !notRevoked || !certificateRecord.isRevoked())
+      .sorted(descending ? comparator.reversed() : comparator)
+      .skip((long) page * pageSize)
+      .limit(pageSize)
+      .collect(Collectors.toList());
+  }
+
+  @Override public List<BigInteger> removeExpiredCerts(int gracePeriodSeconds) {
+    return new ArrayList<>();
+  }
+
+  @Override public List<RevokedCertificate> getRevokedCertificates() {
+    return certificateMap.values().stream()
+      .filter(CertificateRecord::isRevoked)
+      .map(certificateRecord -> new RevokedCertificate(certificateRecord.getSerialNumber(),
+        certificateRecord.getRevocationTime(), certificateRecord.getReason()))
+      .collect(Collectors.toList());
+  }
+
+  @Override public BigInteger getNextCrlNumber() {
+    return crlMetadata.getCrlNumber().add(BigInteger.ONE);
+  }
+
+  @Override public void publishNewCrl(X509CRLHolder crl) {
+    Extension crlNumberExtension = crl.getExtension(Extension.cRLNumber);
+    this.crlMetadata = CRLMetadata.builder()
+      .crlNumber(CRLNumber.getInstance(crlNumberExtension.getParsedValue()).getCRLNumber())
+      .issueTime(crl.getThisUpdate().toInstant())
+      .nextUpdate(crl.getNextUpdate().toInstant())
+      .revokedCertCount(crl.getRevokedCertificates().size())
+      .build();
+    this.currentCrl = crl;
+  }
+
+  @Override public X509CRLHolder getCurrentCrl() {
+    return currentCrl;
+  }
+
+  @Override public CRLMetadata getCurrentCRLMetadata() {
+    return crlMetadata;
+  }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.benchmark;
+
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import se.swedenconnect.ca.engine.ca.attribute.CertAttributes;
+import se.swedenconnect.ca.engine.ca.models.cert.AttributeTypeAndValueModel;
+import se.swedenconnect.ca.engine.ca.models.cert.CertNameModel;
+import se.swedenconnect.ca.engine.ca.models.cert.impl.ExplicitCertNameModel;
+import se.swedenconnect.ca.headless.ca.HeadlessCAService;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.PublicKey;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmark of certificate issuance, including validation of the request, signing and storing the certificate in a
+ * database CA repository.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class IssueCertificateBenchmark {
+
+  /** Key type of the CA */
+  @Param({ "RSA-3072", "EC-P256" })
+  public String caKeyType;
+
+  /** Key type of the certified subject key */
+  @Param({ "RSA-3072", "EC-P256" })
+  public String subjectKeyType;
+
+  private BenchmarkDatabase database;
+  private Path dataDir;
+  private HeadlessCAService caService;
+  private PublicKey subjectPublicKey;
+  private final AtomicLong subjectCounter = new AtomicLong();
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    database = BenchmarkDatabase.start();
+    dataDir = Files.createTempDirectory("ca-benchmark");
+    caService = BenchmarkCA.createCAService(caKeyType,
+      database.createRepository(BenchmarkCA.INSTANCE, dataDir.resolve("bench.crl").toFile()));
+    // Key generation is not part of issuance and is done once
+    subjectPublicKey = BenchmarkCertificates.generateKeyPair(subjectKeyType).getPublic();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    database.close();
+  }
+
+  @Benchmark
+  public X509CertificateHolder issueCertificate() throws Exception {
+    CertNameModel<?> subject = new ExplicitCertNameModel(List.of(AttributeTypeAndValueModel.builder()
+      .attributeType(CertAttributes.CN)
+      .value("Subject " + subjectCounter.incrementAndGet())
+      .build()));
+    return caService.issueCertificate(caService.getCertificateModelBuilder(subject, subjectPublicKey).build());
+  }
+
+}
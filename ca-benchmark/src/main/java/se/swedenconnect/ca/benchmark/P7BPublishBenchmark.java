@@ -0,0 +1,87 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.benchmark;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.swedenconnect.ca.headless.ca.P7BCertStore;
+
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of publishing the PKCS#7 file of issued certificates. The certificates are held by an in-memory repository,
+ * so that the benchmark measures the cost of building the file rather than reading the repository.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx8g" })
+public class P7BPublishBenchmark {
+
+  /** Number of certificates in the repository */
+  @Param({ "10000", "100000", "1000000" })
+  public int certificateCount;
+
+  /** Percentage of the certificates that are revoked */
+  @Param({ "10" })
+  public int revokedPercent;
+
+  private InMemoryCARepository repository;
+  private P7BCertStore p7BCertStore;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    repository = new InMemoryCARepository(BenchmarkCA.INSTANCE);
+    X500Name issuer = new X500Name("CN=Benchmark CA");
+    SubjectPublicKeyInfo subjectPublicKey = SubjectPublicKeyInfo.getInstance(
+      BenchmarkCertificates.generateKeyPair("EC-P256").getPublic().getEncoded());
+    long now = System.currentTimeMillis();
+    Date notBefore = new Date(now - 60000L);
+    Date notAfter = new Date(now + 365 * 24 * 3600 * 1000L);
+    for (int i = 1; i <= certificateCount; i++) {
+      repository.putCertificate(BenchmarkCertificates.createEndEntityCertificate(BigInteger.valueOf(i), issuer,
+        subjectPublicKey, notBefore, notAfter), i % 100 < revokedPercent);
+    }
+    p7BCertStore = new P7BCertStore(Files.createTempDirectory("ca-benchmark").toFile());
+  }
+
+  @Benchmark
+  public void publishIssuedCerts() throws Exception {
+    p7BCertStore.publishIssuedCerts(BenchmarkCA.INSTANCE, repository);
+  }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.benchmark.load;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.util.Arrays;
+
+/**
+ * Records the latency of each executed operation of one type, and computes throughput and latency percentiles.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+public class LatencyRecorder {
+
+  private final String operation;
+  private long[] latencies = new long[1024];
+  private int count;
+  private int errorCount;
+
+  /**
+   * Constructor.
+   *
+   * @param operation the name of the recorded operation
+   */
+  public LatencyRecorder(String operation) {
+    this.operation = operation;
+  }
+
+  /**
+   * Record a successful operation.
+   *
+   * @param latencyNanos the latency of the operation in nanoseconds
+   */
+  public synchronized void recordSuccess(long latencyNanos) {
+    if (count == latencies.length) {
+      latencies = Arrays.copyOf(latencies, latencies.length * 2);
+    }
+    latencies[count++] = latencyNanos;
+  }
+
+  /**
+   * Record a failed operation. Latencies of failed operations are not included in the percentiles.
+   */
+  public synchronized void recordError() {
+    errorCount++;
+  }
+
+  /**
+   * Get the statistics of the recorded operations.
+   *
+   * @param elapsedNanos the duration of the load test in nanoseconds
+   * @return statistics
+   */
+  public synchronized OperationStatistics getStatistics(long elapsedNanos) {
+    long[] sorted = Arrays.copyOf(latencies, count);
+    Arrays.sort(sorted);
+    return OperationStatistics.builder()
+      .operation(operation)
+      .count(count)
+      .errors(errorCount)
+      .throughputPerSecond(count * 1_000_000_000d / Math.max(elapsedNanos, 1))
+      .p50Millis(percentileMillis(sorted, 0.50))
+      .p90Millis(percentileMillis(sorted, 0.90))
+      .p99Millis(percentileMillis(sorted, 0.99))
+      .maxMillis(sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1_000_000d)
+      .build();
+  }
+
+  private static double percentileMillis(long[] sorted, double percentile) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int index = (int) Math.ceil(percentile * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1_000_000d;
+  }
+
+  /**
+   * Statistics of one type of operation.
+   */
+  @Data
+  @Builder
+  public static class OperationStatistics {
+    private String operation;
+    private int count;
+    private int errors;
+    private double throughputPerSecond;
+    private double p50Millis;
+    private double p90Millis;
+    private double p99Millis;
+    private double maxMillis;
+  }
+
+}
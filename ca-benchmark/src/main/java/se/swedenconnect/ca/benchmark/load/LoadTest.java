@@ -0,0 +1,245 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.benchmark.load;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.ParseException;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import se.swedenconnect.ca.headless.HeadlessCaApplication;
+import se.swedenconnect.ca.headless.ca.InstanceStartupHealthIndicator;
+import se.swedenconnect.security.credential.BasicCredential;
+import se.swedenconnect.security.credential.PkiCredential;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load generator for the Headless CA. A number of concurrent clients execute a weighted mix of operations against a CA
+ * instance for a fixed duration, after which throughput and latency percentiles are reported for each operation.
+ *
+ * <p>The CA service is either already running at the provided URL, or is started in this process from a
+ * configuration directory using the {@code nodb} profile or an embedded H2 database.</p>
+ *
+ * <p>Usage: java -cp benchmarks.jar se.swedenconnect.ca.benchmark.load.LoadTest [options]</p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@Slf4j
+public class LoadTest {
+
+  public static void main(String[] args) throws Exception {
+    CommandLine cmd;
+    try {
+      cmd = new DefaultParser().parse(LoadTestOptions.getOptions(), args);
+    }
+    catch (ParseException ex) {
+      System.out.println(ex.getMessage());
+      printHelp();
+      return;
+    }
+    if (cmd.hasOption(LoadTestOptions.OPTION_HELP) || !cmd.hasOption(LoadTestOptions.OPTION_INSTANCE)) {
+      printHelp();
+      return;
+    }
+
+    String instance = cmd.getOptionValue(LoadTestOptions.OPTION_INSTANCE);
+    String baseUrl = cmd.getOptionValue(LoadTestOptions.OPTION_URL, "http://localhost:8080");
+    int concurrency = Integer.parseInt(cmd.getOptionValue(LoadTestOptions.OPTION_CONCURRENCY, "8"));
+    int durationSeconds = Integer.parseInt(cmd.getOptionValue(LoadTestOptions.OPTION_DURATION, "60"));
+    int warmupSeconds = Integer.parseInt(cmd.getOptionValue(LoadTestOptions.OPTION_WARMUP, "10"));
+    List<String> operationMix = parseMix(cmd.getOptionValue(LoadTestOptions.OPTION_MIX, LoadTestOptions.DEFAULT_MIX));
+
+    ConfigurableApplicationContext caServiceContext = null;
+    if (cmd.hasOption(LoadTestOptions.OPTION_START)) {
+      caServiceContext = startCaService(cmd.getOptionValue(LoadTestOptions.OPTION_START),
+        cmd.hasOption(LoadTestOptions.OPTION_H2), instance,
+        Integer.parseInt(cmd.getOptionValue(LoadTestOptions.OPTION_START_TIMEOUT, "300")));
+    }
+    try {
+      LoadTestClient client = new LoadTestClient(baseUrl, instance,
+        readCertificate(cmd.getOptionValue(LoadTestOptions.OPTION_CA_CERT)),
+        readCertificate(cmd.getOptionValue(LoadTestOptions.OPTION_CMC_CERT)),
+        readCredential(cmd.getOptionValue(LoadTestOptions.OPTION_CLIENT_KEYSTORE),
+          cmd.getOptionValue(LoadTestOptions.OPTION_CLIENT_PASSWORD, "")));
+
+      System.out.printf("Warming up for %d seconds using %d clients%n", warmupSeconds, concurrency);
+      runLoad(client, operationMix, concurrency, warmupSeconds);
+      System.out.printf("Measuring for %d seconds using %d clients%n", durationSeconds, concurrency);
+      long startTime = System.nanoTime();
+      Map<String, LatencyRecorder> recorders = runLoad(client, operationMix, concurrency, durationSeconds);
+      long elapsedNanos = System.nanoTime() - startTime;
+
+      List<LatencyRecorder.OperationStatistics> statistics = new ArrayList<>();
+      recorders.values().forEach(recorder -> statistics.add(recorder.getStatistics(elapsedNanos)));
+      printStatistics(statistics);
+      if (cmd.hasOption(LoadTestOptions.OPTION_OUT)) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("instance", instance);
+        result.put("concurrency", concurrency);
+        result.put("durationSeconds", durationSeconds);
+        result.put("operations", statistics);
+        new ObjectMapper().writerWithDefaultPrettyPrinter()
+          .writeValue(new File(cmd.getOptionValue(LoadTestOptions.OPTION_OUT)), result);
+      }
+    }
+    finally {
+      if (caServiceContext != null) {
+        caServiceContext.close();
+      }
+    }
+  }
+
+  private static Map<String, LatencyRecorder> runLoad(LoadTestClient client, List<String> operationMix,
+    int concurrency, int durationSeconds) throws InterruptedException {
+    Map<String, LatencyRecorder> recorders = new LinkedHashMap<>();
+    operationMix.stream().distinct().forEach(operation -> recorders.put(operation, new LatencyRecorder(operation)));
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds);
+    ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+    for (int i = 0; i < concurrency; i++) {
+      executor.execute(() -> {
+        while (System.nanoTime() < deadline) {
+          String operation = operationMix.get(ThreadLocalRandom.current().nextInt(operationMix.size()));
+          LatencyRecorder recorder = recorders.get(operation);
+          long operationStart = System.nanoTime();
+          try {
+            if (client.execute(operation)) {
+              recorder.recordSuccess(System.nanoTime() - operationStart);
+            }
+          }
+          catch (Exception ex) {
+            log.debug("Operation {} failed: {}", operation, ex.toString());
+            recorder.recordError();
+          }
+        }
+      });
+    }
+    executor.shutdown();
+    executor.awaitTermination(durationSeconds + 60L, TimeUnit.SECONDS);
+    return recorders;
+  }
+
+  /**
+   * Parse the operation mix into a list where each operation occurs as many times as its weight.
+   */
+  private static List<String> parseMix(String mix) {
+    List<String> operationMix = new ArrayList<>();
+    for (String operationWeight : mix.split(",")) {
+      String[] parts = operationWeight.trim().split("=");
+      int weight = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+      for (int i = 0; i < weight; i++) {
+        operationMix.add(parts[0].trim());
+      }
+    }
+    if (operationMix.isEmpty()) {
+      throw new IllegalArgumentException("No operations in operation mix " + mix);
+    }
+    return operationMix;
+  }
+
+  private static ConfigurableApplicationContext startCaService(String configDir, boolean useH2, String instance,
+    int startTimeoutSeconds) throws InterruptedException {
+    List<String> args = new ArrayList<>();
+    args.add("--spring.config.additional-location=" + new File(configDir).getAbsolutePath() + "/");
+    SpringApplication application = new SpringApplication(HeadlessCaApplication.class);
+    if (useH2) {
+      args.add("--spring.datasource.url=jdbc:h2:mem:loadtest;DB_CLOSE_DELAY=-1");
+      args.add("--spring.datasource.username=sa");
+      args.add("--spring.jpa.hibernate.ddl-auto=create");
+    }
+    else {
+      application.setAdditionalProfiles("nodb");
+    }
+    System.out.printf("Starting CA service using configuration in %s%n", configDir);
+    ConfigurableApplicationContext context = application.run(args.toArray(new String[0]));
+    InstanceStartupHealthIndicator startupHealthIndicator = context.getBean(InstanceStartupHealthIndicator.class);
+    long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(startTimeoutSeconds);
+    while (!startupHealthIndicator.isReady(instance)) {
+      String error = null;
+      if (startupHealthIndicator.getState(instance) == InstanceStartupHealthIndicator.StartupState.FAILED) {
+        error = "Initialization of instance " + instance + " failed";
+      }
+      else if (System.currentTimeMillis() > deadline) {
+        error = "Instance " + instance + " not ready after " + startTimeoutSeconds + " seconds";
+      }
+      if (error != null) {
+        context.close();
+        throw new IllegalStateException(error);
+      }
+      Thread.sleep(100);
+    }
+    return context;
+  }
+
+  private static X509Certificate readCertificate(String pemFile) throws Exception {
+    if (pemFile == null) {
+      throw new IllegalArgumentException("Missing certificate file option");
+    }
+    try (InputStream inputStream = Files.newInputStream(new File(pemFile).toPath())) {
+      return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(inputStream);
+    }
+  }
+
+  private static PkiCredential readCredential(String keyStoreFile, String password) throws Exception {
+    if (keyStoreFile == null) {
+      throw new IllegalArgumentException("Missing CMC client key store option");
+    }
+    KeyStore keyStore = KeyStore.getInstance("PKCS12");
+    try (InputStream inputStream = Files.newInputStream(new File(keyStoreFile).toPath())) {
+      keyStore.load(inputStream, password.toCharArray());
+    }
+    String alias = keyStore.aliases().nextElement();
+    return new BasicCredential((X509Certificate) keyStore.getCertificate(alias),
+      (PrivateKey) keyStore.getKey(alias, password.toCharArray()));
+  }
+
+  private static void printStatistics(List<LatencyRecorder.OperationStatistics> statistics) {
+    System.out.printf("%n%-8s %10s %8s %10s %10s %10s %10s %10s%n",
+      "op", "count", "errors", "ops/s", "p50 ms", "p90 ms", "p99 ms", "max ms");
+    for (LatencyRecorder.OperationStatistics operationStatistics : statistics) {
+      System.out.printf("%-8s %10d %8d %10.1f %10.2f %10.2f %10.2f %10.2f%n",
+        operationStatistics.getOperation(), operationStatistics.getCount(), operationStatistics.getErrors(),
+        operationStatistics.getThroughputPerSecond(), operationStatistics.getP50Millis(),
+        operationStatistics.getP90Millis(), operationStatistics.getP99Millis(), operationStatistics.getMaxMillis());
+    }
+  }
+
+  private static void printHelp() {
+    new HelpFormatter().printHelp(
+      "java -cp benchmarks.jar se.swedenconnect.ca.benchmark.load.LoadTest -instance <instance> [options]",
+      LoadTestOptions.getOptions());
+  }
+
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.benchmark.load;
+
+import lombok.extern.slf4j.Slf4j;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.OCSPReqBuilder;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import se.swedenconnect.ca.benchmark.BenchmarkCertificates;
+import se.swedenconnect.ca.cmc.api.client.CMCClient;
+import se.swedenconnect.ca.cmc.api.client.impl.PreConfiguredCMCClient;
+import se.swedenconnect.ca.cmc.api.data.CMCResponse;
+import se.swedenconnect.ca.cmc.api.data.CMCStatusType;
+import se.swedenconnect.ca.engine.ca.attribute.CertAttributes;
+import se.swedenconnect.ca.engine.ca.models.cert.AttributeTypeAndValueModel;
+import se.swedenconnect.ca.engine.ca.models.cert.impl.ExplicitCertNameModel;
+import se.swedenconnect.security.credential.PkiCredential;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client executing the operations of the load test against a CA instance. Certificates are issued and revoked through
+ * the CMC API, and the revocation status is checked through OCSP. The CRL and the PKCS#7 file of issued certificates
+ * are downloaded over HTTP.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@Slf4j
+public class LoadTestClient {
+
+  /** Issue a certificate through CMC */
+  public static final String OPERATION_ISSUE = "issue";
+  /** Revoke a previously issued certificate through CMC */
+  public static final String OPERATION_REVOKE = "revoke";
+  /** Check the status of a previously issued certificate through OCSP */
+  public static final String OPERATION_OCSP = "ocsp";
+  /** Download the CRL */
+  public static final String OPERATION_CRL = "crl";
+  /** Download the PKCS#7 file of issued certificates */
+  public static final String OPERATION_P7B = "p7b";
+
+  private static final int KEY_POOL_SIZE = 64;
+
+  private final String baseUrl;
+  private final String instance;
+  private final X509CertificateHolder caCertificate;
+  private final CMCClient cmcClient;
+  private final HttpClient httpClient;
+  private final List<KeyPair> subjectKeyPool;
+  private final Queue<BigInteger> revocableSerials = new ConcurrentLinkedQueue<>();
+  private final List<BigInteger> issuedSerials = new ArrayList<>();
+  private final AtomicLong subjectCounter = new AtomicLong();
+
+  /**
+   * Constructor.
+   *
+   * @param baseUrl the base URL of the CA service
+   * @param instance the CA instance under test
+   * @param caCertificate the certificate of the CA instance
+   * @param cmcResponseCertificate the CMC response signing certificate of the CA instance
+   * @param clientCredential the credential of an authorized CMC client
+   * @throws Exception error setting up the client
+   */
+  public LoadTestClient(String baseUrl, String instance, X509Certificate caCertificate,
+    X509Certificate cmcResponseCertificate, PkiCredential clientCredential) throws Exception {
+    this.baseUrl = baseUrl;
+    this.instance = instance;
+    this.caCertificate = new JcaX509CertificateHolder(caCertificate);
+    this.cmcClient = new PreConfiguredCMCClient(baseUrl + "/cmc/" + instance, clientCredential,
+      BenchmarkCertificates.CA_ALGORITHM, cmcResponseCertificate, caCertificate);
+    this.httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+    // Keys are generated in advance so that client side key generation does not limit the load
+    this.subjectKeyPool = new ArrayList<>();
+    for (int i = 0; i < KEY_POOL_SIZE; i++) {
+      subjectKeyPool.add(BenchmarkCertificates.generateKeyPair("EC-P256"));
+    }
+  }
+
+  /**
+   * Execute an operation.
+   *
+   * @param operation the operation to execute
+   * @return true if the operation was executed, false if it could not be executed in the current state
+   * @throws Exception error executing the operation
+   */
+  public boolean execute(String operation) throws Exception {
+    switch (operation) {
+    case OPERATION_ISSUE -> issueCertificate();
+    case OPERATION_REVOKE -> {
+      return revokeCertificate();
+    }
+    case OPERATION_OCSP -> {
+      return checkOcspStatus();
+    }
+    case OPERATION_CRL -> download(baseUrl + "/crl/" + instance + ".crl");
+    case OPERATION_P7B -> download(baseUrl + "/certs/" + instance + ".p7b");
+    default -> throw new IllegalArgumentException("Unknown operation " + operation);
+    }
+    return true;
+  }
+
+  private void issueCertificate() throws Exception {
+    KeyPair subjectKeyPair = subjectKeyPool.get(ThreadLocalRandom.current().nextInt(subjectKeyPool.size()));
+    ExplicitCertNameModel subject = new ExplicitCertNameModel(List.of(AttributeTypeAndValueModel.builder()
+      .attributeType(CertAttributes.CN)
+      .value("Load test subject " + subjectCounter.incrementAndGet())
+      .build()));
+    CMCResponse response = cmcClient.issueCertificate(
+      cmcClient.getCertificateModelBuilder(subjectKeyPair.getPublic(), subject, true, true).build());
+    checkResponse(response);
+    BigInteger serialNumber = response.getReturnCertificates().get(0).getSerialNumber();
+    revocableSerials.add(serialNumber);
+    synchronized (issuedSerials) {
+      issuedSerials.add(serialNumber);
+    }
+  }
+
+  private boolean revokeCertificate() throws Exception {
+    BigInteger serialNumber = revocableSerials.poll();
+    if (serialNumber == null) {
+      return false;
+    }
+    checkResponse(cmcClient.revokeCertificate(serialNumber, CRLReason.unspecified, new Date()));
+    return true;
+  }
+
+  private boolean checkOcspStatus() throws Exception {
+    BigInteger serialNumber;
+    synchronized (issuedSerials) {
+      if (issuedSerials.isEmpty()) {
+        return false;
+      }
+      serialNumber = issuedSerials.get(ThreadLocalRandom.current().nextInt(issuedSerials.size()));
+    }
+    CertificateID certificateID = new CertificateID(
+      new JcaDigestCalculatorProviderBuilder().build().get(CertificateID.HASH_SHA1), caCertificate, serialNumber);
+    byte[] ocspRequest = new OCSPReqBuilder().addRequest(certificateID).build().getEncoded();
+    HttpResponse<byte[]> response = httpClient.send(HttpRequest.newBuilder(URI.create(baseUrl + "/ocsp/" + instance))
+        .header("Content-Type", "application/ocsp-request")
+        .POST(HttpRequest.BodyPublishers.ofByteArray(ocspRequest))
+        .build(),
+      HttpResponse.BodyHandlers.ofByteArray());
+    if (response.statusCode() != 200) {
+      throw new IOException("OCSP request failed with HTTP status " + response.statusCode());
+    }
+    OCSPResp ocspResponse = new OCSPResp(response.body());
+    if (ocspResponse.getStatus() != OCSPResp.SUCCESSFUL) {
+      throw new IOException("OCSP request failed with OCSP status " + ocspResponse.getStatus());
+    }
+    return true;
+  }
+
+  private void download(String url) throws Exception {
+    HttpResponse<byte[]> response = httpClient.send(HttpRequest.newBuilder(URI.create(url)).GET().build(),
+      HttpResponse.BodyHandlers.ofByteArray());
+    if (response.statusCode() != 200) {
+      throw new IOException("Download of " + url + " failed with HTTP status " + response.statusCode());
+    }
+  }
+
+  private void checkResponse(CMCResponse response) throws IOException {
+    if (!CMCStatusType.success.equals(response.getResponseStatus().getStatus())) {
+      throw new IOException("CMC request failed with status " + response.getResponseStatus().getStatus());
+    }
+  }
+
+}
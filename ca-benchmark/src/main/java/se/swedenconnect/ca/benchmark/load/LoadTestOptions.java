@@ -0,0 +1,71 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.benchmark.load;
+
+import org.apache.commons.cli.Options;
+
+/**
+ * CLI options of the load test
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+public class LoadTestOptions {
+  public static final String OPTION_URL = "url";
+  public static final String OPTION_INSTANCE = "instance";
+  public static final String OPTION_CA_CERT = "cacert";
+  public static final String OPTION_CMC_CERT = "cmccert";
+  public static final String OPTION_CLIENT_KEYSTORE = "clientks";
+  public static final String OPTION_CLIENT_PASSWORD = "clientpw";
+  public static final String OPTION_CONCURRENCY = "c";
+  public static final String OPTION_DURATION = "t";
+  public static final String OPTION_WARMUP = "warmup";
+  public static final String OPTION_MIX = "mix";
+  public static final String OPTION_START = "start";
+  public static final String OPTION_H2 = "h2";
+  public static final String OPTION_START_TIMEOUT = "starttimeout";
+  public static final String OPTION_OUT = "out";
+  public static final String OPTION_HELP = "help";
+
+  /** Default mix of operations */
+  public static final String DEFAULT_MIX = "issue=50,revoke=10,ocsp=30,crl=5,p7b=5";
+
+  private static final Options op;
+
+  static {
+    op = new Options();
+    op.addOption(OPTION_URL, true, "Base URL of the CA service (Default http://localhost:8080)");
+    op.addOption(OPTION_INSTANCE, true, "The CA instance under test");
+    op.addOption(OPTION_CA_CERT, true, "PEM file holding the certificate of the CA instance");
+    op.addOption(OPTION_CMC_CERT, true, "PEM file holding the CMC response signing certificate of the CA instance");
+    op.addOption(OPTION_CLIENT_KEYSTORE, true, "PKCS#12 key store holding the key and certificate of an authorized CMC client");
+    op.addOption(OPTION_CLIENT_PASSWORD, true, "Password of the CMC client key store");
+    op.addOption(OPTION_CONCURRENCY, true, "Number of concurrent clients (Default 8)");
+    op.addOption(OPTION_DURATION, true, "Duration of the measured load in seconds (Default 60)");
+    op.addOption(OPTION_WARMUP, true, "Duration of the warmup load that is not measured in seconds (Default 10)");
+    op.addOption(OPTION_MIX, true, "Relative weight of each operation (Default " + DEFAULT_MIX + ")");
+    op.addOption(OPTION_START, true, "Start the CA service in this process using this configuration directory");
+    op.addOption(OPTION_H2, false, "Use an embedded H2 database when starting the CA service (Default nodb profile)");
+    op.addOption(OPTION_START_TIMEOUT, true, "Max seconds to wait for the started CA service instance to be ready (Default 300)");
+    op.addOption(OPTION_OUT, true, "File receiving the results in JSON format");
+    op.addOption(OPTION_HELP, false, "Print this message");
+  }
+
+  public static Options getOptions() {
+    return op;
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.configuration;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.swedenconnect.ca.benchmark.BenchmarkCertificates;
+
+import java.security.PublicKey;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the public key policy check made for each certification request. This benchmark is located in the
+ * package of {@link KeyLengthConstraints} in order to set the policy without a Spring context.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyLengthConstraintsBenchmark {
+
+  /** Key type of the validated key */
+  @Param({ "RSA-3072", "EC-P256" })
+  public String keyType;
+
+  private KeyLengthConstraints keyLengthConstraints;
+  private PublicKey publicKey;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    keyLengthConstraints = new KeyLengthConstraints();
+    keyLengthConstraints.allowRsa = true;
+    keyLengthConstraints.minRsaLen = 3072;
+    keyLengthConstraints.allowEc = true;
+    keyLengthConstraints.minEcLen = 256;
+    publicKey = BenchmarkCertificates.generateKeyPair(keyType).getPublic();
+  }
+
+  @Benchmark
+  public PublicKey validatePublicKey() throws Exception {
+    keyLengthConstraints.validatePublicKey(publicKey);
+    return publicKey;
+  }
+
+}
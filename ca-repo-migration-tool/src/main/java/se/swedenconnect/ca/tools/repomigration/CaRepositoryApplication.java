@@ -66,6 +66,10 @@ public class CaRepositoryApplication implements CommandLineRunner {
       System.setProperty("logging.level.se.swedenconnect.ca.tools.repomigration", "INFO");
     }
 
+    // Use JDBC batch inserts of the same size as the batches of the merge
+    System.setProperty("spring.jpa.properties.hibernate.jdbc.batch_size",
+      cmd.getOptionValue(AppOptions.OPTION_BATCH, String.valueOf(AppOptions.DEFAULT_BATCH_SIZE)));
+
     File configDir;
     if (cmd.hasOption(AppOptions.OPTION_DIR)){
       final String optionValue = cmd.getOptionValue(AppOptions.OPTION_DIR);
@@ -59,6 +59,7 @@ public class CARepositoryConfiguration {
     for (String instance: instances) {
       File repositoryDir = new File(repoMergeConfiguration.getDataLocation(), "instances/"+instance+"/repository");
       File repoFile = new File(repositoryDir, instance + "-repo.json");
+      checkNoPendingLogChanges(repositoryDir, instance);
       MergeCARepository caRepository= new MergeJsonCARepository(repoFile);
       MergeCARepository dbRepository= new MergeDBCARepository(dbRepositoryEngine, instance);
       caRepositoryMap.put(instance, RepositoryGroup.builder()
@@ -72,6 +73,24 @@ public class CARepositoryConfiguration {
     return caRepositoryMap;
   }
 
+  /**
+   * Refuses to use the JSON file of an instance that has changes in the log of a log structured repository
+   * ({@code ca-service.repository.file.type=log}). Such changes are only in the JSON file after the log has been
+   * compacted, which is done when the CA service is stopped.
+   *
+   * @param repositoryDir the repository directory of the instance
+   * @param instance the instance
+   * @throws IOException if the log holds changes that are not in the JSON file
+   */
+  private static void checkNoPendingLogChanges(File repositoryDir, String instance) throws IOException {
+    File logFile = new File(repositoryDir, instance + "-repo.log");
+    File compactingLogFile = new File(repositoryDir, instance + "-repo.log.compacting");
+    if (logFile.length() > 0 || compactingLogFile.exists()) {
+      throw new IOException("The repository log of instance " + instance + " holds changes that are not in "
+        + instance + "-repo.json. Start and stop the CA service to compact the log before merging repositories");
+    }
+  }
+
   @Bean
   RepoMergeConfiguration repoMergeConfiguration(
     @Value("${ca-service.config.data-directory:#{null}}") String configLocation,
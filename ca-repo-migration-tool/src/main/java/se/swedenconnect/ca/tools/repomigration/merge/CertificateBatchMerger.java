@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2022.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.tools.repomigration.merge;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import se.swedenconnect.ca.engine.ca.repository.CertificateRecord;
+import se.swedenconnect.ca.service.base.configuration.keys.BasicX509Utils;
+import se.swedenconnect.ca.tools.repomigration.repo.MergeCARepository;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Copies certificate records between repositories in batches.
+ *
+ * For each batch of serial numbers, the records are read from the source repository in one request, the certificate of
+ * each record is validated in parallel, and the valid records are added to the target repository in one request.
+ * Records that are already present in the target repository are skipped. Progress and throughput is reported after each
+ * batch. The serial numbers are expected in ascending order, so that a listener notified of each persisted batch can
+ * record the progress of the merge by the last serial number of the batch.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@Slf4j
+public class CertificateBatchMerger {
+
+  private final int batchSize;
+  private final Consumer<String> output;
+
+  /**
+   * Constructor
+   *
+   * @param batchSize the number of records read and written in each batch
+   * @param output receiver of progress output lines
+   */
+  public CertificateBatchMerger(int batchSize, Consumer<String> output) {
+    this.batchSize = Math.max(1, batchSize);
+    this.output = output;
+  }
+
+  /**
+   * Copy certificate records from one repository to another
+   *
+   * @param certSerialList serial numbers of the certificates to copy
+   * @param fromRepo source repository
+   * @param toRepo target repository
+   * @param recordConsumer optional consumer of each copied record
+   * @param batchListener optional listener notified when merged batches are persisted in the target repository
+   * @return result of the merge
+   * @throws IOException error reading or writing records
+   */
+  public MergeResult merge(List<BigInteger> certSerialList, MergeCARepository fromRepo, MergeCARepository toRepo,
+    Consumer<CertificateRecord> recordConsumer, BatchListener batchListener) throws IOException {
+    long startTime = System.currentTimeMillis();
+    int merged = 0;
+    int skipped = 0;
+    List<BigInteger> invalid = new ArrayList<>();
+    for (int batchStart = 0; batchStart < certSerialList.size(); batchStart += batchSize) {
+      final List<BigInteger> batch = certSerialList.subList(batchStart,
+        Math.min(batchStart + batchSize, certSerialList.size()));
+      final List<CertificateRecord> records = fromRepo.getCertificates(batch);
+      skipped += batch.size() - records.size();
+
+      final Map<Boolean, List<CertificateRecord>> validated = records.parallelStream()
+        .collect(Collectors.partitioningBy(CertificateBatchMerger::isValid));
+      validated.get(false).forEach(certificateRecord -> invalid.add(certificateRecord.getSerialNumber()));
+      final List<CertificateRecord> validRecords = validated.get(true);
+
+      final int added = toRepo.addCertificateRecords(validRecords);
+      merged += added;
+      skipped += validRecords.size() - added;
+      if (recordConsumer != null) {
+        validRecords.forEach(recordConsumer);
+      }
+      output.accept(getProgress(batchStart + batch.size(), certSerialList.size(), startTime));
+      if (batchListener != null && toRepo.isPersistedOnAdd()) {
+        batchListener.batchPersisted(batch.get(batch.size() - 1), batchStart + batch.size());
+      }
+    }
+    toRepo.flush();
+    if (batchListener != null && !toRepo.isPersistedOnAdd() && !certSerialList.isEmpty()) {
+      batchListener.batchPersisted(certSerialList.get(certSerialList.size() - 1), certSerialList.size());
+    }
+    invalid.forEach(serialNumber -> output.accept("Skipped invalid certificate record: " + serialNumber.toString(16)));
+    return new MergeResult(merged, skipped, invalid.size(), System.currentTimeMillis() - startTime);
+  }
+
+  private static String getProgress(int processed, int total, long startTime) {
+    final long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+    return String.format("  %d/%d certificates processed (%d%%) - %.0f certs/s",
+      processed, total, processed * 100L / total, processed * 1000.0 / elapsed);
+  }
+
+  /**
+   * Test that the record holds a DER encoded certificate matching the serial number of the record
+   *
+   * @param certificateRecord the certificate record
+   * @return true if the record is valid
+   */
+  static boolean isValid(CertificateRecord certificateRecord) {
+    try {
+      final X509Certificate certificate = BasicX509Utils.getCertificate(certificateRecord.getCertificate());
+      return certificate.getSerialNumber().equals(certificateRecord.getSerialNumber());
+    }
+    catch (Exception ex) {
+      log.debug("Invalid certificate data in record {}", certificateRecord.getSerialNumber(), ex);
+      return false;
+    }
+  }
+
+  /**
+   * Listener notified when merged batches are persisted in the target repository
+   */
+  @FunctionalInterface
+  public interface BatchListener {
+
+    /**
+     * Called when all certificates up to and including a serial number are persisted in the target repository
+     *
+     * @param lastSerial the last serial number of the persisted batch
+     * @param processed the number of certificates processed so far in this merge
+     * @throws IOException error handling the event
+     */
+    void batchPersisted(BigInteger lastSerial, int processed) throws IOException;
+  }
+
+  /**
+   * Result of a merge
+   */
+  @Getter
+  @AllArgsConstructor
+  public static class MergeResult {
+
+    /** Result of a merge where nothing was merged */
+    public static final MergeResult EMPTY = new MergeResult(0, 0, 0, 0);
+
+    /** The number of copied records */
+    private final int merged;
+    /** The number of records that were missing in the source or already present in the target */
+    private final int skipped;
+    /** The number of records with invalid certificate data */
+    private final int invalid;
+    /** The time spent in milliseconds */
+    private final long elapsedMillis;
+
+    /**
+     * Combine this result with the result of another merge
+     *
+     * @param other the result of the other merge
+     * @return the combined result
+     */
+    public MergeResult plus(MergeResult other) {
+      return new MergeResult(merged + other.merged, skipped + other.skipped, invalid + other.invalid,
+        elapsedMillis + other.elapsedMillis);
+    }
+  }
+
+}
@@ -16,21 +16,37 @@
 
 package se.swedenconnect.ca.tools.repomigration.merge;
 
+import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.cli.*;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import se.swedenconnect.ca.engine.ca.repository.CertificateRecord;
 import se.swedenconnect.ca.service.base.configuration.keys.BasicX509Utils;
 import se.swedenconnect.ca.tools.repomigration.options.AppOptions;
 import se.swedenconnect.ca.tools.repomigration.repo.MergeCARepository;
+import se.swedenconnect.ca.tools.repomigration.repo.RepoMergeConfiguration;
 import se.swedenconnect.ca.tools.repomigration.repo.RepositoryGroup;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigInteger;
+import java.nio.file.Files;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
-import java.text.SimpleDateFormat;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Main Bean to handle service requests based on CLI input data
@@ -38,16 +54,23 @@ import java.util.stream.Collectors;
  * @author Martin Lindström (martin@idsec.se)
  * @author Stefan Santesson (stefan@idsec.se)
  */
+@Slf4j
 @Component
 public class DatabaseMerger {
 
-  private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+  private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm")
+    .withZone(ZoneId.systemDefault());
 
   private final Map<String, RepositoryGroup> caRepositoryMap;
+  private final RepoMergeConfiguration repoMergeConfiguration;
+  private final int maxPoolSize;
 
   @Autowired
-  public DatabaseMerger(Map<String, RepositoryGroup> caRepositoryMap) {
+  public DatabaseMerger(Map<String, RepositoryGroup> caRepositoryMap, RepoMergeConfiguration repoMergeConfiguration,
+    @Value("${spring.datasource.hikari.maximum-pool-size:10}") int maxPoolSize) {
     this.caRepositoryMap = caRepositoryMap;
+    this.repoMergeConfiguration = repoMergeConfiguration;
+    this.maxPoolSize = maxPoolSize;
   }
 
   public void run(String... args) throws Exception {
@@ -71,6 +94,10 @@ public class DatabaseMerger {
       showMergeStatus(cmd);
       return;
     }
+    if (cmd.hasOption(AppOptions.OPTION_VERIFY)){
+      verifyRepositories(cmd);
+      return;
+    }
     if (!cmd.hasOption(AppOptions.OPTION_FILE_MERGE) && !cmd.hasOption(AppOptions.OPTION_DB_MERGE)) {
       showHelp("At least one of the options '-dbmerge' or '-filemerge' must be set");
       return;
@@ -87,54 +114,283 @@ public class DatabaseMerger {
 
   private void mergeRepositories(CommandLine cmd) throws IOException {
     System.out.println("Merging CA repositories");
-    Map<String, MergeStatus> mergeStatusMap = getMergeStatus();
-    final Set<String> instanceSet = mergeStatusMap.keySet();
-    for (String instance : instanceSet){
-      System.out.println("Merging repository data for instance: " + instance);
-      System.out.println("---------------------------------------------------------");
-      final MergeStatus mergeStatus = mergeStatusMap.get(instance);
-      final RepositoryGroup repositoryGroup = caRepositoryMap.get(instance);
-      if (cmd.hasOption(AppOptions.OPTION_DB_MERGE)){
-        System.out.println("Merging file repository certs to DB:");
-        if (mergeStatus.getJsonCertsMissingInDb().isEmpty()){
-          System.out.println("-- Nothing to merge --");
-        } else {
-          mergeCerts(mergeStatus.getJsonCertsMissingInDb(), repositoryGroup.getFileRepository(), repositoryGroup.getDbRepository(), cmd);
-          System.out.println("Merged " + mergeStatus.getJsonCertsMissingInDb().size() +  " certificates to DB repository");
-        }
-      }
-      if (cmd.hasOption(AppOptions.OPTION_FILE_MERGE)){
-        System.out.println("Merging DB repository certs to File storage:");
-        if (mergeStatus.getDbCertsMissingInJson().isEmpty()){
-          System.out.println("-- Nothing to merge --");
-        } else {
-          mergeCerts(mergeStatus.getDbCertsMissingInJson(), repositoryGroup.getDbRepository(), repositoryGroup.getFileRepository(), cmd);
-          System.out.println("Merged " + mergeStatus.getDbCertsMissingInJson().size() +  " certificates to File repository");
-        }
+    final long startTime = System.currentTimeMillis();
+    final MergeCheckpoint checkpoint = new MergeCheckpoint(
+      new File(repoMergeConfiguration.getDataLocation(), MergeCheckpoint.CHECKPOINT_FILE_NAME),
+      cmd.hasOption(AppOptions.OPTION_RESUME));
+    final Map<String, Future<CertificateBatchMerger.MergeResult>> results = runForInstances(cmd,
+      (instance, out) -> mergeInstance(instance, checkpoint, cmd, out));
+
+    System.out.println("Merge summary");
+    System.out.println("---------------------------------------------------------");
+    int totalMerged = 0;
+    int failed = 0;
+    for (Map.Entry<String, Future<CertificateBatchMerger.MergeResult>> entry : results.entrySet()) {
+      try {
+        final CertificateBatchMerger.MergeResult result = entry.getValue().get();
+        totalMerged += result.getMerged();
+        System.out.println(String.format("%-20s merged: %d, skipped: %d, invalid: %d, time: %d ms", entry.getKey(),
+          result.getMerged(), result.getSkipped(), result.getInvalid(), result.getElapsedMillis()));
+      }
+      catch (ExecutionException ex) {
+        failed++;
+        System.out.println(String.format("%-20s FAILED: %s", entry.getKey(), ex.getCause().getMessage()));
+      }
+      catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while merging CA repositories", ex);
       }
-      System.out.println("");
+    }
+    System.out.println("Merged " + totalMerged + " certificates for " + results.size() + " instances in "
+      + (System.currentTimeMillis() - startTime) + " ms" + (failed > 0 ? " (" + failed + " failed)" : ""));
+    if (failed > 0 && !cmd.hasOption(AppOptions.OPTION_RESUME)) {
+      System.out.println("Run the same command with the option -resume to continue the failed merges");
     }
   }
 
-  private void mergeCerts(List<BigInteger> certSerialList, MergeCARepository fromRepo, MergeCARepository toRepo, CommandLine cmd) throws IOException {
-    for (BigInteger certSerial : certSerialList){
-      final CertificateRecord certificateRecord = fromRepo.getCertificate(certSerial);
-      toRepo.addCertificateRecord(certificateRecord);
-      if (cmd.hasOption(AppOptions.OPTION_VERBOSE)){
-        printCertRecord(certificateRecord);
+  private void verifyRepositories(CommandLine cmd) {
+    System.out.println("Verifying CA repositories");
+    final long startTime = System.currentTimeMillis();
+    final Map<String, Future<RepositoryVerifier.VerificationResult>> results = runForInstances(cmd,
+      (instance, out) -> verifyInstance(instance, cmd, out));
+
+    System.out.println("Verification summary");
+    System.out.println("---------------------------------------------------------");
+    int totalMismatches = 0;
+    int failed = 0;
+    for (Map.Entry<String, Future<RepositoryVerifier.VerificationResult>> entry : results.entrySet()) {
+      try {
+        final RepositoryVerifier.VerificationResult result = entry.getValue().get();
+        totalMismatches += result.getMismatches();
+        System.out.println(String.format("%-20s verified: %d, mismatches: %d, time: %d ms", entry.getKey(),
+          result.getVerified(), result.getMismatches(), result.getElapsedMillis()));
       }
+      catch (ExecutionException ex) {
+        failed++;
+        System.out.println(String.format("%-20s FAILED: %s", entry.getKey(), ex.getCause().getMessage()));
+      }
+      catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+    System.out.println((totalMismatches == 0 && failed == 0 ? "Repositories match" : "Found " + totalMismatches
+      + " mismatches" + (failed > 0 ? " (" + failed + " instances failed)" : "")) + " - verified in "
+      + (System.currentTimeMillis() - startTime) + " ms");
+  }
+
+  private RepositoryVerifier.VerificationResult verifyInstance(String instance, CommandLine cmd, Consumer<String> out)
+    throws IOException {
+    out.accept("Verifying repository data for instance: " + instance);
+    out.accept("---------------------------------------------------------");
+    final RepositoryGroup repositoryGroup = caRepositoryMap.get(instance);
+    final File reportFile = new File(repoMergeConfiguration.getDataLocation(), "repomigrate-verify-" + instance + ".csv");
+    final RepositoryVerifier verifier = new RepositoryVerifier(getBatchSize(cmd), getCaPublicKey(instance, out), out);
+    final RepositoryVerifier.VerificationResult result = verifier.verify(repositoryGroup.getFileRepository(),
+      repositoryGroup.getDbRepository(), reportFile);
+    out.accept("Verified " + result.getVerified() + " certificates in " + result.getElapsedMillis() + " ms - "
+      + result.getMismatches() + " mismatches" + (result.getMismatches() > 0
+      ? " (see " + reportFile.getAbsolutePath() + ")" : ""));
+    out.accept("");
+    return result;
+  }
+
+  /**
+   * Get the public key of the CA of an instance from the first certificate of the CA chain of the instance
+   *
+   * @param instance the instance
+   * @param out receiver of output lines
+   * @return the CA public key, or null if no CA certificate is available
+   */
+  private PublicKey getCaPublicKey(String instance, Consumer<String> out) {
+    final File chainFile = new File(repoMergeConfiguration.getDataLocation(), "instances/" + instance + "/certs/ca-chain.pem");
+    try (InputStream is = Files.newInputStream(chainFile.toPath())) {
+      final Collection<? extends Certificate> chain = CertificateFactory.getInstance("X.509").generateCertificates(is);
+      if (!chain.isEmpty()) {
+        return chain.iterator().next().getPublicKey();
+      }
+    }
+    catch (Exception ex) {
+      log.debug("Unable to read CA certificate from {}", chainFile, ex);
+    }
+    out.accept("No CA certificate available in " + chainFile.getAbsolutePath() + " - certificate signatures are not verified");
+    return null;
+  }
+
+  /**
+   * Merge the repositories of an instance in the directions selected on the command line
+   *
+   * @param instance the instance
+   * @param checkpoint the checkpoints of this run
+   * @param cmd command line
+   * @param out receiver of output lines
+   * @return the combined result of the merges
+   * @throws IOException error merging certificates
+   */
+  private CertificateBatchMerger.MergeResult mergeInstance(String instance, MergeCheckpoint checkpoint,
+    CommandLine cmd, Consumer<String> out) throws IOException {
+    out.accept("Merging repository data for instance: " + instance);
+    out.accept("---------------------------------------------------------");
+    final RepositoryGroup repositoryGroup = caRepositoryMap.get(instance);
+    // The merge status is only needed for merges that are not resumed from a checkpoint
+    final boolean resumeAll = Stream.of(AppOptions.OPTION_DB_MERGE, AppOptions.OPTION_FILE_MERGE)
+      .filter(cmd::hasOption)
+      .allMatch(direction -> checkpoint.getCheckpoint(instance, direction) != null);
+    final MergeStatus mergeStatus = resumeAll ? null : getMergeStatus(instance, out);
+    CertificateBatchMerger.MergeResult result = CertificateBatchMerger.MergeResult.EMPTY;
+    if (cmd.hasOption(AppOptions.OPTION_DB_MERGE)){
+      out.accept("Merging file repository certs to DB:");
+      result = result.plus(mergeInstance(instance, AppOptions.OPTION_DB_MERGE, repositoryGroup.getFileRepository(),
+        repositoryGroup.getDbRepository(), mergeStatus == null ? null : mergeStatus.getJsonCertsMissingInDb(),
+        checkpoint, cmd, out));
+    }
+    if (cmd.hasOption(AppOptions.OPTION_FILE_MERGE)){
+      out.accept("Merging DB repository certs to File storage:");
+      result = result.plus(mergeInstance(instance, AppOptions.OPTION_FILE_MERGE, repositoryGroup.getDbRepository(),
+        repositoryGroup.getFileRepository(), mergeStatus == null ? null : mergeStatus.getDbCertsMissingInJson(),
+        checkpoint, cmd, out));
+    }
+    out.accept("");
+    return result;
+  }
+
+  /**
+   * Merge the certificates of an instance in one direction, starting from the checkpoint of a previous run if present.
+   *
+   * @param instance the instance
+   * @param direction the merge direction (merge option)
+   * @param fromRepo source repository
+   * @param toRepo target repository
+   * @param missingCerts the serial numbers of the source certificates missing in the target, in ascending order
+   * @param checkpoint the checkpoints of this run
+   * @param cmd command line
+   * @param out receiver of output lines
+   * @return the result of the merge
+   * @throws IOException error merging certificates
+   */
+  private CertificateBatchMerger.MergeResult mergeInstance(String instance, String direction,
+    MergeCARepository fromRepo, MergeCARepository toRepo, List<BigInteger> missingCerts, MergeCheckpoint checkpoint,
+    CommandLine cmd, Consumer<String> out) throws IOException {
+    final MergeCheckpoint.Checkpoint resumePoint = checkpoint.getCheckpoint(instance, direction);
+    List<BigInteger> certSerialList = missingCerts;
+    int processedBefore = 0;
+    if (resumePoint != null) {
+      if (resumePoint.isCompleted()) {
+        out.accept("-- Completed by a previous run --");
+        return CertificateBatchMerger.MergeResult.EMPTY;
+      }
+      // Certificates are merged in serial number order, and adding a certificate that is already present is a no-op
+      out.accept("Resuming after " + resumePoint.getProcessed() + " certificates (last merged serial "
+        + resumePoint.getLastSerial().toString(16) + ")");
+      processedBefore = resumePoint.getProcessed();
+      certSerialList = getSerialNumbersAfter(fromRepo, resumePoint.getLastSerial());
+    }
+    CertificateBatchMerger.MergeResult result = CertificateBatchMerger.MergeResult.EMPTY;
+    if (certSerialList.isEmpty()){
+      out.accept("-- Nothing to merge --");
+    } else {
+      final int offset = processedBefore;
+      final CertificateBatchMerger batchMerger = new CertificateBatchMerger(getBatchSize(cmd), out);
+      result = batchMerger.merge(certSerialList, fromRepo, toRepo,
+        cmd.hasOption(AppOptions.OPTION_VERBOSE) ? certificateRecord -> printCertRecord(certificateRecord, out) : null,
+        (lastSerial, processed) -> checkpoint.update(instance, direction, lastSerial, offset + processed));
+      out.accept("Merged " + result.getMerged() + " certificates in " + result.getElapsedMillis() + " ms ("
+        + result.getSkipped() + " skipped, " + result.getInvalid() + " invalid)");
+    }
+    checkpoint.completed(instance, direction);
+    return result;
+  }
+
+  /**
+   * Get the serial numbers of a repository that are after the last merged serial number of a resumed merge.
+   *
+   * @param fromRepo source repository
+   * @param lastSerial the last merged serial number
+   * @return the serial numbers after the last merged serial number, in ascending order
+   */
+  static List<BigInteger> getSerialNumbersAfter(MergeCARepository fromRepo, BigInteger lastSerial) {
+    return fromRepo.getAllCertificates().stream()
+      .filter(serialNumber -> serialNumber.compareTo(lastSerial) > 0)
+      .sorted()
+      .collect(Collectors.toList());
+  }
+
+  /**
+   * Run a task for each instance. The tasks run on a thread pool with the size given by the parallel option, bounded by
+   * the size of the database connection pool. When more than one instance is processed in parallel, each output line is
+   * prefixed with the name of the instance.
+   *
+   * @param cmd command line
+   * @param task the task to run for each instance
+   * @param <T> the result type of the task
+   * @return the result of the task for each instance, in instance name order
+   */
+  private <T> Map<String, Future<T>> runForInstances(CommandLine cmd, InstanceTask<T> task) {
+    final int parallelism = getParallelism(cmd);
+    final ExecutorService executorService = Executors.newFixedThreadPool(parallelism);
+    final Map<String, Future<T>> futures = new TreeMap<>();
+    try {
+      for (String instance : caRepositoryMap.keySet()) {
+        final Consumer<String> out = parallelism > 1
+          ? line -> System.out.println("[" + instance + "] " + line)
+          : System.out::println;
+        futures.put(instance, executorService.submit(() -> task.run(instance, out)));
+      }
+    }
+    finally {
+      executorService.shutdown();
+    }
+    return futures;
+  }
+
+  private int getParallelism(CommandLine cmd) {
+    int parallelism = 1;
+    try {
+      parallelism = Integer.parseInt(cmd.getOptionValue(AppOptions.OPTION_PARALLEL, "1"));
+    }
+    catch (NumberFormatException ex) {
+      System.out.println("Illegal parallel option value. Processing one instance at a time");
+    }
+    // Each instance task uses one database connection at a time
+    if (parallelism > maxPoolSize) {
+      System.out.println("Limiting parallel instances to the database connection pool size " + maxPoolSize);
+      parallelism = maxPoolSize;
+    }
+    return Math.max(1, Math.min(parallelism, caRepositoryMap.size()));
+  }
+
+  static int getBatchSize(CommandLine cmd) {
+    try {
+      return Integer.parseInt(cmd.getOptionValue(AppOptions.OPTION_BATCH, String.valueOf(AppOptions.DEFAULT_BATCH_SIZE)));
+    }
+    catch (NumberFormatException ex) {
+      System.out.println("Illegal batch size. Using default batch size " + AppOptions.DEFAULT_BATCH_SIZE);
+      return AppOptions.DEFAULT_BATCH_SIZE;
     }
   }
 
   private void showMergeStatus(CommandLine cmd) {
     System.out.println("Merge status information : Verbose = " + cmd.hasOption(AppOptions.OPTION_VERBOSE));
     System.out.println("");
-    Map<String, MergeStatus> mergeStatusMap = getMergeStatus();
-    final Set<String> instanceSet = mergeStatusMap.keySet();
-    for (String instance : instanceSet){
+    final Map<String, Future<MergeStatus>> mergeStatusMap = runForInstances(cmd, this::getMergeStatus);
+    System.out.println("");
+    for (Map.Entry<String, Future<MergeStatus>> entry : mergeStatusMap.entrySet()){
+      final String instance = entry.getKey();
       System.out.println("Merge status for instance: " + instance);
       System.out.println("---------------------------------------------------------");
-      final MergeStatus mergeStatus = mergeStatusMap.get(instance);
+      final MergeStatus mergeStatus;
+      try {
+        mergeStatus = entry.getValue().get();
+      }
+      catch (ExecutionException ex) {
+        System.out.println("Unable to compute merge status: " + ex.getCause().getMessage());
+        System.out.println("");
+        continue;
+      }
+      catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        return;
+      }
       final RepositoryGroup repositoryGroup = caRepositoryMap.get(instance);
       System.out.println("File repo certs missing in DB repo (" + mergeStatus.getJsonCertsMissingInDb().size() + ")");
       if (cmd.hasOption(AppOptions.OPTION_VERBOSE)) printFullCertList(mergeStatus.getJsonCertsMissingInDb(), repositoryGroup.getFileRepository());
@@ -150,22 +406,22 @@ public class DatabaseMerger {
   private void printFullCertList(List<BigInteger> serialList, MergeCARepository caRepository) {
     for (BigInteger certSerial : serialList){
       final CertificateRecord certificateRecord = caRepository.getCertificate(certSerial);
-      printCertRecord(certificateRecord);
+      printCertRecord(certificateRecord, System.out::println);
     }
 
   }
 
-  private void printCertRecord(CertificateRecord certificateRecord) {
+  private void printCertRecord(CertificateRecord certificateRecord, Consumer<String> out) {
     try {
       StringBuilder b = new StringBuilder();
       final X509Certificate certificate = BasicX509Utils.getCertificate(certificateRecord.getCertificate());
       b.append(certificate.getSubjectX500Principal())
-        .append(" NotBefore:").append(DATE_FORMAT.format(certificate.getNotBefore()))
-        .append(" Expires:").append(DATE_FORMAT.format(certificate.getNotAfter()));
+        .append(" NotBefore:").append(DATE_FORMAT.format(certificate.getNotBefore().toInstant()))
+        .append(" Expires:").append(DATE_FORMAT.format(certificate.getNotAfter().toInstant()));
       if (certificateRecord.isRevoked()){
-        b.append(" Revoked:").append(DATE_FORMAT.format(certificateRecord.getRevocationTime()));
+        b.append(" Revoked:").append(DATE_FORMAT.format(certificateRecord.getRevocationTime().toInstant()));
       }
-      System.out.println(b);
+      out.accept(b.toString());
     }
     catch (Exception e) {
       e.printStackTrace();
@@ -181,38 +437,134 @@ public class DatabaseMerger {
       .collect(Collectors.toList());
   }
 
-  private Map<String, MergeStatus> getMergeStatus() {
-    Map<String, MergeStatus> mergeStatusMap = new HashMap<>();
+  private MergeStatus getMergeStatus(String instance, Consumer<String> out) {
+    long startTime = System.currentTimeMillis();
+    final RepositoryGroup repositoryGroup = caRepositoryMap.get(instance);
+    final MergeStatus mergeStatus = compareSerialNumbers(repositoryGroup.getFileRepository().getSortedSerialNumbers(),
+      repositoryGroup.getDbRepository().getSortedSerialNumbers());
+    out.accept("Merge status for instance " + instance + " computed in "
+      + (System.currentTimeMillis() - startTime) + " ms (File repo: "
+      + (mergeStatus.getJsonCertsMissingInDb().size() + mergeStatus.getDuplicateRecords().size())
+      + " certs, DB repo: " + (mergeStatus.getDbCertsMissingInJson().size() + mergeStatus.getDuplicateRecords().size())
+      + " certs)");
+    return mergeStatus;
+  }
 
-    final Set<String> instanceSet = caRepositoryMap.keySet();
-    for (String instance:instanceSet){
-      List<BigInteger> dbCertsMissingInJson = new ArrayList<>();
-      List<BigInteger> jsonCertsMissingInDb = new ArrayList<>();
-      List<BigInteger> duplicateRecords = new ArrayList<>();
+  /**
+   * Compares the serial numbers of two repositories by sorting both lists and walking them in parallel.
+   *
+   * @param jsonCertificates serial numbers of the file repository
+   * @param dbCertificates serial numbers of the DB repository
+   * @return merge status
+   */
+  static MergeStatus compareSerialNumbers(List<BigInteger> jsonCertificates, List<BigInteger> dbCertificates) {
+    return compareSerialNumbers(
+      jsonCertificates.stream().map(serialNumber -> serialNumber.toString(16)).sorted().iterator(),
+      dbCertificates.stream().map(serialNumber -> serialNumber.toString(16)).sorted().iterator());
+  }
 
-      final RepositoryGroup repositoryGroup = caRepositoryMap.get(instance);
-      final List<BigInteger> allJsonCertificates = repositoryGroup.getFileRepository().getAllCertificates();
-      final List<BigInteger> allDbCertificates = repositoryGroup.getDbRepository().getAllCertificates();
-
-      for (BigInteger jsonCertSerial : allJsonCertificates) {
-        if (allDbCertificates.contains(jsonCertSerial)){
-          duplicateRecords.add(jsonCertSerial);
-        } else {
-          jsonCertsMissingInDb.add(jsonCertSerial);
-        }
-      }
-      for (BigInteger dbCertSerial : allDbCertificates) {
-        if (!allJsonCertificates.contains(dbCertSerial)){
-          dbCertsMissingInJson.add(dbCertSerial);
-        }
-      }
-      mergeStatusMap.put(instance, MergeStatus.builder()
-          .dbCertsMissingInJson(dbCertsMissingInJson)
-          .jsonCertsMissingInDb(jsonCertsMissingInDb)
-          .duplicateRecords(duplicateRecords)
-        .build());
-    }
-    return mergeStatusMap;
+  /**
+   * Compares the serial numbers of two repositories by walking both in parallel, which only holds the current serial
+   * number of each side and the result lists in memory. Both sides must provide their serial numbers as hex strings in
+   * ascending string order, which is checked as the serial numbers are read. The resulting lists are in numeric order.
+   *
+   * @param jsonSerials serial numbers of the file repository in ascending order
+   * @param dbSerials serial numbers of the DB repository in ascending order
+   * @return merge status
+   * @throws IllegalStateException if the serial numbers of a side are not in ascending order
+   */
+  static MergeStatus compareSerialNumbers(Iterator<String> jsonSerials, Iterator<String> dbSerials) {
+    List<BigInteger> dbCertsMissingInJson = new ArrayList<>();
+    List<BigInteger> jsonCertsMissingInDb = new ArrayList<>();
+    List<BigInteger> duplicateRecords = new ArrayList<>();
+
+    walkSerialNumbers(jsonSerials, dbSerials, (serialNumber, inJson, inDb) -> {
+      if (inJson && inDb) {
+        duplicateRecords.add(serialNumber);
+      }
+      else if (inJson) {
+        jsonCertsMissingInDb.add(serialNumber);
+      }
+      else {
+        dbCertsMissingInJson.add(serialNumber);
+      }
+    });
+    // Merges are done and checkpointed in numeric serial number order
+    dbCertsMissingInJson.sort(null);
+    jsonCertsMissingInDb.sort(null);
+    duplicateRecords.sort(null);
+    return MergeStatus.builder()
+      .dbCertsMissingInJson(dbCertsMissingInJson)
+      .jsonCertsMissingInDb(jsonCertsMissingInDb)
+      .duplicateRecords(duplicateRecords)
+      .build();
+  }
+
+  /**
+   * Walks the serial numbers of two repositories in parallel, passing each serial number to a consumer as it is found,
+   * in ascending string order. Only the current serial number of each side is held in memory. Both sides must provide
+   * their serial numbers as hex strings in ascending string order, which is checked as the serial numbers are read.
+   *
+   * @param jsonSerials serial numbers of the file repository in ascending order
+   * @param dbSerials serial numbers of the DB repository in ascending order
+   * @param consumer receiver of each serial number and the repositories holding it
+   * @param <E> the exception type thrown by the consumer
+   * @throws E if the consumer fails
+   * @throws IllegalStateException if the serial numbers of a side are not in ascending order
+   */
+  static <E extends Exception> void walkSerialNumbers(Iterator<String> jsonSerials, Iterator<String> dbSerials,
+    SerialNumberConsumer<E> consumer) throws E {
+    String jsonSerial = nextSerial(jsonSerials, null, "file");
+    String dbSerial = nextSerial(dbSerials, null, "DB");
+    while (jsonSerial != null || dbSerial != null) {
+      final int order = jsonSerial == null ? 1 : dbSerial == null ? -1 : jsonSerial.compareTo(dbSerial);
+      if (order == 0) {
+        consumer.accept(new BigInteger(jsonSerial, 16), true, true);
+        jsonSerial = nextSerial(jsonSerials, jsonSerial, "file");
+        dbSerial = nextSerial(dbSerials, dbSerial, "DB");
+      }
+      else if (order < 0) {
+        consumer.accept(new BigInteger(jsonSerial, 16), true, false);
+        jsonSerial = nextSerial(jsonSerials, jsonSerial, "file");
+      }
+      else {
+        consumer.accept(new BigInteger(dbSerial, 16), false, true);
+        dbSerial = nextSerial(dbSerials, dbSerial, "DB");
+      }
+    }
+  }
+
+  private static String nextSerial(Iterator<String> serials, String previous, String side) {
+    if (!serials.hasNext()) {
+      return null;
+    }
+    final String serial = serials.next();
+    if (previous != null && serial.compareTo(previous) <= 0) {
+      // A database collation ordering hex strings differently would otherwise give a wrong merge status
+      throw new IllegalStateException("Serial numbers of the " + side + " repository are not in ascending order ("
+        + previous + ", " + serial + ")");
+    }
+    return serial;
+  }
+
+  /**
+   * Receiver of the serial numbers found when walking the serial numbers of two repositories
+   *
+   * @param <E> the exception type thrown by the consumer
+   */
+  @FunctionalInterface
+  interface SerialNumberConsumer<E extends Exception> {
+    void accept(BigInteger serialNumber, boolean inJson, boolean inDb) throws E;
+  }
+
+  /**
+   * Task run for each instance
+   *
+   * @param <T> the result type of the task
+   */
+  @FunctionalInterface
+  private interface InstanceTask<T> {
+    T run(String instance, Consumer<String> out) throws Exception;
   }
 
   private void showHelp() {
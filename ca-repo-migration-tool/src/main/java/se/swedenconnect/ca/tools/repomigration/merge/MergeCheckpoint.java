@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2022.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.tools.repomigration.merge;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Checkpoints of the progress of merges, persisted to a properties file.
+ *
+ * A checkpoint is stored for each instance and merge direction after each batch that is persisted in the target
+ * repository. It holds the last merged serial number and the number of processed certificates. Since certificates are
+ * merged in ascending serial number order, a resumed merge continues with the certificates after the last merged serial
+ * number. The checkpoint file is replaced atomically on each update, so an interrupted run always leaves a consistent
+ * checkpoint.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+public class MergeCheckpoint {
+
+  /** Name of the checkpoint file in the configuration directory */
+  public static final String CHECKPOINT_FILE_NAME = "repomigrate-checkpoint.properties";
+
+  private static final String LAST_SERIAL = ".last-serial";
+  private static final String PROCESSED = ".processed";
+  private static final String COMPLETED = ".completed";
+
+  private final File checkpointFile;
+  private final Properties checkpoints = new Properties();
+
+  /**
+   * Constructor
+   *
+   * @param checkpointFile the checkpoint file
+   * @param resume true to load the checkpoints of a previous run, false to start with no checkpoints
+   * @throws IOException error reading the checkpoint file
+   */
+  public MergeCheckpoint(File checkpointFile, boolean resume) throws IOException {
+    this.checkpointFile = checkpointFile;
+    if (resume && checkpointFile.exists()) {
+      try (InputStream is = Files.newInputStream(checkpointFile.toPath())) {
+        checkpoints.load(is);
+      }
+    }
+  }
+
+  /**
+   * Get the checkpoint of a merge
+   *
+   * @param instance the instance
+   * @param direction the merge direction (the merge option)
+   * @return checkpoint or null if no checkpoint is stored for this merge
+   */
+  public synchronized Checkpoint getCheckpoint(String instance, String direction) {
+    final String key = instance + "." + direction;
+    final String lastSerial = checkpoints.getProperty(key + LAST_SERIAL);
+    if (lastSerial == null && !checkpoints.containsKey(key + COMPLETED)) {
+      return null;
+    }
+    return new Checkpoint(
+      lastSerial == null ? null : new BigInteger(lastSerial, 16),
+      Integer.parseInt(checkpoints.getProperty(key + PROCESSED, "0")),
+      Boolean.parseBoolean(checkpoints.getProperty(key + COMPLETED, "false")));
+  }
+
+  /**
+   * Store the progress of a merge
+   *
+   * @param instance the instance
+   * @param direction the merge direction (the merge option)
+   * @param lastSerial the last merged serial number
+   * @param processed the total number of processed certificates
+   * @throws IOException error writing the checkpoint file
+   */
+  public synchronized void update(String instance, String direction, BigInteger lastSerial, int processed)
+    throws IOException {
+    final String key = instance + "." + direction;
+    checkpoints.setProperty(key + LAST_SERIAL, lastSerial.toString(16));
+    checkpoints.setProperty(key + PROCESSED, String.valueOf(processed));
+    checkpoints.remove(key + COMPLETED);
+    save();
+  }
+
+  /**
+   * Mark a merge as completed
+   *
+   * @param instance the instance
+   * @param direction the merge direction (the merge option)
+   * @throws IOException error writing the checkpoint file
+   */
+  public synchronized void completed(String instance, String direction) throws IOException {
+    checkpoints.setProperty(instance + "." + direction + COMPLETED, "true");
+    save();
+  }
+
+  private void save() throws IOException {
+    final Path target = checkpointFile.toPath().toAbsolutePath();
+    final Path tempFile = Files.createTempFile(target.getParent(), checkpointFile.getName(), ".tmp");
+    try {
+      try (OutputStream os = Files.newOutputStream(tempFile)) {
+        checkpoints.store(os, "CA repository migration checkpoints");
+      }
+      try {
+        Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch (AtomicMoveNotSupportedException ex) {
+        Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    finally {
+      Files.deleteIfExists(tempFile);
+    }
+  }
+
+  /**
+   * Checkpoint of a merge
+   */
+  @Getter
+  @AllArgsConstructor
+  public static class Checkpoint {
+    /** The last merged serial number, or null if no batch was merged */
+    private final BigInteger lastSerial;
+    /** The number of certificates processed before the checkpoint */
+    private final int processed;
+    /** True if the merge was completed */
+    private final boolean completed;
+  }
+
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2022.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.tools.repomigration.merge;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import se.swedenconnect.ca.engine.ca.repository.CertificateRecord;
+import se.swedenconnect.ca.service.base.configuration.keys.BasicX509Utils;
+import se.swedenconnect.ca.tools.repomigration.repo.MergeCARepository;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Verifies that the file repository and the DB repository of an instance hold the same certificate records.
+ *
+ * The sorted serial numbers of both repositories are walked in parallel, reading the serial numbers of the DB repository
+ * one range at a time, and the records present in both repositories are read in batches while walking. Only the
+ * current batch is held in memory. The records of each batch are compared in parallel, comparing the SHA-256
+ * hash of the certificate data, the issue and expiry dates and the revocation status. The certificate of each record is
+ * also parsed and, if the CA certificate is known, its signature is verified against the CA public key. Each difference
+ * is written as a line to a mismatch report file.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@Slf4j
+public class RepositoryVerifier {
+
+  private final int batchSize;
+  private final PublicKey caPublicKey;
+  private final Consumer<String> output;
+
+  /**
+   * Constructor
+   *
+   * @param batchSize the number of records read from each repository in each batch
+   * @param caPublicKey the public key of the CA for signature validation, or null to skip signature validation
+   * @param output receiver of progress output lines
+   */
+  public RepositoryVerifier(int batchSize, PublicKey caPublicKey, Consumer<String> output) {
+    this.batchSize = Math.max(1, batchSize);
+    this.caPublicKey = caPublicKey;
+    this.output = output;
+  }
+
+  /**
+   * Verify that two repositories hold the same certificate records
+   *
+   * @param fileRepo the file repository
+   * @param dbRepo the DB repository
+   * @param reportFile the file receiving the mismatch report
+   * @return result of the verification
+   * @throws IOException error reading the repositories or writing the report
+   */
+  public VerificationResult verify(MergeCARepository fileRepo, MergeCARepository dbRepo, File reportFile)
+    throws IOException {
+    final long startTime = System.currentTimeMillis();
+    final VerificationProgress progress = new VerificationProgress(startTime);
+
+    try (BufferedWriter report = Files.newBufferedWriter(reportFile.toPath())) {
+      report.write("serial,mismatch,detail");
+      report.newLine();
+      final List<BigInteger> batch = new ArrayList<>(batchSize);
+      DatabaseMerger.walkSerialNumbers(fileRepo.getSortedSerialNumbers(), dbRepo.getSortedSerialNumbers(),
+        (serialNumber, inFile, inDb) -> {
+          progress.verified++;
+          if (!inFile || !inDb) {
+            writeMismatch(report, new Mismatch(serialNumber, inFile ? "missing-in-db" : "missing-in-file", ""));
+            progress.mismatches++;
+            return;
+          }
+          batch.add(serialNumber);
+          if (batch.size() == batchSize) {
+            verifyBatch(fileRepo, dbRepo, batch, report, progress);
+          }
+        });
+      verifyBatch(fileRepo, dbRepo, batch, report, progress);
+    }
+    return new VerificationResult(progress.verified, progress.mismatches, System.currentTimeMillis() - startTime);
+  }
+
+  /**
+   * Compare the records of a batch of certificates present in both repositories, and clear the batch
+   *
+   * @param fileRepo the file repository
+   * @param dbRepo the DB repository
+   * @param batch the serial numbers of the batch
+   * @param report the mismatch report
+   * @param progress the progress of the verification
+   * @throws IOException error writing the report
+   */
+  private void verifyBatch(MergeCARepository fileRepo, MergeCARepository dbRepo, List<BigInteger> batch,
+    BufferedWriter report, VerificationProgress progress) throws IOException {
+    if (batch.isEmpty()) {
+      return;
+    }
+    final Map<BigInteger, CertificateRecord> fileRecords = fileRepo.getCertificates(batch).stream()
+      .collect(Collectors.toMap(CertificateRecord::getSerialNumber, Function.identity()));
+    final Map<BigInteger, CertificateRecord> dbRecords = dbRepo.getCertificates(batch).stream()
+      .collect(Collectors.toMap(CertificateRecord::getSerialNumber, Function.identity()));
+
+    final List<Mismatch> batchMismatches = batch.parallelStream()
+      .flatMap(serialNumber -> compare(serialNumber, fileRecords.get(serialNumber), dbRecords.get(serialNumber))
+        .stream())
+      .collect(Collectors.toList());
+    for (Mismatch mismatch : batchMismatches) {
+      writeMismatch(report, mismatch);
+    }
+    progress.mismatches += batchMismatches.size();
+    progress.compared += batch.size();
+    batch.clear();
+    output.accept(progress.toString());
+  }
+
+  /**
+   * Compare the file and DB records of a certificate
+   *
+   * @param serialNumber the serial number of the certificate
+   * @param fileRecord the record of the file repository
+   * @param dbRecord the record of the DB repository
+   * @return the differences between the records
+   */
+  List<Mismatch> compare(BigInteger serialNumber, CertificateRecord fileRecord, CertificateRecord dbRecord) {
+    final List<Mismatch> mismatches = new ArrayList<>();
+    if (fileRecord == null || dbRecord == null) {
+      // Removed from one of the repositories while verifying
+      mismatches.add(new Mismatch(serialNumber, fileRecord == null ? "missing-in-file" : "missing-in-db", ""));
+      return mismatches;
+    }
+    final boolean sameCertificate = Arrays.equals(sha256(fileRecord.getCertificate()), sha256(dbRecord.getCertificate()));
+    if (!sameCertificate) {
+      mismatches.add(new Mismatch(serialNumber, "certificate", "SHA-256 of certificate data differs"));
+    }
+    compareField(mismatches, serialNumber, "issue-date", fileRecord.getIssueDate(), dbRecord.getIssueDate());
+    compareField(mismatches, serialNumber, "expiry-date", fileRecord.getExpiryDate(), dbRecord.getExpiryDate());
+    compareField(mismatches, serialNumber, "revoked", fileRecord.isRevoked(), dbRecord.isRevoked());
+    compareField(mismatches, serialNumber, "reason", fileRecord.getReason(), dbRecord.getReason());
+    compareField(mismatches, serialNumber, "revocation-time", fileRecord.getRevocationTime(),
+      dbRecord.getRevocationTime());
+
+    validateCertificate(mismatches, serialNumber, "file", fileRecord);
+    if (!sameCertificate) {
+      validateCertificate(mismatches, serialNumber, "db", dbRecord);
+    }
+    return mismatches;
+  }
+
+  private void validateCertificate(List<Mismatch> mismatches, BigInteger serialNumber, String source,
+    CertificateRecord certificateRecord) {
+    final X509Certificate certificate;
+    try {
+      certificate = BasicX509Utils.getCertificate(certificateRecord.getCertificate());
+    }
+    catch (Exception ex) {
+      mismatches.add(new Mismatch(serialNumber, "invalid-der-" + source, String.valueOf(ex.getMessage())));
+      return;
+    }
+    if (!certificate.getSerialNumber().equals(serialNumber)) {
+      mismatches.add(new Mismatch(serialNumber, "serial-" + source, "Certificate has serial number "
+        + certificate.getSerialNumber().toString(16)));
+    }
+    if (caPublicKey != null) {
+      try {
+        certificate.verify(caPublicKey);
+      }
+      catch (Exception ex) {
+        mismatches.add(new Mismatch(serialNumber, "signature-" + source, String.valueOf(ex.getMessage())));
+      }
+    }
+  }
+
+  private static void compareField(List<Mismatch> mismatches, BigInteger serialNumber, String field, Object fileValue,
+    Object dbValue) {
+    if (!Objects.equals(normalize(fileValue), normalize(dbValue))) {
+      mismatches.add(new Mismatch(serialNumber, field, "file: " + fileValue + " db: " + dbValue));
+    }
+  }
+
+  private static Object normalize(Object value) {
+    // Dates are compared by their time, regardless of the Date subclass provided by the repository
+    return value instanceof Date ? ((Date) value).getTime() : value;
+  }
+
+  private static byte[] sha256(byte[] data) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(data);
+    }
+    catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException("SHA-256 is not supported", ex);
+    }
+  }
+
+  private static void writeMismatch(BufferedWriter report, Mismatch mismatch) throws IOException {
+    report.write(mismatch.getSerialNumber().toString(16) + "," + mismatch.getType() + ","
+      + mismatch.getDetail().replace(',', ';'));
+    report.newLine();
+  }
+
+  /**
+   * Counters of a verification in progress
+   */
+  private static class VerificationProgress {
+    private final long startTime;
+    /** The number of serial numbers found in either repository */
+    private int verified;
+    /** The number of records compared in both repositories */
+    private int compared;
+    private int mismatches;
+
+    VerificationProgress(long startTime) {
+      this.startTime = startTime;
+    }
+
+    @Override public String toString() {
+      final long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+      return String.format("  %d certificates verified, %d compared in both repositories - %.0f certs/s",
+        verified, compared, verified * 1000.0 / elapsed);
+    }
+  }
+
+  /**
+   * A difference between the repositories
+   */
+  @Getter
+  @AllArgsConstructor
+  public static class Mismatch {
+    private final BigInteger serialNumber;
+    private final String type;
+    private final String detail;
+  }
+
+  /**
+   * Result of a verification
+   */
+  @Getter
+  @AllArgsConstructor
+  public static class VerificationResult {
+    /** The number of verified certificates */
+    private final int verified;
+    /** The number of differences found */
+    private final int mismatches;
+    /** The time spent in milliseconds */
+    private final long elapsedMillis;
+  }
+
+}
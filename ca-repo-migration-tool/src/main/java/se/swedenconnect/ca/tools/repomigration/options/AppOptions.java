@@ -31,6 +31,12 @@ public class AppOptions {
     public static final String OPTION_FILE_MERGE = "filemerge";
     public static final String OPTION_LOG = "log";
     public static final String OPTION_HELP = "help";
+    public static final String OPTION_BATCH = "batch";
+    public static final String OPTION_RESUME = "resume";
+    public static final String OPTION_PARALLEL = "parallel";
+    public static final String OPTION_VERIFY = "verify";
+
+    public static final int DEFAULT_BATCH_SIZE = 500;
 
     private static final Options op;
 
@@ -42,6 +48,10 @@ public class AppOptions {
         op.addOption(OPTION_DB_MERGE, false, "Include this argument to merge certificates in the file repository into the database repository");
         op.addOption(OPTION_FILE_MERGE, false, "Include this argument to merge certificates in the database repository into the file repository");
         op.addOption(OPTION_LOG, false, "Enable display of process logging");
+        op.addOption(OPTION_BATCH, true, "Number of certificates copied in each batch when merging (default " + DEFAULT_BATCH_SIZE + ")");
+        op.addOption(OPTION_RESUME, false, "Resume an interrupted merge from the checkpoints of the previous run");
+        op.addOption(OPTION_PARALLEL, true, "Number of instances processed in parallel (default 1, bounded by the database connection pool size)");
+        op.addOption(OPTION_VERIFY, false, "Verify that the file and database repositories hold identical certificate records");
         op.addOption(OPTION_HELP, false, "Print this message");
     }
 
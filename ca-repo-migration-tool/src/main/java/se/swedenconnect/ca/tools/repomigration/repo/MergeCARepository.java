@@ -20,6 +20,9 @@ import se.swedenconnect.ca.engine.ca.repository.CARepository;
 import se.swedenconnect.ca.engine.ca.repository.CertificateRecord;
 
 import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Iterator;
+import java.util.List;
 
 /**
  * Interface, extending the normal CARepository interface with the capability to store a complete known Certificate record.
@@ -31,4 +34,52 @@ public interface MergeCARepository extends CARepository {
 
   void addCertificateRecord(CertificateRecord certificateRecord) throws IOException;
 
+  /**
+   * Get the records of a batch of certificates in one request
+   *
+   * @param serialNumbers serial numbers of the requested certificates
+   * @return the records of the certificates that are present in this repository
+   */
+  List<CertificateRecord> getCertificates(List<BigInteger> serialNumbers);
+
+  /**
+   * Get the serial numbers of all certificates as hex strings in ascending string order, which is the order of the
+   * serial number column of the database. Repositories that can read their serial numbers in this order should return
+   * them one range at a time instead of loading them all.
+   *
+   * @return iterator over the serial numbers as hex strings in ascending string order
+   */
+  default Iterator<String> getSortedSerialNumbers() {
+    return getAllCertificates().stream()
+      .map(serialNumber -> serialNumber.toString(16))
+      .sorted()
+      .iterator();
+  }
+
+  /**
+   * Add a batch of complete certificate records in one request. Records of certificates that already exist in the
+   * repository are not added. The added records may be held in memory until {@link #flush()} is called.
+   *
+   * @param certificateRecords certificate records to add
+   * @return the number of added records
+   * @throws IOException error adding the records
+   */
+  int addCertificateRecords(List<CertificateRecord> certificateRecords) throws IOException;
+
+  /**
+   * Persist any records added by {@link #addCertificateRecords(List)} that are not yet persisted
+   *
+   * @throws IOException error persisting the records
+   */
+  void flush() throws IOException;
+
+  /**
+   * Tells if records added by {@link #addCertificateRecords(List)} are persisted before the call returns
+   *
+   * @return true if added records are persisted immediately, false if they are persisted by {@link #flush()}
+   */
+  default boolean isPersistedOnAdd() {
+    return true;
   }
+
+}
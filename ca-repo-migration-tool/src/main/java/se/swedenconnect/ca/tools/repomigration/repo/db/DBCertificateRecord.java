@@ -17,23 +17,30 @@
 package se.swedenconnect.ca.tools.repomigration.repo.db;
 
 import lombok.NoArgsConstructor;
+import org.springframework.data.domain.Persistable;
 import se.swedenconnect.ca.engine.ca.repository.CertificateRecord;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Id;
+import javax.persistence.PostLoad;
+import javax.persistence.PostPersist;
+import javax.persistence.Transient;
 import java.math.BigInteger;
 import java.util.Date;
 
 /**
  * Database record for the CA repository
  *
+ * The record implements {@link Persistable} so that records created by the migration tool are inserted directly
+ * (and batched) instead of first being looked up by a merge operation.
+ *
  * @author Martin Lindström (martin@idsec.se)
  * @author Stefan Santesson (stefan@idsec.se)
  */
 @Entity
 @NoArgsConstructor
-public class DBCertificateRecord implements CertificateRecord {
+public class DBCertificateRecord implements CertificateRecord, Persistable<String> {
 
   @Id
   @Column(name = "id")
@@ -52,6 +59,8 @@ public class DBCertificateRecord implements CertificateRecord {
   protected long revocationTime;
   @Column(name = "instance")
   protected String instance;
+  @Transient
+  private boolean newRecord;
 
   public DBCertificateRecord(byte[] certificate, BigInteger serialNumber, Date issueDate, Date expiryDate, boolean revoked, Integer reason, Date revocationTime, String instance) {
     this.setCertificate(certificate);
@@ -62,6 +71,21 @@ public class DBCertificateRecord implements CertificateRecord {
     this.setReason(reason);
     this.setRevocationTime(revocationTime);
     this.setInstance(instance);
+    this.newRecord = true;
+  }
+
+  @Override public String getId() {
+    return this.serialNumber;
+  }
+
+  @Override public boolean isNew() {
+    return this.newRecord;
+  }
+
+  @PostLoad
+  @PostPersist
+  void markNotNew() {
+    this.newRecord = false;
   }
 
 
@@ -19,8 +19,11 @@ package se.swedenconnect.ca.tools.repomigration.repo.db;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -33,6 +36,19 @@ public interface DBJPARepository extends JpaRepository<DBCertificateRecord, Stri
 
   // Get a particular cert from a particular instance
   List<DBCertificateRecord> findByInstanceAndSerialNumber(String instance, String certSerial);
+  // Get a batch of certs from a particular instance
+  List<DBCertificateRecord> findByInstanceAndSerialNumberIn(String instance, Collection<String> certSerials);
+  // Get the serial numbers of a batch of certs that exist in a particular instance
+  @Query("select r.serialNumber from DBCertificateRecord r where r.instance = :instance and r.serialNumber in :certSerials")
+  List<String> findExistingSerialNumbers(@Param("instance") String instance, @Param("certSerials") Collection<String> certSerials);
+  // Get the serial numbers of all certs of an instance without loading the certificates
+  @Query("select r.serialNumber from DBCertificateRecord r where r.instance = :instance")
+  List<String> findSerialNumbersByInstance(@Param("instance") String instance);
+  // Get a range of the serial numbers of an instance, following a serial number in serial number order
+  @Query("select r.serialNumber from DBCertificateRecord r where r.instance = :instance and r.serialNumber > :afterSerialNumber"
+    + " order by r.serialNumber")
+  List<String> findSerialNumbersAfter(@Param("instance") String instance, @Param("afterSerialNumber") String afterSerialNumber,
+    Pageable pageable);
   // Get a page of certs from an instance
   Page<DBCertificateRecord> findByInstance(String string, Pageable pageable);
   // Get a page of certs either revoked or non-revoked
@@ -37,7 +37,11 @@ import java.math.BigInteger;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 /**
@@ -62,43 +66,91 @@ public class MergeDBCARepository implements CARepository, MergeCARepository {
   }
 
   @Override public List<BigInteger> getAllCertificates() {
-    List<BigInteger> certificateSerialNumberList = new ArrayList<>();
-    int page = 0;
-    while (true) {
-      Page<DBCertificateRecord> records = dbRepository.findByInstance(instance, PageRequest.of(page++, pageSize));
-      if (records.hasContent()) {
-        records.stream().forEach(dbCertificateRecord -> certificateSerialNumberList.add(dbCertificateRecord.getSerialNumber()));
-      }
-      else {
-        break;
-      }
-    }
-    return certificateSerialNumberList;
+    return dbRepository.findSerialNumbersByInstance(instance).stream()
+      .map(serialNumber -> new BigInteger("0" + serialNumber, 16))
+      .collect(Collectors.toList());
   }
 
-  @Override public CertificateRecord getCertificate(BigInteger bigInteger) {
-    List<DBCertificateRecord> records = new ArrayList<>();
-    long startTime = System.currentTimeMillis();
-    // This is a protection against exception caused by too many DP connections if this function is iterated in a loop over many certs
-    while (System.currentTimeMillis() < startTime + 3000) {
-      try {
-        records = dbRepository.findByInstanceAndSerialNumber(instance, bigInteger.toString(16));
-        break;
-      }
-      catch (Exception ex) {
-        // request for a record caused exception (we expect that the number of connections was exceeded). Let's wait and try again in 50 ms
-        try {
-          Thread.sleep(50);
+  /**
+   * Reads the serial numbers one range at a time, where each range is located by seeking past the last serial number
+   * of the previous range using the primary key index.
+   */
+  @Override public Iterator<String> getSortedSerialNumbers() {
+    return new Iterator<>() {
+      private List<String> range = List.of();
+      private int position = 0;
+      private boolean exhausted = false;
+
+      @Override public boolean hasNext() {
+        if (position < range.size()) {
+          return true;
         }
-        catch (InterruptedException e) {
-          // Unrecoverable error.
-          throw new RuntimeException("Error obtaining certificate from database", e);
+        if (exhausted) {
+          return false;
         }
+        final String afterSerialNumber = range.isEmpty() ? "" : range.get(range.size() - 1);
+        range = dbRepository.findSerialNumbersAfter(instance, afterSerialNumber, PageRequest.of(0, pageSize));
+        position = 0;
+        exhausted = range.size() < pageSize;
+        return !range.isEmpty();
       }
-    }
+
+      @Override public String next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return range.get(position++);
+      }
+    };
+  }
+
+  @Override public CertificateRecord getCertificate(BigInteger bigInteger) {
+    List<DBCertificateRecord> records = dbRepository.findByInstanceAndSerialNumber(instance, bigInteger.toString(16));
     return !records.isEmpty() ? records.get(0) : null;
   }
 
+  @Override public List<CertificateRecord> getCertificates(List<BigInteger> serialNumbers) {
+    return new ArrayList<>(dbRepository.findByInstanceAndSerialNumberIn(instance, toHex(serialNumbers)));
+  }
+
+  @Override public int addCertificateRecords(List<CertificateRecord> certificateRecords) throws IOException {
+    if (certificateRecords.isEmpty()) {
+      return 0;
+    }
+    try {
+      final Set<String> existing = new HashSet<>(dbRepository.findExistingSerialNumbers(instance, toHex(
+        certificateRecords.stream().map(CertificateRecord::getSerialNumber).collect(Collectors.toList()))));
+      final List<DBCertificateRecord> newRecords = certificateRecords.stream()
+        .filter(certificateRecord -> !existing.contains(certificateRecord.getSerialNumber().toString(16)))
+        .map(certificateRecord -> new DBCertificateRecord(
+          certificateRecord.getCertificate(),
+          certificateRecord.getSerialNumber(),
+          certificateRecord.getIssueDate(),
+          certificateRecord.getExpiryDate(),
+          certificateRecord.isRevoked(),
+          certificateRecord.getReason(),
+          certificateRecord.getRevocationTime(),
+          instance))
+        .collect(Collectors.toList());
+      // Saved in one transaction using JDBC batch inserts (hibernate.jdbc.batch_size)
+      dbRepository.saveAll(newRecords);
+      return newRecords.size();
+    }
+    catch (Exception ex) {
+      throw new IOException("Error saving batch of certificate records", ex);
+    }
+  }
+
+  @Override public void flush() {
+    // Records are saved when added
+  }
+
+  private List<String> toHex(List<BigInteger> serialNumbers) {
+    return serialNumbers.stream()
+      .map(serialNumber -> serialNumber.toString(16))
+      .collect(Collectors.toList());
+  }
+
   @Override public void addCertificateRecord(CertificateRecord certificateRecord) throws IOException {
     try {
       final X509Certificate certificate = BasicX509Utils.getCertificate(certificateRecord.getCertificate());
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2022.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.tools.repomigration.repo.json;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import se.swedenconnect.ca.engine.ca.repository.impl.SerializableCertificateRecord;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streaming access to files holding JSON serialized certificate records.
+ *
+ * Records are read one at a time using the Jackson streaming parser, so that a file is never held in memory as a whole.
+ * Each record is reported together with its byte offset in the file, which allows a single record to be read again
+ * later without parsing the rest of the file.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+public class JsonRecordFiles {
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private JsonRecordFiles() {
+  }
+
+  /**
+   * Read the records of a file holding a JSON array of certificate records, or a sequence of certificate records that
+   * are not enclosed in an array.
+   *
+   * @param file the file to read
+   * @param handler handler of each record
+   * @throws IOException error reading the file
+   */
+  public static void forEachRecord(File file, RecordHandler handler) throws IOException {
+    try (JsonParser parser = mapper.getFactory().createParser(file)) {
+      JsonToken token = parser.nextToken();
+      if (token == JsonToken.START_ARRAY) {
+        token = parser.nextToken();
+      }
+      while (token == JsonToken.START_OBJECT) {
+        final long offset = parser.getTokenLocation().getByteOffset();
+        handler.handle(offset, mapper.readValue(parser, SerializableCertificateRecord.class));
+        token = parser.nextToken();
+      }
+      if (token != null && token != JsonToken.END_ARRAY) {
+        throw new IOException("Unexpected content in certificate record file " + file.getName() + " at offset "
+          + parser.getTokenLocation().getByteOffset());
+      }
+    }
+  }
+
+  /**
+   * Read a single record at a known offset
+   *
+   * @param channel channel of the file holding the record
+   * @param offset the offset of the record in the file
+   * @return the certificate record
+   * @throws IOException error reading the record
+   */
+  public static SerializableCertificateRecord readRecord(FileChannel channel, long offset) throws IOException {
+    channel.position(offset);
+    final InputStream inputStream = Channels.newInputStream(channel);
+    // The parser is closed to release its buffers, but must not close the stream, since that would close the channel
+    try (JsonParser parser = mapper.getFactory().createParser(inputStream)) {
+      parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("No certificate record at offset " + offset);
+      }
+      return mapper.readValue(parser, SerializableCertificateRecord.class);
+    }
+  }
+
+  /**
+   * Handler of records read from a file
+   */
+  @FunctionalInterface
+  public interface RecordHandler {
+
+    /**
+     * Handle a record
+     *
+     * @param offset the byte offset of the record in the file
+     * @param certificateRecord the record
+     * @throws IOException error handling the record
+     */
+    void handle(long offset, SerializableCertificateRecord certificateRecord) throws IOException;
+  }
+
+}
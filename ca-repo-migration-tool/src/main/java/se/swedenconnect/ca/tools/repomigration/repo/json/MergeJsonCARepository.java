@@ -16,14 +16,11 @@
 
 package se.swedenconnect.ca.tools.repomigration.repo.json;
 
-import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import lombok.SneakyThrows;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.io.FileUtils;
-import org.bouncycastle.asn1.x509.CRLNumber;
-import org.bouncycastle.asn1.x509.Extension;
-import org.bouncycastle.cert.X509CRLHolder;
 import org.bouncycastle.cert.X509CertificateHolder;
 import se.swedenconnect.ca.engine.ca.repository.CARepository;
 import se.swedenconnect.ca.engine.ca.repository.CertificateRecord;
@@ -31,17 +28,21 @@ import se.swedenconnect.ca.engine.ca.repository.SortBy;
 import se.swedenconnect.ca.engine.ca.repository.impl.SerializableCertificateRecord;
 import se.swedenconnect.ca.engine.revocation.CertificateRevocationException;
 import se.swedenconnect.ca.engine.revocation.crl.CRLRevocationDataProvider;
-import se.swedenconnect.ca.engine.revocation.crl.RevokedCertificate;
-import se.swedenconnect.ca.service.base.configuration.keys.BasicX509Utils;
 import se.swedenconnect.ca.tools.repomigration.repo.MergeCARepository;
-import se.swedenconnect.ca.tools.repomigration.repo.db.DBCertificateRecord;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.math.BigInteger;
-import java.security.cert.X509Certificate;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 /**
@@ -49,46 +50,105 @@ import java.util.stream.Collectors;
  * This differs from the original implementation by 1) adding the capability to store complete records instead of just new certificates
  * and 2) removing all revocation functions.
  *
+ * The repository file is never loaded into memory as a whole. Instead, the file is read using a streaming parser and an
+ * index holding the file offset, issue date and revocation status of each record is kept in memory. Records are read from
+ * the file when they are requested. Records added by {@link #addCertificateRecords(List)} are appended to a pending file
+ * next to the repository file, and are written to the repository file by {@link #flush()}, which streams the current and
+ * the pending records into a new repository file that replaces the old one.
+ *
  * @author Martin Lindström (martin@idsec.se)
  * @author Stefan Santesson (stefan@idsec.se)
  */
 @Slf4j
 public class MergeJsonCARepository implements CARepository, MergeCARepository {
 
-  private static final ObjectMapper mapper = new ObjectMapper();
+  private static final ObjectMapper mapper = new ObjectMapper()
+    .disable(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
   private final File certificateRecordsFile;
-  private List<SerializableCertificateRecord> issuedCerts;
+  private final File pendingRecordsFile;
+  /** Index of the issued certificates by serial number */
+  private final Map<BigInteger, IndexEntry> certificateIndex = new LinkedHashMap<>();
+  private int revokedCount = 0;
+  private OutputStream pendingRecordsStream;
+  private long pendingRecordsSize = 0;
   private boolean criticalError = false;
 
   public MergeJsonCARepository(File certificateRecordsFile) throws IOException {
     this.certificateRecordsFile = certificateRecordsFile;
+    this.pendingRecordsFile = new File(certificateRecordsFile.getParentFile(), certificateRecordsFile.getName() + ".pending");
+    // Records pending from an interrupted run were never part of the repository
+    Files.deleteIfExists(pendingRecordsFile.toPath());
 
     if (!certificateRecordsFile.exists()) {
-      issuedCerts = new ArrayList<>();
       certificateRecordsFile.getParentFile().mkdirs();
-      // Save the empty issued certs file using the synchronized certificate storage and save function
-      addCertificate(null);
+      // Save the empty issued certs file
+      rewriteRepositoryFile(certificateRecord -> true);
       System.out.println("Created new CA repository");
     }
 
-    // Load current certs to memory
-    issuedCerts = mapper.readValue(certificateRecordsFile,new TypeReference<>() {
-      });
+    // Index current certs
+    loadIndex();
+  }
+
+  private void loadIndex() throws IOException {
+    certificateIndex.clear();
+    revokedCount = 0;
+    JsonRecordFiles.forEachRecord(certificateRecordsFile, (offset, certificateRecord) -> addToIndex(
+      certificateRecord, offset, false));
+  }
+
+  private void addToIndex(CertificateRecord certificateRecord, long offset, boolean pending) {
+    certificateIndex.put(certificateRecord.getSerialNumber(),
+      new IndexEntry(offset, pending, certificateRecord.getIssueDate(), certificateRecord.isRevoked()));
+    if (certificateRecord.isRevoked()) {
+      revokedCount++;
+    }
   }
 
   /** {@inheritDoc} */
-  @Override public List<BigInteger> getAllCertificates() {
-    return issuedCerts.stream()
-      .map(certificateRecord -> certificateRecord.getSerialNumber())
-      .collect(Collectors.toList());
+  @Override public synchronized List<BigInteger> getAllCertificates() {
+    return new ArrayList<>(certificateIndex.keySet());
   }
 
   /** {@inheritDoc} */
   @Override public CertificateRecord getCertificate(BigInteger bigInteger) {
-    Optional<SerializableCertificateRecord> recordOptional = issuedCerts.stream()
-      .filter(certificateRecord -> certificateRecord.getSerialNumber().equals(bigInteger))
-      .findFirst();
-    return recordOptional.isPresent() ? recordOptional.get() : null;
+    if (bigInteger == null) {
+      return null;
+    }
+    final List<CertificateRecord> records = getCertificates(List.of(bigInteger));
+    return records.isEmpty() ? null : records.get(0);
+  }
+
+  /** {@inheritDoc} */
+  @Override public synchronized List<CertificateRecord> getCertificates(List<BigInteger> serialNumbers) {
+    // Read the records in file order to minimize seeking
+    final List<IndexEntry> entries = serialNumbers.stream()
+      .map(certificateIndex::get)
+      .filter(Objects::nonNull)
+      .sorted(Comparator.comparing((IndexEntry indexEntry) -> indexEntry.pending).thenComparingLong(indexEntry -> indexEntry.offset))
+      .collect(Collectors.toList());
+    final Map<BigInteger, CertificateRecord> recordMap = new HashMap<>();
+    try {
+      if (entries.stream().anyMatch(indexEntry -> indexEntry.pending)) {
+        pendingRecordsStream.flush();
+      }
+      try (FileChannel repositoryChannel = FileChannel.open(certificateRecordsFile.toPath(), StandardOpenOption.READ);
+        FileChannel pendingChannel = pendingRecordsStream == null ? null : FileChannel.open(pendingRecordsFile.toPath(), StandardOpenOption.READ)) {
+        for (IndexEntry indexEntry : entries) {
+          final SerializableCertificateRecord certificateRecord = JsonRecordFiles.readRecord(
+            indexEntry.pending ? pendingChannel : repositoryChannel, indexEntry.offset);
+          recordMap.put(certificateRecord.getSerialNumber(), certificateRecord);
+        }
+      }
+    }
+    catch (IOException ex) {
+      throw new RuntimeException("Error reading certificate records from " + certificateRecordsFile.getName(), ex);
+    }
+    // Return the records in the requested order
+    return serialNumbers.stream()
+      .map(recordMap::get)
+      .filter(Objects::nonNull)
+      .collect(Collectors.toList());
   }
 
   /** {@inheritDoc} */
@@ -97,61 +157,44 @@ public class MergeJsonCARepository implements CARepository, MergeCARepository {
   }
 
   /** {@inheritDoc} */
-  @Override public int getCertificateCount(boolean notRevoked) {
-    if (notRevoked) {
-      return (int) issuedCerts.stream()
-        .filter(certificateRecord -> !certificateRecord.isRevoked())
-        .count();
-    }
-    return issuedCerts.size();
+  @Override public synchronized int getCertificateCount(boolean notRevoked) {
+    return notRevoked ? certificateIndex.size() - revokedCount : certificateIndex.size();
   }
 
   /** {@inheritDoc} */
-  @Override public List<CertificateRecord> getCertificateRange(int page, int pageSize, boolean notRevoked, SortBy sortBy, boolean descending) {
+  @Override public synchronized List<CertificateRecord> getCertificateRange(int page, int pageSize, boolean notRevoked, SortBy sortBy, boolean descending) {
 
-    List<CertificateRecord> records = issuedCerts.stream()
-      .filter(certificateRecord -> {
-        if (notRevoked) {
-          return !certificateRecord.isRevoked();
-        }
-        return true;
-      })
+    List<Map.Entry<BigInteger, IndexEntry>> entries = certificateIndex.entrySet().stream()
+      .filter(entry -> !notRevoked || !entry.getValue().revoked)
       .collect(Collectors.toList());
 
     if (sortBy != null) {
       switch (sortBy) {
       case serialNumber:
-        records.sort(Comparator.comparing(CertificateRecord::getSerialNumber));
+        entries.sort(Map.Entry.comparingByKey());
         break;
       case issueDate:
-        records.sort(Comparator.comparing(CertificateRecord::getIssueDate));
+        entries.sort(Comparator.comparing(entry -> entry.getValue().issueDate));
         break;
       }
     }
 
     if (descending) {
-      Collections.reverse(records);
+      Collections.reverse(entries);
     }
 
     page = page < 0 ? 0 : page;
 
     int startIdx = page * pageSize;
-    int endIdx = startIdx + pageSize;
+    int endIdx = Math.min(startIdx + pageSize, entries.size());
 
-    if (startIdx > records.size()){
+    if (startIdx > entries.size()){
       return new ArrayList<>();
     }
 
-    if (endIdx > records.size()) {
-      endIdx = records.size();
-    }
-
-    List<CertificateRecord> resultCertList = new ArrayList<>();
-    for (int i = startIdx; i<endIdx;i++) {
-      resultCertList.add(records.get(i));
-    }
-
-    return resultCertList;
+    return getCertificates(entries.subList(startIdx, endIdx).stream()
+      .map(Map.Entry::getKey)
+      .collect(Collectors.toList()));
   }
 
 
@@ -160,171 +203,158 @@ public class MergeJsonCARepository implements CARepository, MergeCARepository {
    */
 
   @Override public void addCertificateRecord(CertificateRecord certificateRecord) throws IOException {
-    try {
-      internalRepositoryUpdate(UpdateType.addCertRecord, new Object[]{certificateRecord});
-    } catch (Exception ex) {
-      throw ex instanceof IOException ? (IOException) ex : new IOException(ex);
+    if (getCertificate(certificateRecord.getSerialNumber()) != null) {
+      throw new IOException("This certificate already exists in the certificate repository");
     }
+    addCertificateRecords(List.of(certificateRecord));
+    flush();
   }
 
-
   /** {@inheritDoc} */
-  @Override public void addCertificate(X509CertificateHolder certificate) throws IOException {
-    try {
-      internalRepositoryUpdate(UpdateType.addCert, new Object[]{certificate});
-    }
-    catch (Exception e) {
-      throw e instanceof IOException ? (IOException) e : new IOException(e);
+  @Override public synchronized int addCertificateRecords(List<CertificateRecord> certificateRecords) throws IOException {
+    if (criticalError){
+      throw new IOException("This repository encountered a critical error and is not operational - unable to store certificates");
     }
-  }
-
-  private void internalAddCertificateRecord(CertificateRecord certificateRecord) throws IOException {
+    int added = 0;
     try {
-      final X509Certificate certificate = BasicX509Utils.getCertificate(certificateRecord.getCertificate());
-      CertificateRecord record = getCertificate(certificate.getSerialNumber());
-      if (record != null) {
-        throw new IOException("This certificate already exists in the certificate repository");
+      if (pendingRecordsStream == null) {
+        pendingRecordsStream = new BufferedOutputStream(Files.newOutputStream(pendingRecordsFile.toPath()));
+        pendingRecordsSize = 0;
       }
-      issuedCerts.add(new SerializableCertificateRecord(
-        certificateRecord.getCertificate(),
-        certificateRecord.getSerialNumber(),
-        certificateRecord.getIssueDate(),
-        certificateRecord.getExpiryDate(),
-        certificateRecord.isRevoked(),
-        certificateRecord.getReason(),
-        certificateRecord.getRevocationTime()
-      ));
-      if (!saveRepositoryData()){
-        throw new IOException("Unable to save issued certificate");
+      for (CertificateRecord certificateRecord : certificateRecords) {
+        if (certificateIndex.containsKey(certificateRecord.getSerialNumber())) {
+          continue;
+        }
+        final SerializableCertificateRecord serializableRecord = new SerializableCertificateRecord(
+          certificateRecord.getCertificate(),
+          certificateRecord.getSerialNumber(),
+          certificateRecord.getIssueDate(),
+          certificateRecord.getExpiryDate(),
+          certificateRecord.isRevoked(),
+          certificateRecord.getReason(),
+          certificateRecord.getRevocationTime()
+        );
+        final byte[] recordBytes = mapper.writeValueAsBytes(serializableRecord);
+        pendingRecordsStream.write(recordBytes);
+        pendingRecordsStream.write('\n');
+        addToIndex(serializableRecord, pendingRecordsSize, true);
+        pendingRecordsSize += recordBytes.length + 1;
+        added++;
       }
-    } catch (Exception ex) {
-      throw (ex instanceof IOException) ? (IOException) ex : new IOException(ex);
     }
+    catch (IOException ex) {
+      log.error("Error writing pending certificate records", ex);
+      criticalError = true;
+      throw ex;
+    }
+    return added;
   }
 
-  private void internalAddCertificate(X509CertificateHolder certificate) throws IOException {
-    if (criticalError){
-      throw new IOException("This repository encountered a critical error and is not operational - unable to store certificates");
-    }
-    if (certificate != null) {
-      CertificateRecord record = getCertificate(certificate.getSerialNumber());
-      if (record != null) {
-        throw new IOException("This certificate already exists in the certificate repository");
-      }
-      issuedCerts.add(new SerializableCertificateRecord(certificate.getEncoded(), certificate.getSerialNumber(),
-        certificate.getNotBefore(), certificate.getNotAfter(), false, null, null));
-    }
-    if (!saveRepositoryData()){
-      throw new IOException("Unable to save issued certificate");
+  /** {@inheritDoc} */
+  @Override public synchronized void flush() throws IOException {
+    if (pendingRecordsStream == null) {
+      return;
     }
+    pendingRecordsStream.close();
+    rewriteRepositoryFile(certificateRecord -> true);
+    pendingRecordsStream = null;
+    Files.deleteIfExists(pendingRecordsFile.toPath());
+    loadIndex();
   }
 
   /** {@inheritDoc} */
-  @Override public void revokeCertificate(BigInteger serialNumber, int reason, Date revocationTime) throws CertificateRevocationException {
-    try {
-      internalRepositoryUpdate(UpdateType.revokeCert, new Object[]{serialNumber, reason, revocationTime});
-    }
-    catch (Exception e) {
-      throw e instanceof CertificateRevocationException
-        ? (CertificateRevocationException) e
-        : new CertificateRevocationException(e);
-    }
+  @Override public boolean isPersistedOnAdd() {
+    return false;
   }
 
-  private void internalRevokeCertificate(BigInteger serialNumber, int reason, Date revocationTime) throws CertificateRevocationException {
-    if (serialNumber == null) {
-      throw new CertificateRevocationException("Null Serial number");
-    }
-    CertificateRecord certificateRecord = getCertificate(serialNumber);
-    if (certificateRecord == null) {
-      throw new CertificateRevocationException("No such certificate (" + serialNumber.toString(16) + ")");
-    }
-    certificateRecord.setRevoked(true);
-    certificateRecord.setReason(reason);
-    certificateRecord.setRevocationTime(revocationTime);
-    // Save revoked certificate
-    if (!saveRepositoryData()){
-      throw new CertificateRevocationException("Unable to save revoked status data");
+  /** {@inheritDoc} */
+  @Override public void addCertificate(X509CertificateHolder certificate) throws IOException {
+    if (certificate == null) {
+      return;
     }
+    addCertificateRecord(new SerializableCertificateRecord(certificate.getEncoded(), certificate.getSerialNumber(),
+      certificate.getNotBefore(), certificate.getNotAfter(), false, null, null));
   }
 
   /** {@inheritDoc} */
-  @Override public List<BigInteger> removeExpiredCerts(int gracePeriodSeconds) throws IOException{
-    try {
-      return (List<BigInteger>) internalRepositoryUpdate(UpdateType.removeExpiredCerts, new Object[]{gracePeriodSeconds});
-    }
-    catch (Exception e) {
-      throw e instanceof IOException
-        ? (IOException) e
-        : new IOException(e);
-    }
+  @Override public void revokeCertificate(BigInteger serialNumber, int reason, Date revocationTime) throws CertificateRevocationException {
+    throw new CertificateRevocationException("Unsupported action");
   }
 
-  private List<BigInteger> internalRemoveExpiredCerts(int gracePeriodSeconds) throws IOException {
+  /** {@inheritDoc} */
+  @Override public synchronized List<BigInteger> removeExpiredCerts(int gracePeriodSeconds) throws IOException{
+    flush();
     List<BigInteger> removedSerialList = new ArrayList<>();
-    Date notBefore = new Date(System.currentTimeMillis() - (1000 * gracePeriodSeconds));
-    issuedCerts = issuedCerts.stream()
-      .filter(certificateRecord -> {
-        final Date expiryDate = certificateRecord.getExpiryDate();
-        // Check if certificate expired before the current time minus grace period
-        if (expiryDate.before(notBefore)){
-          // Yes - Remove certificate
-          removedSerialList.add(certificateRecord.getSerialNumber());
-          return false;
-        }
-        // No - keep certificate on repository
-        return true;
-      })
-      .collect(Collectors.toList());
-    if (!saveRepositoryData()){
-      throw new IOException("Unable to save consolidated certificate list");
-    }
+    Date notBefore = new Date(System.currentTimeMillis() - (1000L * gracePeriodSeconds));
+    rewriteRepositoryFile(certificateRecord -> {
+      // Check if certificate expired before the current time minus grace period
+      if (certificateRecord.getExpiryDate().before(notBefore)) {
+        // Yes - Remove certificate
+        removedSerialList.add(certificateRecord.getSerialNumber());
+        return false;
+      }
+      // No - keep certificate on repository
+      return true;
+    });
+    loadIndex();
     return removedSerialList;
   }
 
   /**
-   * All requests to modify the CA repository must go through this function to ensure that all updates are thread safe
-   * @param updateType type of repository update
-   * @param args input arguments to the update request
-   * @return the return object of this update request
-   * @throws Exception On errors performing the update request
+   * Stream the current records of the repository file and the pending records into a new repository file that replaces
+   * the current file
+   *
+   * @param filter selects the records to keep
+   * @throws IOException error writing the repository file
    */
-  private synchronized Object internalRepositoryUpdate(UpdateType updateType, Object[] args) throws Exception {
-    switch (updateType){
-    case addCert:
-      internalAddCertificate((X509CertificateHolder) args[0]);
-      return null;
-    case addCertRecord:
-      internalAddCertificateRecord((CertificateRecord) args[0]);
-      return null;
-    case revokeCert:
-      internalRevokeCertificate((BigInteger) args[0], (int) args[1], (Date) args[2]);
-      return null;
-    case removeExpiredCerts:
-      return internalRemoveExpiredCerts((int) args[0]);
-    }
-    throw new IOException("Unsupported action");
-  }
-
-  private boolean saveRepositoryData(){
+  private void rewriteRepositoryFile(Predicate<SerializableCertificateRecord> filter) throws IOException {
+    final Path target = certificateRecordsFile.toPath().toAbsolutePath();
+    final Path tempFile = Files.createTempFile(target.getParent(), certificateRecordsFile.getName(), ".tmp");
     try {
-      // Attempt to save repository data
-      mapper.writeValue(certificateRecordsFile, issuedCerts);
-      return true;
+      try (JsonGenerator generator = mapper.getFactory().createGenerator(
+        new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+        generator.writeStartArray();
+        final JsonRecordFiles.RecordHandler writer = (offset, certificateRecord) -> {
+          if (filter.test(certificateRecord)) {
+            mapper.writeValue(generator, certificateRecord);
+          }
+        };
+        if (certificateRecordsFile.exists()) {
+          JsonRecordFiles.forEachRecord(certificateRecordsFile, writer);
+        }
+        if (pendingRecordsFile.exists()) {
+          JsonRecordFiles.forEachRecord(pendingRecordsFile, writer);
+        }
+        generator.writeEndArray();
+      }
+      try {
+        Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch (AtomicMoveNotSupportedException ex) {
+        Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING);
+      }
     }
-    catch (IOException e) {
-      log.error("Error writing to the ca repository storage file", e);
+    catch (IOException ex) {
+      log.error("Error writing to the ca repository storage file", ex);
       criticalError = true;
+      throw ex;
+    }
+    finally {
+      Files.deleteIfExists(tempFile);
     }
-    return false;
   }
 
-
-  public enum UpdateType {
-    //TODO Fill in rest
-    addCert, addCertRecord , revokeCert, removeExpiredCerts
+  /**
+   * Location and summary of a certificate record
+   */
+  @AllArgsConstructor
+  private static class IndexEntry {
+    /** Offset of the record in the repository file, or in the pending file if pending */
+    private final long offset;
+    /** True if the record is held in the pending file */
+    private final boolean pending;
+    private final Date issueDate;
+    private final boolean revoked;
   }
 
-
-
 }
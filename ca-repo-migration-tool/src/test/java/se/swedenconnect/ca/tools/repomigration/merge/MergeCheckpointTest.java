@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2022.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.tools.repomigration.merge;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import se.swedenconnect.ca.engine.ca.repository.CertificateRecord;
+import se.swedenconnect.ca.engine.ca.repository.impl.SerializableCertificateRecord;
+import se.swedenconnect.ca.tools.repomigration.options.AppOptions;
+import se.swedenconnect.ca.tools.repomigration.repo.json.MergeJsonCARepository;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests checkpoints of merges and resuming an interrupted merge from its checkpoint.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+class MergeCheckpointTest {
+
+  private static final String INSTANCE = "test";
+  private static final String DIRECTION = AppOptions.OPTION_DB_MERGE;
+  private static KeyPair keyPair;
+
+  @TempDir
+  File workDir;
+
+  @BeforeAll
+  static void createKeyPair() throws Exception {
+    KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+    keyPairGenerator.initialize(256);
+    keyPair = keyPairGenerator.generateKeyPair();
+  }
+
+  @Test
+  void persistsCheckpoints() throws Exception {
+    File checkpointFile = new File(workDir, MergeCheckpoint.CHECKPOINT_FILE_NAME);
+    MergeCheckpoint checkpoint = new MergeCheckpoint(checkpointFile, false);
+    assertNull(checkpoint.getCheckpoint(INSTANCE, DIRECTION));
+    checkpoint.update(INSTANCE, DIRECTION, BigInteger.valueOf(0xabc), 42);
+
+    MergeCheckpoint.Checkpoint resumed = new MergeCheckpoint(checkpointFile, true).getCheckpoint(INSTANCE, DIRECTION);
+    assertNotNull(resumed);
+    assertEquals(BigInteger.valueOf(0xabc), resumed.getLastSerial());
+    assertEquals(42, resumed.getProcessed());
+    assertFalse(resumed.isCompleted());
+    // Checkpoints of a previous run are ignored unless the merge is resumed
+    assertNull(new MergeCheckpoint(checkpointFile, false).getCheckpoint(INSTANCE, DIRECTION));
+    assertNull(new MergeCheckpoint(checkpointFile, true).getCheckpoint("other", DIRECTION));
+
+    checkpoint.completed(INSTANCE, DIRECTION);
+    assertTrue(new MergeCheckpoint(checkpointFile, true).getCheckpoint(INSTANCE, DIRECTION).isCompleted());
+    // A new update of a completed merge starts a new merge
+    checkpoint.update(INSTANCE, DIRECTION, BigInteger.valueOf(0xabd), 43);
+    assertFalse(new MergeCheckpoint(checkpointFile, true).getCheckpoint(INSTANCE, DIRECTION).isCompleted());
+  }
+
+  @Test
+  void resumesInterruptedMerge() throws Exception {
+    MergeJsonCARepository fromRepo = new MergeJsonCARepository(new File(workDir, "from.json"));
+    List<CertificateRecord> records = new ArrayList<>();
+    for (int i = 1; i <= 10; i++) {
+      records.add(createRecord(i));
+    }
+    fromRepo.addCertificateRecords(records);
+    fromRepo.flush();
+    MergeJsonCARepository toRepo = new MergeJsonCARepository(new File(workDir, "to.json"));
+    File checkpointFile = new File(workDir, MergeCheckpoint.CHECKPOINT_FILE_NAME);
+    CertificateBatchMerger batchMerger = new CertificateBatchMerger(3, line -> {});
+
+    // A first run that is interrupted after merging the first four certificates
+    MergeCheckpoint checkpoint = new MergeCheckpoint(checkpointFile, false);
+    List<BigInteger> allSerials = fromRepo.getAllCertificates();
+    allSerials.sort(null);
+    batchMerger.merge(allSerials.subList(0, 4), fromRepo, toRepo, null,
+      (lastSerial, processed) -> checkpoint.update(INSTANCE, DIRECTION, lastSerial, processed));
+
+    MergeCheckpoint resumedCheckpoint = new MergeCheckpoint(checkpointFile, true);
+    MergeCheckpoint.Checkpoint resumePoint = resumedCheckpoint.getCheckpoint(INSTANCE, DIRECTION);
+    assertEquals(BigInteger.valueOf(4), resumePoint.getLastSerial());
+    assertEquals(4, resumePoint.getProcessed());
+    assertFalse(resumePoint.isCompleted());
+
+    List<BigInteger> remaining = DatabaseMerger.getSerialNumbersAfter(fromRepo, resumePoint.getLastSerial());
+    assertEquals(allSerials.subList(4, 10), remaining);
+    CertificateBatchMerger.MergeResult result = batchMerger.merge(remaining, fromRepo, toRepo, null,
+      (lastSerial, processed) -> resumedCheckpoint.update(INSTANCE, DIRECTION, lastSerial,
+        resumePoint.getProcessed() + processed));
+    resumedCheckpoint.completed(INSTANCE, DIRECTION);
+
+    assertEquals(6, result.getMerged());
+    assertEquals(10, new MergeJsonCARepository(new File(workDir, "to.json")).getCertificateCount(false));
+    MergeCheckpoint.Checkpoint completed = new MergeCheckpoint(checkpointFile, true).getCheckpoint(INSTANCE, DIRECTION);
+    assertEquals(BigInteger.TEN, completed.getLastSerial());
+    assertEquals(10, completed.getProcessed());
+    assertTrue(completed.isCompleted());
+  }
+
+  private static CertificateRecord createRecord(long serialNumber) throws Exception {
+    X500Name name = new X500Name("CN=Test " + serialNumber);
+    long now = System.currentTimeMillis();
+    X509CertificateHolder certificate = new JcaX509v3CertificateBuilder(name, BigInteger.valueOf(serialNumber),
+      new Date(now - 60000L), new Date(now + 3600000L), name, keyPair.getPublic())
+      .build(new JcaContentSignerBuilder("SHA256withECDSA").build(keyPair.getPrivate()));
+    return new SerializableCertificateRecord(certificate.getEncoded(), certificate.getSerialNumber(),
+      certificate.getNotBefore(), certificate.getNotAfter(), false, null, null);
+  }
+
+}
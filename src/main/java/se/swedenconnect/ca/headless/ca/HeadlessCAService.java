@@ -16,13 +16,17 @@
 
 package se.swedenconnect.ca.headless.ca;
 
+import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.bouncycastle.asn1.ASN1ObjectIdentifier;
 import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
 import org.bouncycastle.asn1.x509.Extension;
 import org.bouncycastle.asn1.x509.SubjectKeyIdentifier;
+import org.bouncycastle.cert.X509CRLHolder;
 import org.bouncycastle.cert.X509CertificateHolder;
+import org.springframework.context.ApplicationEventPublisher;
 
 import se.swedenconnect.ca.engine.ca.issuer.CertificateIssuanceException;
 import se.swedenconnect.ca.engine.ca.issuer.CertificateIssuerModel;
@@ -32,16 +36,25 @@ import se.swedenconnect.ca.engine.ca.models.cert.extension.ExtensionModel;
 import se.swedenconnect.ca.engine.ca.models.cert.extension.impl.simple.AuthorityKeyIdentifierModel;
 import se.swedenconnect.ca.engine.ca.models.cert.impl.DefaultCertificateModelBuilder;
 import se.swedenconnect.ca.engine.ca.repository.CARepository;
+import se.swedenconnect.ca.engine.revocation.CertificateRevocationException;
 import se.swedenconnect.ca.engine.revocation.crl.CRLIssuerModel;
+import se.swedenconnect.ca.headless.ca.crl.CertificateRevokedEvent;
+import se.swedenconnect.ca.headless.ca.crl.IncrementalCRLIssuer;
+import se.swedenconnect.ca.headless.ca.crl.PartitionedCRLIssuer;
+import se.swedenconnect.ca.headless.metrics.InstanceMetrics;
 import se.swedenconnect.ca.service.base.ca.impl.AbstractBasicCA;
 import se.swedenconnect.security.credential.PkiCredential;
 
+import java.io.File;
 import java.io.IOException;
+import java.math.BigInteger;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.cert.CertificateEncodingException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 import java.util.Objects;
 
@@ -54,14 +67,55 @@ import java.util.Objects;
 @Slf4j
 public class HeadlessCAService extends AbstractBasicCA {
 
-  public HeadlessCAService(PkiCredential issuerCredential,
+  /** Timers of the operations of this instance. Default records no metrics */
+  @Setter private InstanceMetrics metrics;
+
+  /** Lock held while a CRL of this instance is published */
+  private final Object crlPublicationLock = new Object();
+  /** Publisher of revocation events. Default publishes no events */
+  @Setter private ApplicationEventPublisher eventPublisher;
+  /** Issuer of partitioned CRLs, or null if CRLs are not partitioned */
+  @Getter private PartitionedCRLIssuer partitionedCRLIssuer;
+  /** Issuer of the complete CRL from the current CRL and the changes since, or null if the instance has no CRLs */
+  private final IncrementalCRLIssuer incrementalCRLIssuer;
+
+  private final String instance;
+  private final PkiCredential issuerCredential;
+  private final CRLIssuerModel crlIssuerModel;
+
+  public HeadlessCAService(String instance, PkiCredential issuerCredential,
     CARepository caRepository, CertificateIssuerModel certIssuerModel,
     CRLIssuerModel crlIssuerModel, List<String> crlDistributionPoints)
     throws NoSuchAlgorithmException, IOException, CertificateEncodingException {
     super(issuerCredential, caRepository, certIssuerModel, crlIssuerModel, crlDistributionPoints);
+    this.metrics = InstanceMetrics.noop(instance);
+    this.instance = instance;
+    this.issuerCredential = issuerCredential;
+    this.crlIssuerModel = crlIssuerModel;
+    this.incrementalCRLIssuer = crlIssuerModel == null
+      ? null
+      : new IncrementalCRLIssuer(instance, crlIssuerModel, issuerCredential, this::getCaCertificate, caRepository);
     log.info("Instantiated Headless CA service instance");
   }
 
+  /**
+   * Enable partitioned CRLs. New certificates are assigned to one of the partitions, and get the distribution point
+   * of the partition CRL instead of the distribution point of the complete CRL.
+   *
+   * @param partitionCount the number of partitions
+   * @param partitionDir the folder holding the partition CRLs
+   * @param refreshMargin the time before the next update of a partition CRL when it is signed again
+   */
+  public void enableCrlPartitions(int partitionCount, File partitionDir, Duration refreshMargin) {
+    if (crlIssuerModel.getDistributionPointUrl() == null) {
+      log.warn("Instance {} has no CRL distribution point - CRLs are not partitioned", instance);
+      return;
+    }
+    this.partitionedCRLIssuer = new PartitionedCRLIssuer(instance, partitionCount, crlIssuerModel, issuerCredential,
+      this::getCaCertificate, getCaRepository(), partitionDir, refreshMargin);
+    log.info("Instance {} publishes {} partitioned CRLs", instance, partitionCount);
+  }
+
   @Override protected DefaultCertificateModelBuilder getBaseCertificateModelBuilder(CertNameModel subject, PublicKey publicKey,
     X509CertificateHolder issuerCertificate, CertificateIssuerModel certificateIssuerModel) {
     DefaultCertificateModelBuilder certModelBuilder = DefaultCertificateModelBuilder.getInstance(publicKey, getCaCertificate(),
@@ -69,23 +123,101 @@ public class HeadlessCAService extends AbstractBasicCA {
     certModelBuilder
       .subject(subject)
       .includeAki(true)
-      .crlDistributionPoints(crlDistributionPoints.isEmpty() ? null : crlDistributionPoints)
+      .crlDistributionPoints(getCrlDistributionPoints(publicKey))
       .ocspServiceUrl(StringUtils.isBlank(ocspResponderUrl) ? null : ocspResponderUrl);
     return certModelBuilder;
   }
 
+  private List<String> getCrlDistributionPoints(PublicKey publicKey) {
+    if (partitionedCRLIssuer != null) {
+      return List.of(partitionedCRLIssuer.getDistributionPointUrl(partitionedCRLIssuer.getPartition(publicKey)));
+    }
+    return crlDistributionPoints.isEmpty() ? null : crlDistributionPoints;
+  }
+
   @Override
   public X509CertificateHolder issueCertificate(final CertificateModel certificateModel)
     throws CertificateIssuanceException {
-    checkIncomingRequest(certificateModel);
-    final X509CertificateHolder certificate = this.getCertificateIssuer().issueCertificate(certificateModel);
-    try {
-      getCaRepository().addCertificate(certificate);
+    return metrics.record(InstanceMetrics.ISSUE, () -> {
+      metrics.record(InstanceMetrics.ISSUE_PHASE, () -> {
+        checkIncomingRequest(certificateModel);
+        return null;
+      }, "phase", InstanceMetrics.PHASE_VALIDATE);
+      final X509CertificateHolder certificate = metrics.record(InstanceMetrics.ISSUE_PHASE,
+        () -> this.getCertificateIssuer().issueCertificate(certificateModel), "phase", InstanceMetrics.PHASE_SIGN);
+      metrics.record(InstanceMetrics.ISSUE_PHASE, () -> {
+        try {
+          getCaRepository().addCertificate(certificate);
+        }
+        catch (final IOException e) {
+          throw new CertificateIssuanceException(e);
+        }
+        return null;
+      }, "phase", InstanceMetrics.PHASE_PERSIST);
+      return certificate;
+    });
+  }
+
+  /**
+   * Revokes a certificate and publishes a {@link CertificateRevokedEvent} for the revocation.
+   *
+   * @param serialNumber the serial number of the certificate
+   * @param reason the revocation reason
+   * @param revocationDate the revocation time
+   * @throws CertificateRevocationException error revoking the certificate
+   */
+  @Override public void revokeCertificate(BigInteger serialNumber, int reason, Date revocationDate)
+    throws CertificateRevocationException {
+    super.revokeCertificate(serialNumber, reason, revocationDate);
+    if (eventPublisher != null) {
+      eventPublisher.publishEvent(new CertificateRevokedEvent(this, instance, serialNumber, reason, revocationDate));
+    }
+  }
+
+  /**
+   * Generates a new CRL and stores it in the CA repository. The time spent is recorded by the CRL generation timer,
+   * which includes the time for storing the CRL recorded by the repository. Partition CRLs are published separately by
+   * {@link #publishPartitionCrls()}.
+   *
+   * <p>The new CRL is built from the entries of the current CRL and the changes since the current CRL by the
+   * {@link IncrementalCRLIssuer}, with the next CRL number of the repository. When there is no current CRL, or the
+   * current CRL of this node is not the latest CRL of the instance, the CRL is issued by the CRL issuer of the CA
+   * service.</p>
+   *
+   * <p>CRLs of this instance are published one at a time, as a CRL may be published by the daemon timer, after a
+   * revocation and by the bulk revocation at the same time, and concurrent publications could otherwise store CRLs out
+   * of order.</p>
+   *
+   * @return the new CRL
+   * @throws IOException error generating the CRL
+   */
+  @Override public X509CRLHolder publishNewCrl() throws IOException {
+    synchronized (crlPublicationLock) {
+      return metrics.record(InstanceMetrics.CRL_GENERATE, () -> {
+        X509CRLHolder crl = incrementalCRLIssuer == null ? null : incrementalCRLIssuer.issueCrl();
+        if (crl == null) {
+          return super.publishNewCrl();
+        }
+        getCaRepository().getCRLRevocationDataProvider().publishNewCrl(crl);
+        return crl;
+      });
     }
-    catch (final IOException e) {
-      throw new CertificateIssuanceException(e);
+  }
+
+  /**
+   * Publishes the partition CRLs where the revoked certificates have changed, or that are about to expire. Does nothing
+   * if CRLs are not partitioned.
+   *
+   * @throws IOException error generating a partition CRL
+   */
+  public void publishPartitionCrls() throws IOException {
+    if (partitionedCRLIssuer == null) {
+      return;
     }
-    return certificate;
+    metrics.record(InstanceMetrics.CRL_PARTITIONS_GENERATE, () -> {
+      partitionedCRLIssuer.publishPartitionCrls();
+      return null;
+    });
   }
 
   private void checkIncomingRequest(CertificateModel certificateModel) throws CertificateIssuanceException {
@@ -16,11 +16,13 @@
 
 package se.swedenconnect.ca.headless.ca;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.bouncycastle.asn1.x509.KeyUsage;
 import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.cms.CMSException;
 import org.springframework.context.ApplicationEventPublisher;
+import se.swedenconnect.ca.engine.ca.issuer.CAService;
 import se.swedenconnect.ca.engine.ca.issuer.CertificateIssuanceException;
 import se.swedenconnect.ca.engine.ca.issuer.CertificateIssuer;
 import se.swedenconnect.ca.engine.ca.issuer.CertificateIssuerModel;
@@ -33,6 +35,7 @@ import se.swedenconnect.ca.engine.ca.models.cert.impl.DefaultCertificateModelBui
 import se.swedenconnect.ca.engine.ca.models.cert.impl.SelfIssuedCertificateModelBuilder;
 import se.swedenconnect.ca.engine.ca.repository.CARepository;
 import se.swedenconnect.ca.engine.revocation.crl.CRLIssuerModel;
+import se.swedenconnect.ca.headless.metrics.InstanceMetrics;
 import se.swedenconnect.ca.service.base.configuration.BasicServiceConfig;
 import se.swedenconnect.ca.service.base.configuration.instance.InstanceConfiguration;
 import se.swedenconnect.ca.service.base.ca.impl.AbstractBasicCA;
@@ -42,12 +45,17 @@ import se.swedenconnect.ca.service.base.configuration.properties.CAConfigData;
 import se.swedenconnect.ca.service.base.utils.GeneralCAUtils;
 import se.swedenconnect.security.credential.PkiCredential;
 
+import java.io.File;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
+import java.time.Duration;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class creates CA Service instances for the generic headless CA.
@@ -61,18 +69,110 @@ import java.util.Map;
  */
 @Slf4j
 public class HeadlessCAServices extends AbstractDefaultCAServices {
+  /**
+   * Constructor for the CA services of the headless CA.
+   *
+   * <p>The initial publication of issued certificates for each instance is performed in the background on a bounded
+   * number of threads, allowing the application context to complete without waiting for all instances. Progress is
+   * reported through the {@link InstanceStartupHealthIndicator}. The file published by the previous run is checked by
+   * the startup task of each instance, as the check reads the complete file. Instances where that file is still valid
+   * are ready as soon as it has been checked, and have their file reconciled by the same task.</p>
+   *
+   * @param instanceConfiguration instance configuration properties
+   * @param pkiCredentialFactory the pkcs11 provider if such provider is configured (or null)
+   * @param basicServiceConfig basic service configuration data
+   * @param caRepositoryMap CA repositories for each instance
+   * @param p7BCertStore Provider of the CA repository PKCS7 certs only file for each instance
+   * @param startupHealthIndicator health indicator reporting the startup progress of each instance
+   * @param startupParallelism the maximum number of instances initialized in parallel
+   * @param applicationEventPublisher application event publisher
+   * @param meterRegistry registry receiving the metrics of each instance, or null to not record metrics
+   * @param crlPartitions the number of partitioned CRLs of each instance, or 0 to not partition CRLs
+   * @param crlPartitionRefreshMargin the time before the next update of a partition CRL when it is signed again
+   * @throws CertificateException error parsing certificate data
+   * @throws IOException error parsing data
+   * @throws CMSException error handling CMS data
+   */
   public HeadlessCAServices(InstanceConfiguration instanceConfiguration,
     PkiCredentialFactory pkiCredentialFactory, BasicServiceConfig basicServiceConfig,
-    Map<String, CARepository> caRepositoryMap, P7BCertStore p7BCertStore, ApplicationEventPublisher applicationEventPublisher)
+    Map<String, CARepository> caRepositoryMap, P7BCertStore p7BCertStore,
+    InstanceStartupHealthIndicator startupHealthIndicator, int startupParallelism,
+    ApplicationEventPublisher applicationEventPublisher, MeterRegistry meterRegistry, int crlPartitions,
+    Duration crlPartitionRefreshMargin)
     throws CertificateException, IOException, CMSException {
     super(instanceConfiguration, pkiCredentialFactory, basicServiceConfig, caRepositoryMap, applicationEventPublisher);
 
-    // Publish issued certs
+    // The CA services are created by the super constructor, so metrics, event publisher and CRL partitions can only be
+    // assigned once it has completed
+    for (String instance : this.getCAServiceKeys()) {
+      CAService caService = this.getCAService(instance);
+      if (caService instanceof HeadlessCAService headlessCAService) {
+        headlessCAService.setMetrics(new InstanceMetrics(meterRegistry, instance));
+        headlessCAService.setEventPublisher(applicationEventPublisher);
+        if (crlPartitions > 0) {
+          headlessCAService.enableCrlPartitions(crlPartitions, new File(basicServiceConfig.getDataStoreLocation(),
+            "instances/" + instance + "/repository/crl-partitions"), crlPartitionRefreshMargin);
+        }
+      }
+    }
+
+    // Publish issued certs in the background
     List<String> caServiceKeys = this.getCAServiceKeys();
+    if (caServiceKeys.isEmpty()) {
+      return;
+    }
+    int threadCount = Math.max(1, Math.min(startupParallelism, caServiceKeys.size()));
+    AtomicInteger threadCounter = new AtomicInteger();
+    ExecutorService startupExecutor = Executors.newFixedThreadPool(threadCount, runnable -> {
+      Thread thread = new Thread(runnable, "instance-startup-" + threadCounter.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
     for (String instance: caServiceKeys) {
-      p7BCertStore.publishIssuedCerts(instance, caRepositoryMap.get(instance));
+      CARepository caRepository = caRepositoryMap.get(instance);
+      p7BCertStore.registerInstance(instance, caRepository);
+      startupHealthIndicator.startupPending(instance);
+      startupExecutor.execute(() -> {
+        long startTime = System.nanoTime();
+        if (p7BCertStore.restorePublishedCerts(instance, caRepository)) {
+          // The file from the last run is served right away and is reconciled with the repository
+          startupHealthIndicator.startupCompleted(instance, Duration.ofNanos(System.nanoTime() - startTime));
+          try {
+            p7BCertStore.publishIssuedCerts(instance, caRepository);
+            log.debug("Restored p7b cert store file for instance {} reconciled with the CA repository", instance);
+          }
+          catch (Exception ex) {
+            log.warn("Failed to reconcile restored p7b cert store file for instance {}", instance, ex);
+          }
+          return;
+        }
+        try {
+          p7BCertStore.publishIssuedCerts(instance, caRepository);
+          startupHealthIndicator.startupCompleted(instance, Duration.ofNanos(System.nanoTime() - startTime));
+        }
+        catch (Exception ex) {
+          startupHealthIndicator.startupFailed(instance, Duration.ofNanos(System.nanoTime() - startTime), ex);
+        }
+      });
     }
-
+    // Partition CRLs are otherwise not published until the next CRL of the instance is published
+    for (String instance : caServiceKeys) {
+      if (this.getCAService(instance) instanceof HeadlessCAService headlessCAService
+        && headlessCAService.getPartitionedCRLIssuer() != null) {
+        startupExecutor.execute(() -> {
+          try {
+            headlessCAService.publishPartitionCrls();
+          }
+          catch (Exception ex) {
+            log.warn("Failed to publish partition CRLs for instance {}", instance, ex);
+          }
+        });
+      }
+    }
+    // Let the threads terminate when all startup tasks are done
+    startupExecutor.shutdown();
+    log.info("Initial publication of issued certificates for {} instances started using {} threads",
+      caServiceKeys.size(), threadCount);
   }
 
   /** {@inheritDoc} */
@@ -81,7 +181,7 @@ public class HeadlessCAServices extends AbstractDefaultCAServices {
     throws NoSuchAlgorithmException, IOException, CertificateEncodingException {
 
     log.info("Creating a CA service for instance {}", instance);
-    return new HeadlessCAService(issuerCredential, caRepository, certIssuerModel, crlIssuerModel, crlDistributionPoints);
+    return new HeadlessCAService(instance, issuerCredential, caRepository, certIssuerModel, crlIssuerModel, crlDistributionPoints);
   }
 
   /** {@inheritDoc} */
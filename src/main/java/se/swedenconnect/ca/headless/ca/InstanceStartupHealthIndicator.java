@@ -0,0 +1,156 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Health indicator reporting the progress of the background initialization of each CA instance.
+ *
+ * <p>The indicator reports {@code OUT_OF_SERVICE} as long as any instance is still initializing, {@code DOWN} if the
+ * initialization of any instance failed and {@code UP} when all instances are ready. An instance that failed to
+ * initialize is reported as ready when its certificates are later published successfully, which happens on the next
+ * request for its PKCS#7 file. The details of the health response include the startup time of each instance.</p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@Slf4j
+@Component
+public class InstanceStartupHealthIndicator implements HealthIndicator {
+
+  private final Map<String, InstanceStartupStatus> startupStatusMap = new ConcurrentHashMap<>();
+
+  /**
+   * Register that initialization of an instance has started.
+   *
+   * @param instance the instance being initialized
+   */
+  public void startupPending(String instance) {
+    startupStatusMap.put(instance, new InstanceStartupStatus(StartupState.PENDING, null, null));
+  }
+
+  /**
+   * Register that an instance is initialized and ready to serve requests.
+   *
+   * @param instance the initialized instance
+   * @param startupTime the time it took to initialize the instance
+   */
+  public void startupCompleted(String instance, Duration startupTime) {
+    startupStatusMap.put(instance, new InstanceStartupStatus(StartupState.READY, startupTime, null));
+    log.info("Instance {} ready after {} ms", instance, startupTime.toMillis());
+  }
+
+  /**
+   * Register that initialization of an instance failed.
+   *
+   * @param instance the instance that failed to initialize
+   * @param startupTime the time spent before the initialization failed
+   * @param error the cause of the failure
+   */
+  public void startupFailed(String instance, Duration startupTime, Exception error) {
+    startupStatusMap.put(instance, new InstanceStartupStatus(StartupState.FAILED, startupTime, error.getMessage()));
+    log.error("Initialization of instance {} failed after {} ms", instance, startupTime.toMillis(), error);
+  }
+
+  /**
+   * Register that the certificates of an instance were published. An instance that failed to initialize is ready from
+   * now on, since its failure was caused by the initial publication of its certificates.
+   *
+   * @param instance the instance that published its certificates
+   */
+  public void publicationCompleted(String instance) {
+    InstanceStartupStatus status = startupStatusMap.get(instance);
+    if (status != null && status.getState() == StartupState.FAILED
+      && startupStatusMap.replace(instance, status,
+      new InstanceStartupStatus(StartupState.READY, status.getStartupTime(), null))) {
+      log.info("Instance {} ready after a failed initialization", instance);
+    }
+  }
+
+  /**
+   * Test if an instance has completed its initialization.
+   *
+   * @param instance the instance
+   * @return true if the instance is initialized and ready
+   */
+  public boolean isReady(String instance) {
+    InstanceStartupStatus status = startupStatusMap.get(instance);
+    return status != null && status.getState() == StartupState.READY;
+  }
+
+  /**
+   * Get the initialization state of an instance.
+   *
+   * @param instance the instance
+   * @return the initialization state, or null if the initialization of the instance has not started
+   */
+  public StartupState getState(String instance) {
+    InstanceStartupStatus status = startupStatusMap.get(instance);
+    return status == null ? null : status.getState();
+  }
+
+  /** {@inheritDoc} */
+  @Override public Health health() {
+    Status status = Status.UP;
+    Map<String, Object> details = new TreeMap<>();
+    for (Map.Entry<String, InstanceStartupStatus> entry : startupStatusMap.entrySet()) {
+      InstanceStartupStatus startupStatus = entry.getValue();
+      if (startupStatus.getState() == StartupState.FAILED) {
+        status = Status.DOWN;
+      }
+      if (startupStatus.getState() == StartupState.PENDING && !Status.DOWN.equals(status)) {
+        status = Status.OUT_OF_SERVICE;
+      }
+      Map<String, Object> instanceDetails = new LinkedHashMap<>();
+      instanceDetails.put("state", startupStatus.getState());
+      if (startupStatus.getStartupTime() != null) {
+        instanceDetails.put("startupMillis", startupStatus.getStartupTime().toMillis());
+      }
+      if (startupStatus.getError() != null) {
+        instanceDetails.put("error", startupStatus.getError());
+      }
+      details.put(entry.getKey(), instanceDetails);
+    }
+    return Health.status(status).withDetails(details).build();
+  }
+
+  public enum StartupState {
+    PENDING, READY, FAILED
+  }
+
+  @Getter
+  @AllArgsConstructor
+  private static class InstanceStartupStatus {
+    private final StartupState state;
+    private final Duration startupTime;
+    private final String error;
+  }
+
+}
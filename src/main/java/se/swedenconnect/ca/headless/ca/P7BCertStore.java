@@ -16,36 +16,49 @@
 
 package se.swedenconnect.ca.headless.ca;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.io.FileUtils;
 import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
 import org.bouncycastle.cms.CMSException;
 import org.bouncycastle.cms.CMSProcessableByteArray;
 import org.bouncycastle.cms.CMSSignedData;
 import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.util.encoders.Hex;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.data.domain.Slice;
 import org.springframework.stereotype.Component;
 import se.swedenconnect.ca.engine.ca.repository.CARepository;
 import se.swedenconnect.ca.engine.ca.repository.CertificateRecord;
+import se.swedenconnect.ca.engine.ca.repository.SortBy;
+import se.swedenconnect.ca.engine.revocation.crl.CRLMetadata;
+import se.swedenconnect.ca.engine.revocation.crl.CRLRevocationDataProvider;
 import se.swedenconnect.ca.engine.utils.CAUtils;
+import se.swedenconnect.ca.headless.ca.db.DBCARepository;
+import se.swedenconnect.ca.headless.metrics.InstanceMetrics;
 import se.swedenconnect.ca.service.base.configuration.BasicServiceConfig;
 import se.swedenconnect.ca.service.base.support.CertificateDuplicateChecker;
 import se.swedenconnect.ca.service.base.support.DefaultCertificateDuplicateChecker;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.math.BigInteger;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 /**
@@ -59,16 +72,140 @@ import java.util.stream.Collectors;
 @Slf4j
 public class P7BCertStore {
 
-  private final BasicServiceConfig basicServiceConfig;
+  private final File dataStoreLocation;
   private final CertificateDuplicateChecker certificateDuplicateChecker;
   private final Map<String, P7bPublishResources> p7bResourcesMap;
+  private final Map<String, Object> publishLocks;
   @Value("${ca-service.p7b.max-age-seconds:30}") private int maxAgeSec;
+  @Value("${ca-service.p7b.warm-start:true}") private boolean warmStart;
+  private MeterRegistry meterRegistry;
+  private InstanceStartupHealthIndicator startupHealthIndicator;
+
+  /** Number of certificates read from a database repository at a time */
+  private static final int RANGE_SIZE = 1000;
+  private static final String META_SHA256 = "sha256";
+  private static final String META_VALID_CERT_COUNT = "valid-cert-count";
+  private static final String META_NEXT_CHANGE = "next-change";
+  private static final String META_CERT_COUNT = "cert-count";
+  private static final String META_NOT_REVOKED_COUNT = "not-revoked-count";
+  private static final String META_LAST_ISSUE_DATE = "last-issue-date";
+  private static final String META_CRL_NUMBER = "crl-number";
 
   @Autowired
   public P7BCertStore(BasicServiceConfig basicServiceConfig) {
-    this.basicServiceConfig = basicServiceConfig;
+    this(basicServiceConfig.getDataStoreLocation());
+  }
+
+  /**
+   * Constructor for a cert store publishing files under a specific data store location.
+   *
+   * @param dataStoreLocation the data store location holding the instances folder
+   */
+  public P7BCertStore(File dataStoreLocation) {
+    this.dataStoreLocation = dataStoreLocation;
     this.certificateDuplicateChecker = new DefaultCertificateDuplicateChecker();
-    this.p7bResourcesMap = new HashMap<>();
+    this.p7bResourcesMap = new ConcurrentHashMap<>();
+    this.publishLocks = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Set the registry receiving the publication timers of each instance.
+   *
+   * @param meterRegistry meter registry
+   */
+  @Autowired(required = false)
+  public void setMeterRegistry(MeterRegistry meterRegistry) {
+    this.meterRegistry = meterRegistry;
+  }
+
+  /**
+   * Set the health indicator that is told about each successful publication, which clears a failed initial
+   * publication of an instance.
+   *
+   * @param startupHealthIndicator the startup health indicator
+   */
+  @Autowired(required = false)
+  public void setStartupHealthIndicator(InstanceStartupHealthIndicator startupHealthIndicator) {
+    this.startupHealthIndicator = startupHealthIndicator;
+  }
+
+  /**
+   * Register an instance without publishing its certificates. The PKCS#7 file of a registered instance is published on
+   * the first request for it unless it has been published before that.
+   *
+   * @param instance The instance CA issuing the published certs
+   * @param caRepository the CA repository of the instance
+   */
+  public void registerInstance(String instance, CARepository caRepository) {
+    p7bResourcesMap.putIfAbsent(instance, new P7bPublishResources(getCertStoreFile(instance), caRepository, 0, null,
+      null));
+  }
+
+  private File getCertStoreFile(String instance) {
+    return new File(dataStoreLocation, "instances/"+instance+"/repository/certs.p7b");
+  }
+
+  private File getCertStoreMetadataFile(String instance) {
+    return new File(dataStoreLocation, "instances/"+instance+"/repository/certs.p7b.properties");
+  }
+
+  /**
+   * Restore the PKCS#7 file published for an instance by a previous run of the service, without rebuilding it from the
+   * CA repository.
+   *
+   * <p>The persisted file is only restored if its content hash matches the hash recorded when it was published, if no
+   * published certificate has expired or become valid since then, and if the watermark of the CA repository (certificate
+   * counts, latest issue date and current CRL number) is unchanged. The caller is expected to republish the file in the
+   * background after a successful restore to reconcile it with the repository.</p>
+   *
+   * @param instance The instance CA issuing the published certs
+   * @param caRepository the CA repository of the instance
+   * @return true if the persisted file was restored and can be served, false if it must be republished
+   */
+  public boolean restorePublishedCerts(String instance, CARepository caRepository) {
+    if (!warmStart) {
+      return false;
+    }
+    File certStoreFile = getCertStoreFile(instance);
+    File metadataFile = getCertStoreMetadataFile(instance);
+    if (!certStoreFile.exists() || !metadataFile.exists()) {
+      log.debug("No previously published p7b cert store file available for instance {}", instance);
+      return false;
+    }
+    try {
+      Properties metadata = new Properties();
+      try (InputStream metadataStream = Files.newInputStream(metadataFile.toPath())) {
+        metadata.load(metadataStream);
+      }
+      if (System.currentTimeMillis() >= Long.parseLong(metadata.getProperty(META_NEXT_CHANGE))) {
+        log.debug("Published p7b cert store file for instance {} holds certificates with changed validity", instance);
+        return false;
+      }
+      String sha256 = metadata.getProperty(META_SHA256);
+      if (!getSha256Hex(Files.readAllBytes(certStoreFile.toPath())).equals(sha256)) {
+        log.warn("Published p7b cert store file for instance {} does not match its recorded hash", instance);
+        return false;
+      }
+      if (!getWatermark(caRepository).equals(P7bWatermark.fromProperties(metadata))) {
+        log.debug("CA repository for instance {} has changed since the p7b cert store file was published", instance);
+        return false;
+      }
+      int validCertCount = Integer.parseInt(metadata.getProperty(META_VALID_CERT_COUNT));
+      synchronized (getPublishLock(instance)) {
+        p7bResourcesMap.put(instance, new P7bPublishResources(certStoreFile, caRepository, validCertCount, new Date(),
+          sha256));
+      }
+      log.info("Restored previously published p7b cert store file with {} certificates for instance {}", validCertCount, instance);
+      return true;
+    }
+    catch (Exception ex) {
+      log.warn("Unable to restore published p7b cert store file for instance {}: {}", instance, ex.toString());
+      return false;
+    }
+  }
+
+  private Object getPublishLock(String instance) {
+    return publishLocks.computeIfAbsent(instance, s -> new Object());
   }
 
   /**
@@ -81,25 +218,130 @@ public class P7BCertStore {
    * @throws CMSException Error creating PKCS#7 bag of certs
    */
   public void publishIssuedCerts(String instance, CARepository caRepository) throws IOException, CMSException, CertificateException {
-    File certStoreFile = new File(basicServiceConfig.getDataStoreLocation(), "instances/"+instance+"/repository/certs.p7b");
-    List<BigInteger> allCertSerials = caRepository.getAllCertificates();
+    // Publishing the same instance concurrently would only repeat the same work
+    synchronized (getPublishLock(instance)) {
+      InstanceMetrics metrics = new InstanceMetrics(meterRegistry, instance);
+      Timer.Sample sample = metrics.start();
+      boolean success = false;
+      try {
+        internalPublishIssuedCerts(instance, caRepository);
+        success = true;
+      }
+      finally {
+        metrics.stop(sample, InstanceMetrics.P7B_PUBLISH, success);
+      }
+    }
+  }
+
+  private void internalPublishIssuedCerts(String instance, CARepository caRepository) throws IOException, CMSException, CertificateException {
+    File certStoreFile = getCertStoreFile(instance);
+    // The watermark is taken before reading the certificates to never record a watermark newer than the content
+    P7bWatermark watermark = getWatermark(caRepository);
     Date currentTime = new Date();
-    List<X509CertificateHolder> subjectCertList = allCertSerials.stream()
-      .map(caRepository::getCertificate)
-      .filter(certificateRecord -> !certificateRecord.isRevoked())
+    List<X509CertificateHolder> notRevokedCertList = getNotRevokedCertificates(caRepository).stream()
       .map(this::getCert).filter(Objects::nonNull)
+      .collect(Collectors.toList());
+    List<X509CertificateHolder> subjectCertList = notRevokedCertList.stream()
       .filter(x509CertificateHolder -> currentTime.before(x509CertificateHolder.getNotAfter()))
       .filter(x509CertificateHolder -> currentTime.after(x509CertificateHolder.getNotBefore()))
       .collect(Collectors.toList());
+    // The published content changes when a published certificate expires or when a future certificate becomes valid
+    long nextChange = notRevokedCertList.stream()
+      .map(x509CertificateHolder -> currentTime.before(x509CertificateHolder.getNotBefore())
+        ? x509CertificateHolder.getNotBefore()
+        : x509CertificateHolder.getNotAfter())
+      .filter(date -> date.after(currentTime))
+      .mapToLong(Date::getTime)
+      .min().orElse(Long.MAX_VALUE);
 
     // Remove any certificate duplicates
     final List<X509CertificateHolder> uniqueCertList = getCertHolderList(certificateDuplicateChecker.removeEquivalentCerts(CAUtils.getCertList(subjectCertList)));
 
     // Create PKCS7 file
     byte[] pkcs7 = getPKCS7(uniqueCertList);
-    FileUtils.writeByteArrayToFile(certStoreFile, pkcs7);
-    p7bResourcesMap.put(instance, new P7bPublishResources(certStoreFile, caRepository, uniqueCertList.size(), currentTime));
+    String sha256;
+    try {
+      sha256 = getSha256Hex(pkcs7);
+    }
+    catch (NoSuchAlgorithmException ex) {
+      throw new IOException("Unable to hash the p7b cert store file", ex);
+    }
+    RepositoryFileUtils.writeAtomically(certStoreFile, pkcs7);
+    if (warmStart) {
+      writeCertStoreMetadata(instance, sha256, uniqueCertList.size(), nextChange, watermark);
+    }
+    p7bResourcesMap.put(instance, new P7bPublishResources(certStoreFile, caRepository, uniqueCertList.size(), currentTime,
+      sha256));
     log.debug("Published CA p7b cert store file with {} certificates for instance {}", uniqueCertList.size(), instance);
+    if (startupHealthIndicator != null) {
+      startupHealthIndicator.publicationCompleted(instance);
+    }
+  }
+
+  /**
+   * Get the records of all not revoked certificates. Database repositories are read one range at a time, where each
+   * range is located by seeking past the last certificate of the previous range, instead of looking up each certificate
+   * by its serial number.
+   *
+   * @param caRepository the CA repository
+   * @return the records of the not revoked certificates
+   */
+  private List<CertificateRecord> getNotRevokedCertificates(CARepository caRepository) {
+    if (caRepository instanceof DBCARepository dbcaRepository) {
+      List<CertificateRecord> certificateRecords = new ArrayList<>();
+      Slice<CertificateRecord> range = dbcaRepository.getCertificateRangeAfter(null, RANGE_SIZE, true,
+        SortBy.serialNumber, false);
+      certificateRecords.addAll(range.getContent());
+      while (range.hasNext() && range.hasContent()) {
+        range = dbcaRepository.getCertificateRangeAfter(range.getContent().get(range.getNumberOfElements() - 1),
+          RANGE_SIZE, true, SortBy.serialNumber, false);
+        certificateRecords.addAll(range.getContent());
+      }
+      return certificateRecords;
+    }
+    return caRepository.getAllCertificates().stream()
+      .map(caRepository::getCertificate)
+      .filter(Objects::nonNull)
+      .filter(certificateRecord -> !certificateRecord.isRevoked())
+      .collect(Collectors.toList());
+  }
+
+  private void writeCertStoreMetadata(String instance, String sha256, int validCertCount, long nextChange,
+    P7bWatermark watermark) {
+    try {
+      Properties metadata = watermark.toProperties();
+      metadata.setProperty(META_SHA256, sha256);
+      metadata.setProperty(META_VALID_CERT_COUNT, String.valueOf(validCertCount));
+      metadata.setProperty(META_NEXT_CHANGE, String.valueOf(nextChange));
+      ByteArrayOutputStream metadataBytes = new ByteArrayOutputStream();
+      metadata.store(metadataBytes, "Metadata for the published certs.p7b file of instance " + instance);
+      RepositoryFileUtils.writeAtomically(getCertStoreMetadataFile(instance), metadataBytes.toByteArray());
+    }
+    catch (Exception ex) {
+      // Not critical. The published file will just not be restored on next startup
+      log.warn("Unable to store metadata for p7b cert store file of instance {}: {}", instance, ex.toString());
+    }
+  }
+
+  private P7bWatermark getWatermark(CARepository caRepository) {
+    List<CertificateRecord> lastIssued = caRepository.getCertificateRange(0, 1, false, SortBy.issueDate, true);
+    long lastIssueDate = lastIssued.isEmpty() || lastIssued.get(0).getIssueDate() == null
+      ? -1L
+      : lastIssued.get(0).getIssueDate().getTime();
+    String crlNumber = null;
+    CRLRevocationDataProvider crlRevocationDataProvider = caRepository.getCRLRevocationDataProvider();
+    if (crlRevocationDataProvider != null) {
+      CRLMetadata crlMetadata = crlRevocationDataProvider.getCurrentCRLMetadata();
+      crlNumber = crlMetadata == null || crlMetadata.getCrlNumber() == null
+        ? null
+        : crlMetadata.getCrlNumber().toString(16);
+    }
+    return new P7bWatermark(caRepository.getCertificateCount(false), caRepository.getCertificateCount(true),
+      lastIssueDate, crlNumber);
+  }
+
+  private static String getSha256Hex(byte[] data) throws NoSuchAlgorithmException {
+    return Hex.toHexString(MessageDigest.getInstance("SHA-256").digest(data));
   }
 
   private List<X509CertificateHolder> getCertHolderList(List<X509Certificate> certificateList) throws CertificateEncodingException {
@@ -110,21 +352,50 @@ public class P7BCertStore {
     return certificateHolderList;
   }
 
-  public InputStream getCertStoreP7bBytes(String instance) throws IOException, CMSException, CertificateException {
+  /**
+   * Get the published PKCS#7 file for an instance as a file system resource. The file is republished if the last
+   * publication is older than the configured max age.
+   *
+   * <p>The returned resource is backed by the published file rather than a stream copy, which allows the web layer to
+   * provide content length and byte range support when serving the file. Since new versions of the file are moved in
+   * place atomically, an ongoing download is never affected by a concurrent republish.</p>
+   *
+   * @param instance the instance CA issuing the published certs
+   * @return resource for the published PKCS#7 file
+   * @throws IOException the instance is not registered or error publishing the file
+   * @throws CMSException error creating PKCS#7 bag of certs
+   * @throws CertificateException error parsing certificate data
+   */
+  public Resource getCertStoreP7bResource(String instance) throws IOException, CMSException, CertificateException {
     if (!p7bResourcesMap.containsKey(instance)){
       log.debug("Requested instance {} is not registered", instance);
       throw new IOException("Requested instance is not registered");
     }
-    P7bPublishResources p7bPublishResources = p7bResourcesMap.get(instance);
-    // Check if there is a recent publish
-    Date mustBeCreatedAfter = new Date(System.currentTimeMillis() - (1000L * maxAgeSec));
-    if (p7bPublishResources.getPublishTime() == null || p7bPublishResources.getPublishTime().before(mustBeCreatedAfter)){
-      // last publish does not exist, or is too old
-      publishIssuedCerts(instance, p7bPublishResources.caRepository);
+    P7bPublishResources p7bPublishResources;
+    synchronized (getPublishLock(instance)) {
+      p7bPublishResources = p7bResourcesMap.get(instance);
+      // Check if there is a recent publish
+      Date mustBeCreatedAfter = new Date(System.currentTimeMillis() - (1000L * maxAgeSec));
+      if (p7bPublishResources.getPublishTime() == null || p7bPublishResources.getPublishTime().before(mustBeCreatedAfter)){
+        // last publish does not exist, or is too old
+        internalPublishIssuedCerts(instance, p7bPublishResources.caRepository);
+      }
+      // Reload published resources
+      p7bPublishResources = p7bResourcesMap.get(instance);
     }
-    // Reload published resources
-    p7bPublishResources = p7bResourcesMap.get(instance);
-    return new FileInputStream(p7bPublishResources.getP7bFile());
+    return new FileSystemResource(p7bPublishResources.getP7bFile());
+  }
+
+  /**
+   * Get the SHA-256 hash of the last published PKCS#7 file of an instance. The hash identifies the content of the file,
+   * which is unchanged by a republication of the same certificates, and is used as entity tag when serving the file.
+   *
+   * @param instance the instance CA issuing the published certs
+   * @return the hex encoded SHA-256 hash of the published file, or null if no file has been published
+   */
+  public String getCertStoreP7bSha256(String instance) {
+    P7bPublishResources p7bPublishResources = p7bResourcesMap.get(instance);
+    return p7bPublishResources == null ? null : p7bPublishResources.getSha256();
   }
 
   private X509CertificateHolder getCert(CertificateRecord certificateRecord) {
@@ -149,6 +420,39 @@ public class P7BCertStore {
     return signedData.getEncoded();
   }
 
+  /**
+   * Data summarizing the state of a CA repository at the time of a publication
+   */
+  @Data
+  @NoArgsConstructor
+  @AllArgsConstructor
+  private static class P7bWatermark {
+
+    private int certCount;
+    private int notRevokedCount;
+    private long lastIssueDate;
+    private String crlNumber;
+
+    Properties toProperties() {
+      Properties properties = new Properties();
+      properties.setProperty(META_CERT_COUNT, String.valueOf(certCount));
+      properties.setProperty(META_NOT_REVOKED_COUNT, String.valueOf(notRevokedCount));
+      properties.setProperty(META_LAST_ISSUE_DATE, String.valueOf(lastIssueDate));
+      if (crlNumber != null) {
+        properties.setProperty(META_CRL_NUMBER, crlNumber);
+      }
+      return properties;
+    }
+
+    static P7bWatermark fromProperties(Properties properties) {
+      return new P7bWatermark(
+        Integer.parseInt(properties.getProperty(META_CERT_COUNT)),
+        Integer.parseInt(properties.getProperty(META_NOT_REVOKED_COUNT)),
+        Long.parseLong(properties.getProperty(META_LAST_ISSUE_DATE)),
+        properties.getProperty(META_CRL_NUMBER));
+    }
+  }
+
   @Data
   @NoArgsConstructor
   @AllArgsConstructor
@@ -158,6 +462,7 @@ public class P7BCertStore {
     private CARepository caRepository;
     int validCertCount;
     Date publishTime;
+    String sha256;
 
   }
 
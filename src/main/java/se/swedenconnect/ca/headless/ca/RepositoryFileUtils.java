@@ -0,0 +1,94 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Utility functions for files published from the CA repository folder of an instance.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+public class RepositoryFileUtils {
+
+  private RepositoryFileUtils() {
+  }
+
+  /**
+   * Writes data to a file by first writing a temporary file in the same folder and then moving it in place. Readers of
+   * the target file will therefore always see either the previous or the new complete file content, never a partially
+   * written file.
+   *
+   * @param file the file to write
+   * @param data the data to write
+   * @throws IOException error writing the file
+   */
+  public static void writeAtomically(final File file, final byte[] data) throws IOException {
+    write(file, data, false);
+  }
+
+  /**
+   * Writes data to a file in the same way as {@link #writeAtomically(File, byte[])}, but also forces the written data
+   * to disk before the file is moved in place. Used for files that must survive a crash of the host once written.
+   *
+   * @param file the file to write
+   * @param data the data to write
+   * @throws IOException error writing the file
+   */
+  public static void writeDurably(final File file, final byte[] data) throws IOException {
+    write(file, data, true);
+  }
+
+  private static void write(final File file, final byte[] data, final boolean force) throws IOException {
+    final Path target = file.toPath().toAbsolutePath();
+    Files.createDirectories(target.getParent());
+    final Path tempFile = Files.createTempFile(target.getParent(), file.getName(), ".tmp");
+    try {
+      if (force) {
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+          final ByteBuffer buffer = ByteBuffer.wrap(data);
+          while (buffer.hasRemaining()) {
+            channel.write(buffer);
+          }
+          channel.force(true);
+        }
+      }
+      else {
+        Files.write(tempFile, data);
+      }
+      try {
+        Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch (AtomicMoveNotSupportedException ex) {
+        Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    finally {
+      Files.deleteIfExists(tempFile);
+    }
+  }
+
+}
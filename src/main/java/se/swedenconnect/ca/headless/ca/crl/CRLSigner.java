@@ -0,0 +1,299 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.crl;
+
+import lombok.Value;
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.DERBitString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
+import org.bouncycastle.asn1.x509.CRLNumber;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.CertificateList;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.asn1.x509.ExtensionsGenerator;
+import org.bouncycastle.asn1.x509.SubjectKeyIdentifier;
+import org.bouncycastle.asn1.x509.TBSCertList;
+import org.bouncycastle.asn1.x509.Time;
+import org.bouncycastle.asn1.x509.V2TBSCertListGenerator;
+import org.bouncycastle.cert.X509CRLHolder;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import se.swedenconnect.ca.engine.configuration.CAAlgorithmRegistry;
+import se.swedenconnect.ca.engine.revocation.crl.CRLIssuerModel;
+import se.swedenconnect.ca.engine.revocation.crl.RevokedCertificate;
+import se.swedenconnect.ca.headless.ca.db.DBRevocationEventRecord;
+import se.swedenconnect.security.credential.PkiCredential;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Signs CRLs that are assembled from the entries of a previous CRL and the entries of new revocations.
+ *
+ * <p>Entries of revoked certificates that are unchanged since the previous CRL are copied from the previous CRL as they
+ * are, so that only the entries of new revocations need to be created and encoded. The TBSCertList of the new CRL is
+ * built and signed directly, as the CRL builder of BouncyCastle only accepts new entries or complete CRLs.</p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+public class CRLSigner {
+
+  private final String instance;
+  private final CRLIssuerModel crlIssuerModel;
+  private final PkiCredential issuerCredential;
+  private final Supplier<X509CertificateHolder> caCertificateSupplier;
+
+  /**
+   * Constructor.
+   *
+   * @param instance the CA instance
+   * @param crlIssuerModel the CRL issuer model of the instance, providing algorithm and validity
+   * @param issuerCredential the credential signing the CRLs
+   * @param caCertificateSupplier supplier of the current CA certificate
+   */
+  public CRLSigner(String instance, CRLIssuerModel crlIssuerModel, PkiCredential issuerCredential,
+    Supplier<X509CertificateHolder> caCertificateSupplier) {
+    this.instance = instance;
+    this.crlIssuerModel = crlIssuerModel;
+    this.issuerCredential = issuerCredential;
+    this.caCertificateSupplier = caCertificateSupplier;
+  }
+
+  /**
+   * Sign a new CRL. The CRL holds a CRL number and an authority key identifier of the current CA certificate, followed
+   * by the other extensions given.
+   *
+   * @param entries the entries of the new CRL
+   * @param crlNumber the CRL number of the new CRL
+   * @param thisUpdate the issue time of the new CRL
+   * @param otherExtensions other CRL extensions, where any CRL number or authority key identifier is ignored, or null
+   * @return the new CRL
+   * @throws IOException error signing the CRL
+   */
+  public X509CRLHolder sign(CRLEntries entries, BigInteger crlNumber, Date thisUpdate, Extensions otherExtensions)
+    throws IOException {
+    X509CertificateHolder caCertificate = caCertificateSupplier.get();
+    try {
+      ContentSigner contentSigner = new JcaContentSignerBuilder(
+        CAAlgorithmRegistry.getSigAlgoName(crlIssuerModel.getAlgorithm()))
+        .build(issuerCredential.getPrivateKey());
+
+      V2TBSCertListGenerator tbsGenerator = new V2TBSCertListGenerator();
+      tbsGenerator.setSignature(contentSigner.getAlgorithmIdentifier());
+      tbsGenerator.setIssuer(caCertificate.getSubject());
+      tbsGenerator.setThisUpdate(new Time(thisUpdate));
+      tbsGenerator.setNextUpdate(new Time(new Date(thisUpdate.getTime() + crlIssuerModel.getExpiryTime().toMillis())));
+
+      for (TBSCertList.CRLEntry reusedEntry : entries.getReusedEntries()) {
+        tbsGenerator.addCRLEntry(ASN1Sequence.getInstance(reusedEntry.toASN1Primitive()));
+      }
+      for (RevokedCertificate revokedCertificate : entries.getNewEntries()) {
+        tbsGenerator.addCRLEntry(new ASN1Integer(revokedCertificate.getCertificateSerialNumber()),
+          new Time(revokedCertificate.getRevocationTime()), revokedCertificate.getReason());
+      }
+
+      ExtensionsGenerator extensionsGenerator = new ExtensionsGenerator();
+      extensionsGenerator.addExtension(Extension.cRLNumber, false, new CRLNumber(crlNumber));
+      SubjectKeyIdentifier caKeyIdentifier = SubjectKeyIdentifier.fromExtensions(caCertificate.getExtensions());
+      if (caKeyIdentifier != null) {
+        extensionsGenerator.addExtension(Extension.authorityKeyIdentifier, false,
+          new AuthorityKeyIdentifier(caKeyIdentifier.getKeyIdentifier()));
+      }
+      if (otherExtensions != null) {
+        for (ASN1ObjectIdentifier oid : otherExtensions.getExtensionOIDs()) {
+          if (!Extension.cRLNumber.equals(oid) && !Extension.authorityKeyIdentifier.equals(oid)) {
+            extensionsGenerator.addExtension(otherExtensions.getExtension(oid));
+          }
+        }
+      }
+      tbsGenerator.setExtensions(extensionsGenerator.generate());
+
+      TBSCertList tbsCertList = tbsGenerator.generateTBSCertList();
+      try (OutputStream signerStream = contentSigner.getOutputStream()) {
+        tbsCertList.encodeTo(signerStream, ASN1Encoding.DER);
+      }
+      ASN1EncodableVector crlSequence = new ASN1EncodableVector();
+      crlSequence.add(tbsCertList);
+      crlSequence.add(contentSigner.getAlgorithmIdentifier());
+      crlSequence.add(new DERBitString(contentSigner.getSignature()));
+      return new X509CRLHolder(CertificateList.getInstance(new DERSequence(crlSequence)));
+    }
+    catch (NoSuchAlgorithmException | OperatorCreationException ex) {
+      throw new IOException("Unable to sign CRL " + crlNumber + " of instance " + instance, ex);
+    }
+  }
+
+  /**
+   * Get the entries of a new CRL from the entries of the previous CRL and the changes since the previous CRL.
+   *
+   * @param previousEntries the entries of the previous CRL by serial number
+   * @param changes the latest change of each changed certificate, where a null value means that the certificate is no
+   *   longer revoked
+   * @return the entries of the new CRL
+   */
+  public static CRLEntries applyChanges(Map<BigInteger, TBSCertList.CRLEntry> previousEntries,
+    Map<BigInteger, RevokedCertificate> changes) {
+    List<TBSCertList.CRLEntry> reusedEntries = new ArrayList<>();
+    List<RevokedCertificate> newEntries = new ArrayList<>();
+    for (Map.Entry<BigInteger, TBSCertList.CRLEntry> previousEntry : previousEntries.entrySet()) {
+      if (!changes.containsKey(previousEntry.getKey())) {
+        reusedEntries.add(previousEntry.getValue());
+      }
+    }
+    for (Map.Entry<BigInteger, RevokedCertificate> change : changes.entrySet()) {
+      if (change.getValue() == null) {
+        continue;
+      }
+      TBSCertList.CRLEntry previousEntry = previousEntries.get(change.getKey());
+      if (previousEntry != null && isSameEntry(previousEntry, change.getValue())) {
+        reusedEntries.add(previousEntry);
+      }
+      else {
+        newEntries.add(change.getValue());
+      }
+    }
+    return new CRLEntries(reusedEntries, newEntries);
+  }
+
+  /**
+   * Get the entries of a new CRL from the entries of the previous CRL and the complete list of revoked certificates.
+   *
+   * @param previousEntries the entries of the previous CRL by serial number
+   * @param revokedCertificates all revoked certificates of the new CRL
+   * @return the entries of the new CRL
+   */
+  public static CRLEntries fromRevokedCertificates(Map<BigInteger, TBSCertList.CRLEntry> previousEntries,
+    Collection<RevokedCertificate> revokedCertificates) {
+    List<TBSCertList.CRLEntry> reusedEntries = new ArrayList<>();
+    List<RevokedCertificate> newEntries = new ArrayList<>();
+    for (RevokedCertificate revokedCertificate : revokedCertificates) {
+      TBSCertList.CRLEntry previousEntry = previousEntries.get(revokedCertificate.getCertificateSerialNumber());
+      if (previousEntry != null && isSameEntry(previousEntry, revokedCertificate)) {
+        reusedEntries.add(previousEntry);
+      }
+      else {
+        newEntries.add(revokedCertificate);
+      }
+    }
+    return new CRLEntries(reusedEntries, newEntries);
+  }
+
+  /**
+   * Get the change of the revocation status recorded by a revocation event.
+   *
+   * @param event the revocation event
+   * @return the revoked certificate, or null if the certificate is no longer revoked
+   */
+  public static RevokedCertificate getChange(DBRevocationEventRecord event) {
+    return event.isRevoked()
+      ? new RevokedCertificate(event.getSerialNumber(), event.getRevocationTime(),
+      event.getReason() == null ? CRLReason.unspecified : event.getReason())
+      : null;
+  }
+
+  /**
+   * Get the entries of a CRL.
+   *
+   * @param crl the CRL, or null
+   * @return the entries of the CRL by serial number, in CRL order
+   */
+  public static Map<BigInteger, TBSCertList.CRLEntry> getEntries(X509CRLHolder crl) {
+    Map<BigInteger, TBSCertList.CRLEntry> entries = new LinkedHashMap<>();
+    if (crl != null) {
+      for (TBSCertList.CRLEntry entry : crl.toASN1Structure().getRevokedCertificates()) {
+        entries.put(entry.getUserCertificate().getValue(), entry);
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Get the CRL number of a CRL.
+   *
+   * @param crl the CRL
+   * @return the CRL number, or 0 if the CRL has no CRL number
+   */
+  public static BigInteger getCRLNumber(X509CRLHolder crl) {
+    Extension crlNumberExtension = crl.getExtension(Extension.cRLNumber);
+    return crlNumberExtension == null
+      ? BigInteger.ZERO
+      : CRLNumber.getInstance(crlNumberExtension.getParsedValue()).getCRLNumber();
+  }
+
+  private static boolean isSameEntry(TBSCertList.CRLEntry entry, RevokedCertificate revokedCertificate) {
+    // The CRL holds the revocation time in seconds
+    return entry.getRevocationDate().getDate().getTime() / 1000
+      == revokedCertificate.getRevocationTime().getTime() / 1000
+      && getReason(entry.getExtensions()) == revokedCertificate.getReason();
+  }
+
+  private static int getReason(Extensions entryExtensions) {
+    Extension reasonExtension = entryExtensions == null ? null : entryExtensions.getExtension(Extension.reasonCode);
+    return reasonExtension == null
+      ? CRLReason.unspecified
+      : CRLReason.getInstance(reasonExtension.getParsedValue()).getValue().intValue();
+  }
+
+  /**
+   * The entries of a new CRL.
+   */
+  @Value
+  public static class CRLEntries {
+    /** The unchanged entries of the previous CRL */
+    List<TBSCertList.CRLEntry> reusedEntries;
+    /** The revoked certificates that have no entry in the previous CRL, or a changed one */
+    List<RevokedCertificate> newEntries;
+
+    /**
+     * Get the number of entries.
+     *
+     * @return the number of entries of the new CRL
+     */
+    public int size() {
+      return reusedEntries.size() + newEntries.size();
+    }
+
+    /**
+     * Test if the entries are the same as the entries of the previous CRL.
+     *
+     * @param previousEntries the entries of the previous CRL
+     * @return true if no entry was added, changed or removed
+     */
+    public boolean isUnchanged(Map<BigInteger, TBSCertList.CRLEntry> previousEntries) {
+      return newEntries.isEmpty() && reusedEntries.size() == previousEntries.size();
+    }
+  }
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.crl;
+
+import lombok.Getter;
+import org.springframework.context.ApplicationEvent;
+
+import java.math.BigInteger;
+import java.util.Date;
+
+/**
+ * Event published when the revocation status of a certificate has been changed by a CA instance
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@Getter
+public class CertificateRevokedEvent extends ApplicationEvent {
+
+  /** The instance that changed the revocation status */
+  private final String instance;
+  /** The serial number of the certificate */
+  private final BigInteger serialNumber;
+  /** The revocation reason, which is removeFromCRL if the certificate was released from hold */
+  private final int reason;
+  /** The revocation time */
+  private final Date revocationTime;
+
+  /**
+   * Constructor.
+   *
+   * @param source the CA service publishing the event
+   * @param instance the instance that changed the revocation status
+   * @param serialNumber the serial number of the certificate
+   * @param reason the revocation reason
+   * @param revocationTime the revocation time
+   */
+  public CertificateRevokedEvent(Object source, String instance, BigInteger serialNumber, int reason,
+    Date revocationTime) {
+    super(source);
+    this.instance = instance;
+    this.serialNumber = serialNumber;
+    this.reason = reason;
+    this.revocationTime = revocationTime;
+  }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.crl;
+
+import jakarta.annotation.PreDestroy;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import se.swedenconnect.ca.engine.ca.issuer.CAService;
+import se.swedenconnect.ca.headless.ca.HeadlessCAService;
+import se.swedenconnect.ca.service.base.ca.CAServices;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes a new CRL shortly after certificates have been revoked.
+ *
+ * <p>Each revocation schedules the publication of a new CRL for the instance when no further revocations have been
+ * made for a quiet period. A burst of revocations therefore results in a single new CRL. The publication is never
+ * delayed more than the maximum delay after the first revocation that is not yet included in a CRL, which bounds the
+ * time until a revocation is published during a long burst of revocations.</p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@Slf4j
+@Component
+public class DebouncedCRLPublisher {
+
+  private final ObjectProvider<CAServices> caServicesProvider;
+  private final Map<String, PendingPublication> pendingPublications = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "crl-publisher");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  @Value("${ca-service.crl.publish-on-revocation.enabled:false}") boolean enabled;
+  @Value("${ca-service.crl.publish-on-revocation.quiet-period-millis:2000}") long quietPeriodMillis;
+  @Value("${ca-service.crl.publish-on-revocation.max-delay-millis:10000}") long maxDelayMillis;
+
+  /**
+   * Constructor.
+   *
+   * @param caServicesProvider provider of the CA services publishing the CRLs
+   */
+  public DebouncedCRLPublisher(ObjectProvider<CAServices> caServicesProvider) {
+    this.caServicesProvider = caServicesProvider;
+  }
+
+  /**
+   * Schedule the publication of a new CRL for the instance that revoked a certificate.
+   *
+   * @param event the revocation event
+   */
+  @EventListener
+  public void onCertificateRevoked(CertificateRevokedEvent event) {
+    if (!enabled) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    pendingPublications.compute(event.getInstance(), (instance, pending) -> {
+      long firstEventTime = pending == null ? now : pending.getFirstEventTime();
+      if (pending != null) {
+        pending.getFuture().cancel(false);
+      }
+      long delay = Math.max(0, Math.min(now + quietPeriodMillis, firstEventTime + maxDelayMillis) - now);
+      PendingPublication publication = new PendingPublication(firstEventTime);
+      publication.setFuture(
+        scheduler.schedule(() -> publishCrl(instance, publication), delay, TimeUnit.MILLISECONDS));
+      return publication;
+    });
+  }
+
+  private void publishCrl(String instance, PendingPublication publication) {
+    // Revocations made from now on are not guaranteed to be included and schedule a new publication. A publication
+    // that has already been replaced by a later revocation is left in place
+    pendingPublications.remove(instance, publication);
+    long startTime = System.currentTimeMillis();
+    try {
+      CAService caService = caServicesProvider.getObject().getCAService(instance);
+      caService.publishNewCrl();
+      if (caService instanceof HeadlessCAService headlessCAService) {
+        // Partition CRLs are published on their own schedule, but should also reflect the revocations right away
+        headlessCAService.publishPartitionCrls();
+      }
+      log.debug("Published new CRL for instance {} after revocation in {} ms", instance,
+        System.currentTimeMillis() - startTime);
+    }
+    catch (Exception ex) {
+      log.warn("Failed to publish new CRL for instance {} after revocation", instance, ex);
+    }
+  }
+
+  /**
+   * Stop scheduling publications.
+   */
+  @PreDestroy
+  public void close() {
+    scheduler.shutdownNow();
+  }
+
+  /**
+   * A scheduled publication of a new CRL.
+   */
+  @Getter
+  @RequiredArgsConstructor
+  private static class PendingPublication {
+    /** The time of the first revocation not yet included in a CRL */
+    private final long firstEventTime;
+    /** The scheduled publication */
+    @Setter private volatile ScheduledFuture<?> future;
+  }
+
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.crl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.bouncycastle.asn1.x509.TBSCertList;
+import org.bouncycastle.cert.X509CRLHolder;
+import org.bouncycastle.cert.X509CertificateHolder;
+import se.swedenconnect.ca.engine.ca.repository.CARepository;
+import se.swedenconnect.ca.engine.revocation.crl.CRLIssuerModel;
+import se.swedenconnect.ca.engine.revocation.crl.CRLMetadata;
+import se.swedenconnect.ca.engine.revocation.crl.CRLRevocationDataProvider;
+import se.swedenconnect.ca.engine.revocation.crl.RevokedCertificate;
+import se.swedenconnect.ca.headless.ca.db.DBCARepository;
+import se.swedenconnect.ca.headless.ca.db.DBRevocationEventRecord;
+import se.swedenconnect.security.credential.PkiCredential;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Issues the complete CRL of a CA instance from the entries of its current CRL and the changes since the current CRL.
+ *
+ * <p>The entries of the current CRL are copied to the new CRL as they are, and only the entries of new or changed
+ * revocations are created. For database repositories, the changes are read from the revocation events recorded since the
+ * last CRL issued by this node, and the revoked certificates of the instance are not read at all. The number of entries
+ * of the new CRL is checked against the number of revoked certificates in the repository, and the CRL is built from
+ * the complete list of revoked certificates if they differ. This also removes the entries of expired certificates that
+ * have been removed from the repository, as such removals are not recorded as revocation events. The CRL is also built
+ * from the complete list after a restart, when the current CRL was issued by another node, when revocation events may
+ * have been deleted before they were processed, and for other repositories. Unchanged entries are copied from the
+ * current CRL also then.</p>
+ *
+ * <p>The new CRL gets the next CRL number of the repository, and the extensions of the current CRL. It is only issued
+ * when the current CRL of this node is the latest CRL of the instance according to the CRL metadata of the repository.
+ * Otherwise, the CRL is issued by the CRL issuer of the CA service, which synchronizes the CRLs of nodes sharing a
+ * database.</p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@Slf4j
+public class IncrementalCRLIssuer {
+
+  /** The number of revocation events read with one query */
+  private static final int EVENT_BATCH_SIZE = 1000;
+
+  private final String instance;
+  private final CRLSigner crlSigner;
+  private final CARepository caRepository;
+  /** The CRL number of the last CRL issued by this issuer, or null if no CRL has been issued */
+  private BigInteger crlNumber;
+  /** The entries of the last CRL issued by this issuer by serial number */
+  private Map<BigInteger, TBSCertList.CRLEntry> entries = Map.of();
+  /** The sequence number of the last settled revocation event included in the last CRL, or -1 if not known */
+  private long eventSequence = -1;
+
+  /**
+   * Constructor.
+   *
+   * @param instance the CA instance
+   * @param crlIssuerModel the CRL issuer model of the instance, providing algorithm and validity
+   * @param issuerCredential the credential signing the CRLs
+   * @param caCertificateSupplier supplier of the current CA certificate
+   * @param caRepository the CA repository of the instance
+   */
+  public IncrementalCRLIssuer(String instance, CRLIssuerModel crlIssuerModel, PkiCredential issuerCredential,
+    Supplier<X509CertificateHolder> caCertificateSupplier, CARepository caRepository) {
+    this.instance = instance;
+    this.crlSigner = new CRLSigner(instance, crlIssuerModel, issuerCredential, caCertificateSupplier);
+    this.caRepository = caRepository;
+  }
+
+  /**
+   * Issue a new complete CRL from the entries of the current CRL and the changes since the current CRL. The new CRL is
+   * not stored in the repository.
+   *
+   * @return the new CRL, or null if there is no current CRL, or the current CRL of this node is not the latest CRL of
+   *   the instance
+   * @throws IOException error signing the CRL
+   */
+  public synchronized X509CRLHolder issueCrl() throws IOException {
+    CRLRevocationDataProvider revocationDataProvider = caRepository.getCRLRevocationDataProvider();
+    X509CRLHolder currentCrl = revocationDataProvider.getCurrentCrl();
+    CRLMetadata crlMetadata = revocationDataProvider.getCurrentCRLMetadata();
+    if (currentCrl == null || crlMetadata == null
+      || !CRLSigner.getCRLNumber(currentCrl).equals(crlMetadata.getCrlNumber())) {
+      return null;
+    }
+    // The entries of the last CRL of this issuer are kept, so the current CRL is only parsed after a restart
+    boolean continued = crlMetadata.getCrlNumber().equals(crlNumber);
+    Map<BigInteger, TBSCertList.CRLEntry> previousEntries = continued ? entries : CRLSigner.getEntries(currentCrl);
+    BigInteger newCrlNumber = revocationDataProvider.getNextCrlNumber();
+    Date now = new Date();
+
+    CRLSigner.CRLEntries newEntries = null;
+    long newEventSequence = -1;
+    if (continued && caRepository instanceof DBCARepository dbcaRepository && eventSequence >= 0
+      && dbcaRepository.getOldestRetainedRevocationEventSequence() <= eventSequence + 1) {
+      Map<BigInteger, RevokedCertificate> changes = new LinkedHashMap<>();
+      newEventSequence = readChanges(dbcaRepository, changes);
+      newEntries = CRLSigner.applyChanges(previousEntries, changes);
+      int revokedCount = dbcaRepository.countRevokedCertificates();
+      if (newEntries.size() != revokedCount) {
+        log.debug("Instance {} - {} CRL entries from revocation events, but {} revoked certificates. Building the CRL "
+          + "from all revoked certificates", instance, newEntries.size(), revokedCount);
+        newEntries = null;
+      }
+    }
+    if (newEntries == null) {
+      // Revocation events following this sequence number are applied incrementally to the next CRL
+      newEventSequence = caRepository instanceof DBCARepository dbcaRepository
+        ? dbcaRepository.getSettledRevocationEventSequence()
+        : -1;
+      newEntries = CRLSigner.fromRevokedCertificates(previousEntries,
+        revocationDataProvider.getRevokedCertificates());
+    }
+    X509CRLHolder crl = crlSigner.sign(newEntries, newCrlNumber, now, currentCrl.getExtensions());
+    log.debug("Instance {} - CRL {} reused {} of {} entries", instance, newCrlNumber,
+      newEntries.getReusedEntries().size(), newEntries.size());
+    crlNumber = newCrlNumber;
+    entries = CRLSigner.getEntries(crl);
+    eventSequence = newEventSequence;
+    return crl;
+  }
+
+  /**
+   * Read the changes recorded by the revocation events since the last CRL. Settled events are followed from the last
+   * CRL. Events that are not yet settled are applied as well, so that the new CRL includes all committed changes, but
+   * are read again for the next CRL, as an event with a lower sequence number may still be committed before them.
+   *
+   * @param dbcaRepository the database repository holding the revocation events
+   * @param changes receives the latest change of each changed certificate, or null if it is no longer revoked
+   * @return the sequence number of the last settled event that was read
+   */
+  private long readChanges(DBCARepository dbcaRepository, Map<BigInteger, RevokedCertificate> changes) {
+    long settledSequence = eventSequence;
+    List<DBRevocationEventRecord> events;
+    do {
+      events = dbcaRepository.getRevocationEventsSince(settledSequence, EVENT_BATCH_SIZE);
+      for (DBRevocationEventRecord event : events) {
+        settledSequence = event.getSequence();
+        changes.put(event.getSerialNumber(), CRLSigner.getChange(event));
+      }
+    }
+    while (events.size() == EVENT_BATCH_SIZE);
+    long sequence = settledSequence;
+    do {
+      events = dbcaRepository.getAllRevocationEventsSince(sequence, EVENT_BATCH_SIZE);
+      for (DBRevocationEventRecord event : events) {
+        sequence = event.getSequence();
+        changes.put(event.getSerialNumber(), CRLSigner.getChange(event));
+      }
+    }
+    while (events.size() == EVENT_BATCH_SIZE);
+    return settledSequence;
+  }
+
+}
@@ -0,0 +1,428 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.crl;
+
+import lombok.Getter;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.bouncycastle.asn1.ASN1IA5String;
+import org.bouncycastle.asn1.x509.CRLDistPoint;
+import org.bouncycastle.asn1.x509.DistributionPoint;
+import org.bouncycastle.asn1.x509.DistributionPointName;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.ExtensionsGenerator;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.IssuingDistributionPoint;
+import org.bouncycastle.asn1.x509.TBSCertList;
+import org.bouncycastle.cert.X509CRLHolder;
+import org.bouncycastle.cert.X509CertificateHolder;
+import se.swedenconnect.ca.engine.ca.repository.CARepository;
+import se.swedenconnect.ca.engine.ca.repository.CertificateRecord;
+import se.swedenconnect.ca.engine.revocation.crl.CRLIssuerModel;
+import se.swedenconnect.ca.engine.revocation.crl.RevokedCertificate;
+import se.swedenconnect.ca.headless.ca.RepositoryFileUtils;
+import se.swedenconnect.ca.headless.ca.db.DBCARepository;
+import se.swedenconnect.ca.headless.ca.db.DBRevocationEventRecord;
+import se.swedenconnect.security.credential.PkiCredential;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.security.PublicKey;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Issues the partitioned CRLs of a CA instance.
+ *
+ * <p>Each certificate is assigned to one of a fixed number of partitions at issuance, based on a hash of its public
+ * key, and gets the distribution point of its partition CRL in its CRL distribution points extension. Each partition
+ * CRL only holds the revoked certificates assigned to its partition, and holds an issuing distribution point extension
+ * naming the distribution point of the partition. A partition CRL is only signed again when the revoked certificates of
+ * the partition have changed, or when the CRL is about to expire, and then reuses the unchanged entries of the previous
+ * CRL of the partition. The complete CRL of the instance is still published by the {@link IncrementalCRLIssuer}, and
+ * covers all certificates including those issued before partitioning was enabled.</p>
+ *
+ * <p>For database repositories, partition CRLs are built incrementally from the revocation events recorded since the
+ * last publication. Only the partitions of the changed certificates are signed again, from the entries of their
+ * previous CRL and the changes, without reading the revoked certificates of the instance. All partitions are built from
+ * the complete list of revoked certificates at the first publication, when a partition CRL is about to expire, and when
+ * revocation events may have been deleted before they were processed. This also removes the entries of expired
+ * certificates that have been removed from the repository, as such removals are not recorded as revocation events.</p>
+ *
+ * <p>The partition of a revoked certificate is read from the distribution points of the certificate, which makes it
+ * independent of the current number of partitions. The certificates of database repositories are read in batches.
+ * Partition CRLs are stored in the repository folder of the instance. The CRL number of each partition of a database
+ * repository is allocated in the CRL metadata table, so that nodes sharing the database never issue conflicting CRL
+ * numbers. Other repositories continue the CRL number of each partition from the stored CRL at restart.</p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@Slf4j
+public class PartitionedCRLIssuer {
+
+  /** Partition of revoked certificates that have no partition distribution point */
+  private static final int NO_PARTITION = -1;
+  /** The number of certificates read with one query when the partitions of revoked certificates are resolved */
+  private static final int CERTIFICATE_BATCH_SIZE = 500;
+  /** The number of revocation events read with one query */
+  private static final int EVENT_BATCH_SIZE = 1000;
+
+  private final String instance;
+  /** The number of partitions assigned to new certificates */
+  @Getter private final int partitionCount;
+  private final CRLSigner crlSigner;
+  private final CARepository caRepository;
+  private final File partitionDir;
+  private final Duration refreshMargin;
+  private final String distributionPointPrefix;
+  /** The partition of each revoked certificate, read from the distribution points of the certificate */
+  private final Map<BigInteger, Integer> partitionCache = new ConcurrentHashMap<>();
+  private final Map<Integer, PartitionCrl> partitionCrls = new ConcurrentHashMap<>();
+  /** The sequence number of the last revocation event included in the partition CRLs, or -1 if not known */
+  private long eventSequence = -1;
+
+  /**
+   * Constructor.
+   *
+   * @param instance the CA instance
+   * @param partitionCount the number of partitions assigned to new certificates
+   * @param crlIssuerModel the CRL issuer model of the instance, providing algorithm, validity and distribution point
+   * @param issuerCredential the credential signing the CRLs
+   * @param caCertificateSupplier supplier of the current CA certificate
+   * @param caRepository the CA repository of the instance
+   * @param partitionDir the folder holding the partition CRLs
+   * @param refreshMargin the time before the next update of a partition CRL when it is signed again
+   */
+  public PartitionedCRLIssuer(String instance, int partitionCount, CRLIssuerModel crlIssuerModel,
+    PkiCredential issuerCredential, Supplier<X509CertificateHolder> caCertificateSupplier, CARepository caRepository,
+    File partitionDir, Duration refreshMargin) {
+    this.instance = instance;
+    this.partitionCount = partitionCount;
+    this.crlSigner = new CRLSigner(instance, crlIssuerModel, issuerCredential, caCertificateSupplier);
+    this.caRepository = caRepository;
+    this.partitionDir = partitionDir;
+    this.refreshMargin = refreshMargin;
+    String distributionPointUrl = crlIssuerModel.getDistributionPointUrl();
+    this.distributionPointPrefix = (distributionPointUrl.endsWith(".crl")
+      ? distributionPointUrl.substring(0, distributionPointUrl.length() - 4)
+      : distributionPointUrl) + "/";
+    loadPartitionCrls();
+  }
+
+  private void loadPartitionCrls() {
+    File[] crlFiles = partitionDir.listFiles((dir, name) -> name.matches("\\d+\\.crl"));
+    if (crlFiles == null) {
+      return;
+    }
+    for (File crlFile : crlFiles) {
+      int partition = Integer.parseInt(crlFile.getName().substring(0, crlFile.getName().length() - 4));
+      try {
+        X509CRLHolder crl = new X509CRLHolder(Files.readAllBytes(crlFile.toPath()));
+        Map<BigInteger, TBSCertList.CRLEntry> entries = CRLSigner.getEntries(crl);
+        entries.keySet().forEach(serialNumber -> partitionCache.put(serialNumber, partition));
+        partitionCrls.put(partition, new PartitionCrl(crl, CRLSigner.getCRLNumber(crl), entries));
+      }
+      catch (Exception ex) {
+        log.warn("Instance {} - ignoring unreadable partition CRL {}: {}", instance, crlFile.getName(), ex.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Get the partition assigned to a new certificate.
+   *
+   * @param publicKey the public key of the certificate
+   * @return the partition of the certificate
+   */
+  public int getPartition(PublicKey publicKey) {
+    return Math.floorMod(Arrays.hashCode(publicKey.getEncoded()), partitionCount);
+  }
+
+  /**
+   * Get the distribution point of a partition CRL.
+   *
+   * @param partition the partition
+   * @return the URL of the partition CRL
+   */
+  public String getDistributionPointUrl(int partition) {
+    return distributionPointPrefix + partition + ".crl";
+  }
+
+  /**
+   * Get the current CRL of a partition.
+   *
+   * @param partition the partition
+   * @return the current partition CRL, or null if the partition has no CRL
+   */
+  public X509CRLHolder getPartitionCrl(int partition) {
+    PartitionCrl partitionCrl = partitionCrls.get(partition);
+    return partitionCrl == null ? null : partitionCrl.getCrl();
+  }
+
+  /**
+   * Sign new CRLs for all partitions where the revoked certificates have changed, or where the current CRL is about
+   * to expire.
+   *
+   * @throws IOException error signing or storing a partition CRL
+   */
+  public synchronized void publishPartitionCrls() throws IOException {
+    Date now = new Date();
+    if (caRepository instanceof DBCARepository dbcaRepository && eventSequence >= 0 && !isRefreshNeeded(now)
+      && dbcaRepository.getOldestRetainedRevocationEventSequence() <= eventSequence + 1) {
+      publishChangedPartitionCrls(dbcaRepository, now);
+      return;
+    }
+    // Revocation events following this sequence number are applied incrementally after the complete build
+    long baselineSequence = caRepository instanceof DBCARepository dbRepository
+      ? dbRepository.getSettledRevocationEventSequence()
+      : -1;
+    publishAllPartitionCrls(now);
+    eventSequence = baselineSequence;
+  }
+
+  /**
+   * Test if any partition CRL is missing or about to expire.
+   *
+   * @param now the current time
+   * @return true if all partition CRLs must be built from the complete list of revoked certificates
+   */
+  private boolean isRefreshNeeded(Date now) {
+    for (int partition = 0; partition < partitionCount; partition++) {
+      if (!partitionCrls.containsKey(partition)) {
+        return true;
+      }
+    }
+    return partitionCrls.values().stream()
+      .anyMatch(current -> current.getCrl().getNextUpdate().getTime() - refreshMargin.toMillis() <= now.getTime());
+  }
+
+  /**
+   * Sign new CRLs for the partitions of the certificates with revocation events since the last publication. Each new
+   * CRL holds the entries of the previous CRL of the partition, updated with the changes of the events.
+   *
+   * @param dbcaRepository the database repository holding the revocation events
+   * @param now the issue time of the new CRLs
+   * @throws IOException error signing or storing a partition CRL
+   */
+  private void publishChangedPartitionCrls(DBCARepository dbcaRepository, Date now) throws IOException {
+    // The latest change of each changed certificate, or null if the certificate is no longer revoked
+    Map<Integer, Map<BigInteger, RevokedCertificate>> changesByPartition = new HashMap<>();
+    long sequence = eventSequence;
+    List<DBRevocationEventRecord> events;
+    do {
+      events = dbcaRepository.getRevocationEventsSince(sequence, EVENT_BATCH_SIZE);
+      resolvePartitions(events.stream().map(DBRevocationEventRecord::getSerialNumber).toList());
+      for (DBRevocationEventRecord event : events) {
+        sequence = event.getSequence();
+        int partition = getRevokedCertificatePartition(event.getSerialNumber());
+        if (partition == NO_PARTITION) {
+          continue;
+        }
+        changesByPartition.computeIfAbsent(partition, key -> new HashMap<>()).put(event.getSerialNumber(),
+          CRLSigner.getChange(event));
+      }
+    }
+    while (events.size() == EVENT_BATCH_SIZE);
+
+    int published = 0;
+    for (Map.Entry<Integer, Map<BigInteger, RevokedCertificate>> changes : changesByPartition.entrySet()) {
+      PartitionCrl current = partitionCrls.get(changes.getKey());
+      Map<BigInteger, TBSCertList.CRLEntry> previousEntries = current == null ? Map.of() : current.getEntries();
+      CRLSigner.CRLEntries entries = CRLSigner.applyChanges(previousEntries, changes.getValue());
+      if (current != null && entries.isUnchanged(previousEntries)) {
+        // The events did not change the entries of the partition
+        continue;
+      }
+      publishPartitionCrl(changes.getKey(), entries, current, now);
+      published++;
+    }
+    eventSequence = sequence;
+    log.debug("Instance {} - published {} changed partition CRLs from revocation events", instance, published);
+  }
+
+  /**
+   * Sign new CRLs for all partitions where the complete list of revoked certificates differs from the current CRL, or
+   * where the current CRL is about to expire.
+   *
+   * @param now the issue time of the new CRLs
+   * @throws IOException error signing or storing a partition CRL
+   */
+  private void publishAllPartitionCrls(Date now) throws IOException {
+    Map<Integer, List<RevokedCertificate>> revokedByPartition = new HashMap<>();
+    for (int partition = 0; partition < partitionCount; partition++) {
+      revokedByPartition.put(partition, new ArrayList<>());
+    }
+    // Partitions that are no longer assigned keep their CRL as long as they exist
+    partitionCrls.keySet().forEach(partition -> revokedByPartition.put(partition, new ArrayList<>()));
+    Set<BigInteger> revokedSerialNumbers = new HashSet<>();
+    List<RevokedCertificate> allRevokedCertificates =
+      caRepository.getCRLRevocationDataProvider().getRevokedCertificates();
+    resolvePartitions(allRevokedCertificates.stream().map(RevokedCertificate::getCertificateSerialNumber).toList());
+    for (RevokedCertificate revokedCertificate : allRevokedCertificates) {
+      revokedSerialNumbers.add(revokedCertificate.getCertificateSerialNumber());
+      int partition = getRevokedCertificatePartition(revokedCertificate.getCertificateSerialNumber());
+      if (partition != NO_PARTITION) {
+        revokedByPartition.computeIfAbsent(partition, key -> new ArrayList<>()).add(revokedCertificate);
+      }
+    }
+    int published = 0;
+    for (Map.Entry<Integer, List<RevokedCertificate>> entry : revokedByPartition.entrySet()) {
+      PartitionCrl current = partitionCrls.get(entry.getKey());
+      Map<BigInteger, TBSCertList.CRLEntry> previousEntries = current == null ? Map.of() : current.getEntries();
+      CRLSigner.CRLEntries entries = CRLSigner.fromRevokedCertificates(previousEntries, entry.getValue());
+      if (current != null && entries.isUnchanged(previousEntries)
+        && current.getCrl().getNextUpdate().getTime() - refreshMargin.toMillis() > now.getTime()) {
+        continue;
+      }
+      publishPartitionCrl(entry.getKey(), entries, current, now);
+      published++;
+    }
+    // Certificates that are no longer revoked are not needed in the cache
+    partitionCache.keySet().retainAll(revokedSerialNumbers);
+    log.debug("Instance {} - published {} of {} partition CRLs", instance, published, revokedByPartition.size());
+  }
+
+  /**
+   * Sign and store a new partition CRL. The new CRL holds an issuing distribution point extension naming the
+   * distribution point of the partition.
+   *
+   * @param partition the partition
+   * @param entries the entries of the new CRL
+   * @param current the current CRL of the partition, or null
+   * @param now the issue time of the new CRL
+   * @throws IOException error signing or storing the CRL
+   */
+  private void publishPartitionCrl(int partition, CRLSigner.CRLEntries entries, PartitionCrl current, Date now)
+    throws IOException {
+    BigInteger crlNumber = allocateCrlNumber(partition, current);
+    ExtensionsGenerator extensionsGenerator = new ExtensionsGenerator();
+    extensionsGenerator.addExtension(Extension.issuingDistributionPoint, true, new IssuingDistributionPoint(
+      new DistributionPointName(new GeneralNames(
+        new GeneralName(GeneralName.uniformResourceIdentifier, getDistributionPointUrl(partition)))),
+      false, false));
+    X509CRLHolder crl = crlSigner.sign(entries, crlNumber, now, extensionsGenerator.generate());
+    log.trace("Instance {} - partition CRL {} reused {} of {} entries", instance, partition,
+      entries.getReusedEntries().size(), entries.size());
+    RepositoryFileUtils.writeAtomically(new File(partitionDir, partition + ".crl"), crl.getEncoded());
+    partitionCrls.put(partition, new PartitionCrl(crl, crlNumber, CRLSigner.getEntries(crl)));
+  }
+
+  private BigInteger allocateCrlNumber(int partition, PartitionCrl current) throws IOException {
+    BigInteger minimum = current == null ? BigInteger.ONE : current.getCrlNumber().add(BigInteger.ONE);
+    return caRepository instanceof DBCARepository dbcaRepository
+      ? dbcaRepository.allocatePartitionCrlNumber(partition, minimum)
+      : minimum;
+  }
+
+  /**
+   * Read the partitions of revoked certificates that are not yet known. The certificates of a database repository are
+   * read in batches with one query for each batch, instead of one query per certificate.
+   *
+   * @param serialNumbers the serial numbers of the revoked certificates
+   */
+  private void resolvePartitions(List<BigInteger> serialNumbers) {
+    if (!(caRepository instanceof DBCARepository dbcaRepository)) {
+      return;
+    }
+    List<BigInteger> unknown = serialNumbers.stream()
+      .filter(serialNumber -> !partitionCache.containsKey(serialNumber))
+      .toList();
+    for (int start = 0; start < unknown.size(); start += CERTIFICATE_BATCH_SIZE) {
+      List<BigInteger> batch = unknown.subList(start, Math.min(start + CERTIFICATE_BATCH_SIZE, unknown.size()));
+      for (byte[] encodedCertificate : dbcaRepository.getCertificates(batch)) {
+        try {
+          X509CertificateHolder certificate = new X509CertificateHolder(encodedCertificate);
+          partitionCache.put(certificate.getSerialNumber(), getPartitionFromDistributionPoints(certificate));
+        }
+        catch (IOException ex) {
+          log.warn("Instance {} - unable to parse revoked certificate: {}", instance, ex.getMessage());
+        }
+      }
+      // Certificates that were not found, or could not be parsed, have no partition
+      batch.forEach(serialNumber -> partitionCache.putIfAbsent(serialNumber, NO_PARTITION));
+    }
+  }
+
+  private int getRevokedCertificatePartition(BigInteger serialNumber) {
+    return partitionCache.computeIfAbsent(serialNumber, key -> {
+      CertificateRecord certificateRecord = caRepository.getCertificate(key);
+      if (certificateRecord == null) {
+        return NO_PARTITION;
+      }
+      try {
+        return getPartitionFromDistributionPoints(new X509CertificateHolder(certificateRecord.getCertificate()));
+      }
+      catch (IOException ex) {
+        log.warn("Instance {} - unable to parse revoked certificate {}", instance, key.toString(16));
+        return NO_PARTITION;
+      }
+    });
+  }
+
+  private int getPartitionFromDistributionPoints(X509CertificateHolder certificate) {
+    CRLDistPoint crlDistPoint = CRLDistPoint.fromExtensions(certificate.getExtensions());
+    if (crlDistPoint == null) {
+      return NO_PARTITION;
+    }
+    for (DistributionPoint distributionPoint : crlDistPoint.getDistributionPoints()) {
+      DistributionPointName name = distributionPoint.getDistributionPoint();
+      if (name == null || name.getType() != DistributionPointName.FULL_NAME) {
+        continue;
+      }
+      for (GeneralName generalName : GeneralNames.getInstance(name.getName()).getNames()) {
+        if (generalName.getTagNo() != GeneralName.uniformResourceIdentifier) {
+          continue;
+        }
+        String url = ASN1IA5String.getInstance(generalName.getName()).getString();
+        if (url.startsWith(distributionPointPrefix) && url.endsWith(".crl")) {
+          String partition = url.substring(distributionPointPrefix.length(), url.length() - 4);
+          if (partition.matches("\\d+")) {
+            return Integer.parseInt(partition);
+          }
+        }
+      }
+    }
+    return NO_PARTITION;
+  }
+
+  /**
+   * The current CRL of a partition.
+   */
+  @Value
+  private static class PartitionCrl {
+    /** The partition CRL */
+    X509CRLHolder crl;
+    /** The CRL number of the partition CRL */
+    BigInteger crlNumber;
+    /** The entries of the partition CRL by serial number */
+    Map<BigInteger, TBSCertList.CRLEntry> entries;
+  }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.crl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import se.swedenconnect.ca.headless.ca.HeadlessCAService;
+import se.swedenconnect.ca.service.base.ca.CAServices;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the partition CRLs of all instances with partitioned CRLs on a schedule of their own.
+ *
+ * <p>Partition CRLs are published independently of the complete CRL of the instance. Each run only signs the partition
+ * CRLs where the revoked certificates have changed, or that are about to expire, so the interval can be much shorter
+ * than the update interval of the complete CRL.</p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@Slf4j
+@Component
+public class PartitionedCRLPublisher {
+
+  private final ObjectProvider<CAServices> caServicesProvider;
+
+  /**
+   * Constructor.
+   *
+   * @param caServicesProvider provider of the CA services publishing the partition CRLs
+   */
+  public PartitionedCRLPublisher(ObjectProvider<CAServices> caServicesProvider) {
+    this.caServicesProvider = caServicesProvider;
+  }
+
+  /**
+   * Publish the changed partition CRLs of each instance.
+   */
+  @Scheduled(initialDelayString = "${ca-service.crl.partition-publish-interval-seconds:60}",
+    fixedDelayString = "${ca-service.crl.partition-publish-interval-seconds:60}", timeUnit = TimeUnit.SECONDS)
+  public void publishPartitionCrls() {
+    CAServices caServices = caServicesProvider.getIfAvailable();
+    if (caServices == null) {
+      return;
+    }
+    for (String instance : caServices.getCAServiceKeys()) {
+      if (caServices.getCAService(instance) instanceof HeadlessCAService headlessCAService
+        && headlessCAService.getPartitionedCRLIssuer() != null) {
+        try {
+          headlessCAService.publishPartitionCrls();
+        }
+        catch (Exception ex) {
+          log.warn("Failed to publish partition CRLs for instance {}", instance, ex);
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.db;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.PostLoad;
+import jakarta.persistence.PostPersist;
+import jakarta.persistence.Table;
+import jakarta.persistence.Transient;
+import lombok.NoArgsConstructor;
+import org.springframework.data.domain.Persistable;
+import se.swedenconnect.ca.engine.ca.repository.CertificateRecord;
+
+import java.math.BigInteger;
+import java.util.Date;
+
+/**
+ * Record of an expired certificate moved from the certificate table to the archive table
+ *
+ * The record implements {@link Persistable} so that archived records are inserted directly (and batched) instead of
+ * first being looked up by a merge operation.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@Entity
+@Table(name = "archived_certificate")
+@NoArgsConstructor
+public class DBArchivedCertificateRecord implements CertificateRecord, Persistable<String> {
+
+  @Id
+  @Column(name = "id")
+  protected String serialNumber;
+  @Column(name = "certificate", nullable = false, length = 65535)
+  protected byte[] certificate;
+  @Column(name = "issue_date")
+  protected long issueDate;
+  @Column(name = "expiry_date")
+  protected long expiryDate;
+  @Column(name = "revoked")
+  protected boolean revoked;
+  @Column(name = "reason")
+  protected Integer reason;
+  @Column(name = "revocation_time")
+  protected long revocationTime;
+  @Column(name = "instance")
+  protected String instance;
+  @Column(name = "archive_time")
+  protected long archiveTime;
+  @Transient
+  private boolean newRecord;
+
+  /**
+   * Create an archive record holding the data of a certificate record.
+   *
+   * @param certificateRecord the certificate record being archived
+   * @param archiveTime the time of archiving
+   */
+  public DBArchivedCertificateRecord(DBCertificateRecord certificateRecord, Date archiveTime) {
+    this.serialNumber = certificateRecord.serialNumber;
+    this.certificate = certificateRecord.certificate;
+    this.issueDate = certificateRecord.issueDate;
+    this.expiryDate = certificateRecord.expiryDate;
+    this.revoked = certificateRecord.revoked;
+    this.reason = certificateRecord.reason;
+    this.revocationTime = certificateRecord.revocationTime;
+    this.instance = certificateRecord.instance;
+    this.archiveTime = archiveTime.getTime();
+    this.newRecord = true;
+  }
+
+  @Override public String getId() {
+    return this.serialNumber;
+  }
+
+  @Override public boolean isNew() {
+    return this.newRecord;
+  }
+
+  @PostLoad
+  @PostPersist
+  void markNotNew() {
+    this.newRecord = false;
+  }
+
+  public byte[] getCertificate() {
+    return this.certificate;
+  }
+
+  public BigInteger getSerialNumber() {
+    return this.serialNumber == null ? null : new BigInteger("0" + this.serialNumber, 16);
+  }
+
+  public Date getIssueDate() {
+    return this.getDateOrNull(this.issueDate);
+  }
+
+  public Date getExpiryDate() {
+    return this.getDateOrNull(this.expiryDate);
+  }
+
+  public boolean isRevoked() {
+    return this.revoked;
+  }
+
+  public Integer getReason() {
+    return this.reason;
+  }
+
+  public Date getRevocationTime() {
+    return this.getDateOrNull(this.revocationTime);
+  }
+
+  public String getInstance() {
+    return this.instance;
+  }
+
+  public Date getArchiveTime() {
+    return this.getDateOrNull(this.archiveTime);
+  }
+
+  private Date getDateOrNull(long longTime) {
+    return longTime < 0L ? null : new Date(longTime);
+  }
+}
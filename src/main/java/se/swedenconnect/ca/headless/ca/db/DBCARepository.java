@@ -17,25 +17,26 @@
 package se.swedenconnect.ca.headless.ca.db;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
 import java.math.BigInteger;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
 
-import org.apache.commons.io.FileUtils;
 import org.bouncycastle.asn1.x509.CRLNumber;
 import org.bouncycastle.asn1.x509.CRLReason;
 import org.bouncycastle.asn1.x509.Extension;
 import org.bouncycastle.cert.X509CRLHolder;
 import org.bouncycastle.cert.X509CertificateHolder;
-import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Pageable;
-import org.springframework.data.domain.Sort;
+import org.springframework.data.domain.Slice;
 
 import lombok.Getter;
 import lombok.Setter;
@@ -47,6 +48,8 @@ import se.swedenconnect.ca.engine.revocation.CertificateRevocationException;
 import se.swedenconnect.ca.engine.revocation.crl.CRLMetadata;
 import se.swedenconnect.ca.engine.revocation.crl.CRLRevocationDataProvider;
 import se.swedenconnect.ca.engine.revocation.crl.RevokedCertificate;
+import se.swedenconnect.ca.headless.ca.RepositoryFileUtils;
+import se.swedenconnect.ca.headless.metrics.InstanceMetrics;
 
 /**
  * Test implementation of a CA repository
@@ -63,6 +66,14 @@ public class DBCARepository implements CARepository, CRLRevocationDataProvider {
   private final DBCRLMetadataRepository dbcrlMetadataRepository;
   private boolean criticalError = false;
   @Setter private int pageSize = 100;
+  private final DBCertificateCounters certificateCounters = new DBCertificateCounters();
+  private volatile boolean certificateCountersReconciled = false;
+  /** Timers of the repository operations of this instance. Default records no metrics */
+  @Setter private InstanceMetrics metrics;
+  /** Moves removed expired certificates to the archive table. Default deletes them */
+  @Setter private DBCertificateArchiver archiver;
+  /** Stores revocation status changes together with a revocation event. Default stores no events */
+  @Setter private DBRevocationStatusStore revocationStatusStore;
 
   public DBCARepository(File crlFile, DBJPARepository dbRepository, String instance,
     DBCRLMetadataRepository dbcrlMetadataRepository) throws IOException {
@@ -70,6 +81,7 @@ public class DBCARepository implements CARepository, CRLRevocationDataProvider {
     this.dbRepository = dbRepository;
     this.instance = instance;
     this.dbcrlMetadataRepository = dbcrlMetadataRepository;
+    this.metrics = InstanceMetrics.noop(instance);
     // Load current certs to memory
     log.info("Database based CA repository initialized");
     if (!crlFile.exists()) {
@@ -90,47 +102,68 @@ public class DBCARepository implements CARepository, CRLRevocationDataProvider {
 
   @Override public List<BigInteger> getAllCertificates() {
     List<BigInteger> certificateSerialNumberList = new ArrayList<>();
-    int page = 0;
-    while (true) {
-      Page<DBCertificateRecord> records = dbRepository.findByInstance(instance, PageRequest.of(page++, pageSize));
-      if (records.hasContent()) {
-        records.stream()
-          .forEach(dbCertificateRecord -> certificateSerialNumberList.add(dbCertificateRecord.getSerialNumber()));
-      }
-      else {
-        break;
-      }
-    }
+    forEachCertificate(DBCertificateRangeQuery.builder().instance(instance).sortBy(SortBy.serialNumber).build(),
+      dbCertificateRecord -> certificateSerialNumberList.add(dbCertificateRecord.getSerialNumber()));
     return certificateSerialNumberList;
   }
 
+  /**
+   * Get a certificate record. A certificate that has been moved to the archive table is returned from the archive
+   * table, so that the status of archived certificates can still be looked up.
+   *
+   * @param bigInteger the serial number of the certificate
+   * @return the certificate record, or null if the certificate is not found
+   */
   @Override public CertificateRecord getCertificate(BigInteger bigInteger) {
+    return metrics.record(InstanceMetrics.REPOSITORY, () -> {
+      CertificateRecord certificateRecord = internalGetCertificate(bigInteger);
+      return certificateRecord != null ? certificateRecord : getArchivedCertificate(bigInteger);
+    }, "operation", InstanceMetrics.OPERATION_GET);
+  }
+
+  private CertificateRecord internalGetCertificate(BigInteger bigInteger) {
     List<DBCertificateRecord> records = dbRepository.findByInstanceAndSerialNumber(instance, bigInteger.toString(16));
     return !records.isEmpty() ? records.get(0) : null;
   }
 
   @Override public synchronized void addCertificate(X509CertificateHolder certificate) throws IOException {
+    metrics.record(InstanceMetrics.REPOSITORY, () -> {
+      internalAddCertificate(certificate);
+      return null;
+    }, "operation", InstanceMetrics.OPERATION_ADD);
+  }
+
+  private void internalAddCertificate(X509CertificateHolder certificate) throws IOException {
     if (criticalError) {
       throw new IOException(
         "This repository encountered a critical error and is not operational - unable to store certificates");
     }
     if (certificate != null) {
-      CertificateRecord record = getCertificate(certificate.getSerialNumber());
+      CertificateRecord record = internalGetCertificate(certificate.getSerialNumber());
       if (record != null) {
         throw new IOException("This certificate already exists in the certificate repository");
       }
       dbRepository.save(new DBCertificateRecord(certificate.getEncoded(), certificate.getSerialNumber(),
         certificate.getNotBefore(), certificate.getNotAfter(), false, null, null, instance));
+      certificateCounters.certificateAdded();
     }
   }
 
   @Override public void revokeCertificate(BigInteger serialNumber, int reason, Date revocationTime)
     throws CertificateRevocationException {
+    metrics.record(InstanceMetrics.REPOSITORY, () -> {
+      internalRevokeCertificate(serialNumber, reason, revocationTime);
+      return null;
+    }, "operation", InstanceMetrics.OPERATION_REVOKE);
+  }
+
+  private void internalRevokeCertificate(BigInteger serialNumber, int reason, Date revocationTime)
+    throws CertificateRevocationException {
 
     if (serialNumber == null) {
       throw new CertificateRevocationException("Null Serial number");
     }
-    DBCertificateRecord certificateRecord = (DBCertificateRecord) getCertificate(serialNumber);
+    DBCertificateRecord certificateRecord = (DBCertificateRecord) internalGetCertificate(serialNumber);
     if (certificateRecord == null) {
       throw new CertificateRevocationException("No such certificate (" + serialNumber.toString(16) + ")");
     }
@@ -147,7 +180,8 @@ public class DBCARepository implements CARepository, CRLRevocationDataProvider {
           certificateRecord.setReason(null);
           certificateRecord.setRevocationTime(null);
           // Save revoked certificate
-          dbRepository.save(certificateRecord);
+          updateRevocationStatus(certificateRecord, true, CRLReason.certificateHold);
+          certificateCounters.revocationChanged(true, CRLReason.certificateHold, false, null);
           return;
         }
         // This was not a request to remove the revocation, but to permanently revoke.
@@ -156,7 +190,8 @@ public class DBCARepository implements CARepository, CRLRevocationDataProvider {
         certificateRecord.setReason(reason);
         certificateRecord.setRevocationTime(revocationTime);
         // Save revoked certificate
-        dbRepository.save(certificateRecord);
+        updateRevocationStatus(certificateRecord, true, CRLReason.certificateHold);
+        certificateCounters.revocationChanged(true, CRLReason.certificateHold, true, reason);
         return;
       }
       else {
@@ -181,9 +216,213 @@ public class DBCARepository implements CARepository, CRLRevocationDataProvider {
     certificateRecord.setReason(reason);
     certificateRecord.setRevocationTime(revocationTime);
     // Save revoked certificate
+    updateRevocationStatus(certificateRecord, false, null);
+    certificateCounters.revocationChanged(false, null, true, reason);
+  }
+
+  /**
+   * Store the new revocation status of a certificate record, provided that the stored revocation status is still the
+   * status that the change was based on. This only updates the revocation status columns, and prevents that concurrent
+   * revocation requests for the same certificate, possibly on different nodes, overwrite each other.
+   *
+   * @param certificateRecord the certificate record holding the new revocation status
+   * @param expectedRevoked the revoked status the change was based on
+   * @param expectedReason the reason code the change was based on
+   * @throws CertificateRevocationException if the revocation status was changed by a concurrent request
+   */
+  private void updateRevocationStatus(DBCertificateRecord certificateRecord, boolean expectedRevoked,
+    Integer expectedReason) throws CertificateRevocationException {
+    boolean updated = revocationStatusStore != null
+      ? revocationStatusStore.updateRevocationStatus(certificateRecord, expectedRevoked, expectedReason)
+      : dbRepository.compareAndSetRevocationStatus(certificateRecord, expectedRevoked, expectedReason);
+    if (!updated) {
+      log.info("Revocation status of certificate {} was changed by a concurrent request",
+        certificateRecord.serialNumber);
+      throw new CertificateRevocationException("Revocation request denied since the revocation status of certificate ("
+        + certificateRecord.serialNumber + ") was changed by a concurrent request");
+    }
+  }
+
+  private void saveRevocationStatus(DBCertificateRecord certificateRecord) {
+    if (revocationStatusStore != null) {
+      revocationStatusStore.saveRevocationStatus(certificateRecord);
+      return;
+    }
     dbRepository.save(certificateRecord);
   }
 
+  /**
+   * Get the changes of the revocation status of the certificates of this instance that follow a sequence number.
+   *
+   * @param sequence the sequence number of the last processed change, or 0 to get the first changes
+   * @param maxCount the maximum number of changes to return
+   * @return the changes following the sequence number in the order they were made, up to the first change that is
+   *   younger than the settle time, or an empty list if revocation events are not stored
+   */
+  public List<DBRevocationEventRecord> getRevocationEventsSince(long sequence, int maxCount) {
+    return revocationStatusStore == null
+      ? List.of()
+      : revocationStatusStore.getEventsSince(instance, sequence, maxCount);
+  }
+
+  /**
+   * Get all changes of the revocation status of the certificates of this instance that follow a sequence number,
+   * including changes that are younger than the settle time. A change with a lower sequence number than the returned
+   * changes may still be committed after this call.
+   *
+   * @param sequence the sequence number of the last processed change, or 0 to get the first changes
+   * @param maxCount the maximum number of changes to return
+   * @return the changes following the sequence number in sequence order, or an empty list if revocation events are not
+   *   stored
+   */
+  public List<DBRevocationEventRecord> getAllRevocationEventsSince(long sequence, int maxCount) {
+    return revocationStatusStore == null
+      ? List.of()
+      : revocationStatusStore.getAllEventsSince(instance, sequence, maxCount);
+  }
+
+  /**
+   * Get the oldest retained sequence number of the revocation events. A consumer whose last processed sequence number
+   * is lower than this number minus one may have missed events that were deleted by retention.
+   *
+   * @return the oldest retained sequence number, or 0 if no events are stored
+   */
+  public long getOldestRetainedRevocationEventSequence() {
+    return revocationStatusStore == null ? 0L : revocationStatusStore.getOldestRetainedSequence();
+  }
+
+  /**
+   * Get the sequence number of the last settled revocation event. A consumer that reads the current revocation status
+   * from the certificate table after this call can follow the changes with the events after this number.
+   *
+   * @return the sequence number of the last settled revocation event, or -1 if revocation events are not stored
+   */
+  public long getSettledRevocationEventSequence() {
+    return revocationStatusStore == null ? -1L : revocationStatusStore.getSettledSequence();
+  }
+
+  /**
+   * Revoke a chunk of certificates. Certificates that are not revoked are revoked with one statement, and certificates
+   * on hold are permanently revoked with one statement, unless the new reason is certificate hold. Only the revocation
+   * status columns are updated. Certificates that are unknown or already permanently revoked are left unchanged.
+   *
+   * @param serialNumbers the serial numbers of the certificates to revoke
+   * @param reason the revocation reason
+   * @param revocationTime the revocation time
+   * @return the revoked certificates
+   * @throws CertificateRevocationException error revoking the certificates
+   */
+  public DBRevokedCertificates revokeCertificates(List<BigInteger> serialNumbers, int reason, Date revocationTime)
+    throws CertificateRevocationException {
+    return metrics.record(InstanceMetrics.REPOSITORY,
+      () -> internalRevokeCertificates(serialNumbers, reason, revocationTime),
+      "operation", InstanceMetrics.OPERATION_BULK_REVOKE);
+  }
+
+  private DBRevokedCertificates internalRevokeCertificates(List<BigInteger> serialNumbers, int reason,
+    Date revocationTime) throws CertificateRevocationException {
+    if (reason == CRLReason.removeFromCRL || reason < 0 || reason > CRLReason.aACompromise) {
+      throw new CertificateRevocationException("Illegal reason code");
+    }
+    if (revocationTime == null) {
+      throw new CertificateRevocationException("Null revocation time");
+    }
+    List<String> chunk = serialNumbers.stream().map(serialNumber -> serialNumber.toString(16)).toList();
+    DBRevokedCertificates revokedCertificates = revokeChunk(chunk, reason, revocationTime.getTime());
+    if (revokedCertificates.isComplete()) {
+      revokedCertificates.getRevoked()
+        .forEach(serialNumber -> certificateCounters.revocationChanged(false, null, true, reason));
+      revokedCertificates.getRevokedFromHold()
+        .forEach(serialNumber -> certificateCounters.revocationChanged(true, CRLReason.certificateHold, true, reason));
+    }
+    else {
+      // Some certificates were changed by another node. Count the certificates again on next use
+      certificateCountersReconciled = false;
+    }
+    return revokedCertificates;
+  }
+
+  private DBRevokedCertificates revokeChunk(List<String> serialNumbers, int reason, long revocationTime)
+    throws CertificateRevocationException {
+    if (revocationStatusStore == null) {
+      return dbRepository.revokeCertificatesIn(instance, serialNumbers, reason, revocationTime);
+    }
+    // A conflict rolls back the chunk. Try again, as the conflicting certificates are excluded on the next attempt
+    for (int attempt = 1; ; attempt++) {
+      try {
+        return revocationStatusStore.revokeCertificates(instance, serialNumbers, reason, revocationTime);
+      }
+      catch (CertificateRevocationException ex) {
+        if (attempt >= 3) {
+          throw ex;
+        }
+        log.debug("Concurrent revocation while revoking a chunk of certificates - retrying");
+      }
+    }
+  }
+
+  /**
+   * Process all certificates of this instance that are not revoked or are on hold, and that were issued within a time
+   * range, in issue date order.
+   *
+   * @param issuedFrom the lowest issue date (inclusive), or null for no lower limit
+   * @param issuedBefore the end of the issue date range (exclusive), or null for no upper limit
+   * @param consumer the consumer processing the certificate records
+   */
+  public void forEachRevocableCertificate(Date issuedFrom, Date issuedBefore, Consumer<CertificateRecord> consumer) {
+    forEachCertificate(DBCertificateRangeQuery.builder()
+      .instance(instance)
+      .revoked(false)
+      .includeOnHold(true)
+      .issuedFrom(issuedFrom == null ? null : issuedFrom.getTime())
+      .issuedBefore(issuedBefore == null ? null : issuedBefore.getTime())
+      .sortBy(SortBy.issueDate)
+      .build(), consumer::accept);
+  }
+
+  /**
+   * Store a complete certificate record, including its revocation status, replacing any existing record of the same
+   * certificate. Used when copying records from another repository.
+   *
+   * @param certificateRecord the certificate record to store
+   */
+  public synchronized void saveCertificateRecord(CertificateRecord certificateRecord) {
+    DBCertificateRecord existingRecord = (DBCertificateRecord) internalGetCertificate(
+      certificateRecord.getSerialNumber());
+    if (existingRecord == null) {
+      DBCertificateRecord newRecord = new DBCertificateRecord(certificateRecord.getCertificate(),
+        certificateRecord.getSerialNumber(), certificateRecord.getIssueDate(), certificateRecord.getExpiryDate(),
+        certificateRecord.isRevoked(), certificateRecord.getReason(), certificateRecord.getRevocationTime(), instance);
+      if (newRecord.isRevoked()) {
+        saveRevocationStatus(newRecord);
+      }
+      else {
+        dbRepository.save(newRecord);
+      }
+      certificateCounters.certificateAdded();
+      certificateCounters.revocationChanged(false, null, certificateRecord.isRevoked(), certificateRecord.getReason());
+      return;
+    }
+    boolean wasRevoked = existingRecord.isRevoked();
+    Integer oldReason = existingRecord.getReason();
+    existingRecord.setCertificate(certificateRecord.getCertificate());
+    existingRecord.setIssueDate(certificateRecord.getIssueDate());
+    existingRecord.setExpiryDate(certificateRecord.getExpiryDate());
+    existingRecord.setRevoked(certificateRecord.isRevoked());
+    existingRecord.setReason(certificateRecord.getReason());
+    long oldRevocationTime = existingRecord.revocationTime;
+    existingRecord.setRevocationTime(certificateRecord.getRevocationTime());
+    if (wasRevoked != existingRecord.isRevoked() || !Objects.equals(oldReason, existingRecord.getReason())
+      || oldRevocationTime != existingRecord.revocationTime) {
+      saveRevocationStatus(existingRecord);
+    }
+    else {
+      dbRepository.save(existingRecord);
+    }
+    certificateCounters.revocationChanged(wasRevoked, oldReason, certificateRecord.isRevoked(),
+      certificateRecord.getReason());
+  }
+
   @Override public CRLRevocationDataProvider getCRLRevocationDataProvider() {
     return this;
   }
@@ -195,9 +434,38 @@ public class DBCARepository implements CARepository, CRLRevocationDataProvider {
    * @return number of certificates
    */
   @Override public int getCertificateCount(boolean notRevoked) {
-    return notRevoked
-      ? dbRepository.countByInstanceAndRevoked(instance, false)
-      : dbRepository.countByInstance(instance);
+    DBCertificateCounters counters = getCertificateCounters();
+    return (int) (notRevoked ? counters.getNotRevoked() : counters.getTotal());
+  }
+
+  /**
+   * Get the cached certificate counters of this instance. The counters are counted in the database on first use, and
+   * are then maintained as certificates are added, revoked and removed.
+   *
+   * @return certificate counters
+   */
+  public DBCertificateCounters getCertificateCounters() {
+    if (!certificateCountersReconciled) {
+      reconcileCertificateCounters();
+    }
+    return certificateCounters;
+  }
+
+  /**
+   * Reset the cached certificate counters of this instance to the number of certificates counted in the database. This
+   * corrects any drift caused by updates made outside of this repository, such as by other service nodes sharing the
+   * same database.
+   */
+  public synchronized void reconcileCertificateCounters() {
+    long startTime = System.currentTimeMillis();
+    certificateCounters.reset(
+      dbRepository.countByInstance(instance),
+      dbRepository.countByInstanceAndRevoked(instance, true),
+      dbRepository.countByInstanceAndRevokedAndReason(instance, true, CRLReason.certificateHold),
+      dbRepository.countByInstanceAndExpiryDateLessThan(instance, System.currentTimeMillis()));
+    certificateCountersReconciled = true;
+    log.debug("Reconciled certificate counters for instance {} in {} ms", instance,
+      System.currentTimeMillis() - startTime);
   }
 
   /**
@@ -214,45 +482,63 @@ public class DBCARepository implements CARepository, CRLRevocationDataProvider {
     SortBy sortBy,
     boolean descending) {
 
-    Pageable pageable = PageRequest.of(page, pageSize);
+    Slice<DBCertificateRecord> records = dbRepository.findCertificateRange(DBCertificateRangeQuery.builder()
+      .instance(instance)
+      .revoked(notRevoked ? false : null)
+      .sortBy(sortBy)
+      .descending(descending)
+      .page(page)
+      .pageSize(pageSize)
+      .build());
+    return new ArrayList<>(records.getContent());
+  }
 
-    Page<DBCertificateRecord> records;
-    if (notRevoked) {
-      if (descending) {
-        records = sortBy == SortBy.serialNumber
-          ? dbRepository.findByInstanceAndRevokedOrderBySerialNumberDesc(instance, false, pageable)
-          : dbRepository.findByInstanceAndRevokedOrderByIssueDateDesc(instance, false, pageable);
-      }
-      else {
-        // Ascending
-        records = sortBy == SortBy.serialNumber
-          ? dbRepository.findByInstanceAndRevokedOrderBySerialNumberAsc(instance, false, pageable)
-          : dbRepository.findByInstanceAndRevokedOrderByIssueDateAsc(instance, false, pageable);
-      }
-    }
-    else {
-      // All certificates including revoked
-      if (descending) {
-        records = sortBy == SortBy.serialNumber
-          ? dbRepository.findByInstanceOrderBySerialNumberDesc(instance, pageable)
-          : dbRepository.findByInstanceOrderByIssueDateDesc(instance, pageable);
-      }
-      else {
-        // Ascending
-        records = sortBy == SortBy.serialNumber
-          ? dbRepository.findByInstanceOrderBySerialNumberAsc(instance, pageable)
-          : dbRepository.findByInstanceOrderByIssueDateAsc(instance, pageable);
-      }
+  /**
+   * Get the range of certificates that follows a certificate in the selected sort order. Unlike
+   * {@link #getCertificateRange(int, int, boolean, SortBy, boolean)}, the cost of this lookup does not depend on how
+   * far into the repository the range is located.
+   *
+   * @param after the last certificate of the previous range, or null to get the first range
+   * @param pageSize the maximum number of certificates to return
+   * @param notRevoked true if the range holds only not revoked certificates
+   * @param sortBy set to define sorting preferences or null to sort by issue date
+   * @param descending set to true to select descending order
+   * @return slice of certificates following the provided certificate
+   */
+  public Slice<CertificateRecord> getCertificateRangeAfter(CertificateRecord after, int pageSize, boolean notRevoked,
+    SortBy sortBy, boolean descending) {
+
+    DBCertificateRangeQuery query = DBCertificateRangeQuery.builder()
+      .instance(instance)
+      .revoked(notRevoked ? false : null)
+      .sortBy(sortBy)
+      .descending(descending)
+      .pageSize(pageSize)
+      .build();
+    if (after != null) {
+      query.setAfterSerialNumber(after.getSerialNumber().toString(16));
+      query.setAfterIssueDate(after.getIssueDate() == null ? -1L : after.getIssueDate().getTime());
     }
-
-    return records.get().collect(Collectors.toList());
+    return dbRepository.findCertificateRange(query).map(CertificateRecord.class::cast);
   }
 
-  private Sort getSort(SortBy sortBy, boolean descending) {
-    String columnName = sortBy == SortBy.serialNumber ? "id" : "issue_date";
-    return descending
-      ? Sort.by(columnName).descending()
-      : Sort.by(columnName).ascending();
+  /**
+   * Process all certificates selected by a range query, one range at a time, where each range is located by seeking
+   * past the last certificate of the previous range.
+   *
+   * @param query the range query selecting the certificates to process
+   * @param consumer the consumer of each selected certificate record
+   */
+  private void forEachCertificate(DBCertificateRangeQuery query, Consumer<DBCertificateRecord> consumer) {
+    query.setPageSize(pageSize);
+    while (true) {
+      Slice<DBCertificateRecord> records = dbRepository.findCertificateRange(query);
+      records.forEach(consumer);
+      if (!records.hasNext() || !records.hasContent()) {
+        break;
+      }
+      query.seekAfter(records.getContent().get(records.getNumberOfElements() - 1));
+    }
   }
 
   /**
@@ -262,55 +548,157 @@ public class DBCARepository implements CARepository, CRLRevocationDataProvider {
    * @return list of the serial numbers of the certificates that were removed from the repository
    */
   @Override public List<BigInteger> removeExpiredCerts(int gracePeriodSeconds) throws IOException {
-    final List<BigInteger> expiredCertificates = getExpiredCertificates(gracePeriodSeconds);
+    final List<DBExpiredCertificate> expiredCertificates = getExpiredCertificateRecords(gracePeriodSeconds);
     List<BigInteger> actuallyDeleted = new ArrayList<>();
-    for (BigInteger expiredCertSerial : expiredCertificates) {
-      if (dbRepository.deleteByInstanceAndSerialNumber(instance, expiredCertSerial.toString(16)) > 0) {
-        actuallyDeleted.add(expiredCertSerial);
+    if (archiver != null) {
+      for (int batchStart = 0; batchStart < expiredCertificates.size(); batchStart += pageSize) {
+        archiveCertificates(expiredCertificates.subList(batchStart,
+            Math.min(batchStart + pageSize, expiredCertificates.size())).stream()
+          .map(DBExpiredCertificate::getSerialNumber)
+          .toList())
+          .forEach(certificateRecord -> actuallyDeleted.add(certificateRecord.getSerialNumber()));
+      }
+      return actuallyDeleted;
+    }
+    for (DBExpiredCertificate expiredCert : expiredCertificates) {
+      if (dbRepository.deleteByInstanceAndSerialNumber(instance, expiredCert.getSerialNumber()) > 0) {
+        actuallyDeleted.add(expiredCert.getSerialNumberValue());
+        certificateCounters.expiredCertificateRemoved(expiredCert);
       }
     }
     return actuallyDeleted;
   }
 
+  /**
+   * Remove a batch of certificates with expiry dates in a range, starting with the certificate that expired first.
+   * Only the records within the range are touched, which keeps the work of each batch within a small part of the
+   * expiry date index. The certificates are moved to the archive table if an archiver is set.
+   *
+   * @param fromExpiryDate the lowest expiry date of the range in milliseconds since epoch (inclusive)
+   * @param toExpiryDate the end of the range in milliseconds since epoch (exclusive)
+   * @param maxCount the maximum number of certificates to remove
+   * @return the number of certificates found in the range and removed, where a value less than maxCount means that
+   *   the range is exhausted
+   */
+  public int removeExpiredCertificates(long fromExpiryDate, long toExpiryDate, int maxCount) {
+    List<DBExpiredCertificate> expiredCertificates = dbRepository.findByExpiryDateRange(instance, fromExpiryDate,
+      toExpiryDate, PageRequest.of(0, maxCount));
+    if (expiredCertificates.isEmpty()) {
+      return 0;
+    }
+    removeCertificates(expiredCertificates);
+    return expiredCertificates.size();
+  }
+
+  /**
+   * Remove a batch of certificates from the certificate table, moving them to the archive table if an archiver is set.
+   *
+   * @param expiredCertificates the certificates to remove
+   */
+  private void removeCertificates(List<DBExpiredCertificate> expiredCertificates) {
+    List<String> serialNumbers = expiredCertificates.stream().map(DBExpiredCertificate::getSerialNumber).toList();
+    if (archiver != null) {
+      archiveCertificates(serialNumbers);
+      return;
+    }
+    int removed = dbRepository.deleteByInstanceAndSerialNumberIn(instance, serialNumbers);
+    if (removed == expiredCertificates.size()) {
+      expiredCertificates.forEach(certificateCounters::expiredCertificateRemoved);
+    }
+    else {
+      // Some records were removed by another node. Count the certificates again on next use
+      certificateCountersReconciled = false;
+    }
+  }
+
+  /**
+   * Move a batch of certificates from the certificate table to the archive table.
+   *
+   * @param serialNumbers the serial numbers of the certificates to archive as stored hex strings
+   * @return the records that were moved, which excludes records already removed by another node
+   */
+  private List<DBCertificateRecord> archiveCertificates(List<String> serialNumbers) {
+    List<DBCertificateRecord> archived = archiver.archive(instance, serialNumbers);
+    archived.forEach(certificateCounters::expiredCertificateRemoved);
+    if (archived.size() != serialNumbers.size()) {
+      // Some records were removed by another node. Count the certificates again on next use
+      certificateCountersReconciled = false;
+    }
+    return archived;
+  }
+
+  /**
+   * Get a certificate that has been moved to the archive table.
+   *
+   * @param serialNumber the serial number of the certificate
+   * @return the archived certificate record, or null if the certificate is not archived or archiving is not enabled
+   */
+  public CertificateRecord getArchivedCertificate(BigInteger serialNumber) {
+    return archiver == null ? null : archiver.getArchivedCertificate(instance, serialNumber.toString(16));
+  }
+
+  /**
+   * Get the lowest expiry date of the certificates of this instance.
+   *
+   * @return the lowest expiry date in milliseconds since epoch, or null if the repository is empty
+   */
+  public Long getMinExpiryDate() {
+    return dbRepository.findMinExpiryDate(instance);
+  }
+
+  /**
+   * Count the certificates that expired before a point in time.
+   *
+   * @param maxExpiryDate the time in milliseconds since epoch
+   * @return the number of certificates with an expiry date before this time
+   */
+  public int countExpiredCertificates(long maxExpiryDate) {
+    return dbRepository.countByInstanceAndExpiryDateLessThan(instance, maxExpiryDate);
+  }
+
   public List<BigInteger> getExpiredCertificates(int gracePeriodSeconds) throws IOException {
     List<BigInteger> expiredCertificates = new ArrayList<>();
-    int page = 0;
-    long maxExpiryDate = System.currentTimeMillis() - (gracePeriodSeconds * 1000L);
+    getExpiredCertificateRecords(gracePeriodSeconds)
+      .forEach(expiredCertificate -> expiredCertificates.add(expiredCertificate.getSerialNumberValue()));
+    return expiredCertificates;
+  }
 
+  /**
+   * Get the serial numbers and revocation status of the expired certificates, without reading the certificates. The
+   * certificates are read one range at a time, where each range is located by seeking past the last serial number of
+   * the previous range.
+   *
+   * @param gracePeriodSeconds number of seconds a certificate can be expired without being included
+   * @return the expired certificates in serial number order
+   */
+  private List<DBExpiredCertificate> getExpiredCertificateRecords(int gracePeriodSeconds) {
+    List<DBExpiredCertificate> expiredCertificates = new ArrayList<>();
+    long maxExpiryDate = System.currentTimeMillis() - (gracePeriodSeconds * 1000L);
+    String afterSerialNumber = "";
     while (true) {
-      Page<DBCertificateRecord> records = dbRepository.findByInstanceAndExpiryDateLessThan(instance, maxExpiryDate,
-        PageRequest.of(page++, pageSize));
-      if (records.hasContent()) {
-        records.stream().forEach(certificateRecord -> expiredCertificates.add(certificateRecord.getSerialNumber()));
-      }
-      else {
-        break;
+      List<DBExpiredCertificate> range = dbRepository.findExpiredCertificates(instance, maxExpiryDate,
+        afterSerialNumber, PageRequest.of(0, pageSize));
+      expiredCertificates.addAll(range);
+      if (range.size() < pageSize) {
+        return expiredCertificates;
       }
+      afterSerialNumber = range.get(range.size() - 1).getSerialNumber();
     }
-    return expiredCertificates;
   }
 
   @Override public List<RevokedCertificate> getRevokedCertificates() {
 
     List<RevokedCertificate> revokedCertificates = new ArrayList<>();
-    int page = 0;
-
-    while (true) {
-      Page<DBCertificateRecord> records = dbRepository.findByInstanceAndRevoked(instance, true,
-        PageRequest.of(page++, pageSize));
-      if (records.hasContent()) {
-        records.stream().forEach(certificateRecord -> {
-          revokedCertificates.add(new RevokedCertificate(
-            certificateRecord.getSerialNumber(),
-            certificateRecord.getRevocationTime(),
-            certificateRecord.getReason()
-          ));
-        });
-      }
-      else {
-        break;
-      }
-    }
+    forEachCertificate(DBCertificateRangeQuery.builder()
+        .instance(instance)
+        .revoked(true)
+        .sortBy(SortBy.serialNumber)
+        .build(),
+      certificateRecord -> revokedCertificates.add(new RevokedCertificate(
+        certificateRecord.getSerialNumber(),
+        certificateRecord.getRevocationTime(),
+        certificateRecord.getReason()
+      )));
     return revokedCertificates;
   }
 
@@ -318,7 +706,72 @@ public class DBCARepository implements CARepository, CRLRevocationDataProvider {
     return getCurrentCRLMetadata().getCrlNumber().add(BigInteger.ONE);
   }
 
+  /**
+   * Count the revoked certificates of this instance in the database. Unlike {@link #getCertificateCount(boolean)}, this
+   * does not use the cached certificate counters, and includes changes made by other nodes.
+   *
+   * @return the number of revoked certificates
+   */
+  public int countRevokedCertificates() {
+    return dbRepository.countByInstanceAndRevoked(instance, true);
+  }
+
+  /**
+   * Get the certificates of a list of serial numbers with one query. Unknown serial numbers are ignored.
+   *
+   * @param serialNumbers the serial numbers
+   * @return the encoded certificates that were found
+   */
+  public List<byte[]> getCertificates(List<BigInteger> serialNumbers) {
+    return serialNumbers.isEmpty()
+      ? List.of()
+      : dbRepository.findCertificatesBySerialNumberIn(instance,
+        serialNumbers.stream().map(serialNumber -> serialNumber.toString(16)).toList());
+  }
+
+  /**
+   * Get the certificate records of a list of serial numbers with one query. Unknown serial numbers, and certificates
+   * that have been moved to the archive table, are not included.
+   *
+   * @param serialNumbers the serial numbers
+   * @return the certificate records that were found by serial number
+   */
+  public Map<BigInteger, CertificateRecord> getCertificateRecords(List<BigInteger> serialNumbers) {
+    Map<BigInteger, CertificateRecord> certificateRecords = new HashMap<>();
+    if (!serialNumbers.isEmpty()) {
+      dbRepository.findByInstanceAndSerialNumberIn(instance,
+          serialNumbers.stream().map(serialNumber -> serialNumber.toString(16)).toList())
+        .forEach(certificateRecord -> certificateRecords.put(certificateRecord.getSerialNumber(), certificateRecord));
+    }
+    return certificateRecords;
+  }
+
+  /**
+   * Allocate the number of a new CRL of a partition. Partition CRL numbers are stored in the CRL metadata table, so that
+   * nodes sharing the database never issue two partition CRLs with the same number.
+   *
+   * @param partition the partition
+   * @param minimum the lowest number to allocate
+   * @return the CRL number of the new partition CRL
+   * @throws IOException if no CRL number could be allocated
+   */
+  public BigInteger allocatePartitionCrlNumber(int partition, BigInteger minimum) throws IOException {
+    try {
+      return dbcrlMetadataRepository.allocateCrlNumber(instance + "/" + partition, minimum);
+    }
+    catch (DBCrlException | RuntimeException ex) {
+      throw new IOException("Unable to allocate partition CRL number for partition " + partition, ex);
+    }
+  }
+
   @Override public void publishNewCrl(X509CRLHolder crl) {
+    metrics.record(InstanceMetrics.CRL_PUBLISH, () -> {
+      internalPublishNewCrl(crl);
+      return null;
+    });
+  }
+
+  private void internalPublishNewCrl(X509CRLHolder crl) {
     // Check if new CRL has updated the CRL metadata
     CRLMetadata currentCRLMetadata = getCurrentCRLMetadata();
 
@@ -335,7 +788,7 @@ public class DBCARepository implements CARepository, CRLRevocationDataProvider {
         dbcrlMetadataRepository.storeCrlMetadata(crlMetadata, instance);
       }
 
-      FileUtils.writeByteArrayToFile(crlFile, crl.getEncoded());
+      RepositoryFileUtils.writeAtomically(crlFile, crl.getEncoded());
     }
     catch (IOException e) {
       throw new RuntimeException("Critical error attempting to store CRL file", e);
@@ -348,8 +801,8 @@ public class DBCARepository implements CARepository, CRLRevocationDataProvider {
       If metadata indicates that this CRL is not up-to-date, we
       will return null, in order to force a new update
      */
-    try {
-      return new X509CRLHolder(new FileInputStream(crlFile));
+    try (InputStream crlStream = Files.newInputStream(crlFile.toPath())) {
+      return new X509CRLHolder(crlStream);
     }
     catch (Exception e) {
       log.debug("No current CRL is available. Returning null");
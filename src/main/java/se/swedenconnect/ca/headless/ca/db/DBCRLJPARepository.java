@@ -17,6 +17,10 @@
 package se.swedenconnect.ca.headless.ca.db;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 
 /**
  * JPA repository for CRL Metadata
@@ -26,4 +30,13 @@ import org.springframework.data.jpa.repository.JpaRepository;
  */
 public interface DBCRLJPARepository extends JpaRepository<DBCRLMetadataRecord, String> {
 
+  // Change the CRL number of a CRL metadata record if it is still the number that was read
+  @Transactional
+  @Modifying
+  @Query("update DBCRLMetadataRecord m set m.crlNumber = :crlNumber, m.issueTime = :issueTime"
+    + " where m.instance = :instance and m.crlNumber = :expectedCrlNumber")
+  int updateCrlNumberIfUnchanged(@Param("instance") String instance,
+    @Param("expectedCrlNumber") String expectedCrlNumber, @Param("crlNumber") String crlNumber,
+    @Param("issueTime") long issueTime);
+
 }
@@ -22,6 +22,7 @@ import java.util.Objects;
 import java.util.Optional;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.orm.ObjectRetrievalFailureException;
 
 import lombok.extern.slf4j.Slf4j;
@@ -89,4 +90,35 @@ public class DBCRLMetadataRepository {
       jpaRepository.save(dbCrlMdRec);
     }
   }
+
+  /**
+   * Allocate the next number of a CRL sequence shared by all nodes using the database. The number is allocated with a
+   * conditional update, so that two nodes never get the same number.
+   *
+   * @param key the key of the CRL sequence
+   * @param minimum the lowest number to allocate, such as the number following the last CRL known by this node
+   * @return the allocated CRL number
+   * @throws DBCrlException if no number could be allocated due to concurrent allocations
+   */
+  public BigInteger allocateCrlNumber(String key, BigInteger minimum) throws DBCrlException {
+    for (int attempt = 0; attempt < 10; attempt++) {
+      Optional<DBCRLMetadataRecord> current = jpaRepository.findById(key);
+      long now = System.currentTimeMillis();
+      if (current.isEmpty()) {
+        try {
+          jpaRepository.save(new DBCRLMetadataRecord(key, minimum.toString(16), now, 0L, 0));
+          return minimum;
+        }
+        catch (DataIntegrityViolationException ex) {
+          // Created by another node
+          continue;
+        }
+      }
+      BigInteger next = new BigInteger(current.get().getCrlNumber(), 16).add(BigInteger.ONE).max(minimum);
+      if (jpaRepository.updateCrlNumberIfUnchanged(key, current.get().getCrlNumber(), next.toString(16), now) == 1) {
+        return next;
+      }
+    }
+    throw new DBCrlException("Unable to allocate CRL number for " + key + " due to concurrent allocations");
+  }
 }
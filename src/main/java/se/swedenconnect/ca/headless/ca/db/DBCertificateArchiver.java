@@ -0,0 +1,94 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.db;
+
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Moves expired certificate records from the certificate table to the archive table.
+ *
+ * <p>Each batch is copied to the archive table and removed from the certificate table in one transaction, so a record
+ * is always present in exactly one of the tables.</p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@Component
+@Profile({"!nodb"})
+public class DBCertificateArchiver {
+
+  private final DBJPARepository dbRepository;
+  private final DBArchiveJPARepository archiveRepository;
+
+  /**
+   * Constructor.
+   *
+   * @param dbRepository the certificate table
+   * @param archiveRepository the archive table
+   */
+  public DBCertificateArchiver(DBJPARepository dbRepository, DBArchiveJPARepository archiveRepository) {
+    this.dbRepository = dbRepository;
+    this.archiveRepository = archiveRepository;
+  }
+
+  /**
+   * Move a batch of certificates of an instance to the archive table.
+   *
+   * <p>The records still present in the certificate table are locked before they are copied, so records removed by
+   * another node in the meantime are skipped and are not archived twice.</p>
+   *
+   * @param instance the instance holding the certificates
+   * @param serialNumbers the serial numbers of the certificates to archive as stored hex strings
+   * @return the records that were moved to the archive table
+   */
+  @Transactional
+  public List<DBCertificateRecord> archive(String instance, List<String> serialNumbers) {
+    if (serialNumbers.isEmpty()) {
+      return List.of();
+    }
+    List<DBCertificateRecord> certificateRecords = dbRepository.lockByInstanceAndSerialNumberIn(instance,
+      serialNumbers);
+    if (certificateRecords.isEmpty()) {
+      return List.of();
+    }
+    Date archiveTime = new Date();
+    archiveRepository.saveAll(certificateRecords.stream()
+      .map(certificateRecord -> new DBArchivedCertificateRecord(certificateRecord, archiveTime))
+      .toList());
+    dbRepository.deleteByInstanceAndSerialNumberIn(instance,
+      certificateRecords.stream().map(certificateRecord -> certificateRecord.serialNumber).toList());
+    return certificateRecords;
+  }
+
+  /**
+   * Get an archived certificate.
+   *
+   * @param instance the instance that issued the certificate
+   * @param serialNumber the serial number of the certificate as stored hex string
+   * @return the archived certificate record, or null if the certificate is not archived
+   */
+  public DBArchivedCertificateRecord getArchivedCertificate(String instance, String serialNumber) {
+    List<DBArchivedCertificateRecord> records = archiveRepository.findByInstanceAndSerialNumber(instance, serialNumber);
+    return records.isEmpty() ? null : records.get(0);
+  }
+
+}
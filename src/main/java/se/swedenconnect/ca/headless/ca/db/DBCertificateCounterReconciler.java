@@ -0,0 +1,87 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.db;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Profile;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import se.swedenconnect.ca.engine.ca.repository.CARepository;
+import se.swedenconnect.ca.headless.ca.migration.MigratingCARepository;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically reconciles the cached certificate counters of all database CA repositories against the database,
+ * including the database repositories of instances that are being migrated from a file repository.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@Slf4j
+@Component
+@Profile({"!nodb"})
+public class DBCertificateCounterReconciler {
+
+  private final Map<String, CARepository> caRepositoryMap;
+
+  /**
+   * Constructor.
+   *
+   * @param caRepositoryMap CA repositories for each instance
+   */
+  public DBCertificateCounterReconciler(Map<String, CARepository> caRepositoryMap) {
+    this.caRepositoryMap = caRepositoryMap;
+  }
+
+  /**
+   * Reconcile the certificate counters of each instance.
+   */
+  @Scheduled(initialDelayString = "${ca-service.repository.counter-reconcile-seconds:300}",
+    fixedDelayString = "${ca-service.repository.counter-reconcile-seconds:300}", timeUnit = TimeUnit.SECONDS)
+  public void reconcileCertificateCounters() {
+    for (Map.Entry<String, CARepository> entry : caRepositoryMap.entrySet()) {
+      DBCARepository dbcaRepository = getDatabaseRepository(entry.getValue());
+      if (dbcaRepository != null) {
+        try {
+          dbcaRepository.reconcileCertificateCounters();
+        }
+        catch (Exception ex) {
+          log.warn("Failed to reconcile certificate counters for instance {}", entry.getKey(), ex);
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the database repository of an instance, also while the instance is migrated from a file repository.
+   *
+   * @param caRepository the CA repository of the instance
+   * @return the database repository, or null if the instance has no database repository
+   */
+  static DBCARepository getDatabaseRepository(CARepository caRepository) {
+    if (caRepository instanceof DBCARepository dbcaRepository) {
+      return dbcaRepository;
+    }
+    if (caRepository instanceof MigratingCARepository migratingRepository) {
+      return migratingRepository.getTarget();
+    }
+    return null;
+  }
+
+}
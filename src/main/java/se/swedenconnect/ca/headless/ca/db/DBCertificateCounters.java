@@ -0,0 +1,154 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.db;
+
+import org.bouncycastle.asn1.x509.CRLReason;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cached certificate counters of a CA instance stored in the database.
+ *
+ * <p>The counters are updated incrementally as certificates are added, revoked and removed, and are reset to the result
+ * of counting the records in the database at each reconciliation. The number of expired certificates increases as time
+ * passes and is therefore only updated when expired certificates are removed and at reconciliation.</p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+public class DBCertificateCounters {
+
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong revoked = new AtomicLong();
+  private final AtomicLong onHold = new AtomicLong();
+  private final AtomicLong expired = new AtomicLong();
+
+  /**
+   * Get the total number of certificates.
+   *
+   * @return number of certificates
+   */
+  public long getTotal() {
+    return total.get();
+  }
+
+  /**
+   * Get the number of revoked certificates, including certificates on hold.
+   *
+   * @return number of revoked certificates
+   */
+  public long getRevoked() {
+    return revoked.get();
+  }
+
+  /**
+   * Get the number of certificates on hold.
+   *
+   * @return number of certificates on hold
+   */
+  public long getOnHold() {
+    return onHold.get();
+  }
+
+  /**
+   * Get the number of expired certificates as of the last reconciliation.
+   *
+   * @return number of expired certificates
+   */
+  public long getExpired() {
+    return expired.get();
+  }
+
+  /**
+   * Get the number of certificates that are not revoked.
+   *
+   * @return number of not revoked certificates
+   */
+  public long getNotRevoked() {
+    return total.get() - revoked.get();
+  }
+
+  /**
+   * Reset all counters to the values counted in the database.
+   *
+   * @param total total number of certificates
+   * @param revoked number of revoked certificates, including certificates on hold
+   * @param onHold number of certificates on hold
+   * @param expired number of expired certificates
+   */
+  public void reset(long total, long revoked, long onHold, long expired) {
+    this.total.set(total);
+    this.revoked.set(revoked);
+    this.onHold.set(onHold);
+    this.expired.set(expired);
+  }
+
+  /**
+   * Register that a new certificate was added.
+   */
+  public void certificateAdded() {
+    total.incrementAndGet();
+  }
+
+  /**
+   * Register a change of the revocation status of a certificate.
+   *
+   * @param wasRevoked true if the certificate was revoked before the change
+   * @param oldReason the revocation reason before the change, or null
+   * @param isRevoked true if the certificate is revoked after the change
+   * @param newReason the revocation reason after the change, or null
+   */
+  public void revocationChanged(boolean wasRevoked, Integer oldReason, boolean isRevoked, Integer newReason) {
+    if (wasRevoked != isRevoked) {
+      revoked.addAndGet(isRevoked ? 1 : -1);
+    }
+    boolean wasOnHold = isOnHold(wasRevoked, oldReason);
+    boolean isOnHold = isOnHold(isRevoked, newReason);
+    if (wasOnHold != isOnHold) {
+      onHold.addAndGet(isOnHold ? 1 : -1);
+    }
+  }
+
+  /**
+   * Register that an expired certificate was removed.
+   *
+   * @param removedRecord the record of the removed certificate
+   */
+  public void expiredCertificateRemoved(DBCertificateRecord removedRecord) {
+    expiredCertificateRemoved(removedRecord.isRevoked(), removedRecord.getReason());
+  }
+
+  /**
+   * Register that an expired certificate was removed.
+   *
+   * @param removedCertificate the serial number and revocation status of the removed certificate
+   */
+  public void expiredCertificateRemoved(DBExpiredCertificate removedCertificate) {
+    expiredCertificateRemoved(removedCertificate.isRevoked(), removedCertificate.getReason());
+  }
+
+  private void expiredCertificateRemoved(boolean wasRevoked, Integer reason) {
+    total.decrementAndGet();
+    expired.updateAndGet(count -> Math.max(0, count - 1));
+    revocationChanged(wasRevoked, reason, false, null);
+  }
+
+  private static boolean isOnHold(boolean revoked, Integer reason) {
+    return revoked && reason != null && reason == CRLReason.certificateHold;
+  }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.db;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import se.swedenconnect.ca.engine.ca.repository.SortBy;
+
+/**
+ * Selection of a range of certificate records of a CA instance.
+ *
+ * <p>A range is either selected by page index (offset pagination) or, if a seek position is set, as the records that
+ * follow the seek position in the selected sort order (keyset pagination). The seek position is the serial number, and
+ * for ranges sorted by issue date also the issue date, of the last record of the previous range.</p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class DBCertificateRangeQuery {
+
+  /** The instance holding the certificates */
+  private String instance;
+
+  /** Selects revoked or not revoked certificates only, or all certificates if null */
+  private Boolean revoked;
+
+  /** True to also select certificates on hold when selecting not revoked certificates */
+  private boolean includeOnHold;
+
+  /** Selects only certificates that expired before this time in milliseconds since epoch, or all if null */
+  private Long expiredBefore;
+
+  /** Selects only certificates issued at or after this time in milliseconds since epoch, or all if null */
+  private Long issuedFrom;
+
+  /** Selects only certificates issued before this time in milliseconds since epoch, or all if null */
+  private Long issuedBefore;
+
+  /** The sort order of the range. Certificates are sorted by issue date unless sorted by serial number */
+  private SortBy sortBy;
+
+  /** True to sort in descending order */
+  private boolean descending;
+
+  /** The index of the page to return. Ignored if a seek position is set */
+  private int page;
+
+  /** The maximum number of certificates to return */
+  private int pageSize;
+
+  /** The serial number (as stored hex string) of the last certificate of the previous range, or null */
+  private String afterSerialNumber;
+
+  /** The issue date of the last certificate of the previous range. Required for seek by issue date */
+  private Long afterIssueDate;
+
+  /**
+   * Set the seek position to the last certificate of a previous range.
+   *
+   * @param lastRecord the last certificate of the previous range
+   */
+  public void seekAfter(DBCertificateRecord lastRecord) {
+    this.afterSerialNumber = lastRecord.getSerialNumber().toString(16);
+    this.afterIssueDate = lastRecord.issueDate;
+  }
+
+  /**
+   * Test if this query selects a range by seek position.
+   *
+   * @return true if a seek position is set
+   */
+  public boolean isSeek() {
+    return afterSerialNumber != null;
+  }
+
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.db;
+
+import org.springframework.data.domain.Slice;
+
+/**
+ * Repository fragment providing dynamic range queries over the certificate records of a CA instance.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+public interface DBCertificateRangeRepository {
+
+  /**
+   * Get a range of certificate records. The result is returned as a slice, which only tells whether more records
+   * follow, in order to avoid counting all matching records for each request.
+   *
+   * @param query the range selection
+   * @return slice of certificate records
+   */
+  Slice<DBCertificateRecord> findCertificateRange(DBCertificateRangeQuery query);
+
+}
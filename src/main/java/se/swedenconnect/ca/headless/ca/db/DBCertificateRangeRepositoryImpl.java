@@ -0,0 +1,119 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.db;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import jakarta.persistence.TypedQuery;
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.CriteriaQuery;
+import jakarta.persistence.criteria.Order;
+import jakarta.persistence.criteria.Path;
+import jakarta.persistence.criteria.Predicate;
+import jakarta.persistence.criteria.Root;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.domain.SliceImpl;
+import se.swedenconnect.ca.engine.ca.repository.SortBy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Implementation of the range query fragment of {@link DBJPARepository}.
+ *
+ * <p>Ranges selected by seek position are resolved with a condition on the sort key, and ties in issue date are broken
+ * by serial number, which lets the database use its index to find the first record regardless of how deep into the
+ * result the range is located.</p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+public class DBCertificateRangeRepositoryImpl implements DBCertificateRangeRepository {
+
+  @PersistenceContext
+  private EntityManager entityManager;
+
+  /** {@inheritDoc} */
+  @Override public Slice<DBCertificateRecord> findCertificateRange(DBCertificateRangeQuery query) {
+    CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+    CriteriaQuery<DBCertificateRecord> criteriaQuery = cb.createQuery(DBCertificateRecord.class);
+    Root<DBCertificateRecord> root = criteriaQuery.from(DBCertificateRecord.class);
+    Path<String> serialNumber = root.get("serialNumber");
+    Path<Long> issueDate = root.get("issueDate");
+    boolean sortBySerialNumber = query.getSortBy() == SortBy.serialNumber;
+    boolean descending = query.isDescending();
+
+    List<Predicate> predicates = new ArrayList<>();
+    predicates.add(cb.equal(root.get("instance"), query.getInstance()));
+    if (query.getRevoked() != null) {
+      Predicate revoked = cb.equal(root.get("revoked"), query.getRevoked());
+      predicates.add(!query.getRevoked() && query.isIncludeOnHold()
+        ? cb.or(revoked,
+          cb.and(cb.equal(root.get("revoked"), true), cb.equal(root.get("reason"), CRLReason.certificateHold)))
+        : revoked);
+    }
+    if (query.getExpiredBefore() != null) {
+      predicates.add(cb.lessThan(root.get("expiryDate"), query.getExpiredBefore()));
+    }
+    if (query.getIssuedFrom() != null) {
+      predicates.add(cb.greaterThanOrEqualTo(issueDate, query.getIssuedFrom()));
+    }
+    if (query.getIssuedBefore() != null) {
+      predicates.add(cb.lessThan(issueDate, query.getIssuedBefore()));
+    }
+    if (query.isSeek()) {
+      String afterSerialNumber = query.getAfterSerialNumber();
+      Predicate serialNumberAfter = descending
+        ? cb.lessThan(serialNumber, afterSerialNumber)
+        : cb.greaterThan(serialNumber, afterSerialNumber);
+      if (sortBySerialNumber) {
+        predicates.add(serialNumberAfter);
+      }
+      else {
+        Long afterIssueDate = query.getAfterIssueDate();
+        predicates.add(cb.or(
+          descending ? cb.lessThan(issueDate, afterIssueDate) : cb.greaterThan(issueDate, afterIssueDate),
+          cb.and(cb.equal(issueDate, afterIssueDate), serialNumberAfter)));
+      }
+    }
+    criteriaQuery.where(predicates.toArray(new Predicate[0]));
+
+    List<Order> orderList = new ArrayList<>();
+    if (!sortBySerialNumber) {
+      orderList.add(descending ? cb.desc(issueDate) : cb.asc(issueDate));
+    }
+    orderList.add(descending ? cb.desc(serialNumber) : cb.asc(serialNumber));
+    criteriaQuery.orderBy(orderList);
+
+    int pageSize = query.getPageSize();
+    TypedQuery<DBCertificateRecord> typedQuery = entityManager.createQuery(criteriaQuery);
+    if (!query.isSeek()) {
+      typedQuery.setFirstResult(Math.max(query.getPage(), 0) * pageSize);
+    }
+    // Fetch one extra record to find out if there are more records after this range
+    typedQuery.setMaxResults(pageSize + 1);
+    List<DBCertificateRecord> records = new ArrayList<>(typedQuery.getResultList());
+    boolean hasNext = records.size() > pageSize;
+    if (hasNext) {
+      records.remove(pageSize);
+    }
+    return new SliceImpl<>(records, PageRequest.of(Math.max(query.getPage(), 0), Math.max(pageSize, 1)), hasNext);
+  }
+
+}
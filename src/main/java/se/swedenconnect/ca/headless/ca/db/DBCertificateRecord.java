@@ -22,6 +22,7 @@ import se.swedenconnect.ca.engine.ca.repository.CertificateRecord;
 import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
 import jakarta.persistence.Id;
+import jakarta.persistence.Index;
 import jakarta.persistence.Table;
 
 import java.math.BigInteger;
@@ -34,7 +35,11 @@ import java.util.Date;
  * @author Stefan Santesson (stefan@idsec.se)
  */
 @Entity
-@Table(name = "dbcertificate_record")
+@Table(name = "dbcertificate_record", indexes = {
+  @Index(name = "idx_dbcertificate_record_expiry", columnList = "instance, expiry_date"),
+  @Index(name = "idx_dbcertificate_record_issued", columnList = "instance, issue_date, id"),
+  @Index(name = "idx_dbcertificate_record_revoked", columnList = "instance, revoked")
+})
 @NoArgsConstructor
 public class DBCertificateRecord implements CertificateRecord {
 
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.db;
+
+import lombok.Value;
+
+import java.math.BigInteger;
+
+/**
+ * The columns of an expired certificate record needed to remove it, without the certificate itself.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@Value
+public class DBExpiredCertificate {
+
+  /** The serial number of the certificate as stored hex string */
+  String serialNumber;
+
+  /** The revoked status of the certificate */
+  boolean revoked;
+
+  /** The revocation reason of the certificate, or null if no reason is stored */
+  Integer reason;
+
+  /**
+   * Get the serial number of the certificate.
+   *
+   * @return the serial number
+   */
+  public BigInteger getSerialNumberValue() {
+    return new BigInteger("0" + this.serialNumber, 16);
+  }
+
+}
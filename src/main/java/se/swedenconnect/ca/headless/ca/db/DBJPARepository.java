@@ -16,9 +16,14 @@
 
 package se.swedenconnect.ca.headless.ca.db;
 
-import org.springframework.data.domain.Page;
+import org.bouncycastle.asn1.x509.CRLReason;
 import org.springframework.data.domain.Pageable;
+import jakarta.persistence.LockModeType;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.util.List;
@@ -29,34 +34,145 @@ import java.util.List;
  * @author Martin Lindström (martin@idsec.se)
  * @author Stefan Santesson (stefan@idsec.se)
  */
-public interface DBJPARepository extends JpaRepository<DBCertificateRecord, String> {
+public interface DBJPARepository extends JpaRepository<DBCertificateRecord, String>,
+  DBCertificateRangeRepository {
 
   // Get a particular cert from a particular instance
   List<DBCertificateRecord> findByInstanceAndSerialNumber(String instance, String certSerial);
-  // Get a page of certs from an instance
-  Page<DBCertificateRecord> findByInstance(String string, Pageable pageable);
-  // Get a page of certs either revoked or non-revoked
-  Page<DBCertificateRecord> findByInstanceAndRevoked(String instance, boolean revoked, Pageable pageable);
-  // Get all expired certificates by page
-  Page<DBCertificateRecord> findByInstanceAndExpiryDateLessThan(String instance, long maxExpiryDate, Pageable pageable);
-
-  //Variations of getting pages of data with or without exclusion of revoked certs and with different sort by and sort directions
-  Page<DBCertificateRecord> findByInstanceOrderByIssueDateAsc(String instance, Pageable pageable);
-  Page<DBCertificateRecord> findByInstanceOrderByIssueDateDesc(String instance, Pageable pageable);
-  Page<DBCertificateRecord> findByInstanceAndRevokedOrderByIssueDateAsc(String instance, boolean revoked, Pageable pageable);
-  Page<DBCertificateRecord> findByInstanceAndRevokedOrderByIssueDateDesc(String instance, boolean revoked, Pageable pageable);
-  Page<DBCertificateRecord> findByInstanceOrderBySerialNumberAsc(String instance, Pageable pageable);
-  Page<DBCertificateRecord> findByInstanceOrderBySerialNumberDesc(String instance, Pageable pageable);
-  Page<DBCertificateRecord> findByInstanceAndRevokedOrderBySerialNumberAsc(String instance, boolean revoked, Pageable pageable);
-  Page<DBCertificateRecord> findByInstanceAndRevokedOrderBySerialNumberDesc(String instance, boolean revoked, Pageable pageable);
-
+  // Get the certs of a list of serial numbers from a particular instance
+  List<DBCertificateRecord> findByInstanceAndSerialNumberIn(String instance, List<String> serialNumbers);
+  // Ranges of certs, selected and sorted by a dynamic query (see DBCertificateRangeRepository)
   // Certificate counters - all certs
   int countByInstance(String instance);
   // Count revoked or non-revoked certs
   int countByInstanceAndRevoked(String instance, boolean revoked);
+  // Count revoked certs with a particular reason
+  int countByInstanceAndRevokedAndReason(String instance, boolean revoked, Integer reason);
+  // Count expired certs
+  int countByInstanceAndExpiryDateLessThan(String instance, long maxExpiryDate);
+
+  // Lowest expiry date of all certs
+  @Query("select min(r.expiryDate) from DBCertificateRecord r where r.instance = :instance")
+  Long findMinExpiryDate(@Param("instance") String instance);
+  // Serial numbers and revocation status of the certs within a range of expiry dates, in expiry date order
+  @Query("select new se.swedenconnect.ca.headless.ca.db.DBExpiredCertificate(r.serialNumber, r.revoked, r.reason)"
+    + " from DBCertificateRecord r where r.instance = :instance and r.expiryDate >= :fromExpiryDate"
+    + " and r.expiryDate < :toExpiryDate order by r.expiryDate, r.serialNumber")
+  List<DBExpiredCertificate> findByExpiryDateRange(@Param("instance") String instance,
+    @Param("fromExpiryDate") long fromExpiryDate, @Param("toExpiryDate") long toExpiryDate, Pageable pageable);
+
+  // Serial numbers and revocation status of the certs expired before a date, after a serial number in serial number order
+  @Query("select new se.swedenconnect.ca.headless.ca.db.DBExpiredCertificate(r.serialNumber, r.revoked, r.reason)"
+    + " from DBCertificateRecord r where r.instance = :instance and r.expiryDate < :maxExpiryDate"
+    + " and r.serialNumber > :afterSerialNumber order by r.serialNumber")
+  List<DBExpiredCertificate> findExpiredCertificates(@Param("instance") String instance,
+    @Param("maxExpiryDate") long maxExpiryDate, @Param("afterSerialNumber") String afterSerialNumber,
+    Pageable pageable);
+
+  // Change the revocation status of a cert if its current status is the expected status (reason -1 for no reason)
+  @Transactional
+  @Modifying
+  @Query("update DBCertificateRecord r set r.revoked = :revoked, r.reason = :reason, r.revocationTime = :revocationTime"
+    + " where r.instance = :instance and r.serialNumber = :serialNumber and r.revoked = :expectedRevoked"
+    + " and coalesce(r.reason, -1) = :expectedReason")
+  int updateRevocationStatusIfUnchanged(@Param("instance") String instance,
+    @Param("serialNumber") String serialNumber, @Param("expectedRevoked") boolean expectedRevoked,
+    @Param("expectedReason") int expectedReason, @Param("revoked") boolean revoked, @Param("reason") Integer reason,
+    @Param("revocationTime") long revocationTime);
+
+  /**
+   * Store the revocation status of a certificate record, provided that the stored revocation status has not been
+   * changed since it was read. Only the revocation status columns are updated.
+   *
+   * @param certificateRecord the certificate record holding the new revocation status
+   * @param expectedRevoked the revoked status read from the database
+   * @param expectedReason the reason code read from the database, or null if no reason code was stored
+   * @return true if the revocation status was stored, false if the stored status has been changed by someone else
+   */
+  default boolean compareAndSetRevocationStatus(DBCertificateRecord certificateRecord, boolean expectedRevoked,
+    Integer expectedReason) {
+    return updateRevocationStatusIfUnchanged(certificateRecord.instance, certificateRecord.serialNumber,
+      expectedRevoked, expectedReason == null ? -1 : expectedReason, certificateRecord.revoked,
+      certificateRecord.reason, certificateRecord.revocationTime) == 1;
+  }
+
+  // Serial numbers of the not revoked certs in a list of serial numbers
+  @Query("select r.serialNumber from DBCertificateRecord r where r.instance = :instance and r.revoked = false"
+    + " and r.serialNumber in :serialNumbers")
+  List<String> findNotRevokedSerialNumbers(@Param("instance") String instance,
+    @Param("serialNumbers") List<String> serialNumbers);
+  // Revoke the not revoked certs in a list of serial numbers in one statement
+  @Transactional
+  @Modifying
+  @Query("update DBCertificateRecord r set r.revoked = true, r.reason = :reason, r.revocationTime = :revocationTime"
+    + " where r.instance = :instance and r.revoked = false and r.serialNumber in :serialNumbers")
+  int revokeByInstanceAndSerialNumberIn(@Param("instance") String instance,
+    @Param("serialNumbers") List<String> serialNumbers, @Param("reason") int reason,
+    @Param("revocationTime") long revocationTime);
+  // Serial numbers of the certs revoked with a particular reason in a list of serial numbers
+  @Query("select r.serialNumber from DBCertificateRecord r where r.instance = :instance and r.revoked = true"
+    + " and r.reason = :reason and r.serialNumber in :serialNumbers")
+  List<String> findRevokedSerialNumbers(@Param("instance") String instance, @Param("reason") int reason,
+    @Param("serialNumbers") List<String> serialNumbers);
+  // Change the reason of the certs revoked with a particular reason in a list of serial numbers in one statement
+  @Transactional
+  @Modifying
+  @Query("update DBCertificateRecord r set r.reason = :reason, r.revocationTime = :revocationTime"
+    + " where r.instance = :instance and r.revoked = true and r.reason = :oldReason"
+    + " and r.serialNumber in :serialNumbers")
+  int changeReasonByInstanceAndSerialNumberIn(@Param("instance") String instance,
+    @Param("serialNumbers") List<String> serialNumbers, @Param("oldReason") int oldReason,
+    @Param("reason") int reason, @Param("revocationTime") long revocationTime);
+
+  /**
+   * Revoke the certificates in a list that are not revoked, and permanently revoke the certificates in the list that
+   * are on hold, unless the new reason is certificate hold. Certificates that are unknown or already permanently revoked
+   * are left unchanged. The certificates are read and changed in one transaction, which joins the transaction of the
+   * caller if there is one, so that a caller can roll back the changes of an incomplete revocation.
+   *
+   * @param instance the instance that issued the certificates
+   * @param serialNumbers the serial numbers of the certificates as stored hex strings
+   * @param reason the revocation reason
+   * @param revocationTime the revocation time in milliseconds since epoch
+   * @return the serial numbers of the revoked certificates
+   */
+  @Transactional
+  default DBRevokedCertificates revokeCertificatesIn(String instance, List<String> serialNumbers, int reason,
+    long revocationTime) {
+    List<String> notRevoked = findNotRevokedSerialNumbers(instance, serialNumbers);
+    List<String> onHold = reason == CRLReason.certificateHold
+      ? List.of()
+      : findRevokedSerialNumbers(instance, CRLReason.certificateHold, serialNumbers);
+    int revoked = notRevoked.isEmpty()
+      ? 0
+      : revokeByInstanceAndSerialNumberIn(instance, notRevoked, reason, revocationTime);
+    int revokedFromHold = onHold.isEmpty()
+      ? 0
+      : changeReasonByInstanceAndSerialNumberIn(instance, onHold, CRLReason.certificateHold, reason, revocationTime);
+    return new DBRevokedCertificates(notRevoked, onHold,
+      revoked == notRevoked.size() && revokedFromHold == onHold.size());
+  }
+
+  // Certificates of a list of serial numbers, without the other columns
+  @Query("select r.certificate from DBCertificateRecord r where r.instance = :instance"
+    + " and r.serialNumber in :serialNumbers")
+  List<byte[]> findCertificatesBySerialNumberIn(@Param("instance") String instance,
+    @Param("serialNumbers") List<String> serialNumbers);
+
+  // Lock the certs of a list of serial numbers that are still in the table
+  @Lock(LockModeType.PESSIMISTIC_WRITE)
+  @Query("select r from DBCertificateRecord r where r.instance = :instance and r.serialNumber in :serialNumbers")
+  List<DBCertificateRecord> lockByInstanceAndSerialNumberIn(@Param("instance") String instance,
+    @Param("serialNumbers") List<String> serialNumbers);
 
   // delete expired certificates
   @Transactional
   int deleteByInstanceAndSerialNumber(String instance, String certSerial);
+  // delete a batch of expired certificates in one statement
+  @Transactional
+  @Modifying
+  @Query("delete from DBCertificateRecord r where r.instance = :instance and r.serialNumber in :serialNumbers")
+  int deleteByInstanceAndSerialNumberIn(@Param("instance") String instance,
+    @Param("serialNumbers") List<String> serialNumbers);
 
 }
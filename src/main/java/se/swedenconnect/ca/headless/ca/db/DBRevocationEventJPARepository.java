@@ -0,0 +1,58 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.db;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.List;
+
+/**
+ * JPA repository for revocation events
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+public interface DBRevocationEventJPARepository extends JpaRepository<DBRevocationEventRecord, Long> {
+
+  // Events of an instance following a sequence number, in sequence order
+  List<DBRevocationEventRecord> findByInstanceAndSequenceGreaterThanOrderBySequenceAsc(String instance, long sequence,
+    Pageable pageable);
+  // Last sequence number of an instance
+  @Query("select max(e.sequence) from DBRevocationEventRecord e where e.instance = :instance")
+  Long findMaxSequence(@Param("instance") String instance);
+  // Oldest retained sequence number of all instances
+  @Query("select min(e.sequence) from DBRevocationEventRecord e")
+  Long findMinSequence();
+  // Last sequence number of all instances
+  @Query("select max(e.sequence) from DBRevocationEventRecord e")
+  Long findMaxSequence();
+  // Last sequence number of the events older than a time
+  @Query("select max(e.sequence) from DBRevocationEventRecord e where e.eventTime < :eventTime")
+  Long findMaxSequenceBefore(@Param("eventTime") long eventTime);
+
+  // delete all events up to and including a sequence number
+  @Transactional
+  @Modifying
+  @Query("delete from DBRevocationEventRecord e where e.sequence <= :sequence")
+  int deleteBySequenceLessThanEqual(@Param("sequence") long sequence);
+
+}
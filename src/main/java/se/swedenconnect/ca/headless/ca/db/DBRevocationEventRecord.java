@@ -0,0 +1,109 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.db;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+
+import java.math.BigInteger;
+import java.util.Date;
+
+/**
+ * Record of a change of the revocation status of a certificate. Records are appended, and only removed from the
+ * start of the sequence when they are older than the retention time. The sequence number orders the changes of all
+ * instances.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@Entity
+@Table(name = "revocation_event", indexes = {
+  @Index(name = "idx_revocation_event_instance", columnList = "instance, sequence")
+})
+@NoArgsConstructor
+public class DBRevocationEventRecord {
+
+  @Id
+  @GeneratedValue(strategy = GenerationType.IDENTITY)
+  @Column(name = "sequence")
+  @Getter private long sequence;
+  @Column(name = "instance", nullable = false)
+  @Getter private String instance;
+  @Column(name = "serial_number", nullable = false)
+  private String serialNumber;
+  @Column(name = "revoked")
+  @Getter private boolean revoked;
+  @Column(name = "reason")
+  @Getter private Integer reason;
+  @Column(name = "revocation_time")
+  private long revocationTime;
+  @Column(name = "event_time")
+  private long eventTime;
+
+  /**
+   * Create a record of the current revocation status of a certificate.
+   *
+   * @param certificateRecord the certificate record holding the new revocation status
+   * @param eventTime the time of the change
+   */
+  public DBRevocationEventRecord(DBCertificateRecord certificateRecord, Date eventTime) {
+    this.instance = certificateRecord.instance;
+    this.serialNumber = certificateRecord.serialNumber;
+    this.revoked = certificateRecord.revoked;
+    this.reason = certificateRecord.reason;
+    this.revocationTime = certificateRecord.revocationTime;
+    this.eventTime = eventTime.getTime();
+  }
+
+  /**
+   * Create a record of the revocation of a certificate.
+   *
+   * @param instance the instance that issued the certificate
+   * @param serialNumber the serial number of the certificate as stored hex string
+   * @param reason the revocation reason
+   * @param revocationTime the revocation time in milliseconds since epoch
+   * @param eventTime the time of the change
+   */
+  public DBRevocationEventRecord(String instance, String serialNumber, int reason, long revocationTime,
+    Date eventTime) {
+    this.instance = instance;
+    this.serialNumber = serialNumber;
+    this.revoked = true;
+    this.reason = reason;
+    this.revocationTime = revocationTime;
+    this.eventTime = eventTime.getTime();
+  }
+
+  public BigInteger getSerialNumber() {
+    return this.serialNumber == null ? null : new BigInteger("0" + this.serialNumber, 16);
+  }
+
+  public Date getRevocationTime() {
+    return this.revocationTime < 0L ? null : new Date(this.revocationTime);
+  }
+
+  public Date getEventTime() {
+    return new Date(this.eventTime);
+  }
+}
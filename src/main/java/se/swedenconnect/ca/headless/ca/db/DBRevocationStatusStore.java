@@ -0,0 +1,247 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.db;
+
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+import se.swedenconnect.ca.engine.revocation.CertificateRevocationException;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Stores changes of the revocation status of certificates together with a revocation event.
+ *
+ * <p>Each change updates the certificate record and appends a record to the revocation event table in the same
+ * transaction. Consumers that need to follow revocation status changes, such as CRL builders, status caches or other
+ * nodes, can read the events following the last sequence number they processed instead of reading the complete
+ * certificate table.</p>
+ *
+ * <p>Sequence numbers are allocated when an event is inserted, not when its transaction commits. An event with a lower
+ * sequence number may therefore become visible after an event with a higher sequence number, and a consumer that has
+ * moved past the higher number would never see it. Events are therefore only returned once they are older than a
+ * settle time, and the events returned by one read stop at the first event that is not. The settle time must exceed
+ * the transaction timeout of the changes, plus any clock difference between the nodes sharing the database.</p>
+ *
+ * <p>Events are kept for a configurable number of days, and are deleted from the start of the sequence. A consumer
+ * whose last processed sequence number is lower than {@link #getOldestRetainedSequence()} minus one may have missed
+ * deleted events, and must read the current status from the certificate table before following the events again.</p>
+ *
+ * <p>All database CA instances store their revocation status changes through this store. The service therefore fails
+ * to start if the revocation event table can not be read, such as when a database that is not updated by
+ * {@code spring.jpa.hibernate.ddl-auto} has not been upgraded with the table.</p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@Slf4j
+@Component
+@Profile({"!nodb"})
+public class DBRevocationStatusStore {
+
+  private final DBJPARepository dbRepository;
+  private final DBRevocationEventJPARepository eventRepository;
+
+  @Value("${ca-service.repository.revocation-events.retention-days:30}") int retentionDays;
+  @Value("${ca-service.repository.revocation-events.settle-seconds:30}") int settleSeconds;
+
+  /**
+   * Constructor.
+   *
+   * @param dbRepository the certificate table
+   * @param eventRepository the revocation event table
+   */
+  public DBRevocationStatusStore(DBJPARepository dbRepository, DBRevocationEventJPARepository eventRepository) {
+    this.dbRepository = dbRepository;
+    this.eventRepository = eventRepository;
+  }
+
+  /**
+   * Check that the revocation event table exists.
+   *
+   * @throws IllegalStateException if the revocation event table can not be read
+   */
+  @PostConstruct
+  public void checkEventTable() {
+    try {
+      eventRepository.findMinSequence();
+    }
+    catch (DataAccessException ex) {
+      throw new IllegalStateException("The revocation_event table can not be read. Databases created before revocation "
+        + "events were introduced must be upgraded with this table, see the database table creation in the README", ex);
+    }
+  }
+
+  /**
+   * Save a certificate record with a changed revocation status and append a revocation event for the change.
+   *
+   * @param certificateRecord the certificate record holding the new revocation status
+   */
+  @Transactional(timeoutString = "${ca-service.repository.revocation-events.transaction-timeout-seconds:10}")
+  public void saveRevocationStatus(DBCertificateRecord certificateRecord) {
+    dbRepository.save(certificateRecord);
+    eventRepository.save(new DBRevocationEventRecord(certificateRecord, new Date()));
+  }
+
+  /**
+   * Store a changed revocation status of a certificate record and append a revocation event for the change, provided
+   * that the stored revocation status has not been changed since it was read. Only the revocation status columns are
+   * updated.
+   *
+   * @param certificateRecord the certificate record holding the new revocation status
+   * @param expectedRevoked the revoked status read from the database
+   * @param expectedReason the reason code read from the database, or null if no reason code was stored
+   * @return true if the revocation status was stored, false if the stored status has been changed by someone else
+   */
+  @Transactional(timeoutString = "${ca-service.repository.revocation-events.transaction-timeout-seconds:10}")
+  public boolean updateRevocationStatus(DBCertificateRecord certificateRecord, boolean expectedRevoked,
+    Integer expectedReason) {
+    if (!dbRepository.compareAndSetRevocationStatus(certificateRecord, expectedRevoked, expectedReason)) {
+      return false;
+    }
+    eventRepository.save(new DBRevocationEventRecord(certificateRecord, new Date()));
+    return true;
+  }
+
+  /**
+   * Revoke the certificates in a list that are not revoked, permanently revoke the certificates in the list that are on
+   * hold, and append a revocation event for each changed certificate. The certificates are changed with one statement
+   * for each previous status, and no certificate is changed if the status of any of them is changed by someone else
+   * while this chunk is processed.
+   *
+   * @param instance the instance that issued the certificates
+   * @param serialNumbers the serial numbers of the certificates as stored hex strings
+   * @param reason the revocation reason
+   * @param revocationTime the revocation time in milliseconds since epoch
+   * @return the serial numbers of the revoked certificates
+   * @throws CertificateRevocationException if a certificate was changed by a concurrent request
+   */
+  @Transactional(rollbackFor = CertificateRevocationException.class,
+    timeoutString = "${ca-service.repository.revocation-events.transaction-timeout-seconds:10}")
+  public DBRevokedCertificates revokeCertificates(String instance, List<String> serialNumbers, int reason,
+    long revocationTime) throws CertificateRevocationException {
+    DBRevokedCertificates revokedCertificates = dbRepository.revokeCertificatesIn(instance, serialNumbers, reason,
+      revocationTime);
+    if (!revokedCertificates.isComplete()) {
+      throw new CertificateRevocationException("Certificates were revoked by a concurrent request");
+    }
+    Date eventTime = new Date();
+    eventRepository.saveAll(Stream.concat(revokedCertificates.getRevoked().stream(),
+        revokedCertificates.getRevokedFromHold().stream())
+      .map(serialNumber -> new DBRevocationEventRecord(instance, serialNumber, reason, revocationTime, eventTime))
+      .toList());
+    return revokedCertificates;
+  }
+
+  /**
+   * Get the revocation events of an instance that follow a sequence number. Only events older than the settle time are
+   * returned, and the returned events stop at the first event that is not, so that an event committed after an event
+   * with a higher sequence number is never skipped.
+   *
+   * @param instance the instance
+   * @param sequence the sequence number of the last processed event, or 0 to get the first events
+   * @param maxCount the maximum number of events to return
+   * @return the settled events following the sequence number, in sequence order
+   */
+  public List<DBRevocationEventRecord> getEventsSince(String instance, long sequence, int maxCount) {
+    long horizon = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(settleSeconds);
+    return eventRepository.findByInstanceAndSequenceGreaterThanOrderBySequenceAsc(instance, sequence,
+        PageRequest.of(0, maxCount)).stream()
+      .takeWhile(event -> event.getEventTime().getTime() < horizon)
+      .toList();
+  }
+
+  /**
+   * Get all revocation events of an instance that follow a sequence number, including events that are younger than the
+   * settle time. An event with a lower sequence number than the returned events may still be committed later.
+   *
+   * @param instance the instance
+   * @param sequence the sequence number of the last processed event, or 0 to get the first events
+   * @param maxCount the maximum number of events to return
+   * @return the events following the sequence number, in sequence order
+   */
+  public List<DBRevocationEventRecord> getAllEventsSince(String instance, long sequence, int maxCount) {
+    return eventRepository.findByInstanceAndSequenceGreaterThanOrderBySequenceAsc(instance, sequence,
+      PageRequest.of(0, maxCount));
+  }
+
+  /**
+   * Get the sequence number of the last event that is older than the settle time. All events up to this number were
+   * committed before now, so a consumer that reads the current revocation status from the certificate table can
+   * follow the events after this number.
+   *
+   * @return the sequence number of the last settled event, or 0 if there is none
+   */
+  public long getSettledSequence() {
+    Long sequence = eventRepository.findMaxSequenceBefore(
+      System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(settleSeconds));
+    return sequence == null ? 0L : sequence;
+  }
+
+  /**
+   * Get the oldest retained sequence number. All events with a lower sequence number have been deleted. The newest
+   * event is never deleted, so that this number is known also when no event is younger than the retention time.
+   *
+   * @return the oldest retained sequence number, or 0 if no event has been stored
+   */
+  public long getOldestRetainedSequence() {
+    Long sequence = eventRepository.findMinSequence();
+    return sequence == null ? 0L : sequence;
+  }
+
+  /**
+   * Get the sequence number of the last revocation event of an instance.
+   *
+   * @param instance the instance
+   * @return the last sequence number, or 0 if the instance has no events
+   */
+  public long getLastSequence(String instance) {
+    Long sequence = eventRepository.findMaxSequence(instance);
+    return sequence == null ? 0L : sequence;
+  }
+
+  /**
+   * Delete revocation events older than the retention time. Events are deleted up to the last event older than the
+   * retention time, so that the retained events always follow on from the oldest retained sequence number.
+   */
+  @Scheduled(initialDelay = 1, fixedDelay = 24, timeUnit = TimeUnit.HOURS)
+  public void deleteExpiredEvents() {
+    try {
+      Long lastExpired = eventRepository.findMaxSequenceBefore(
+        System.currentTimeMillis() - TimeUnit.DAYS.toMillis(retentionDays));
+      Long lastSequence = eventRepository.findMaxSequence();
+      if (lastExpired == null || lastSequence == null) {
+        return;
+      }
+      int deleted = eventRepository.deleteBySequenceLessThanEqual(Math.min(lastExpired, lastSequence - 1));
+      log.debug("Deleted {} revocation events older than {} days", deleted, retentionDays);
+    }
+    catch (Exception ex) {
+      log.warn("Failed to delete old revocation events", ex);
+    }
+  }
+
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.db;
+
+import lombok.Value;
+
+import java.util.List;
+
+/**
+ * The certificates revoked by one revocation statement of a list of certificates.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@Value
+public class DBRevokedCertificates {
+
+  /** The serial numbers (as stored hex strings) of the revoked certificates that were not revoked before */
+  List<String> revoked;
+
+  /** The serial numbers (as stored hex strings) of the certificates moved from certificate hold to the new reason */
+  List<String> revokedFromHold;
+
+  /** False if some certificates were changed by someone else between selecting and revoking them */
+  boolean complete;
+
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.db;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * JPA repository for accepted signed management requests
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+public interface DBSignedRequestJPARepository extends JpaRepository<DBSignedRequestRecord, String> {
+
+  // insert an accepted request, failing on the primary key if the request has already been accepted
+  @Transactional
+  @Modifying
+  @Query(value = "insert into signed_request (request_digest, instance, accepted_time) "
+    + "values (:requestDigest, :instance, :acceptedTime)", nativeQuery = true)
+  int insertAcceptedRequest(@Param("requestDigest") String requestDigest, @Param("instance") String instance,
+    @Param("acceptedTime") long acceptedTime);
+
+  // delete all requests accepted before a time
+  @Transactional
+  @Modifying
+  @Query("delete from DBSignedRequestRecord r where r.acceptedTime < :acceptedTime")
+  int deleteByAcceptedTimeBefore(@Param("acceptedTime") long acceptedTime);
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.db;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+
+/**
+ * Record of an accepted signed management request. The digest of the request signature is the primary key, so that
+ * each signed request is only accepted once by all nodes sharing the database.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@Entity
+@Table(name = "signed_request")
+@NoArgsConstructor
+@AllArgsConstructor
+public class DBSignedRequestRecord {
+
+  @Id
+  @Column(name = "request_digest", length = 64)
+  @Getter private String requestDigest;
+  @Column(name = "instance", nullable = false)
+  @Getter private String instance;
+  @Column(name = "accepted_time")
+  @Getter private long acceptedTime;
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.db;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stores the accepted signed management requests in the database, so that a signed request is only accepted once by
+ * all nodes sharing the database.
+ *
+ * <p>A request is accepted by inserting the digest of its signature, which is the primary key of the table. The insert
+ * fails if any node has already accepted the request. Requests are only kept for twice the maximum request age, as
+ * older requests are rejected by their signing time.</p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@Slf4j
+@Component
+@Profile({"!nodb"})
+public class DBSignedRequestStore {
+
+  private final DBSignedRequestJPARepository jpaRepository;
+
+  @Value("${ca-service.bulk-revocation.max-request-age-seconds:300}") int maxRequestAgeSeconds;
+
+  /**
+   * Constructor.
+   *
+   * @param jpaRepository the table of accepted requests
+   */
+  public DBSignedRequestStore(DBSignedRequestJPARepository jpaRepository) {
+    this.jpaRepository = jpaRepository;
+  }
+
+  /**
+   * Store an accepted request, unless it has already been accepted.
+   *
+   * @param requestDigest the digest identifying the request
+   * @param instance the instance the request applies to
+   * @param acceptedTime the time the request was accepted
+   * @return true if the request was stored, false if it has already been accepted
+   */
+  public boolean addAcceptedRequest(String requestDigest, String instance, long acceptedTime) {
+    try {
+      return jpaRepository.insertAcceptedRequest(requestDigest, instance, acceptedTime) == 1;
+    }
+    catch (DataIntegrityViolationException ex) {
+      log.debug("Signed request {} has already been accepted", requestDigest);
+      return false;
+    }
+  }
+
+  /**
+   * Delete requests accepted before twice the maximum request age.
+   */
+  @Scheduled(initialDelay = 1, fixedDelay = 1, timeUnit = TimeUnit.HOURS)
+  public void deleteExpiredRequests() {
+    try {
+      int deleted = jpaRepository.deleteByAcceptedTimeBefore(
+        System.currentTimeMillis() - 2 * TimeUnit.SECONDS.toMillis(maxRequestAgeSeconds));
+      log.debug("Deleted {} accepted signed requests", deleted);
+    }
+    catch (Exception ex) {
+      log.warn("Failed to delete old signed requests", ex);
+    }
+  }
+
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.db;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+import se.swedenconnect.ca.engine.ca.repository.CARepository;
+import se.swedenconnect.ca.headless.ca.migration.MigratingCARepository;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Removes expired certificates from all database CA repositories in the background.
+ *
+ * <p>Each run sweeps the expired certificates of each instance in expiry date order, one range of expiry dates at a
+ * time, and in small batches. The number of removed certificates per second is limited, and each run stops when its
+ * time budget is used, leaving the remaining certificates for the next run. This spreads the removal of expired
+ * certificates over time, so that it does not compete with the issuance of certificates for database resources. The
+ * number of certificates waiting to be removed from each instance is available as a metric.</p>
+ *
+ * <p>The sweep runs on a thread of its own, since it sleeps to limit the removal rate and would otherwise hold up other
+ * scheduled tasks of the service for up to its time budget.</p>
+ *
+ * <p>Instances that are being migrated from a file repository have their expired certificates removed from both
+ * repositories in one step, as the file repository can not remove them in batches.</p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@Slf4j
+@Component
+@Profile({"!nodb"})
+public class ExpiredCertificateSweeper implements MeterBinder {
+
+  /** Name of the gauge holding the number of expired certificates waiting to be removed */
+  public static final String BACKLOG_METRIC = "ca.expiry.sweep.backlog";
+
+  private final Map<String, CARepository> caRepositoryMap;
+  private final Map<String, AtomicLong> backlog = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "expiry-sweep");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  @Value("${ca-service.repository.expiry-sweep.enabled:false}") boolean enabled;
+  @Value("${ca-service.repository.expiry-sweep.interval-seconds:60}") int intervalSeconds;
+  @Value("${ca-service.config.remove-expired-grace-seconds:86400}") int gracePeriodSeconds;
+  @Value("${ca-service.repository.expiry-sweep.rows-per-second:100}") int rowsPerSecond;
+  @Value("${ca-service.repository.expiry-sweep.batch-size:50}") int batchSize;
+  @Value("${ca-service.repository.expiry-sweep.max-run-seconds:10}") int maxRunSeconds;
+  @Value("${ca-service.repository.expiry-sweep.range-hours:24}") int rangeHours;
+
+  /**
+   * Constructor.
+   *
+   * @param caRepositoryMap CA repositories for each instance
+   */
+  public ExpiredCertificateSweeper(Map<String, CARepository> caRepositoryMap) {
+    this.caRepositoryMap = caRepositoryMap;
+  }
+
+  /** {@inheritDoc} */
+  @Override public void bindTo(MeterRegistry registry) {
+    for (Map.Entry<String, CARepository> entry : caRepositoryMap.entrySet()) {
+      if (DBCertificateCounterReconciler.getDatabaseRepository(entry.getValue()) != null) {
+        Gauge.builder(BACKLOG_METRIC, getBacklog(entry.getKey()), AtomicLong::get)
+          .description("Number of expired certificates waiting to be removed as of the last sweep")
+          .tag("instance", entry.getKey())
+          .register(registry);
+      }
+    }
+  }
+
+  private AtomicLong getBacklog(String instance) {
+    return backlog.computeIfAbsent(instance, key -> new AtomicLong());
+  }
+
+  /**
+   * Start the background removal of expired certificates if enabled.
+   */
+  @PostConstruct
+  public void start() {
+    if (enabled) {
+      long interval = Math.max(1, intervalSeconds);
+      scheduler.scheduleWithFixedDelay(this::sweepExpiredCertificates, interval, interval, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Stop the background removal of expired certificates, interrupting a run in progress.
+   */
+  @PreDestroy
+  public void close() {
+    scheduler.shutdownNow();
+  }
+
+  /**
+   * Remove expired certificates from each instance within the time budget of this run.
+   */
+  void sweepExpiredCertificates() {
+    long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(maxRunSeconds);
+    for (Map.Entry<String, CARepository> entry : caRepositoryMap.entrySet()) {
+      try {
+        if (entry.getValue() instanceof DBCARepository dbcaRepository) {
+          sweepInstance(entry.getKey(), dbcaRepository, deadline);
+        }
+        else if (entry.getValue() instanceof MigratingCARepository migratingRepository) {
+          sweepMigratingInstance(entry.getKey(), migratingRepository);
+        }
+      }
+      catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      catch (Exception ex) {
+        log.warn("Failed to remove expired certificates for instance {}", entry.getKey(), ex);
+      }
+    }
+  }
+
+  /**
+   * Remove expired certificates from an instance that is being migrated from a file repository. Removing them from the
+   * database repository alone would make the migration copy them back from the file repository, so they are removed
+   * from both repositories by the migrating repository.
+   */
+  private void sweepMigratingInstance(String instance, MigratingCARepository migratingRepository) throws IOException {
+    long maxExpiryDate = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(gracePeriodSeconds);
+    int removed = migratingRepository.removeExpiredCerts(gracePeriodSeconds).size();
+    int remaining = migratingRepository.getTarget().countExpiredCertificates(maxExpiryDate);
+    getBacklog(instance).set(remaining);
+    if (removed > 0) {
+      log.info("Removed {} expired certificates from migrating instance {}, {} remaining", removed, instance,
+        remaining);
+    }
+  }
+
+  private void sweepInstance(String instance, DBCARepository dbcaRepository, long deadline)
+    throws InterruptedException {
+    long maxExpiryDate = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(gracePeriodSeconds);
+    long rangeMillis = TimeUnit.HOURS.toMillis(Math.max(1, rangeHours));
+    int removed = 0;
+    Long fromExpiryDate = dbcaRepository.getMinExpiryDate();
+    while (fromExpiryDate != null && fromExpiryDate < maxExpiryDate && System.currentTimeMillis() < deadline) {
+      long toExpiryDate = Math.min(fromExpiryDate + rangeMillis, maxExpiryDate);
+      long batchStartTime = System.nanoTime();
+      int count = dbcaRepository.removeExpiredCertificates(fromExpiryDate, toExpiryDate, Math.max(1, batchSize));
+      removed += count;
+      if (count < batchSize) {
+        // This range is exhausted. Skip any empty ranges by continuing from the next remaining certificate
+        fromExpiryDate = count == 0 ? dbcaRepository.getMinExpiryDate() : Long.valueOf(toExpiryDate);
+      }
+      long remainingNanos = TimeUnit.SECONDS.toNanos(count) / Math.max(1, rowsPerSecond)
+        - (System.nanoTime() - batchStartTime);
+      if (remainingNanos > 0) {
+        TimeUnit.NANOSECONDS.sleep(remainingNanos);
+      }
+    }
+    int remaining = dbcaRepository.countExpiredCertificates(maxExpiryDate);
+    getBacklog(instance).set(remaining);
+    if (removed > 0) {
+      log.info("Removed {} expired certificates from instance {}, {} remaining", removed, instance, remaining);
+    }
+  }
+
+}
@@ -0,0 +1,694 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.file;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.NonNull;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.bouncycastle.asn1.x509.CRLNumber;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.cert.X509CRLHolder;
+import org.bouncycastle.cert.X509CertificateHolder;
+import se.swedenconnect.ca.engine.ca.repository.CARepository;
+import se.swedenconnect.ca.engine.ca.repository.CertificateRecord;
+import se.swedenconnect.ca.engine.ca.repository.SortBy;
+import se.swedenconnect.ca.engine.ca.repository.impl.SerializableCertificateRecord;
+import se.swedenconnect.ca.engine.revocation.CertificateRevocationException;
+import se.swedenconnect.ca.engine.revocation.crl.CRLMetadata;
+import se.swedenconnect.ca.engine.revocation.crl.CRLRevocationDataProvider;
+import se.swedenconnect.ca.engine.revocation.crl.RevokedCertificate;
+import se.swedenconnect.ca.headless.ca.RepositoryFileUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * File based CA repository storing changes in an append-only log.
+ *
+ * <p>The repository consists of a snapshot file, holding all certificate records in the same format as the JSON file
+ * of {@link se.swedenconnect.ca.service.base.ca.LocalJsonCARepository}, and a log file where each change since the
+ * snapshot is appended as one JSON line. Adding or revoking a certificate therefore costs one append regardless of the
+ * size of the repository. Appends are forced to disk before the change is acknowledged, and concurrent changes share a
+ * single force of the log (group commit).</p>
+ *
+ * <p>When the log holds a configured number of changes, the repository is compacted in the background. The log is
+ * rotated to a compacting log file, so that new changes continue to be appended to a new log while the snapshot is
+ * atomically replaced with the current content. The compacting log is deleted when the new snapshot is written. At
+ * startup, the snapshot is loaded and the compacting log, if present, and the log are replayed on top of it. A change
+ * that was only partially written to the end of the log before a crash was never acknowledged, and is discarded.</p>
+ *
+ * <p>The snapshot alone does not hold the complete content of the repository while the log holds changes. Tools and
+ * repository types that only read the snapshot must therefore only be used when the log is empty, which is the case
+ * after the repository has been closed or after {@link #compactFiles(File, File, File)}.</p>
+ *
+ * <p>All certificate records are held in memory in a hash index by serial number. Sorted views of the serial numbers
+ * in serial number and issue date order serve {@link #getCertificateRange(int, int, boolean, SortBy, boolean)} without
+ * sorting the repository for each page.</p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@Slf4j
+public class LogStructuredCARepository implements CARepository, CRLRevocationDataProvider, Closeable {
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+  private static final byte NEWLINE = '\n';
+  /** Suffix of the log file holding the changes being compacted into a new snapshot */
+  public static final String COMPACTING_LOG_SUFFIX = ".compacting";
+
+  private final File crlFile;
+  private final File snapshotFile;
+  private final File logFile;
+  private final File compactingLogFile;
+  private final int compactionThreshold;
+  private final Map<BigInteger, SerializableCertificateRecord> certificateIndex = new ConcurrentHashMap<>();
+  private final NavigableSet<BigInteger> serialNumberView = new ConcurrentSkipListSet<>();
+  private final NavigableSet<IssueDateKey> issueDateView = new ConcurrentSkipListSet<>();
+  /** The channel of the current log. Guarded by this for writes and by syncLock for forcing */
+  private FileChannel logChannel;
+  private final Object syncLock = new Object();
+  private final ExecutorService compactionExecutor = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "repository-compaction");
+    thread.setDaemon(true);
+    return thread;
+  });
+  /** True while a background compaction is scheduled or running. Guarded by this */
+  private boolean compactionPending = false;
+  private volatile int revokedCount = 0;
+  private volatile CRLMetadata crlMetadata;
+  private boolean criticalError = false;
+  /** The number of changes in the log since the last compaction */
+  private long logEntryCount = 0;
+  /** Sequence number of the last change written to the log. Guarded by this */
+  private long writtenSequence = 0;
+  /** Sequence number of the last change forced to disk. Guarded by syncLock */
+  private long syncedSequence = 0;
+
+  /**
+   * Constructor loading the repository from its snapshot and log files.
+   *
+   * @param crlFile the file holding the current CRL
+   * @param snapshotFile the snapshot file
+   * @param logFile the log file
+   * @param compactionThreshold the number of changes in the log that triggers compaction
+   * @throws IOException error loading the repository
+   */
+  public LogStructuredCARepository(File crlFile, File snapshotFile, File logFile, int compactionThreshold)
+    throws IOException {
+    this.crlFile = crlFile;
+    this.snapshotFile = snapshotFile;
+    this.logFile = logFile;
+    this.compactingLogFile = getCompactingLogFile(logFile);
+    this.compactionThreshold = Math.max(1, compactionThreshold);
+    Files.createDirectories(snapshotFile.getAbsoluteFile().getParentFile().toPath());
+    Files.createDirectories(crlFile.getAbsoluteFile().getParentFile().toPath());
+
+    long startTime = System.currentTimeMillis();
+    if (snapshotFile.exists()) {
+      List<SerializableCertificateRecord> records = mapper.readValue(snapshotFile, new TypeReference<>() {
+      });
+      records.forEach(this::putRecord);
+    }
+    if (compactingLogFile.exists()) {
+      // A background compaction was interrupted. Its changes are replayed before the changes of the current log
+      replayLog(compactingLogFile);
+    }
+    long validLogLength = replayLog(logFile);
+    this.logChannel = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    if (logChannel.size() > validLogLength) {
+      log.warn("Discarding {} bytes of incomplete changes at the end of the repository log {}",
+        logChannel.size() - validLogLength, logFile.getName());
+      logChannel.truncate(validLogLength);
+    }
+    logChannel.position(validLogLength);
+    if (logEntryCount > 0 || compactingLogFile.exists()) {
+      // Start from a compact state so that the log only holds changes made by this run
+      compact();
+    }
+    log.info("Log structured CA repository with {} certificates loaded in {} ms", certificateIndex.size(),
+      System.currentTimeMillis() - startTime);
+  }
+
+  /**
+   * Get the file holding the changes being compacted into a new snapshot.
+   *
+   * @param logFile the log file
+   * @return the compacting log file
+   */
+  public static File getCompactingLogFile(File logFile) {
+    return new File(logFile.getPath() + COMPACTING_LOG_SUFFIX);
+  }
+
+  /**
+   * Test if the log files of a repository hold changes that are not in its snapshot.
+   *
+   * @param logFile the log file
+   * @return true if the log or the compacting log holds data
+   */
+  public static boolean hasPendingChanges(File logFile) {
+    return logFile.length() > 0 || getCompactingLogFile(logFile).exists();
+  }
+
+  /**
+   * Compact any changes in the log files of a repository into its snapshot, so that the snapshot holds the complete
+   * content of the repository. Used before the snapshot is read by a repository or tool that does not read the log.
+   *
+   * @param crlFile the file holding the current CRL
+   * @param snapshotFile the snapshot file
+   * @param logFile the log file
+   * @throws IOException error compacting the repository
+   */
+  public static void compactFiles(File crlFile, File snapshotFile, File logFile) throws IOException {
+    if (hasPendingChanges(logFile)) {
+      log.info("Compacting pending changes of repository log {} into {}", logFile.getName(), snapshotFile.getName());
+      new LogStructuredCARepository(crlFile, snapshotFile, logFile, Integer.MAX_VALUE).close();
+    }
+  }
+
+  /**
+   * Replay the changes in a log on top of the loaded snapshot.
+   *
+   * @param file the log file
+   * @return the length of the log up to and including the last complete change
+   * @throws IOException the log holds a corrupt change
+   */
+  private long replayLog(File file) throws IOException {
+    if (!file.exists()) {
+      return 0;
+    }
+    byte[] logData = Files.readAllBytes(file.toPath());
+    int lineStart = 0;
+    for (int i = 0; i < logData.length; i++) {
+      if (logData[i] != NEWLINE) {
+        continue;
+      }
+      if (i > lineStart) {
+        RepositoryLogEntry entry;
+        try {
+          entry = mapper.readValue(Arrays.copyOfRange(logData, lineStart, i), RepositoryLogEntry.class);
+        }
+        catch (IOException ex) {
+          throw new IOException("Corrupt entry at offset " + lineStart + " in repository log " + file.getName(), ex);
+        }
+        applyLogEntry(entry);
+        logEntryCount++;
+      }
+      lineStart = i + 1;
+    }
+    // Any data after the last newline is a change that was never completely written
+    return lineStart;
+  }
+
+  private void applyLogEntry(RepositoryLogEntry entry) {
+    switch (entry.getOperation()) {
+    case add -> putRecord(entry.getRecord());
+    case revoke -> {
+      SerializableCertificateRecord record = certificateIndex.get(entry.getSerialNumber());
+      if (record != null) {
+        putRecord(withRevocationStatus(record, entry.isRevoked(), entry.getReason(), entry.getRevocationTime()));
+      }
+    }
+    case remove -> removeRecord(entry.getSerialNumber());
+    }
+  }
+
+  private void putRecord(SerializableCertificateRecord record) {
+    SerializableCertificateRecord oldRecord = certificateIndex.put(record.getSerialNumber(), record);
+    if (oldRecord == null) {
+      serialNumberView.add(record.getSerialNumber());
+      issueDateView.add(new IssueDateKey(record.getIssueDate(), record.getSerialNumber()));
+    }
+    revokedCount += (record.isRevoked() ? 1 : 0) - (oldRecord != null && oldRecord.isRevoked() ? 1 : 0);
+  }
+
+  private void removeRecord(BigInteger serialNumber) {
+    SerializableCertificateRecord oldRecord = certificateIndex.remove(serialNumber);
+    if (oldRecord == null) {
+      return;
+    }
+    serialNumberView.remove(serialNumber);
+    issueDateView.remove(new IssueDateKey(oldRecord.getIssueDate(), serialNumber));
+    if (oldRecord.isRevoked()) {
+      revokedCount--;
+    }
+  }
+
+  private static SerializableCertificateRecord withRevocationStatus(CertificateRecord record, boolean revoked,
+    Integer reason, Date revocationTime) {
+    // Records are replaced rather than modified, so that readers never see a partially updated record
+    return new SerializableCertificateRecord(record.getCertificate(), record.getSerialNumber(), record.getIssueDate(),
+      record.getExpiryDate(), revoked, reason, revocationTime);
+  }
+
+  /**
+   * Append a change to the log without forcing it to disk. Must be called while holding the lock of this repository.
+   *
+   * @param entry the change
+   * @return the sequence number of the change
+   * @throws IOException error writing to the log
+   */
+  private long appendToLog(RepositoryLogEntry entry) throws IOException {
+    if (criticalError) {
+      throw new IOException(
+        "This repository encountered a critical error and is not operational - unable to store changes");
+    }
+    try {
+      byte[] entryBytes = mapper.writeValueAsBytes(entry);
+      ByteBuffer buffer = ByteBuffer.allocate(entryBytes.length + 1).put(entryBytes).put(NEWLINE).flip();
+      while (buffer.hasRemaining()) {
+        logChannel.write(buffer);
+      }
+      logEntryCount++;
+      return ++writtenSequence;
+    }
+    catch (IOException ex) {
+      log.error("Error writing to the CA repository log {}", logFile.getName(), ex);
+      criticalError = true;
+      throw ex;
+    }
+  }
+
+  /**
+   * Wait until a change is forced to disk. The first waiting thread forces all changes written so far, which lets
+   * concurrent changes share a single force of the log.
+   *
+   * @param sequence the sequence number of the change
+   * @throws IOException error forcing the log to disk
+   */
+  private void syncLog(long sequence) throws IOException {
+    synchronized (syncLock) {
+      if (syncedSequence >= sequence) {
+        return;
+      }
+      long sequenceToSync;
+      synchronized (this) {
+        sequenceToSync = writtenSequence;
+      }
+      logChannel.force(false);
+      syncedSequence = sequenceToSync;
+    }
+  }
+
+  /**
+   * Schedule a background compaction when the log holds enough changes. Compaction never runs on the thread making a
+   * change, so that changes are not delayed by writing the snapshot.
+   */
+  private synchronized void compactIfNeeded() {
+    if (logEntryCount >= compactionThreshold && !compactionPending && !criticalError) {
+      compactionPending = true;
+      compactionExecutor.execute(this::compactInBackground);
+    }
+  }
+
+  /**
+   * Compact the repository while changes continue. The log is rotated to the compacting log, after which the snapshot
+   * is written from the current content without holding the lock of the repository. The snapshot therefore holds at
+   * least all changes of the compacting log, and possibly some later changes that are also in the new log. Replaying
+   * both logs on such a snapshot restores the current content, as replaying a change that is already applied leaves
+   * the repository unchanged.
+   */
+  private void compactInBackground() {
+    long startTime = System.currentTimeMillis();
+    try {
+      long compactedEntryCount = rotateLog();
+      writeSnapshot();
+      Files.deleteIfExists(compactingLogFile.toPath());
+      log.debug("Compacted {} changes into repository snapshot {} in {} ms", compactedEntryCount,
+        snapshotFile.getName(), System.currentTimeMillis() - startTime);
+    }
+    catch (IOException | RuntimeException ex) {
+      // The changes remain in the log files and are compacted by the next compaction or at the next start
+      log.error("Error compacting the CA repository log {}", logFile.getName(), ex);
+    }
+    finally {
+      synchronized (this) {
+        compactionPending = false;
+      }
+    }
+  }
+
+  /**
+   * Move the current log to the compacting log and continue with an empty log. All changes in the current log are
+   * forced to disk before it is moved. If a compacting log remains from a failed compaction, the current log is kept,
+   * and the next snapshot covers the changes of both.
+   *
+   * @return the number of changes moved to the compacting log
+   * @throws IOException error rotating the log
+   */
+  private long rotateLog() throws IOException {
+    synchronized (syncLock) {
+      synchronized (this) {
+        if (compactingLogFile.exists()) {
+          return 0;
+        }
+        logChannel.force(false);
+        syncedSequence = writtenSequence;
+        logChannel.close();
+        Files.move(logFile.toPath(), compactingLogFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        logChannel = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        long rotatedEntryCount = logEntryCount;
+        logEntryCount = 0;
+        return rotatedEntryCount;
+      }
+    }
+  }
+
+  /**
+   * Write the current content of the repository to the snapshot file.
+   *
+   * @throws IOException error writing the snapshot
+   */
+  private void writeSnapshot() throws IOException {
+    List<SerializableCertificateRecord> records = issueDateView.stream()
+      .map(issueDateKey -> certificateIndex.get(issueDateKey.getSerialNumber()))
+      // A record may be removed between reading the view and the index
+      .filter(Objects::nonNull)
+      .collect(Collectors.toList());
+    RepositoryFileUtils.writeDurably(snapshotFile, mapper.writeValueAsBytes(records));
+  }
+
+  /**
+   * Replace the snapshot with the current content of the repository and truncate the log while holding the lock of
+   * the repository. Only used at startup and when the repository is closed. If the service stops after the snapshot is
+   * replaced but before the logs are removed, the changes in the logs are replayed on the new snapshot at the next
+   * start, which leaves the repository unchanged.
+   *
+   * @throws IOException error writing the snapshot
+   */
+  private synchronized void compact() throws IOException {
+    long startTime = System.currentTimeMillis();
+    writeSnapshot();
+    Files.deleteIfExists(compactingLogFile.toPath());
+    logChannel.truncate(0);
+    logChannel.position(0);
+    log.debug("Compacted {} changes into repository snapshot {} with {} certificates in {} ms", logEntryCount,
+      snapshotFile.getName(), certificateIndex.size(), System.currentTimeMillis() - startTime);
+    logEntryCount = 0;
+  }
+
+  /** {@inheritDoc} */
+  @Override public List<BigInteger> getAllCertificates() {
+    return new ArrayList<>(certificateIndex.keySet());
+  }
+
+  /** {@inheritDoc} */
+  @Override public CertificateRecord getCertificate(BigInteger serialNumber) {
+    return serialNumber == null ? null : certificateIndex.get(serialNumber);
+  }
+
+  /** {@inheritDoc} */
+  @Override public void addCertificate(X509CertificateHolder certificate) throws IOException {
+    if (certificate == null) {
+      return;
+    }
+    long sequence;
+    synchronized (this) {
+      if (certificateIndex.containsKey(certificate.getSerialNumber())) {
+        throw new IOException("This certificate already exists in the certificate repository");
+      }
+      SerializableCertificateRecord record = new SerializableCertificateRecord(certificate.getEncoded(),
+        certificate.getSerialNumber(), certificate.getNotBefore(), certificate.getNotAfter(), false, null, null);
+      sequence = appendToLog(RepositoryLogEntry.builder()
+        .operation(RepositoryLogEntry.Operation.add)
+        .record(record)
+        .build());
+      putRecord(record);
+    }
+    syncLog(sequence);
+    compactIfNeeded();
+  }
+
+  /** {@inheritDoc} */
+  @Override public void revokeCertificate(BigInteger serialNumber, int reason, Date revocationTime)
+    throws CertificateRevocationException {
+    if (serialNumber == null) {
+      throw new CertificateRevocationException("Null Serial number");
+    }
+    try {
+      long sequence;
+      synchronized (this) {
+        SerializableCertificateRecord record = certificateIndex.get(serialNumber);
+        if (record == null) {
+          throw new CertificateRevocationException("No such certificate (" + serialNumber.toString(16) + ")");
+        }
+        SerializableCertificateRecord updatedRecord = getRevokedRecord(record, reason, revocationTime);
+        sequence = appendToLog(RepositoryLogEntry.builder()
+          .operation(RepositoryLogEntry.Operation.revoke)
+          .serialNumber(serialNumber)
+          .revoked(updatedRecord.isRevoked())
+          .reason(updatedRecord.getReason())
+          .revocationTime(updatedRecord.getRevocationTime())
+          .build());
+        putRecord(updatedRecord);
+      }
+      syncLog(sequence);
+      compactIfNeeded();
+    }
+    catch (IOException ex) {
+      throw new CertificateRevocationException("Unable to save revoked status data", ex);
+    }
+  }
+
+  /**
+   * Get the record of a certificate after a revocation request, applying the same rules as the other CA repository
+   * implementations.
+   */
+  private SerializableCertificateRecord getRevokedRecord(SerializableCertificateRecord record, int reason,
+    Date revocationTime) throws CertificateRevocationException {
+    if (record.isRevoked()) {
+      if (record.getReason() != null && record.getReason() == CRLReason.certificateHold) {
+        if (CRLReason.removeFromCRL == reason) {
+          log.debug("Removing certificate from certificateHold");
+          return withRevocationStatus(record, false, null, null);
+        }
+        log.debug("Modifying revoked certificate from certificateHold to reason {}", reason);
+        return withRevocationStatus(record, true, reason, revocationTime);
+      }
+      if (CRLReason.removeFromCRL == reason) {
+        throw new CertificateRevocationException(
+          "Revocation removal request denied since certificate has already been permanently revoked");
+      }
+      throw new CertificateRevocationException(
+        "Revocation request denied since certificate is already revoked with reason other than certificate hold");
+    }
+    if (CRLReason.removeFromCRL == reason) {
+      throw new CertificateRevocationException("Removal request for a certificate that has not been revoked");
+    }
+    return withRevocationStatus(record, true, reason, revocationTime);
+  }
+
+  /** {@inheritDoc} */
+  @Override public CRLRevocationDataProvider getCRLRevocationDataProvider() {
+    return this;
+  }
+
+  /** {@inheritDoc} */
+  @Override public int getCertificateCount(boolean notRevoked) {
+    return notRevoked ? certificateIndex.size() - revokedCount : certificateIndex.size();
+  }
+
+  /** {@inheritDoc} */
+  @Override public List<CertificateRecord> getCertificateRange(int page, int pageSize, boolean notRevoked,
+    SortBy sortBy, boolean descending) {
+    Stream<BigInteger> sortedSerialNumbers = sortBy == SortBy.serialNumber
+      ? (descending ? serialNumberView.descendingSet() : serialNumberView).stream()
+      : (descending ? issueDateView.descendingSet() : issueDateView).stream().map(IssueDateKey::getSerialNumber);
+    return sortedSerialNumbers
+      .<CertificateRecord>map(certificateIndex::get)
+      // A record may be removed between reading the view and the index
+      .filter(Objects::nonNull)
+      .filter(certificateRecord -> !notRevoked || !certificateRecord.isRevoked())
+      .skip((long) Math.max(page, 0) * pageSize)
+      .limit(pageSize)
+      .collect(Collectors.toList());
+  }
+
+  /** {@inheritDoc} */
+  @Override public List<BigInteger> removeExpiredCerts(int gracePeriodSeconds) throws IOException {
+    Date expiredBefore = new Date(System.currentTimeMillis() - (1000L * gracePeriodSeconds));
+    List<BigInteger> removedSerialList = new ArrayList<>();
+    long sequence = 0;
+    synchronized (this) {
+      List<BigInteger> expiredSerialList = certificateIndex.values().stream()
+        .filter(certificateRecord -> certificateRecord.getExpiryDate().before(expiredBefore))
+        .map(CertificateRecord::getSerialNumber)
+        .collect(Collectors.toList());
+      for (BigInteger serialNumber : expiredSerialList) {
+        sequence = appendToLog(RepositoryLogEntry.builder()
+          .operation(RepositoryLogEntry.Operation.remove)
+          .serialNumber(serialNumber)
+          .build());
+        removeRecord(serialNumber);
+        removedSerialList.add(serialNumber);
+      }
+    }
+    if (!removedSerialList.isEmpty()) {
+      syncLog(sequence);
+      compactIfNeeded();
+    }
+    return removedSerialList;
+  }
+
+  /** {@inheritDoc} */
+  @Override public List<RevokedCertificate> getRevokedCertificates() {
+    return certificateIndex.values().stream()
+      .filter(CertificateRecord::isRevoked)
+      .map(certificateRecord -> new RevokedCertificate(certificateRecord.getSerialNumber(),
+        certificateRecord.getRevocationTime(), certificateRecord.getReason()))
+      .collect(Collectors.toList());
+  }
+
+  /** {@inheritDoc} */
+  @Override public BigInteger getNextCrlNumber() {
+    return getCurrentCRLMetadata().getCrlNumber().add(BigInteger.ONE);
+  }
+
+  /** {@inheritDoc} */
+  @Override public synchronized void publishNewCrl(X509CRLHolder crl) {
+    try {
+      RepositoryFileUtils.writeAtomically(crlFile, crl.getEncoded());
+      this.crlMetadata = getCrlMetadata(crl);
+    }
+    catch (IOException e) {
+      throw new RuntimeException("Critical error attempting to store CRL file", e);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override public X509CRLHolder getCurrentCrl() {
+    try (InputStream crlStream = Files.newInputStream(crlFile.toPath())) {
+      return new X509CRLHolder(crlStream);
+    }
+    catch (Exception e) {
+      log.debug("No current CRL is available. Returning null");
+      return null;
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override public CRLMetadata getCurrentCRLMetadata() {
+    CRLMetadata currentCrlMetadata = this.crlMetadata;
+    if (currentCrlMetadata != null) {
+      return currentCrlMetadata;
+    }
+    synchronized (this) {
+      if (this.crlMetadata == null) {
+        X509CRLHolder currentCrl = getCurrentCrl();
+        try {
+          this.crlMetadata = currentCrl != null ? getCrlMetadata(currentCrl) : null;
+        }
+        catch (IOException ex) {
+          log.warn("Unable to read CRL metadata from current CRL", ex);
+        }
+        if (this.crlMetadata == null) {
+          log.info("Starting new CRL sequence with CRL number 0");
+          this.crlMetadata = CRLMetadata.builder()
+            .crlNumber(BigInteger.ZERO)
+            .issueTime(Instant.ofEpochMilli(0L))
+            .nextUpdate(Instant.ofEpochMilli(0L))
+            .revokedCertCount(0)
+            .build();
+        }
+      }
+      return this.crlMetadata;
+    }
+  }
+
+  private static CRLMetadata getCrlMetadata(X509CRLHolder crl) throws IOException {
+    Extension crlNumberExtension = crl.getExtension(Extension.cRLNumber);
+    if (crlNumberExtension == null) {
+      throw new IOException("CRL has no CRL number");
+    }
+    return CRLMetadata.builder()
+      .crlNumber(CRLNumber.getInstance(crlNumberExtension.getParsedValue()).getCRLNumber())
+      .issueTime(crl.getThisUpdate().toInstant())
+      .nextUpdate(crl.getNextUpdate().toInstant())
+      .revokedCertCount(crl.getRevokedCertificates().size())
+      .build();
+  }
+
+  /**
+   * Key of the issue date view, ordering certificates by issue date and then by serial number.
+   */
+  @Value
+  private static class IssueDateKey implements Comparable<IssueDateKey> {
+    @NonNull Date issueDate;
+    @NonNull BigInteger serialNumber;
+
+    @Override public int compareTo(IssueDateKey other) {
+      int issueDateOrder = issueDate.compareTo(other.issueDate);
+      return issueDateOrder != 0 ? issueDateOrder : serialNumber.compareTo(other.serialNumber);
+    }
+  }
+
+  /**
+   * Compact any changes in the log into the snapshot and close the log.
+   *
+   * @throws IOException error compacting the log
+   */
+  @Override public void close() throws IOException {
+    compactionExecutor.shutdown();
+    try {
+      if (!compactionExecutor.awaitTermination(60, TimeUnit.SECONDS)) {
+        log.warn("Background compaction of repository log {} did not complete", logFile.getName());
+      }
+    }
+    catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (this) {
+      if (!logChannel.isOpen()) {
+        return;
+      }
+      try {
+        if ((logEntryCount > 0 || compactingLogFile.exists()) && !criticalError) {
+          compact();
+        }
+      }
+      finally {
+        logChannel.close();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.file;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import se.swedenconnect.ca.engine.ca.repository.impl.SerializableCertificateRecord;
+
+import java.math.BigInteger;
+import java.util.Date;
+
+/**
+ * An entry in the log of a {@link LogStructuredCARepository}. Each entry records one change of the repository.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class RepositoryLogEntry {
+
+  /** The type of change */
+  private Operation operation;
+
+  /** The added certificate record, for {@link Operation#add} */
+  private SerializableCertificateRecord record;
+
+  /** The serial number of the revoked or removed certificate */
+  private BigInteger serialNumber;
+
+  /** The revocation status after a revocation change, for {@link Operation#revoke} */
+  private boolean revoked;
+
+  /** The revocation reason after a revocation change, for {@link Operation#revoke} */
+  private Integer reason;
+
+  /** The revocation time after a revocation change, for {@link Operation#revoke} */
+  private Date revocationTime;
+
+  /**
+   * Types of changes of the repository. Replaying a change that is already applied leaves the repository unchanged.
+   */
+  public enum Operation {
+    /** A certificate was added */
+    add,
+    /** The revocation status of a certificate was changed */
+    revoke,
+    /** A certificate was removed */
+    remove
+  }
+
+}
@@ -0,0 +1,434 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.migration;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.bouncycastle.cert.X509CRLHolder;
+import org.bouncycastle.cert.X509CertificateHolder;
+import se.swedenconnect.ca.engine.ca.repository.CARepository;
+import se.swedenconnect.ca.engine.ca.repository.CertificateRecord;
+import se.swedenconnect.ca.engine.ca.repository.SortBy;
+import se.swedenconnect.ca.engine.revocation.CertificateRevocationException;
+import se.swedenconnect.ca.engine.revocation.crl.CRLMetadata;
+import se.swedenconnect.ca.engine.revocation.crl.CRLRevocationDataProvider;
+import se.swedenconnect.ca.engine.revocation.crl.RevokedCertificate;
+import se.swedenconnect.ca.headless.ca.db.DBCARepository;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CA repository migrating the data of a file based repository to a database repository while the service is running.
+ *
+ * <p>All changes are written to both repositories, and a background task copies the records of the source repository
+ * to the target repository at a limited rate. When all records are copied, a verification pass compares every record
+ * of the two repositories. If the repositories match, reads are switched over to the target repository. Records that
+ * differ are copied again and verified in a new pass. Changes are still written to both repositories after the switch,
+ * so that the source repository remains a complete fallback until the service is restarted in database mode.</p>
+ *
+ * <p>Each batch of records is first compared without blocking changes, reading the target records with one query.
+ * Changes and the repair of the records that differ are serialized, so that a record copied by the background task
+ * can never overwrite a later change of the same record. Reads are switched while holding the same lock, and only if
+ * no change failed in the target repository since the verification pass started. Each operation resolves the primary
+ * and secondary repository once, so that a switch never splits an operation between the repositories.</p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@Slf4j
+public class MigratingCARepository implements CARepository, CRLRevocationDataProvider, Closeable {
+
+  /** Time to wait before a new copy pass when verification failed */
+  private static final long RETRY_DELAY_MILLIS = 60000L;
+
+  private final String instance;
+  private final CARepository source;
+  /** The database repository receiving the data */
+  @Getter private final DBCARepository target;
+  private final int batchSize;
+  private final int recordsPerSecond;
+  private final boolean switchReads;
+  private final Object writeLock = new Object();
+  private final ExecutorService migrationExecutor;
+  private final AtomicLong processedRecords = new AtomicLong();
+  /** The current state of the migration */
+  @Getter private volatile MigrationState state = MigrationState.PENDING;
+  /** True when reads are switched to the target repository. Only changed while holding writeLock */
+  private volatile boolean readFromTarget = false;
+  /** The number of changes that failed in the target repository. Guarded by writeLock */
+  private long failedTargetWrites = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param instance the CA instance
+   * @param source the repository holding the current data of the instance
+   * @param target the database repository receiving the data
+   * @param batchSize the number of records copied or verified in each batch
+   * @param recordsPerSecond the maximum number of records copied or verified per second
+   * @param switchReads true to read from the target repository once the migration is verified
+   */
+  public MigratingCARepository(String instance, CARepository source, DBCARepository target, int batchSize,
+    int recordsPerSecond, boolean switchReads) {
+    this.instance = instance;
+    this.source = source;
+    this.target = target;
+    this.batchSize = Math.max(1, batchSize);
+    this.recordsPerSecond = Math.max(1, recordsPerSecond);
+    this.switchReads = switchReads;
+    this.migrationExecutor = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "repository-migration-" + instance);
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Start copying records to the target repository in the background.
+   */
+  public void start() {
+    migrationExecutor.execute(this::migrate);
+  }
+
+  private void migrate() {
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        state = MigrationState.COPYING;
+        long startTime = System.currentTimeMillis();
+        long copied = runPass(true);
+        log.info("Instance {} - copied {} records to the database repository in {} ms", instance, copied,
+          System.currentTimeMillis() - startTime);
+
+        state = MigrationState.VERIFYING;
+        startTime = System.currentTimeMillis();
+        long failedTargetWritesBeforePass = getFailedTargetWrites();
+        long differences = runPass(false);
+        int sourceCount = source.getCertificateCount(false);
+        int targetCount = target.getCertificateCount(false);
+        if (differences == 0 && sourceCount == targetCount && completeMigration(failedTargetWritesBeforePass)) {
+          log.info("Instance {} - migration of {} records verified in {} ms{}", instance, sourceCount,
+            System.currentTimeMillis() - startTime, switchReads ? ". Reading from the database repository" : "");
+          return;
+        }
+        log.warn("Instance {} - verification found {} differing records ({} records in source, {} in database) - "
+          + "copying again in {} seconds", instance, differences, sourceCount, targetCount, RETRY_DELAY_MILLIS / 1000);
+        Thread.sleep(RETRY_DELAY_MILLIS);
+      }
+    }
+    catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      log.info("Instance {} - repository migration stopped", instance);
+    }
+    catch (Exception ex) {
+      state = MigrationState.FAILED;
+      log.error("Instance {} - repository migration failed", instance, ex);
+    }
+  }
+
+  private long getFailedTargetWrites() {
+    synchronized (writeLock) {
+      return failedTargetWrites;
+    }
+  }
+
+  /**
+   * Complete a verified migration and switch reads to the target repository, unless a change failed in the target
+   * repository during verification. Changes are blocked while the reads are switched.
+   *
+   * @param failedTargetWritesBeforePass the number of failed target changes when the verification pass started
+   * @return true if the migration is complete
+   */
+  private boolean completeMigration(long failedTargetWritesBeforePass) {
+    synchronized (writeLock) {
+      if (failedTargetWrites != failedTargetWritesBeforePass) {
+        // The failed change may concern a record that was verified before it failed
+        log.warn("Instance {} - {} changes failed in the database repository during verification", instance,
+          failedTargetWrites - failedTargetWritesBeforePass);
+        return false;
+      }
+      target.reconcileCertificateCounters();
+      readFromTarget = switchReads;
+      state = MigrationState.MIGRATED;
+      return true;
+    }
+  }
+
+  /**
+   * Compare all records of the source repository with the target repository
+   *
+   * @param repair true to copy records that are missing or different in the target repository
+   * @return the number of records that were missing or different in the target repository
+   * @throws InterruptedException if interrupted while throttling
+   */
+  private long runPass(boolean repair) throws InterruptedException {
+    List<BigInteger> serialNumbers = source.getAllCertificates();
+    long differences = 0;
+    processedRecords.set(0);
+    for (int batchStart = 0; batchStart < serialNumbers.size(); batchStart += batchSize) {
+      long batchStartTime = System.nanoTime();
+      List<BigInteger> batch = serialNumbers.subList(batchStart, Math.min(batchStart + batchSize, serialNumbers.size()));
+      differences += synchronizeBatch(batch, repair);
+      processedRecords.addAndGet(batch.size());
+      long minBatchNanos = TimeUnit.SECONDS.toNanos(batch.size()) / recordsPerSecond;
+      long remainingNanos = minBatchNanos - (System.nanoTime() - batchStartTime);
+      if (remainingNanos > 0) {
+        TimeUnit.NANOSECONDS.sleep(remainingNanos);
+      }
+    }
+    return differences;
+  }
+
+  /**
+   * Compare a batch of records of the source repository with the target repository. The records of the batch are
+   * compared without holding the lock, reading the target records with one query. Only the records that differ are
+   * read again and repaired while holding the lock, as they may have been changed after they were compared.
+   *
+   * @param batch the serial numbers of the batch
+   * @param repair true to copy records that are missing or different in the target repository
+   * @return the number of records that were missing or different in the target repository
+   */
+  private int synchronizeBatch(List<BigInteger> batch, boolean repair) {
+    List<BigInteger> differing = getDifferingRecords(batch);
+    if (differing.isEmpty()) {
+      return 0;
+    }
+    int differences = 0;
+    synchronized (writeLock) {
+      for (BigInteger serialNumber : differing) {
+        CertificateRecord sourceRecord = source.getCertificate(serialNumber);
+        if (sourceRecord == null) {
+          // Removed after the list of serial numbers was read
+          continue;
+        }
+        if (!isSameRecord(sourceRecord, target.getCertificate(serialNumber))) {
+          differences++;
+          if (repair) {
+            target.saveCertificateRecord(sourceRecord);
+          }
+        }
+      }
+    }
+    return differences;
+  }
+
+  /**
+   * Get the records of a batch that differ between the source and the target repository. Changes are written to both
+   * repositories while holding the lock, so a record that is the same in both repositories when it is read stays the
+   * same, unless a change fails in the target repository, which prevents the switch of reads. A record read while it
+   * is changed may differ, and is compared again while holding the lock.
+   *
+   * @param batch the serial numbers of the batch
+   * @return the serial numbers of the records that are missing or different in the target repository
+   */
+  private List<BigInteger> getDifferingRecords(List<BigInteger> batch) {
+    Map<BigInteger, CertificateRecord> targetRecords = target.getCertificateRecords(batch);
+    List<BigInteger> differing = new ArrayList<>();
+    for (BigInteger serialNumber : batch) {
+      CertificateRecord sourceRecord = source.getCertificate(serialNumber);
+      if (sourceRecord != null && !isSameRecord(sourceRecord, targetRecords.get(serialNumber))) {
+        differing.add(serialNumber);
+      }
+    }
+    return differing;
+  }
+
+  private static boolean isSameRecord(CertificateRecord sourceRecord, CertificateRecord targetRecord) {
+    return targetRecord != null
+      && Arrays.equals(sourceRecord.getCertificate(), targetRecord.getCertificate())
+      && Objects.equals(getTime(sourceRecord.getIssueDate()), getTime(targetRecord.getIssueDate()))
+      && Objects.equals(getTime(sourceRecord.getExpiryDate()), getTime(targetRecord.getExpiryDate()))
+      && sourceRecord.isRevoked() == targetRecord.isRevoked()
+      && Objects.equals(sourceRecord.getReason(), targetRecord.getReason())
+      && Objects.equals(getTime(sourceRecord.getRevocationTime()), getTime(targetRecord.getRevocationTime()));
+  }
+
+  private static Long getTime(Date date) {
+    return date == null ? null : date.getTime();
+  }
+
+  /**
+   * Get the number of records processed by the current copy or verification pass.
+   *
+   * @return the number of processed records
+   */
+  public long getProcessedRecords() {
+    return processedRecords.get();
+  }
+
+  private CARepository primary() {
+    return readFromTarget ? target : source;
+  }
+
+  private CARepository secondary(CARepository primary) {
+    return primary == target ? source : target;
+  }
+
+  /**
+   * Handle a failed change of the secondary repository. Must be called while holding writeLock.
+   */
+  private void secondaryWriteFailed(CARepository secondary, String operation, BigInteger serialNumber, Exception ex) {
+    // The record is copied again by the background task unless the migration is already verified
+    if (secondary == target) {
+      failedTargetWrites++;
+    }
+    log.warn("Instance {} - {} of certificate {} in the {} repository failed: {}", instance, operation,
+      serialNumber == null ? "" : serialNumber.toString(16), secondary == target ? "database" : "source",
+      ex.getMessage());
+  }
+
+  /** {@inheritDoc} */
+  @Override public List<BigInteger> getAllCertificates() {
+    return primary().getAllCertificates();
+  }
+
+  /** {@inheritDoc} */
+  @Override public CertificateRecord getCertificate(BigInteger serialNumber) {
+    return primary().getCertificate(serialNumber);
+  }
+
+  /** {@inheritDoc} */
+  @Override public void addCertificate(X509CertificateHolder certificate) throws IOException {
+    synchronized (writeLock) {
+      CARepository primary = primary();
+      CARepository secondary = secondary(primary);
+      primary.addCertificate(certificate);
+      try {
+        secondary.addCertificate(certificate);
+      }
+      catch (Exception ex) {
+        secondaryWriteFailed(secondary, "adding", certificate == null ? null : certificate.getSerialNumber(), ex);
+      }
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override public void revokeCertificate(BigInteger serialNumber, int reason, Date revocationTime)
+    throws CertificateRevocationException {
+    synchronized (writeLock) {
+      CARepository primary = primary();
+      CARepository secondary = secondary(primary);
+      primary.revokeCertificate(serialNumber, reason, revocationTime);
+      try {
+        secondary.revokeCertificate(serialNumber, reason, revocationTime);
+      }
+      catch (Exception ex) {
+        secondaryWriteFailed(secondary, "revocation", serialNumber, ex);
+      }
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override public CRLRevocationDataProvider getCRLRevocationDataProvider() {
+    return this;
+  }
+
+  /** {@inheritDoc} */
+  @Override public int getCertificateCount(boolean notRevoked) {
+    return primary().getCertificateCount(notRevoked);
+  }
+
+  /** {@inheritDoc} */
+  @Override public List<CertificateRecord> getCertificateRange(int page, int pageSize, boolean notRevoked,
+    SortBy sortBy, boolean descending) {
+    return primary().getCertificateRange(page, pageSize, notRevoked, sortBy, descending);
+  }
+
+  /** {@inheritDoc} */
+  @Override public List<BigInteger> removeExpiredCerts(int gracePeriodSeconds) throws IOException {
+    synchronized (writeLock) {
+      CARepository primary = primary();
+      CARepository secondary = secondary(primary);
+      List<BigInteger> removed = primary.removeExpiredCerts(gracePeriodSeconds);
+      try {
+        secondary.removeExpiredCerts(gracePeriodSeconds);
+      }
+      catch (Exception ex) {
+        secondaryWriteFailed(secondary, "removal of expired certificates", null, ex);
+      }
+      return removed;
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override public List<RevokedCertificate> getRevokedCertificates() {
+    return primary().getCRLRevocationDataProvider().getRevokedCertificates();
+  }
+
+  /** {@inheritDoc} */
+  @Override public BigInteger getNextCrlNumber() {
+    return primary().getCRLRevocationDataProvider().getNextCrlNumber();
+  }
+
+  /** {@inheritDoc} */
+  @Override public void publishNewCrl(X509CRLHolder crl) {
+    CARepository primary = primary();
+    primary.getCRLRevocationDataProvider().publishNewCrl(crl);
+    try {
+      // Keeps the CRL number sequence of both repositories in step
+      secondary(primary).getCRLRevocationDataProvider().publishNewCrl(crl);
+    }
+    catch (Exception ex) {
+      log.warn("Instance {} - publishing CRL in the secondary repository failed: {}", instance, ex.getMessage());
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override public X509CRLHolder getCurrentCrl() {
+    return primary().getCRLRevocationDataProvider().getCurrentCrl();
+  }
+
+  /** {@inheritDoc} */
+  @Override public CRLMetadata getCurrentCRLMetadata() {
+    return primary().getCRLRevocationDataProvider().getCurrentCRLMetadata();
+  }
+
+  /**
+   * Stop the background migration. The repositories are closed by their owner.
+   */
+  @Override public void close() {
+    migrationExecutor.shutdownNow();
+  }
+
+  /**
+   * States of the migration
+   */
+  public enum MigrationState {
+    /** Not yet started */
+    PENDING,
+    /** Copying records to the target repository */
+    COPYING,
+    /** Comparing all records of the source and target repositories */
+    VERIFYING,
+    /** All records are copied and verified */
+    MIGRATED,
+    /** Migration stopped by an error */
+    FAILED
+  }
+
+}
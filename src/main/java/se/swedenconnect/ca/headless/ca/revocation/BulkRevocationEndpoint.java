@@ -0,0 +1,146 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.revocation;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.actuate.endpoint.Access;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.actuate.endpoint.web.WebEndpointResponse;
+import org.springframework.stereotype.Component;
+import se.swedenconnect.ca.engine.revocation.CertificateRevocationException;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Management endpoint for revoking a large number of certificates of a CA instance in one operation.
+ *
+ * <p>The endpoint is disabled by default and is enabled with {@code management.endpoint.bulkrevoke.access=unrestricted}.
+ * The management port has no authentication of its own, so every request must be signed by a CMC client with
+ * {@code revoke} authorization for the instance (see {@link SignedRequestVerifier}). Certificates are revoked with a POST
+ * to {@code bulkrevoke/{instance}} on the management port, with a JSON body holding the Base64 encoded CMS SignedData
+ * in {@code signedRequest}. The signed content is a JSON object holding the instance, the revocation reason and either
+ * a comma separated list of hex serial numbers or an issue date range (ISO-8601 instants) and/or a subject filter.</p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@Slf4j
+@Component
+@Endpoint(id = "bulkrevoke", defaultAccess = Access.NONE)
+public class BulkRevocationEndpoint {
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private final BulkRevocationService bulkRevocationService;
+  private final SignedRequestVerifier signedRequestVerifier;
+
+  /**
+   * Constructor.
+   *
+   * @param bulkRevocationService the service revoking the certificates
+   * @param signedRequestVerifier verifier of the signature and authorization of requests
+   */
+  public BulkRevocationEndpoint(BulkRevocationService bulkRevocationService,
+    SignedRequestVerifier signedRequestVerifier) {
+    this.bulkRevocationService = bulkRevocationService;
+    this.signedRequestVerifier = signedRequestVerifier;
+  }
+
+  /**
+   * Revoke the certificates of an instance selected by a signed request and publish a new CRL.
+   *
+   * @param instance the instance that issued the certificates
+   * @param signedRequest Base64 encoded CMS SignedData holding the JSON request
+   * @return the result of the revocation, or an error message if the request was rejected. A revocation that failed
+   *   part way returns status 500 with the result of the partial revocation
+   */
+  @WriteOperation
+  public WebEndpointResponse<Object> revokeCertificates(@Selector String instance, String signedRequest) {
+    BulkRevocationRequest request;
+    try {
+      request = parseRequest(instance, signedRequestVerifier.verify(instance, signedRequest));
+    }
+    catch (CertificateRevocationException | IOException | IllegalArgumentException | DateTimeParseException ex) {
+      log.warn("Bulk revocation request for instance {} rejected: {}", instance, ex.getMessage());
+      return new WebEndpointResponse<>(Map.of("error", String.valueOf(ex.getMessage())),
+        WebEndpointResponse.STATUS_BAD_REQUEST);
+    }
+    try {
+      BulkRevocationResult result = bulkRevocationService.revokeCertificates(instance, request);
+      return new WebEndpointResponse<>(result, result.getError() == null
+        ? WebEndpointResponse.STATUS_OK
+        : WebEndpointResponse.STATUS_INTERNAL_SERVER_ERROR);
+    }
+    catch (CertificateRevocationException ex) {
+      log.warn("Bulk revocation request for instance {} rejected: {}", instance, ex.getMessage());
+      return new WebEndpointResponse<>(Map.of("error", String.valueOf(ex.getMessage())),
+        WebEndpointResponse.STATUS_BAD_REQUEST);
+    }
+  }
+
+  private BulkRevocationRequest parseRequest(String instance, byte[] content)
+    throws IOException, CertificateRevocationException {
+    JsonNode json = mapper.readTree(content);
+    if (json == null || !instance.equals(getText(json, "instance"))) {
+      throw new CertificateRevocationException("Signed request does not apply to instance " + instance);
+    }
+    if (!json.hasNonNull("reason") || !json.get("reason").canConvertToInt()) {
+      throw new CertificateRevocationException("Signed request has no revocation reason");
+    }
+    String subject = getText(json, "subject");
+    return BulkRevocationRequest.builder()
+      .serialNumbers(parseSerialNumbers(getText(json, "serialNumbers")))
+      .issuedFrom(parseDate(getText(json, "issuedFrom")))
+      .issuedBefore(parseDate(getText(json, "issuedBefore")))
+      .subjectFilter(subject == null || subject.isBlank() ? null : subject)
+      .reason(json.get("reason").asInt())
+      .revocationTime(parseDate(getText(json, "revocationTime")))
+      .build();
+  }
+
+  private String getText(JsonNode json, String field) {
+    return json.hasNonNull(field) ? json.get(field).asText() : null;
+  }
+
+  private List<BigInteger> parseSerialNumbers(String serialNumbers) {
+    if (serialNumbers == null || serialNumbers.isBlank()) {
+      return null;
+    }
+    return Arrays.stream(serialNumbers.split(","))
+      .map(String::trim)
+      .filter(serialNumber -> !serialNumber.isEmpty())
+      .map(serialNumber -> new BigInteger(serialNumber, 16))
+      .distinct()
+      .toList();
+  }
+
+  private Date parseDate(String instant) {
+    return instant == null || instant.isBlank() ? null : Date.from(Instant.parse(instant));
+  }
+
+}
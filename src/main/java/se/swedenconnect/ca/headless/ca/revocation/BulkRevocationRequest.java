@@ -0,0 +1,79 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.revocation;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigInteger;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Selection of the certificates of a CA instance to revoke in one operation.
+ *
+ * <p>Certificates are either selected by a list of serial numbers, or by an issue date range and/or a subject filter.
+ * The issue date range and the subject filter are combined, so that only certificates matching both are selected.</p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class BulkRevocationRequest {
+
+  /** The serial numbers of the certificates to revoke, or null to select certificates by issue date and subject */
+  private List<BigInteger> serialNumbers;
+
+  /** Selects only certificates issued at or after this time, or null for no lower limit */
+  private Date issuedFrom;
+
+  /** Selects only certificates issued before this time, or null for no upper limit */
+  private Date issuedBefore;
+
+  /** Selects only certificates with a subject name containing this string (ignoring case), or null for all subjects */
+  private String subjectFilter;
+
+  /** The revocation reason */
+  private int reason;
+
+  /** The revocation time, or null to use the current time */
+  private Date revocationTime;
+
+  /**
+   * Test if this request selects certificates by a list of serial numbers.
+   *
+   * @return true if a list of serial numbers is set
+   */
+  public boolean isSerialNumberSelection() {
+    return serialNumbers != null;
+  }
+
+  /**
+   * Test if this request selects certificates by issue date or subject.
+   *
+   * @return true if an issue date limit or a subject filter is set
+   */
+  public boolean isFilterSelection() {
+    return issuedFrom != null || issuedBefore != null || subjectFilter != null;
+  }
+
+}
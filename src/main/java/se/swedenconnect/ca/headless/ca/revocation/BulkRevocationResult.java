@@ -0,0 +1,62 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.revocation;
+
+import lombok.Value;
+
+import java.util.List;
+
+/**
+ * The result of revoking the certificates selected by a {@link BulkRevocationRequest}.
+ *
+ * <p>If the revocation fails part way, the result holds the certificates revoked before the failure together with the
+ * error. A new CRL is published whenever any certificate was revoked, also when the revocation failed.</p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@Value
+public class BulkRevocationResult {
+
+  /** The instance that revoked the certificates */
+  String instance;
+
+  /** The number of selected certificates */
+  int selected;
+
+  /** The number of revoked certificates that were not revoked before */
+  int revoked;
+
+  /** The hex serial numbers of the certificates that were on hold and are now revoked with the requested reason */
+  List<String> revokedFromHold;
+
+  /**
+   * The number of selected certificates that were left unchanged, as they were unknown, already permanently revoked, or
+   * not processed because the revocation failed
+   */
+  int unchanged;
+
+  /** True if a new CRL was published after the certificates were revoked */
+  boolean crlPublished;
+
+  /** The error that stopped the revocation, or null if all selected certificates were processed */
+  String error;
+
+  /** The time in milliseconds spent selecting and revoking the certificates and publishing the CRL */
+  long durationMillis;
+
+}
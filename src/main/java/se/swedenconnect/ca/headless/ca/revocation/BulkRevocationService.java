@@ -0,0 +1,208 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.revocation;
+
+import lombok.extern.slf4j.Slf4j;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import se.swedenconnect.ca.engine.ca.issuer.CAService;
+import se.swedenconnect.ca.engine.ca.repository.CARepository;
+import se.swedenconnect.ca.engine.ca.repository.CertificateRecord;
+import se.swedenconnect.ca.engine.revocation.CertificateRevocationException;
+import se.swedenconnect.ca.headless.ca.db.DBCARepository;
+import se.swedenconnect.ca.headless.ca.db.DBRevokedCertificates;
+import se.swedenconnect.ca.service.base.ca.CAServices;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Revokes a large number of certificates of a CA instance in one operation, such as all certificates of a compromised
+ * batch of keys or devices.
+ *
+ * <p>Certificates of database CA instances are revoked in chunks, where each chunk is revoked with one database
+ * statement. Certificates of other CA repositories are revoked one at a time. Certificates on hold are permanently
+ * revoked with the requested reason. A single new CRL is published when all selected certificates have been revoked,
+ * instead of one CRL per revocation. If the revocation fails part way, the certificates revoked so far remain revoked,
+ * a new CRL is published for them, and the result reports the partial revocation together with the error.</p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@Slf4j
+@Component
+public class BulkRevocationService {
+
+  private final CAServices caServices;
+
+  @Value("${ca-service.bulk-revocation.chunk-size:500}") int chunkSize;
+
+  /**
+   * Constructor.
+   *
+   * @param caServices the CA services of all instances
+   */
+  public BulkRevocationService(CAServices caServices) {
+    this.caServices = caServices;
+  }
+
+  /**
+   * Revoke the certificates of an instance selected by a request and publish a new CRL.
+   *
+   * @param instance the instance that issued the certificates
+   * @param request the selection of the certificates to revoke
+   * @return the result of the revocation, holding the error if the revocation failed part way
+   * @throws CertificateRevocationException if the request is invalid, before any certificate is revoked
+   */
+  public BulkRevocationResult revokeCertificates(String instance, BulkRevocationRequest request)
+    throws CertificateRevocationException {
+    long startTime = System.currentTimeMillis();
+    if (instance == null || !caServices.getCAServiceKeys().contains(instance)) {
+      throw new CertificateRevocationException("No such instance (" + instance + ")");
+    }
+    if (request.isSerialNumberSelection() == request.isFilterSelection()) {
+      throw new CertificateRevocationException(
+        "Certificates must be selected either by serial numbers or by issue date and subject");
+    }
+    int reason = request.getReason();
+    if (reason == CRLReason.removeFromCRL || reason < 0 || reason > CRLReason.aACompromise) {
+      throw new CertificateRevocationException("Illegal reason code");
+    }
+    Date revocationTime = request.getRevocationTime() == null ? new Date() : request.getRevocationTime();
+    CAService caService = caServices.getCAService(instance);
+    CARepository caRepository = caService.getCaRepository();
+
+    List<BigInteger> serialNumbers = request.isSerialNumberSelection()
+      ? request.getSerialNumbers()
+      : selectCertificates(caRepository, request);
+    log.info("Revoking {} certificates of instance {} with reason {}", serialNumbers.size(), instance, reason);
+
+    int revoked = 0;
+    List<String> revokedFromHold = new ArrayList<>();
+    String error = null;
+    boolean crlPublished = false;
+    try {
+      if (caRepository instanceof DBCARepository dbcaRepository) {
+        int chunkLength = Math.max(1, chunkSize);
+        for (int start = 0; start < serialNumbers.size(); start += chunkLength) {
+          DBRevokedCertificates revokedCertificates = dbcaRepository.revokeCertificates(
+            serialNumbers.subList(start, Math.min(start + chunkLength, serialNumbers.size())), reason, revocationTime);
+          revoked += revokedCertificates.getRevoked().size();
+          revokedFromHold.addAll(revokedCertificates.getRevokedFromHold());
+        }
+      }
+      else {
+        for (BigInteger serialNumber : serialNumbers) {
+          CertificateRecord certificateRecord = caRepository.getCertificate(serialNumber);
+          if (certificateRecord == null) {
+            continue;
+          }
+          if (!certificateRecord.isRevoked()) {
+            caRepository.revokeCertificate(serialNumber, reason, revocationTime);
+            revoked++;
+          }
+          else if (isOnHold(certificateRecord) && reason != CRLReason.certificateHold) {
+            caRepository.revokeCertificate(serialNumber, reason, revocationTime);
+            revokedFromHold.add(serialNumber.toString(16));
+          }
+        }
+      }
+    }
+    catch (CertificateRevocationException | RuntimeException ex) {
+      error = ex.getMessage() == null ? ex.getClass().getSimpleName() : ex.getMessage();
+      log.error("Bulk revocation for instance {} failed after revoking {} certificates", instance,
+        revoked + revokedFromHold.size(), ex);
+    }
+    finally {
+      // Certificates revoked before a failure are committed and must be published
+      if (revoked + revokedFromHold.size() > 0) {
+        crlPublished = publishCrl(caService, instance);
+      }
+    }
+    long durationMillis = System.currentTimeMillis() - startTime;
+    log.info("Revoked {} and permanently revoked {} on hold of {} selected certificates of instance {} in {} ms",
+      revoked, revokedFromHold.size(), serialNumbers.size(), instance, durationMillis);
+    return new BulkRevocationResult(instance, serialNumbers.size(), revoked, revokedFromHold,
+      serialNumbers.size() - revoked - revokedFromHold.size(), crlPublished, error, durationMillis);
+  }
+
+  private boolean publishCrl(CAService caService, String instance) {
+    try {
+      caService.publishNewCrl();
+      return true;
+    }
+    catch (IOException | RuntimeException ex) {
+      log.error("Failed to publish new CRL for instance {} after bulk revocation", instance, ex);
+      return false;
+    }
+  }
+
+  private boolean isOnHold(CertificateRecord certificateRecord) {
+    return certificateRecord.isRevoked() && certificateRecord.getReason() != null
+      && certificateRecord.getReason() == CRLReason.certificateHold;
+  }
+
+  private List<BigInteger> selectCertificates(CARepository caRepository, BulkRevocationRequest request) {
+    List<BigInteger> serialNumbers = new ArrayList<>();
+    if (caRepository instanceof DBCARepository dbcaRepository) {
+      dbcaRepository.forEachRevocableCertificate(request.getIssuedFrom(), request.getIssuedBefore(),
+        certificateRecord -> {
+          if (isSubjectMatch(certificateRecord, request.getSubjectFilter())) {
+            serialNumbers.add(certificateRecord.getSerialNumber());
+          }
+        });
+      return serialNumbers;
+    }
+    for (BigInteger serialNumber : caRepository.getAllCertificates()) {
+      CertificateRecord certificateRecord = caRepository.getCertificate(serialNumber);
+      if (certificateRecord != null && (!certificateRecord.isRevoked() || isOnHold(certificateRecord))
+        && isIssuedWithin(certificateRecord, request.getIssuedFrom(), request.getIssuedBefore())
+        && isSubjectMatch(certificateRecord, request.getSubjectFilter())) {
+        serialNumbers.add(serialNumber);
+      }
+    }
+    return serialNumbers;
+  }
+
+  private boolean isIssuedWithin(CertificateRecord certificateRecord, Date issuedFrom, Date issuedBefore) {
+    Date issueDate = certificateRecord.getIssueDate();
+    return (issuedFrom == null || !issueDate.before(issuedFrom))
+      && (issuedBefore == null || issueDate.before(issuedBefore));
+  }
+
+  private boolean isSubjectMatch(CertificateRecord certificateRecord, String subjectFilter) {
+    if (subjectFilter == null) {
+      return true;
+    }
+    try {
+      String subject = new X509CertificateHolder(certificateRecord.getCertificate()).getSubject().toString();
+      return subject.toLowerCase(Locale.ROOT).contains(subjectFilter.toLowerCase(Locale.ROOT));
+    }
+    catch (IOException ex) {
+      log.warn("Unable to parse certificate {} - not selected for revocation",
+        certificateRecord.getSerialNumber().toString(16));
+      return false;
+    }
+  }
+
+}
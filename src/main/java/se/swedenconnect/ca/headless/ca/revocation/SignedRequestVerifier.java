@@ -0,0 +1,247 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.revocation;
+
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.asn1.cms.AttributeTable;
+import org.bouncycastle.asn1.cms.CMSAttributes;
+import org.bouncycastle.asn1.cms.Time;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.core.env.Environment;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+import se.swedenconnect.ca.engine.revocation.CertificateRevocationException;
+import se.swedenconnect.ca.headless.ca.db.DBSignedRequestStore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verifies signed requests to management operations that change the revocation status of certificates.
+ *
+ * <p>A signed request is a CMS SignedData holding the request as encapsulated content, signed by one of the CMC clients
+ * configured by {@code ca-service.cmc.client[n].cert-location}. The client must have {@code revoke} authorization for
+ * the instance in {@code ca-service.cmc.client[n].authorization.{instance}}, exactly as for revocation through the CMC
+ * API. The request must have a signing time attribute within the maximum request age, and each signed request is only
+ * accepted once.</p>
+ *
+ * <p>With a database, accepted requests are recorded by the {@link DBSignedRequestStore}, so that a request accepted
+ * by one node is rejected by all nodes sharing the database. Without a database (the {@code nodb} profile), accepted
+ * requests are only remembered by this node, in memory, and a request may be accepted again after a restart within
+ * the maximum request age.</p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@Slf4j
+@Component
+public class SignedRequestVerifier {
+
+  /** The authorization required to revoke certificates of an instance */
+  public static final String REVOKE_AUTHORIZATION = "revoke";
+
+  private final List<AuthorizedClient> authorizedClients;
+  /** Requests accepted by this node, used when there is no signed request store */
+  private final Map<String, Long> acceptedRequests = new ConcurrentHashMap<>();
+  /** Store of the requests accepted by all nodes, or null if there is no database */
+  private DBSignedRequestStore signedRequestStore;
+
+  @Value("${ca-service.bulk-revocation.max-request-age-seconds:300}") int maxRequestAgeSeconds;
+
+  /**
+   * Constructor.
+   *
+   * @param environment the environment holding the CMC client configuration
+   */
+  public SignedRequestVerifier(Environment environment) {
+    this.authorizedClients = new ArrayList<>();
+    List<ClientConfiguration> clientConfigurations = Binder.get(environment)
+      .bind("ca-service.cmc.client", Bindable.listOf(ClientConfiguration.class))
+      .orElse(List.of());
+    for (ClientConfiguration clientConfiguration : clientConfigurations) {
+      if (clientConfiguration.getCertLocation() == null || clientConfiguration.getCertLocation().isBlank()) {
+        continue;
+      }
+      try {
+        authorizedClients.add(new AuthorizedClient(loadCertificate(clientConfiguration.getCertLocation()),
+          clientConfiguration.getAuthorization()));
+      }
+      catch (IOException | CertificateException ex) {
+        log.error("Unable to load CMC client certificate {} - client can not sign management requests",
+          clientConfiguration.getCertLocation(), ex);
+      }
+    }
+  }
+
+  /**
+   * Set the store recording the accepted requests of all nodes sharing the database.
+   *
+   * @param signedRequestStore the signed request store
+   */
+  @Autowired(required = false)
+  public void setSignedRequestStore(DBSignedRequestStore signedRequestStore) {
+    this.signedRequestStore = signedRequestStore;
+  }
+
+  private static X509CertificateHolder loadCertificate(String location) throws IOException, CertificateException {
+    Resource resource = location.startsWith("classpath:") || location.startsWith("file:")
+      ? new DefaultResourceLoader().getResource(location)
+      : new FileSystemResource(location);
+    try (InputStream inputStream = resource.getInputStream()) {
+      X509Certificate certificate = (X509Certificate) CertificateFactory.getInstance("X.509")
+        .generateCertificate(inputStream);
+      return new X509CertificateHolder(certificate.getEncoded());
+    }
+  }
+
+  /**
+   * Verify a signed request and get the signed request content.
+   *
+   * @param instance the instance the request applies to
+   * @param signedRequest the Base64 encoded CMS SignedData holding the request
+   * @return the signed request content
+   * @throws CertificateRevocationException if the request is not signed by a client authorized to revoke certificates
+   *   of the instance, is too old, or has already been used
+   */
+  public byte[] verify(String instance, String signedRequest) throws CertificateRevocationException {
+    if (signedRequest == null || signedRequest.isBlank()) {
+      throw new CertificateRevocationException("Missing signed request");
+    }
+    try {
+      CMSSignedData signedData = new CMSSignedData(Base64.getMimeDecoder().decode(signedRequest));
+      Collection<SignerInformation> signers = signedData.getSignerInfos().getSigners();
+      if (signers.size() != 1 || signedData.getSignedContent() == null) {
+        throw new CertificateRevocationException("Signed request must have exactly one signer and signed content");
+      }
+      SignerInformation signer = signers.iterator().next();
+      AuthorizedClient client = authorizedClients.stream()
+        .filter(authorizedClient -> signer.getSID().match(authorizedClient.getCertificate()))
+        .findFirst()
+        .orElseThrow(() -> new CertificateRevocationException("Request is not signed by a configured CMC client"));
+      if (!client.isAuthorized(instance, REVOKE_AUTHORIZATION)) {
+        throw new CertificateRevocationException("Client is not authorized to revoke certificates of " + instance);
+      }
+      if (!signer.verify(new JcaSimpleSignerInfoVerifierBuilder().build(client.getCertificate()))) {
+        throw new CertificateRevocationException("Invalid request signature");
+      }
+      long signingTime = getSigningTime(signer).getTime();
+      long now = System.currentTimeMillis();
+      long maxAgeMillis = TimeUnit.SECONDS.toMillis(maxRequestAgeSeconds);
+      if (Math.abs(now - signingTime) > maxAgeMillis) {
+        throw new CertificateRevocationException("Signing time of request is not within the allowed request age");
+      }
+      checkReplay(instance, signer.getSignature(), now, maxAgeMillis);
+      log.info("Accepted signed request for instance {} from client {}", instance,
+        client.getCertificate().getSubject());
+      return (byte[]) signedData.getSignedContent().getContent();
+    }
+    catch (CMSException | OperatorCreationException | CertificateException | IllegalArgumentException ex) {
+      throw new CertificateRevocationException("Invalid signed request: " + ex.getMessage(), ex);
+    }
+  }
+
+  private Date getSigningTime(SignerInformation signer) throws CertificateRevocationException {
+    AttributeTable signedAttributes = signer.getSignedAttributes();
+    Attribute signingTimeAttribute = signedAttributes == null ? null : signedAttributes.get(CMSAttributes.signingTime);
+    if (signingTimeAttribute == null || signingTimeAttribute.getAttrValues().size() != 1) {
+      throw new CertificateRevocationException("Signed request has no signing time");
+    }
+    ASN1Encodable signingTime = signingTimeAttribute.getAttrValues().getObjectAt(0);
+    return Time.getInstance(signingTime).getDate();
+  }
+
+  private void checkReplay(String instance, byte[] signature, long now, long maxAgeMillis)
+    throws CertificateRevocationException {
+    String requestId;
+    try {
+      requestId = Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(signature));
+    }
+    catch (NoSuchAlgorithmException ex) {
+      throw new CertificateRevocationException("Unable to check request replay", ex);
+    }
+    if (signedRequestStore != null) {
+      if (!signedRequestStore.addAcceptedRequest(requestId, instance, now)) {
+        throw new CertificateRevocationException("Signed request has already been used");
+      }
+      return;
+    }
+    // Requests older than the max age are rejected by signing time, so only younger requests need to be remembered
+    acceptedRequests.values().removeIf(acceptedTime -> acceptedTime < now - 2 * maxAgeMillis);
+    if (acceptedRequests.putIfAbsent(requestId, now) != null) {
+      throw new CertificateRevocationException("Signed request has already been used");
+    }
+  }
+
+  /**
+   * Configuration of a CMC client, bound from {@code ca-service.cmc.client[n]}.
+   */
+  @Data
+  public static class ClientConfiguration {
+    /** The location of the client certificate */
+    private String certLocation;
+    /** The authorizations of the client for each instance */
+    private Map<String, List<String>> authorization = new HashMap<>();
+  }
+
+  /**
+   * A CMC client and its authorizations.
+   */
+  @lombok.Value
+  private static class AuthorizedClient {
+    /** The client certificate */
+    X509CertificateHolder certificate;
+    /** The authorizations of the client for each instance */
+    Map<String, List<String>> authorization;
+
+    boolean isAuthorized(String instance, String authorizationType) {
+      List<String> instanceAuthorization = authorization.get(instance);
+      return instanceAuthorization != null && instanceAuthorization.stream()
+        .flatMap(value -> Arrays.stream(value.split(",")))
+        .anyMatch(value -> value.trim().equalsIgnoreCase(authorizationType));
+    }
+  }
+
+}
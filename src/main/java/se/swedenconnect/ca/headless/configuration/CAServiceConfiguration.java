@@ -16,8 +16,12 @@
 
 package se.swedenconnect.ca.headless.configuration;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import org.bouncycastle.cms.CMSException;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.ApplicationEventPublisherAware;
 import org.springframework.context.annotation.Bean;
@@ -26,11 +30,17 @@ import org.springframework.context.annotation.DependsOn;
 import org.springframework.context.annotation.Profile;
 import se.swedenconnect.ca.headless.ca.P7BCertStore;
 import se.swedenconnect.ca.headless.ca.HeadlessCAServices;
+import se.swedenconnect.ca.headless.ca.InstanceStartupHealthIndicator;
 import se.swedenconnect.ca.engine.ca.repository.CARepository;
 import se.swedenconnect.ca.headless.ca.db.DBCARepository;
 import se.swedenconnect.ca.headless.ca.db.DBCRLJPARepository;
 import se.swedenconnect.ca.headless.ca.db.DBCRLMetadataRepository;
+import se.swedenconnect.ca.headless.ca.db.DBCertificateArchiver;
 import se.swedenconnect.ca.headless.ca.db.DBJPARepository;
+import se.swedenconnect.ca.headless.ca.db.DBRevocationStatusStore;
+import se.swedenconnect.ca.headless.ca.file.LogStructuredCARepository;
+import se.swedenconnect.ca.headless.ca.migration.MigratingCARepository;
+import se.swedenconnect.ca.headless.metrics.InstanceMetrics;
 import se.swedenconnect.ca.service.base.configuration.BasicServiceConfig;
 import se.swedenconnect.ca.service.base.ca.CAServices;
 import se.swedenconnect.ca.service.base.configuration.instance.InstanceConfiguration;
@@ -38,10 +48,14 @@ import se.swedenconnect.ca.service.base.ca.LocalJsonCARepository;
 import se.swedenconnect.ca.service.base.configuration.keys.PkiCredentialFactory;
 import se.swedenconnect.ca.service.base.configuration.properties.CAConfigData;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.security.cert.CertificateException;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -57,6 +71,7 @@ import java.util.Set;
 public class CAServiceConfiguration implements ApplicationEventPublisherAware {
 
   private ApplicationEventPublisher applicationEventPublisher;
+  private final List<Closeable> closeableRepositories = new ArrayList<>();
 
   /**
    * The CA services bean provide all CA services as defined by the configuration of each instance
@@ -65,6 +80,12 @@ public class CAServiceConfiguration implements ApplicationEventPublisherAware {
    * @param basicServiceConfig basic service configuration data
    * @param caRepositoryMap CA repositories for each instance
    * @param p7BCertStore Provider of the CA repository PKCS7 certs only file for each instance
+   * @param startupHealthIndicator health indicator reporting the startup progress of each instance
+   * @param startupParallelism the maximum number of instances initialized in parallel
+   * @param meterRegistry registry receiving the metrics of each instance
+   * @param crlPartitions the number of partitioned CRLs of each instance, or 0 to not partition CRLs
+   * @param crlPartitionRefreshMarginSeconds the time in seconds before the next update of a partition CRL when it is
+   *   signed again
    * @return {@link CAServices}
    * @throws IOException error parsing data
    * @throws CMSException error handling CMS data
@@ -72,10 +93,19 @@ public class CAServiceConfiguration implements ApplicationEventPublisherAware {
    */
   @SuppressWarnings("SpringJavaInjectionPointsAutowiringInspection")
   @Bean CAServices caServices(InstanceConfiguration instanceConfiguration, PkiCredentialFactory pkiCredentialFactory,
-    BasicServiceConfig basicServiceConfig, Map<String, CARepository> caRepositoryMap, P7BCertStore p7BCertStore
+    BasicServiceConfig basicServiceConfig, Map<String, CARepository> caRepositoryMap, P7BCertStore p7BCertStore,
+    InstanceStartupHealthIndicator startupHealthIndicator,
+    @Value("${ca-service.startup.parallelism:4}") int startupParallelism,
+    ObjectProvider<MeterRegistry> meterRegistry,
+    @Value("${ca-service.crl.partitions:0}") int crlPartitions,
+    @Value("${ca-service.crl.partition-refresh-margin-seconds:${ca-service.config.crl-refresh-margin-seconds:60}}")
+    long crlPartitionRefreshMarginSeconds
     ) throws IOException, CMSException, CertificateException {
+    long startTime = System.currentTimeMillis();
     CAServices caServices = new HeadlessCAServices(instanceConfiguration, pkiCredentialFactory, basicServiceConfig,
-      caRepositoryMap, p7BCertStore, applicationEventPublisher);
+      caRepositoryMap, p7BCertStore, startupHealthIndicator, startupParallelism, applicationEventPublisher,
+      meterRegistry.getIfAvailable(), crlPartitions, Duration.ofSeconds(crlPartitionRefreshMarginSeconds));
+    log.info("CA services for {} instances created in {} ms", caRepositoryMap.size(), System.currentTimeMillis() - startTime);
     return caServices;
   }
 
@@ -87,6 +117,8 @@ public class CAServiceConfiguration implements ApplicationEventPublisherAware {
    * Provides CA repository implementations for each instance
    * @param basicServiceConfig basic service configuration
    * @param instanceConfiguration configuration properties for each instance
+   * @param repositoryType the type of file based repository (log or json)
+   * @param compactThreshold the number of logged changes that triggers compaction of a log structured repository
    * @return map of {@link CARepository} for each instance
    * @throws IOException error parsing data
    */
@@ -94,28 +126,83 @@ public class CAServiceConfiguration implements ApplicationEventPublisherAware {
   @DependsOn("BasicServiceConfig")
   @Bean Map<String, CARepository> fileCaRepositoryMap (
     BasicServiceConfig basicServiceConfig,
-    InstanceConfiguration instanceConfiguration
+    InstanceConfiguration instanceConfiguration,
+    @Value("${ca-service.repository.file.type:log}") String repositoryType,
+    @Value("${ca-service.repository.file.compact-threshold:10000}") int compactThreshold
   ) throws IOException {
     Map<String, CAConfigData> instanceConfigMap = instanceConfiguration.getInstanceConfigMap();
     Set<String> instances = instanceConfigMap.keySet();
     Map<String, CARepository> caRepositoryMap = new HashMap<>();
     for (String instance: instances) {
       File repositoryDir = new File(basicServiceConfig.getDataStoreLocation(), "instances/"+instance+"/repository");
-      log.info("USING A JSON FILE BASED LOCAL REPOSITORY for instance {}", instance);
-      File crlFile = new File(repositoryDir, instance + ".crl");
-      File repoFile = new File(repositoryDir, instance + "-repo.json");
-      CARepository caRepository= new LocalJsonCARepository(crlFile, repoFile);
-      caRepositoryMap.put(instance, caRepository);
+      caRepositoryMap.put(instance, createFileRepository(instance, repositoryDir, repositoryType, compactThreshold));
     }
     return caRepositoryMap;
   }
 
+  /**
+   * Creates the file based repository of an instance.
+   *
+   * @param instance the instance
+   * @param repositoryDir the repository folder of the instance
+   * @param repositoryType the type of file based repository (log or json)
+   * @param compactThreshold the number of logged changes that triggers compaction of a log structured repository
+   * @return file based CA repository
+   * @throws IOException error loading the repository
+   */
+  private CARepository createFileRepository(String instance, File repositoryDir, String repositoryType,
+    int compactThreshold) throws IOException {
+    File crlFile = new File(repositoryDir, instance + ".crl");
+    File repoFile = new File(repositoryDir, instance + "-repo.json");
+    switch (repositoryType.toLowerCase()) {
+    case "log" -> {
+      log.info("USING A LOG STRUCTURED FILE BASED LOCAL REPOSITORY for instance {}", instance);
+      LogStructuredCARepository logRepository = new LogStructuredCARepository(crlFile, repoFile,
+        new File(repositoryDir, instance + "-repo.log"), compactThreshold);
+      closeableRepositories.add(logRepository);
+      return logRepository;
+    }
+    case "json" -> {
+      log.info("USING A JSON FILE BASED LOCAL REPOSITORY for instance {}", instance);
+      File logFile = new File(repositoryDir, instance + "-repo.log");
+      if (LogStructuredCARepository.hasPendingChanges(logFile)) {
+        // Changes made while the instance used a log structured repository are not in the JSON file until compacted
+        log.warn("Repository log of instance {} holds changes not in {} - compacting before use", instance,
+          repoFile.getName());
+        LogStructuredCARepository.compactFiles(crlFile, repoFile, logFile);
+      }
+      return new LocalJsonCARepository(crlFile, repoFile);
+    }
+    default -> throw new IllegalArgumentException("Unsupported file repository type: " + repositoryType);
+    }
+  }
+
+  /**
+   * Closes repositories holding open files, compacting any pending changes of log structured repositories.
+   */
+  @PreDestroy
+  public void closeRepositories() {
+    for (Closeable repository : closeableRepositories) {
+      try {
+        repository.close();
+      }
+      catch (IOException ex) {
+        log.error("Error closing CA repository", ex);
+      }
+    }
+  }
+
   /**
    * Provides a DB CA repository implementations for each instance
    * @param basicServiceConfig basic service configuration
    * @param instanceConfiguration configuration properties for each instance
    * @param dbRepository CA repository database table
    * @param dbcrljpaRepository CRL metadata repository database table
+   * @param meterRegistry registry receiving the metrics of each instance
+   * @param migrationProperties settings for migrating file based repositories to the database
+   * @param certificateArchiver archiver moving expired certificates to the archive table
+   * @param revocationStatusStore store of revocation status changes and revocation events
+   * @param expiredCertificatesMode the handling of removed expired certificates (delete or archive)
    * @return map of {@link CARepository} for each instance
    * @throws IOException error parsing data
    */
@@ -125,17 +212,48 @@ public class CAServiceConfiguration implements ApplicationEventPublisherAware {
     BasicServiceConfig basicServiceConfig,
     InstanceConfiguration instanceConfiguration,
     DBJPARepository dbRepository,
-    DBCRLJPARepository dbcrljpaRepository
+    DBCRLJPARepository dbcrljpaRepository,
+    ObjectProvider<MeterRegistry> meterRegistry,
+    RepositoryMigrationProperties migrationProperties,
+    DBCertificateArchiver certificateArchiver,
+    DBRevocationStatusStore revocationStatusStore,
+    @Value("${ca-service.repository.expired-certificates.mode:delete}") String expiredCertificatesMode
   ) throws IOException {
+    boolean archiveExpired = switch (expiredCertificatesMode.toLowerCase()) {
+      case "delete" -> false;
+      case "archive" -> true;
+      default -> throw new IllegalArgumentException("Unsupported expired certificates mode: " + expiredCertificatesMode);
+    };
     Map<String, CAConfigData> instanceConfigMap = instanceConfiguration.getInstanceConfigMap();
     Set<String> instances = instanceConfigMap.keySet();
     Map<String, CARepository> caRepositoryMap = new HashMap<>();
     for (String instance: instances) {
+      long startTime = System.currentTimeMillis();
       File repositoryDir = new File(basicServiceConfig.getDataStoreLocation(), "instances/"+instance+"/repository");
       log.info("Using a DB repository for instance {}", instance);
       File crlFile = new File(repositoryDir, instance + ".crl");
-      CARepository caRepository= new DBCARepository(crlFile, dbRepository, instance, new DBCRLMetadataRepository(dbcrljpaRepository));
+      DBCARepository caRepository= new DBCARepository(crlFile, dbRepository, instance, new DBCRLMetadataRepository(dbcrljpaRepository));
+      caRepository.setMetrics(new InstanceMetrics(meterRegistry.getIfAvailable(), instance));
+      caRepository.setRevocationStatusStore(revocationStatusStore);
+      if (archiveExpired) {
+        caRepository.setArchiver(certificateArchiver);
+      }
+      if (migrationProperties.isEnabled()) {
+        // Serve the instance from its file repository while the data is copied to the database
+        log.info("Migrating the file based repository of instance {} to the database", instance);
+        MigratingCARepository migratingRepository = new MigratingCARepository(instance,
+          createFileRepository(instance, repositoryDir, migrationProperties.getSourceType(),
+            migrationProperties.getCompactThreshold()),
+          caRepository, migrationProperties.getBatchSize(), migrationProperties.getRecordsPerSecond(),
+          migrationProperties.isSwitchReads());
+        // Stop copying before the source repository is closed
+        closeableRepositories.add(0, migratingRepository);
+        migratingRepository.start();
+        caRepositoryMap.put(instance, migratingRepository);
+        continue;
+      }
       caRepositoryMap.put(instance, caRepository);
+      log.debug("DB repository for instance {} created in {} ms", instance, System.currentTimeMillis() - startTime);
     }
     return caRepositoryMap;
   }
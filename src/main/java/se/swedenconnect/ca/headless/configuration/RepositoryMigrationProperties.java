@@ -0,0 +1,46 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.configuration;
+
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Settings for the online migration of file based CA repositories to the database repository
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@Getter
+@Component
+public class RepositoryMigrationProperties {
+
+  /** True to serve each instance from its file repository while the data is copied to the database */
+  @Value("${ca-service.repository.migration.enabled:false}") boolean enabled;
+  /** The type of the file repository being migrated (log or json) */
+  @Value("${ca-service.repository.migration.source-type:${ca-service.repository.file.type:log}}") String sourceType;
+  /** The number of logged changes that triggers compaction of a log structured source repository */
+  @Value("${ca-service.repository.file.compact-threshold:10000}") int compactThreshold;
+  /** The number of records copied or verified in each batch */
+  @Value("${ca-service.repository.migration.batch-size:100}") int batchSize;
+  /** The maximum number of records copied or verified per second */
+  @Value("${ca-service.repository.migration.records-per-second:500}") int recordsPerSecond;
+  /** True to read from the database repository once the migration is verified */
+  @Value("${ca-service.repository.migration.switch-reads:true}") boolean switchReads;
+
+}
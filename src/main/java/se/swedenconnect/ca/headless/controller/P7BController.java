@@ -20,17 +20,17 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 import se.swedenconnect.ca.headless.ca.P7BCertStore;
 
-import java.io.InputStream;
-
 /**
  * Controller for getting the list of valid issued certificates in the form of a PKCS7 certs only file (.p7b)
  *
@@ -48,31 +48,63 @@ public class P7BController {
     this.p7bCertStore = p7bCertStore;
   }
 
+  /**
+   * Serves the PKCS7 certs only file of an instance. The file is returned as a file resource, which lets the web layer
+   * set the content length and answer byte range requests with partial content.
+   *
+   * <p>The SHA-256 hash of the published file is returned as entity tag, so that a client resuming a download can
+   * send it in an If-Range header. The complete file is returned if the entity tag of an If-Range header does not
+   * match the current file, as the requested range would otherwise be taken from a different file.</p>
+   *
+   * @param p7bFileName the requested file name in the form {instance}.p7b
+   * @param range the Range header of the request, or null
+   * @param ifRange the If-Range header of the request, or null
+   * @return the PKCS7 certs only file
+   */
   @RequestMapping(value = "/certs/{p7bFileName}")
-  public ResponseEntity<InputStreamResource> getP7bCertStoreFile(@PathVariable("p7bFileName") String p7bFileName) {
+  public ResponseEntity<Resource> getP7bCertStoreFile(@PathVariable("p7bFileName") String p7bFileName,
+    @RequestHeader(value = HttpHeaders.RANGE, required = false) String range,
+    @RequestHeader(value = HttpHeaders.IF_RANGE, required = false) String ifRange) {
     if (StringUtils.isBlank(p7bFileName) || !p7bFileName.endsWith(".p7b") || p7bFileName.length() < 5) {
       log.debug("False request for P7B - specifying the caRepository file name {}", p7bFileName);
       return new ResponseEntity<>(HttpStatus.NOT_FOUND);
     }
     String instance = p7bFileName.substring(0, p7bFileName.length() - 4);
-    InputStream p7bResource;
+    Resource p7bResource;
     try {
-      p7bResource = p7bCertStore.getCertStoreP7bBytes(instance);
+      p7bResource = p7bCertStore.getCertStoreP7bResource(instance);
     } catch (Exception ex) {
       log.debug("No caRepository resource found for instance {}", instance);
       return new ResponseEntity<>(HttpStatus.NOT_FOUND);
     }
     log.trace("Request for P7B caRepository file received for instance {}", instance);
 
+    String sha256 = p7bCertStore.getCertStoreP7bSha256(instance);
+    String eTag = sha256 == null ? null : "\"" + sha256 + "\"";
+    if (range != null && ifRange != null && !ifRange.equals(eTag)) {
+      // The web layer does not apply byte ranges to stream resources, so the complete file is returned
+      log.debug("If-Range of P7B request for instance {} does not match the current file", instance);
+      try {
+        p7bResource = new InputStreamResource(p7bResource.getInputStream());
+      }
+      catch (Exception ex) {
+        log.debug("Unable to read caRepository resource for instance {}", instance);
+        return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+      }
+    }
+
     return ResponseEntity
       .ok()
-      .headers(getHeaders(p7bFileName))
+      .headers(getHeaders(p7bFileName, eTag))
       .contentType(MediaType.parseMediaType("application/octet-stream"))
-      .body(new InputStreamResource(p7bResource));
+      .body(p7bResource);
   }
 
-  private HttpHeaders getHeaders(String fileName) {
+  private HttpHeaders getHeaders(String fileName, String eTag) {
     HttpHeaders headers = new HttpHeaders();
+    if (eTag != null) {
+      headers.setETag(eTag);
+    }
     headers.add("Cache-Control", "no-cache, no-store, must-revalidate");
     headers.add("content-disposition", "attachment; filename=" + fileName);
     headers.add("Pragma", "no-cache");
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.controller;
+
+import lombok.extern.slf4j.Slf4j;
+import org.bouncycastle.cert.X509CRLHolder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import se.swedenconnect.ca.engine.ca.issuer.CAService;
+import se.swedenconnect.ca.headless.ca.HeadlessCAService;
+import se.swedenconnect.ca.headless.ca.crl.PartitionedCRLIssuer;
+import se.swedenconnect.ca.service.base.ca.CAServices;
+
+import java.io.IOException;
+
+/**
+ * Controller for getting the partition CRLs of an instance
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@Slf4j
+@RestController
+public class PartitionedCRLController {
+
+  private final CAServices caServices;
+
+  @Autowired
+  public PartitionedCRLController(CAServices caServices) {
+    this.caServices = caServices;
+  }
+
+  /**
+   * Serves a partition CRL of an instance.
+   *
+   * @param instance the instance
+   * @param crlFileName the requested file name in the form {partition}.crl
+   * @return the partition CRL
+   */
+  @RequestMapping(value = "/crl/{instance}/{crlFileName}")
+  public ResponseEntity<byte[]> getPartitionCrl(@PathVariable("instance") String instance,
+    @PathVariable("crlFileName") String crlFileName) {
+    if (crlFileName == null || !crlFileName.matches("\\d{1,9}\\.crl")) {
+      log.debug("False request for partition CRL {} of instance {}", crlFileName, instance);
+      return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    }
+    int partition = Integer.parseInt(crlFileName.substring(0, crlFileName.length() - 4));
+    CAService caService = caServices.getCAServiceKeys().contains(instance) ? caServices.getCAService(instance) : null;
+    PartitionedCRLIssuer partitionedCRLIssuer = caService instanceof HeadlessCAService headlessCAService
+      ? headlessCAService.getPartitionedCRLIssuer()
+      : null;
+    X509CRLHolder crl = partitionedCRLIssuer == null ? null : partitionedCRLIssuer.getPartitionCrl(partition);
+    if (crl == null) {
+      log.debug("No partition CRL {} found for instance {}", partition, instance);
+      return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    }
+    try {
+      return ResponseEntity
+        .ok()
+        .headers(getHeaders(crlFileName))
+        .contentType(MediaType.parseMediaType("application/pkix-crl"))
+        .body(crl.getEncoded());
+    }
+    catch (IOException ex) {
+      log.warn("Unable to encode partition CRL {} of instance {}", partition, instance, ex);
+      return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+    }
+  }
+
+  private HttpHeaders getHeaders(String fileName) {
+    HttpHeaders headers = new HttpHeaders();
+    headers.add("Cache-Control", "no-cache, no-store, must-revalidate");
+    headers.add("content-disposition", "attachment; filename=" + fileName);
+    headers.add("Pragma", "no-cache");
+    headers.add("Expires", "0");
+    return headers;
+  }
+
+}
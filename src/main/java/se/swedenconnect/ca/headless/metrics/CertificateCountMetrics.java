@@ -0,0 +1,88 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.metrics;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.stereotype.Component;
+import se.swedenconnect.ca.engine.ca.repository.CARepository;
+import se.swedenconnect.ca.headless.ca.db.DBCARepository;
+import se.swedenconnect.ca.headless.ca.db.DBCertificateCounters;
+
+import java.util.Map;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Exposes the number of certificates of each CA instance as metrics.
+ *
+ * <p>For database repositories the gauges read the cached certificate counters of the repository, which means that
+ * collecting the metrics never causes the certificate table to be counted.</p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@Component
+public class CertificateCountMetrics implements MeterBinder {
+
+  /** Name of the certificate count gauges */
+  public static final String CERTIFICATE_COUNT_METRIC = "ca.certificates";
+
+  private final Map<String, CARepository> caRepositoryMap;
+
+  /**
+   * Constructor.
+   *
+   * @param caRepositoryMap CA repositories for each instance
+   */
+  public CertificateCountMetrics(Map<String, CARepository> caRepositoryMap) {
+    this.caRepositoryMap = caRepositoryMap;
+  }
+
+  /** {@inheritDoc} */
+  @Override public void bindTo(MeterRegistry registry) {
+    for (Map.Entry<String, CARepository> entry : caRepositoryMap.entrySet()) {
+      String instance = entry.getKey();
+      CARepository caRepository = entry.getValue();
+      if (caRepository instanceof DBCARepository dbcaRepository) {
+        registerGauge(registry, instance, "total", dbcaRepository, repo -> getCounters(repo).getTotal());
+        registerGauge(registry, instance, "not-revoked", dbcaRepository, repo -> getCounters(repo).getNotRevoked());
+        registerGauge(registry, instance, "revoked", dbcaRepository, repo -> getCounters(repo).getRevoked());
+        registerGauge(registry, instance, "on-hold", dbcaRepository, repo -> getCounters(repo).getOnHold());
+        registerGauge(registry, instance, "expired", dbcaRepository, repo -> getCounters(repo).getExpired());
+      }
+      else {
+        registerGauge(registry, instance, "total", caRepository, repo -> repo.getCertificateCount(false));
+        registerGauge(registry, instance, "not-revoked", caRepository, repo -> repo.getCertificateCount(true));
+      }
+    }
+  }
+
+  private static DBCertificateCounters getCounters(DBCARepository dbcaRepository) {
+    return dbcaRepository.getCertificateCounters();
+  }
+
+  private static <T> void registerGauge(MeterRegistry registry, String instance, String status, T repository,
+    ToDoubleFunction<T> valueFunction) {
+    Gauge.builder(CERTIFICATE_COUNT_METRIC, repository, valueFunction)
+      .description("Number of certificates in the CA repository")
+      .tag("instance", instance)
+      .tag("status", status)
+      .register(registry);
+  }
+
+}
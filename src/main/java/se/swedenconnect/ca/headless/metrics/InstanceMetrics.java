@@ -0,0 +1,155 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import lombok.Getter;
+
+/**
+ * Timers of the operations of a CA instance, tagged by the instance name.
+ *
+ * <p>Each timer also holds the number of timed operations, and is tagged with the outcome of the operation
+ * ({@code success} or {@code failure}).</p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+public class InstanceMetrics {
+
+  /** Timer of complete certificate issuance requests */
+  public static final String ISSUE = "ca.issue";
+  /** Timer of the phases of certificate issuance, tagged by {@code phase} */
+  public static final String ISSUE_PHASE = "ca.issue.phase";
+  /** Timer of CA repository operations, tagged by {@code operation} */
+  public static final String REPOSITORY = "ca.repository";
+  /** Timer of CRL generation */
+  public static final String CRL_GENERATE = "ca.crl.generate";
+  /** Timer of generating the partition CRLs that have changed */
+  public static final String CRL_PARTITIONS_GENERATE = "ca.crl.partitions.generate";
+  /** Timer of storing a new CRL in the CA repository */
+  public static final String CRL_PUBLISH = "ca.crl.publish";
+  /** Timer of publishing the PKCS#7 file of issued certificates */
+  public static final String P7B_PUBLISH = "ca.p7b.publish";
+
+  public static final String PHASE_VALIDATE = "validate";
+  public static final String PHASE_SIGN = "sign";
+  public static final String PHASE_PERSIST = "persist";
+
+  public static final String OPERATION_ADD = "add";
+  public static final String OPERATION_GET = "get";
+  public static final String OPERATION_REVOKE = "revoke";
+  public static final String OPERATION_BULK_REVOKE = "bulk-revoke";
+
+  private final MeterRegistry registry;
+
+  /** The instance being measured */
+  @Getter private final String instance;
+
+  /**
+   * Constructor.
+   *
+   * @param registry the registry receiving the metrics, or null to not record any metrics
+   * @param instance the instance being measured
+   */
+  public InstanceMetrics(MeterRegistry registry, String instance) {
+    // A composite registry without any registries discards all measurements
+    this.registry = registry != null ? registry : new CompositeMeterRegistry();
+    this.instance = instance;
+  }
+
+  /**
+   * Get an instance metrics object that does not record any metrics.
+   *
+   * @param instance the instance
+   * @return instance metrics that discards all measurements
+   */
+  public static InstanceMetrics noop(String instance) {
+    return new InstanceMetrics(null, instance);
+  }
+
+  /**
+   * Execute an operation and record the time it took.
+   *
+   * @param name the name of the timer
+   * @param operation the operation to time
+   * @param tags additional tags as name and value pairs
+   * @param <T> the result type of the operation
+   * @param <E> the exception thrown by the operation
+   * @return the result of the operation
+   * @throws E error thrown by the operation
+   */
+  public <T, E extends Exception> T record(String name, TimedOperation<T, E> operation, String... tags) throws E {
+    Timer.Sample sample = start();
+    boolean success = false;
+    try {
+      T result = operation.execute();
+      success = true;
+      return result;
+    }
+    finally {
+      stop(sample, name, success, tags);
+    }
+  }
+
+  /**
+   * Start timing an operation. Use this together with {@link #stop(Timer.Sample, String, boolean, String...)} for
+   * operations that cannot be expressed as a {@link TimedOperation}.
+   *
+   * @return timer sample to be stopped when the operation is completed
+   */
+  public Timer.Sample start() {
+    return Timer.start(registry);
+  }
+
+  /**
+   * Stop timing an operation and record the elapsed time.
+   *
+   * @param sample the sample started when the operation started
+   * @param name the name of the timer
+   * @param success true if the operation succeeded
+   * @param tags additional tags as name and value pairs
+   */
+  public void stop(Timer.Sample sample, String name, boolean success, String... tags) {
+    sample.stop(Timer.builder(name)
+      .tags(Tags.of(tags))
+      .tag("instance", instance)
+      .tag("outcome", success ? "success" : "failure")
+      .register(registry));
+  }
+
+  /**
+   * An operation that is timed.
+   *
+   * @param <T> the result type of the operation
+   * @param <E> the exception thrown by the operation
+   */
+  @FunctionalInterface
+  public interface TimedOperation<T, E extends Exception> {
+
+    /**
+     * Execute the operation.
+     *
+     * @return the result of the operation
+     * @throws E error executing the operation
+     */
+    T execute() throws E;
+  }
+
+}
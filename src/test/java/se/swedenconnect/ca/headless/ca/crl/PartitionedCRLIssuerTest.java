@@ -0,0 +1,372 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.crl;
+
+import org.bouncycastle.asn1.ASN1IA5String;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.CRLDistPoint;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.DistributionPoint;
+import org.bouncycastle.asn1.x509.DistributionPointName;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.IssuingDistributionPoint;
+import org.bouncycastle.asn1.x509.SubjectKeyIdentifier;
+import org.bouncycastle.cert.X509CRLEntryHolder;
+import org.bouncycastle.cert.X509CRLHolder;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import se.swedenconnect.ca.engine.configuration.CAAlgorithmRegistry;
+import se.swedenconnect.ca.engine.revocation.crl.CRLIssuerModel;
+import se.swedenconnect.ca.headless.ca.db.DBCARepository;
+import se.swedenconnect.ca.headless.ca.db.DBCRLJPARepository;
+import se.swedenconnect.ca.headless.ca.db.DBCRLMetadataRepository;
+import se.swedenconnect.ca.headless.ca.db.DBJPARepository;
+import se.swedenconnect.ca.headless.ca.db.DBRevocationEventJPARepository;
+import se.swedenconnect.ca.headless.ca.db.DBRevocationStatusStore;
+import se.swedenconnect.security.credential.BasicCredential;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.time.Duration;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests the partitioned CRLs issued for a database repository.
+ *
+ * <p>Revocation events are settled as soon as they are stored, so that each publication sees all revocations made
+ * before it.</p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@DataJpaTest
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class PartitionedCRLIssuerTest {
+
+  private static final String INSTANCE = "test";
+  private static final int PARTITIONS = 4;
+  private static final String DISTRIBUTION_POINT_URL = "https://service.example.com/crl/test.crl";
+  private static KeyPair caKeyPair;
+  private static X509CertificateHolder caCertificate;
+
+  @Autowired
+  DBJPARepository dbRepository;
+
+  @Autowired
+  DBCRLJPARepository crlRepository;
+
+  @Autowired
+  DBRevocationEventJPARepository eventRepository;
+
+  @TempDir
+  File repositoryDir;
+
+  private DBCARepository repository;
+  private PartitionedCRLIssuer issuer;
+
+  @BeforeAll
+  static void createCaCertificate() throws Exception {
+    caKeyPair = createKeyPair();
+    X500Name name = new X500Name("CN=Test CA");
+    long now = System.currentTimeMillis();
+    caCertificate = new JcaX509v3CertificateBuilder(name, BigInteger.ONE, new Date(now - 60000L),
+      new Date(now + 36000000L), name, caKeyPair.getPublic())
+      .addExtension(Extension.basicConstraints, true, new BasicConstraints(true))
+      .addExtension(Extension.subjectKeyIdentifier, false,
+        new JcaX509ExtensionUtils().createSubjectKeyIdentifier(caKeyPair.getPublic()))
+      .build(new JcaContentSignerBuilder("SHA256withECDSA").build(caKeyPair.getPrivate()));
+  }
+
+  @BeforeEach
+  void setUp() throws Exception {
+    DBRevocationStatusStore revocationStatusStore = new DBRevocationStatusStore(dbRepository, eventRepository);
+    // Events are settled at once
+    ReflectionTestUtils.setField(revocationStatusStore, "settleSeconds", -1);
+    repository = new DBCARepository(new File(repositoryDir, "test.crl"), dbRepository, INSTANCE,
+      new DBCRLMetadataRepository(crlRepository));
+    repository.setRevocationStatusStore(revocationStatusStore);
+    issuer = createIssuer(new File(repositoryDir, "crl-partitions"));
+  }
+
+  @AfterEach
+  void tearDown() {
+    dbRepository.deleteAll();
+    eventRepository.deleteAll();
+    crlRepository.deleteAll();
+  }
+
+  @Test
+  void publishesRevokedCertificatesOfEachPartition() throws Exception {
+    Map<Integer, Set<BigInteger>> expected = emptyPartitions();
+    for (long serialNumber = 1; serialNumber <= 16; serialNumber++) {
+      KeyPair keyPair = createKeyPair();
+      int partition = issuer.getPartition(keyPair.getPublic());
+      issueCertificate(serialNumber, keyPair.getPublic(), issuer.getDistributionPointUrl(partition));
+      if (serialNumber % 2 == 0) {
+        revoke(serialNumber, CRLReason.keyCompromise);
+        expected.get(partition).add(BigInteger.valueOf(serialNumber));
+      }
+    }
+    // A certificate issued before partitioning was enabled is only on the complete CRL
+    issueCertificate(100, createKeyPair().getPublic(), DISTRIBUTION_POINT_URL);
+    revoke(100, CRLReason.keyCompromise);
+
+    issuer.publishPartitionCrls();
+
+    for (int partition = 0; partition < PARTITIONS; partition++) {
+      assertPartitionCrl(partition, expected.get(partition));
+      assertEquals(BigInteger.ONE, CRLSigner.getCRLNumber(issuer.getPartitionCrl(partition)));
+    }
+  }
+
+  @Test
+  void publishesChangedPartitionsFromRevocationEvents() throws Exception {
+    Map<Integer, Set<BigInteger>> expected = emptyPartitions();
+    Map<BigInteger, Integer> partitions = new HashMap<>();
+    for (long serialNumber = 1; serialNumber <= 8; serialNumber++) {
+      KeyPair keyPair = createKeyPair();
+      int partition = issuer.getPartition(keyPair.getPublic());
+      issueCertificate(serialNumber, keyPair.getPublic(), issuer.getDistributionPointUrl(partition));
+      partitions.put(BigInteger.valueOf(serialNumber), partition);
+    }
+    revoke(1, CRLReason.certificateHold);
+    expected.get(partitions.get(BigInteger.ONE)).add(BigInteger.ONE);
+    issuer.publishPartitionCrls();
+    Map<Integer, BigInteger> crlNumbers = getCrlNumbers();
+
+    revoke(2, CRLReason.keyCompromise);
+    expected.get(partitions.get(BigInteger.TWO)).add(BigInteger.TWO);
+    issuer.publishPartitionCrls();
+    crlNumbers = assertOnlyChanged(crlNumbers, Set.of(partitions.get(BigInteger.TWO)));
+    assertPartitionCrls(expected);
+
+    // A certificate released from hold drops out of its partition CRL
+    revoke(1, CRLReason.removeFromCRL);
+    expected.get(partitions.get(BigInteger.ONE)).remove(BigInteger.ONE);
+    issuer.publishPartitionCrls();
+    assertOnlyChanged(crlNumbers, Set.of(partitions.get(BigInteger.ONE)));
+    assertPartitionCrls(expected);
+  }
+
+  @Test
+  void readsPartitionFromDistributionPoint() throws Exception {
+    for (int i = 0; i < 20; i++) {
+      int partition = issuer.getPartition(createKeyPair().getPublic());
+      assertTrue(partition >= 0 && partition < PARTITIONS);
+    }
+    assertEquals("https://service.example.com/crl/test/3.crl", issuer.getDistributionPointUrl(3));
+
+    // Issued when the instance had more partitions
+    issueCertificate(1, createKeyPair().getPublic(), issuer.getDistributionPointUrl(5));
+    revoke(1, CRLReason.keyCompromise);
+    // Partition CRL of another CA, and no distribution point
+    issueCertificate(2, createKeyPair().getPublic(), "https://other.example.com/crl/test/1.crl");
+    revoke(2, CRLReason.keyCompromise);
+    issueCertificate(3, createKeyPair().getPublic(), null);
+    revoke(3, CRLReason.keyCompromise);
+
+    issuer.publishPartitionCrls();
+
+    assertPartitionCrl(5, Set.of(BigInteger.ONE));
+    for (int partition = 0; partition < PARTITIONS; partition++) {
+      assertPartitionCrl(partition, Set.of());
+    }
+  }
+
+  @Test
+  void allocatesPartitionCrlNumbersAcrossNodes() throws Exception {
+    KeyPair keyPair = createKeyPair();
+    int partition = issuer.getPartition(keyPair.getPublic());
+    issueCertificate(1, keyPair.getPublic(), issuer.getDistributionPointUrl(partition));
+    issueCertificate(2, keyPair.getPublic(), issuer.getDistributionPointUrl(partition));
+    revoke(1, CRLReason.keyCompromise);
+    issuer.publishPartitionCrls();
+    BigInteger firstNumber = CRLSigner.getCRLNumber(issuer.getPartitionCrl(partition));
+
+    // Another node sharing the database
+    PartitionedCRLIssuer otherIssuer = createIssuer(new File(repositoryDir, "other-partitions"));
+    otherIssuer.publishPartitionCrls();
+    BigInteger otherNumber = CRLSigner.getCRLNumber(otherIssuer.getPartitionCrl(partition));
+    assertTrue(otherNumber.compareTo(firstNumber) > 0);
+
+    revoke(2, CRLReason.keyCompromise);
+    issuer.publishPartitionCrls();
+    assertTrue(CRLSigner.getCRLNumber(issuer.getPartitionCrl(partition)).compareTo(otherNumber) > 0);
+
+    BigInteger next = repository.allocatePartitionCrlNumber(partition, BigInteger.ONE);
+    assertEquals(CRLSigner.getCRLNumber(issuer.getPartitionCrl(partition)).add(BigInteger.ONE), next);
+    assertEquals(BigInteger.valueOf(100), repository.allocatePartitionCrlNumber(partition, BigInteger.valueOf(100)));
+  }
+
+  @Test
+  void rebuildsAllPartitionsAfterRetentionGap() throws Exception {
+    // A repository that stores no revocation events, changing the status without the issuer knowing
+    DBCARepository eventlessRepository = new DBCARepository(new File(repositoryDir, "test.crl"), dbRepository,
+      INSTANCE, new DBCRLMetadataRepository(crlRepository));
+    KeyPair keyPair = createKeyPair();
+    int partition = issuer.getPartition(keyPair.getPublic());
+    for (long serialNumber = 1; serialNumber <= 4; serialNumber++) {
+      issueCertificate(serialNumber, keyPair.getPublic(), issuer.getDistributionPointUrl(partition));
+    }
+    issuer.publishPartitionCrls();
+
+    eventlessRepository.revokeCertificate(BigInteger.ONE, CRLReason.keyCompromise, new Date());
+    revoke(2, CRLReason.keyCompromise);
+    issuer.publishPartitionCrls();
+    // Only the change recorded by an event is applied incrementally
+    assertPartitionCrl(partition, Set.of(BigInteger.TWO));
+
+    revoke(3, CRLReason.keyCompromise);
+    revoke(4, CRLReason.keyCompromise);
+    // Retention deletes the event of certificate 3 before it is processed
+    eventRepository.deleteBySequenceLessThanEqual(eventRepository.findMaxSequence() - 1);
+    issuer.publishPartitionCrls();
+    assertPartitionCrl(partition,
+      Set.of(BigInteger.ONE, BigInteger.TWO, BigInteger.valueOf(3), BigInteger.valueOf(4)));
+  }
+
+  private PartitionedCRLIssuer createIssuer(File partitionDir) throws Exception {
+    partitionDir.mkdirs();
+    CRLIssuerModel crlIssuerModel = mock(CRLIssuerModel.class);
+    when(crlIssuerModel.getAlgorithm()).thenReturn(CAAlgorithmRegistry.ALGO_ID_SIGNATURE_ECDSA_SHA256);
+    when(crlIssuerModel.getExpiryTime()).thenReturn(Duration.ofHours(2));
+    when(crlIssuerModel.getDistributionPointUrl()).thenReturn(DISTRIBUTION_POINT_URL);
+    BasicCredential issuerCredential = new BasicCredential(
+      new JcaX509CertificateConverter().getCertificate(caCertificate), caKeyPair.getPrivate());
+    return new PartitionedCRLIssuer(INSTANCE, PARTITIONS, crlIssuerModel, issuerCredential, () -> caCertificate,
+      repository, partitionDir, Duration.ofMinutes(10));
+  }
+
+  private void revoke(long serialNumber, int reason) throws Exception {
+    repository.revokeCertificate(BigInteger.valueOf(serialNumber), reason, new Date());
+  }
+
+  private Map<Integer, Set<BigInteger>> emptyPartitions() {
+    Map<Integer, Set<BigInteger>> partitions = new HashMap<>();
+    for (int partition = 0; partition < PARTITIONS; partition++) {
+      partitions.put(partition, new HashSet<>());
+    }
+    return partitions;
+  }
+
+  private Map<Integer, BigInteger> getCrlNumbers() {
+    Map<Integer, BigInteger> crlNumbers = new HashMap<>();
+    for (int partition = 0; partition < PARTITIONS; partition++) {
+      crlNumbers.put(partition, CRLSigner.getCRLNumber(issuer.getPartitionCrl(partition)));
+    }
+    return crlNumbers;
+  }
+
+  private Map<Integer, BigInteger> assertOnlyChanged(Map<Integer, BigInteger> previous, Set<Integer> changed) {
+    Map<Integer, BigInteger> crlNumbers = getCrlNumbers();
+    for (int partition = 0; partition < PARTITIONS; partition++) {
+      if (changed.contains(partition)) {
+        assertTrue(crlNumbers.get(partition).compareTo(previous.get(partition)) > 0);
+      }
+      else {
+        assertEquals(previous.get(partition), crlNumbers.get(partition));
+      }
+    }
+    return crlNumbers;
+  }
+
+  private void assertPartitionCrls(Map<Integer, Set<BigInteger>> expected) throws Exception {
+    for (Map.Entry<Integer, Set<BigInteger>> partition : expected.entrySet()) {
+      assertPartitionCrl(partition.getKey(), partition.getValue());
+    }
+  }
+
+  private void assertPartitionCrl(int partition, Set<BigInteger> expectedSerialNumbers) throws Exception {
+    X509CRLHolder crl = issuer.getPartitionCrl(partition);
+    assertNotNull(crl);
+    assertTrue(crl.isSignatureValid(new JcaContentVerifierProviderBuilder().build(caCertificate)));
+    assertEquals(caCertificate.getSubject(), crl.getIssuer());
+    Set<BigInteger> serialNumbers = crl.getRevokedCertificates().stream()
+      .map(X509CRLEntryHolder::getSerialNumber)
+      .collect(Collectors.toSet());
+    assertEquals(expectedSerialNumbers, serialNumbers);
+
+    IssuingDistributionPoint issuingDistributionPoint = IssuingDistributionPoint.getInstance(
+      crl.getExtension(Extension.issuingDistributionPoint).getParsedValue());
+    GeneralName distributionPoint = GeneralNames.getInstance(
+      issuingDistributionPoint.getDistributionPoint().getName()).getNames()[0];
+    assertEquals(issuer.getDistributionPointUrl(partition),
+      ASN1IA5String.getInstance(distributionPoint.getName()).getString());
+    assertFalse(issuingDistributionPoint.onlyContainsUserCerts());
+    assertArrayEquals(SubjectKeyIdentifier.fromExtensions(caCertificate.getExtensions()).getKeyIdentifier(),
+      AuthorityKeyIdentifier.fromExtensions(crl.getExtensions()).getKeyIdentifier());
+    assertArrayEquals(crl.getEncoded(), Files.readAllBytes(
+      new File(repositoryDir, "crl-partitions/" + partition + ".crl").toPath()));
+  }
+
+  private void issueCertificate(long serialNumber, PublicKey publicKey, String distributionPointUrl)
+    throws Exception {
+    X500Name subject = new X500Name("CN=Test " + serialNumber);
+    long now = System.currentTimeMillis();
+    JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(caCertificate.getSubject(),
+      BigInteger.valueOf(serialNumber), new Date(now - 60000L), new Date(now + 3600000L), subject, publicKey);
+    if (distributionPointUrl != null) {
+      builder.addExtension(Extension.cRLDistributionPoints, false, new CRLDistPoint(new DistributionPoint[] {
+        new DistributionPoint(new DistributionPointName(new GeneralNames(
+          new GeneralName(GeneralName.uniformResourceIdentifier, distributionPointUrl))), null, null) }));
+    }
+    repository.addCertificate(
+      builder.build(new JcaContentSignerBuilder("SHA256withECDSA").build(caKeyPair.getPrivate())));
+  }
+
+  private static KeyPair createKeyPair() throws Exception {
+    KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+    keyPairGenerator.initialize(256);
+    return keyPairGenerator.generateKeyPair();
+  }
+
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.db;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import se.swedenconnect.ca.engine.ca.repository.CertificateRecord;
+import se.swedenconnect.ca.engine.revocation.CertificateRevocationException;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the conditional revocation status updates of the database CA repository.
+ *
+ * <p>Each repository call runs in a transaction of its own, so that a record read before a concurrent change holds the
+ * stale revocation status, as it would on another node.</p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@DataJpaTest
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class DBCARepositoryTest {
+
+  private static final String INSTANCE = "test";
+  private static final BigInteger SERIAL_NUMBER = BigInteger.valueOf(0x1234);
+  private static KeyPair keyPair;
+
+  @Autowired
+  DBJPARepository dbRepository;
+
+  @Autowired
+  DBCRLJPARepository crlRepository;
+
+  @Autowired
+  DBRevocationEventJPARepository eventRepository;
+
+  @TempDir
+  File repositoryDir;
+
+  private DBCARepository repository;
+
+  @BeforeAll
+  static void createKeyPair() throws Exception {
+    KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+    keyPairGenerator.initialize(256);
+    keyPair = keyPairGenerator.generateKeyPair();
+  }
+
+  @BeforeEach
+  void setUp() throws Exception {
+    repository = new DBCARepository(new File(repositoryDir, "test.crl"), dbRepository, INSTANCE,
+      new DBCRLMetadataRepository(crlRepository));
+    repository.addCertificate(createCertificate(SERIAL_NUMBER));
+  }
+
+  @AfterEach
+  void tearDown() {
+    eventRepository.deleteAll();
+    dbRepository.deleteAll();
+  }
+
+  @Test
+  void holdReleaseAndRevoke() throws Exception {
+    repository.revokeCertificate(SERIAL_NUMBER, CRLReason.certificateHold, new Date());
+    assertStatus(true, CRLReason.certificateHold);
+    repository.revokeCertificate(SERIAL_NUMBER, CRLReason.removeFromCRL, new Date());
+    assertStatus(false, null);
+    repository.revokeCertificate(SERIAL_NUMBER, CRLReason.keyCompromise, new Date());
+    assertStatus(true, CRLReason.keyCompromise);
+    assertThrows(CertificateRevocationException.class,
+      () -> repository.revokeCertificate(SERIAL_NUMBER, CRLReason.removeFromCRL, new Date()));
+    assertStatus(true, CRLReason.keyCompromise);
+  }
+
+  @Test
+  void revokeFromHoldAfterConcurrentRelease() throws Exception {
+    repository.revokeCertificate(SERIAL_NUMBER, CRLReason.certificateHold, new Date());
+    DBCertificateRecord staleRecord = readRecord();
+
+    // Another node releases the certificate from hold
+    repository.revokeCertificate(SERIAL_NUMBER, CRLReason.removeFromCRL, new Date());
+
+    staleRecord.setReason(CRLReason.keyCompromise);
+    staleRecord.setRevocationTime(new Date());
+    assertFalse(dbRepository.compareAndSetRevocationStatus(staleRecord, true, CRLReason.certificateHold));
+    assertStatus(false, null);
+  }
+
+  @Test
+  void releaseAfterConcurrentRevokeFromHold() throws Exception {
+    repository.revokeCertificate(SERIAL_NUMBER, CRLReason.certificateHold, new Date());
+    DBCertificateRecord staleRecord = readRecord();
+
+    // Another node permanently revokes the certificate on hold
+    repository.revokeCertificate(SERIAL_NUMBER, CRLReason.keyCompromise, new Date());
+
+    staleRecord.setRevoked(false);
+    staleRecord.setReason(null);
+    staleRecord.setRevocationTime(null);
+    assertFalse(dbRepository.compareAndSetRevocationStatus(staleRecord, true, CRLReason.certificateHold));
+    assertStatus(true, CRLReason.keyCompromise);
+  }
+
+  @Test
+  void matchesRecordWithoutReason() {
+    DBCertificateRecord record = readRecord();
+    assertNull(record.getReason());
+
+    record.setRevoked(true);
+    record.setReason(CRLReason.superseded);
+    record.setRevocationTime(new Date());
+    // A null reason is only matched by an expected null reason, not by the unspecified reason code
+    assertFalse(dbRepository.compareAndSetRevocationStatus(record, false, CRLReason.unspecified));
+    assertStatus(false, null);
+    assertTrue(dbRepository.compareAndSetRevocationStatus(record, false, null));
+    assertStatus(true, CRLReason.superseded);
+    // The status has changed, so the same change is not applied again
+    assertFalse(dbRepository.compareAndSetRevocationStatus(record, false, null));
+  }
+
+  @Test
+  void revokeAfterConcurrentRevocation() throws Exception {
+    // Another node revokes the certificate after this node has read it
+    DBCARepository staleRepository = createRepositoryWithConcurrentChange(
+      () -> repository.revokeCertificate(SERIAL_NUMBER, CRLReason.keyCompromise, new Date()));
+
+    CertificateRevocationException ex = assertThrows(CertificateRevocationException.class,
+      () -> staleRepository.revokeCertificate(SERIAL_NUMBER, CRLReason.superseded, new Date()));
+    assertTrue(ex.getMessage().contains("changed by a concurrent request"), ex.getMessage());
+    assertStatus(true, CRLReason.keyCompromise);
+  }
+
+  @Test
+  void releaseAfterConcurrentRevokeFromHoldWithRevocationEvents() throws Exception {
+    DBRevocationStatusStore store = new DBRevocationStatusStore(dbRepository, eventRepository);
+    repository.setRevocationStatusStore(store);
+    repository.revokeCertificate(SERIAL_NUMBER, CRLReason.certificateHold, new Date());
+    // Another node permanently revokes the certificate on hold after this node has read it
+    DBCARepository staleRepository = createRepositoryWithConcurrentChange(
+      () -> repository.revokeCertificate(SERIAL_NUMBER, CRLReason.keyCompromise, new Date()));
+    staleRepository.setRevocationStatusStore(store);
+
+    assertThrows(CertificateRevocationException.class,
+      () -> staleRepository.revokeCertificate(SERIAL_NUMBER, CRLReason.removeFromCRL, new Date()));
+    assertStatus(true, CRLReason.keyCompromise);
+    // No event is recorded for the rejected change
+    assertEquals(2, eventRepository.count());
+  }
+
+  /**
+   * Create a repository of the same instance where a change is made by another node right after the first read of a
+   * certificate record, so that the repository continues with a stale record.
+   *
+   * @param concurrentChange the change made by the other node
+   * @return the repository
+   */
+  private DBCARepository createRepositoryWithConcurrentChange(ConcurrentChange concurrentChange) throws Exception {
+    AtomicBoolean changed = new AtomicBoolean();
+    DBJPARepository staleDbRepository = (DBJPARepository) Proxy.newProxyInstance(getClass().getClassLoader(),
+      new Class<?>[] { DBJPARepository.class }, (proxy, method, args) -> {
+        Object result;
+        try {
+          result = method.invoke(dbRepository, args);
+        }
+        catch (InvocationTargetException ex) {
+          throw ex.getCause();
+        }
+        if (method.getName().equals("findByInstanceAndSerialNumber") && changed.compareAndSet(false, true)) {
+          concurrentChange.run();
+        }
+        return result;
+      });
+    return new DBCARepository(new File(repositoryDir, "stale.crl"), staleDbRepository, INSTANCE,
+      new DBCRLMetadataRepository(crlRepository));
+  }
+
+  /**
+   * A change made by another node.
+   */
+  @FunctionalInterface
+  private interface ConcurrentChange {
+    void run() throws Exception;
+  }
+
+  private DBCertificateRecord readRecord() {
+    return dbRepository.findByInstanceAndSerialNumber(INSTANCE, SERIAL_NUMBER.toString(16)).get(0);
+  }
+
+  private void assertStatus(boolean revoked, Integer reason) {
+    CertificateRecord record = readRecord();
+    assertEquals(revoked, record.isRevoked());
+    assertEquals(reason, record.getReason());
+  }
+
+  private static X509CertificateHolder createCertificate(BigInteger serialNumber) throws Exception {
+    X500Name name = new X500Name("CN=Test " + serialNumber);
+    long now = System.currentTimeMillis();
+    return new JcaX509v3CertificateBuilder(name, serialNumber, new Date(now - 60000L), new Date(now + 3600000L), name,
+      keyPair.getPublic())
+      .build(new JcaContentSignerBuilder("SHA256withECDSA").build(keyPair.getPrivate()));
+  }
+
+}
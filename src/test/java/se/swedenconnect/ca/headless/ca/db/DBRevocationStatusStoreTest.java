@@ -0,0 +1,203 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.db;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the reading and retention of revocation events.
+ *
+ * <p>Events are stored with explicit event times, so that settled, unsettled and expired events can be combined in one
+ * sequence. The settle time is 30 seconds and the retention time 30 days.</p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@DataJpaTest
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class DBRevocationStatusStoreTest {
+
+  private static final String INSTANCE = "test";
+
+  @Autowired
+  DBJPARepository dbRepository;
+
+  @Autowired
+  DBCRLJPARepository crlRepository;
+
+  @Autowired
+  DBRevocationEventJPARepository eventRepository;
+
+  @TempDir
+  File repositoryDir;
+
+  private DBRevocationStatusStore store;
+
+  @BeforeEach
+  void setUp() {
+    store = new DBRevocationStatusStore(dbRepository, eventRepository);
+    store.settleSeconds = 30;
+    store.retentionDays = 30;
+  }
+
+  @AfterEach
+  void tearDown() {
+    eventRepository.deleteAll();
+    dbRepository.deleteAll();
+  }
+
+  @Test
+  void readsSettledEventsUpToFirstUnsettledEvent() {
+    long settled = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(1);
+    DBRevocationEventRecord first = addEvent(INSTANCE, 1, settled);
+    addEvent("other", 2, settled);
+    DBRevocationEventRecord second = addEvent(INSTANCE, 3, settled);
+    DBRevocationEventRecord unsettled = addEvent(INSTANCE, 4, System.currentTimeMillis());
+    // Committed after the unsettled event, although allocated a higher sequence number
+    DBRevocationEventRecord last = addEvent(INSTANCE, 5, settled);
+
+    assertEquals(List.of(first.getSequence(), second.getSequence()),
+      getSequences(store.getEventsSince(INSTANCE, 0, 10)));
+    assertEquals(List.of(second.getSequence()), getSequences(store.getEventsSince(INSTANCE, first.getSequence(), 10)));
+    assertEquals(List.of(first.getSequence()), getSequences(store.getEventsSince(INSTANCE, 0, 1)));
+    assertTrue(store.getEventsSince(INSTANCE, second.getSequence(), 10).isEmpty());
+    assertEquals(List.of(unsettled.getSequence(), last.getSequence()),
+      getSequences(store.getAllEventsSince(INSTANCE, second.getSequence(), 10)));
+    assertEquals(BigInteger.valueOf(3), second.getSerialNumber());
+  }
+
+  @Test
+  void getsSettledSequence() {
+    assertEquals(0L, store.getSettledSequence());
+    assertEquals(0L, store.getOldestRetainedSequence());
+
+    long settled = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(1);
+    DBRevocationEventRecord first = addEvent(INSTANCE, 1, settled);
+    DBRevocationEventRecord second = addEvent("other", 2, settled);
+    DBRevocationEventRecord unsettled = addEvent(INSTANCE, 3, System.currentTimeMillis());
+
+    // The settled sequence covers the events of all instances
+    assertEquals(second.getSequence(), store.getSettledSequence());
+    assertEquals(first.getSequence(), store.getOldestRetainedSequence());
+    assertEquals(unsettled.getSequence(), store.getLastSequence(INSTANCE));
+    assertEquals(second.getSequence(), store.getLastSequence("other"));
+    assertEquals(0L, store.getLastSequence("unknown"));
+  }
+
+  @Test
+  void deletesExpiredEventsUpToLastExpiredEvent() {
+    long expired = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(40);
+    addEvent(INSTANCE, 1, expired);
+    addEvent(INSTANCE, 2, expired);
+    DBRevocationEventRecord retained = addEvent(INSTANCE, 3, System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1));
+    DBRevocationEventRecord newest = addEvent(INSTANCE, 4, System.currentTimeMillis());
+
+    store.deleteExpiredEvents();
+
+    assertEquals(List.of(retained.getSequence(), newest.getSequence()),
+      getSequences(store.getAllEventsSince(INSTANCE, 0, 10)));
+    assertEquals(retained.getSequence(), store.getOldestRetainedSequence());
+  }
+
+  @Test
+  void neverDeletesNewestEvent() {
+    // No event to delete
+    store.deleteExpiredEvents();
+
+    long expired = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(40);
+    addEvent(INSTANCE, 1, expired);
+    addEvent("other", 2, expired);
+    DBRevocationEventRecord newest = addEvent(INSTANCE, 3, expired);
+
+    store.deleteExpiredEvents();
+    assertEquals(List.of(newest.getSequence()), getSequences(eventRepository.findAll()));
+    assertEquals(newest.getSequence(), store.getOldestRetainedSequence());
+
+    // Deleting again keeps the newest event, so the oldest retained sequence number stays known
+    store.deleteExpiredEvents();
+    assertEquals(1, eventRepository.count());
+    assertEquals(newest.getSequence(), store.getOldestRetainedSequence());
+  }
+
+  @Test
+  void recordsEventForEachRevocationStatusChange() throws Exception {
+    store.checkEventTable();
+    store.settleSeconds = -1;
+    DBCARepository repository = new DBCARepository(new File(repositoryDir, "test.crl"), dbRepository, INSTANCE,
+      new DBCRLMetadataRepository(crlRepository));
+    repository.setRevocationStatusStore(store);
+    BigInteger serialNumber = BigInteger.valueOf(0x1234);
+    repository.addCertificate(createCertificate(serialNumber));
+
+    repository.revokeCertificate(serialNumber, CRLReason.certificateHold, new Date());
+    repository.revokeCertificate(serialNumber, CRLReason.removeFromCRL, new Date());
+
+    List<DBRevocationEventRecord> events = store.getEventsSince(INSTANCE, 0, 10);
+    assertEquals(2, events.size());
+    assertEquals(serialNumber, events.get(0).getSerialNumber());
+    assertTrue(events.get(0).isRevoked());
+    assertEquals(CRLReason.certificateHold, events.get(0).getReason());
+    assertEquals(serialNumber, events.get(1).getSerialNumber());
+    assertFalse(events.get(1).isRevoked());
+    assertEquals(events.get(1).getSequence(), store.getSettledSequence());
+  }
+
+  private DBRevocationEventRecord addEvent(String instance, long serialNumber, long eventTime) {
+    return eventRepository.save(new DBRevocationEventRecord(instance, Long.toHexString(serialNumber),
+      CRLReason.keyCompromise, eventTime, new Date(eventTime)));
+  }
+
+  private static List<Long> getSequences(List<DBRevocationEventRecord> events) {
+    return events.stream().map(DBRevocationEventRecord::getSequence).toList();
+  }
+
+  private static X509CertificateHolder createCertificate(BigInteger serialNumber) throws Exception {
+    KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+    keyPairGenerator.initialize(256);
+    KeyPair keyPair = keyPairGenerator.generateKeyPair();
+    X500Name name = new X500Name("CN=Test " + serialNumber);
+    long now = System.currentTimeMillis();
+    return new JcaX509v3CertificateBuilder(name, serialNumber, new Date(now - 60000L), new Date(now + 3600000L), name,
+      keyPair.getPublic())
+      .build(new JcaContentSignerBuilder("SHA256withECDSA").build(keyPair.getPrivate()));
+  }
+
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.file;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import se.swedenconnect.ca.engine.ca.repository.CertificateRecord;
+import se.swedenconnect.ca.engine.ca.repository.impl.SerializableCertificateRecord;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests replay and recovery of the log structured CA repository.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+class LogStructuredCARepositoryTest {
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+  private static KeyPair keyPair;
+
+  @TempDir
+  File repositoryDir;
+
+  private File crlFile;
+  private File snapshotFile;
+  private File logFile;
+
+  @BeforeAll
+  static void createKeyPair() throws Exception {
+    KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+    keyPairGenerator.initialize(256);
+    keyPair = keyPairGenerator.generateKeyPair();
+  }
+
+  @BeforeEach
+  void setUp() {
+    crlFile = new File(repositoryDir, "test.crl");
+    snapshotFile = new File(repositoryDir, "test-repo.json");
+    logFile = new File(repositoryDir, "test-repo.log");
+  }
+
+  @Test
+  void replaysLogAfterCrash() throws Exception {
+    LogStructuredCARepository repository = openRepository(Integer.MAX_VALUE);
+    for (int i = 1; i <= 5; i++) {
+      repository.addCertificate(createCertificate(i));
+    }
+    repository.revokeCertificate(BigInteger.valueOf(3), CRLReason.keyCompromise, new Date());
+    // The repository is not closed, so all changes are only in the log
+    assertFalse(snapshotFile.exists());
+    assertTrue(logFile.length() > 0);
+
+    LogStructuredCARepository reopened = openRepository(Integer.MAX_VALUE);
+    assertEquals(5, reopened.getCertificateCount(false));
+    CertificateRecord revokedRecord = reopened.getCertificate(BigInteger.valueOf(3));
+    assertTrue(revokedRecord.isRevoked());
+    assertEquals(CRLReason.keyCompromise, revokedRecord.getReason());
+    // The replayed changes are compacted into the snapshot at startup
+    assertEquals(0, logFile.length());
+    reopened.close();
+  }
+
+  @Test
+  void discardsTornTail() throws Exception {
+    LogStructuredCARepository repository = openRepository(Integer.MAX_VALUE);
+    for (int i = 1; i <= 3; i++) {
+      repository.addCertificate(createCertificate(i));
+    }
+    long validLength = logFile.length();
+    // A change that was only partially written when the service stopped
+    Files.write(logFile.toPath(), "{\"operation\":\"add\",\"rec".getBytes(StandardCharsets.UTF_8),
+      StandardOpenOption.APPEND);
+    assertTrue(logFile.length() > validLength);
+
+    LogStructuredCARepository reopened = openRepository(Integer.MAX_VALUE);
+    assertEquals(3, reopened.getCertificateCount(false));
+    assertEquals(0, logFile.length());
+    reopened.addCertificate(createCertificate(4));
+    reopened.close();
+
+    LogStructuredCARepository afterRestart = openRepository(Integer.MAX_VALUE);
+    assertEquals(4, afterRestart.getCertificateCount(false));
+    afterRestart.close();
+  }
+
+  @Test
+  void rejectsCorruptCompleteEntry() throws Exception {
+    LogStructuredCARepository repository = openRepository(Integer.MAX_VALUE);
+    repository.addCertificate(createCertificate(1));
+    Files.write(logFile.toPath(), "not a change\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+    writeEntry(logFile, RepositoryLogEntry.builder()
+      .operation(RepositoryLogEntry.Operation.remove)
+      .serialNumber(BigInteger.ONE)
+      .build());
+
+    // A complete entry that can not be parsed is not a torn write, and must not be silently discarded
+    assertThrows(IOException.class, () -> openRepository(Integer.MAX_VALUE));
+  }
+
+  @Test
+  void compactsInBackground() throws Exception {
+    LogStructuredCARepository repository = openRepository(2);
+    for (int i = 1; i <= 20; i++) {
+      repository.addCertificate(createCertificate(i));
+    }
+    repository.revokeCertificate(BigInteger.valueOf(7), CRLReason.certificateHold, new Date());
+    repository.close();
+    assertEquals(0, logFile.length());
+    assertFalse(LogStructuredCARepository.getCompactingLogFile(logFile).exists());
+
+    LogStructuredCARepository reopened = openRepository(2);
+    assertEquals(20, reopened.getCertificateCount(false));
+    assertEquals(19, reopened.getCertificateCount(true));
+    reopened.close();
+  }
+
+  @Test
+  void replaysInterruptedCompaction() throws Exception {
+    LogStructuredCARepository repository = openRepository(Integer.MAX_VALUE);
+    repository.addCertificate(createCertificate(1));
+    repository.close();
+
+    // Changes moved to the compacting log by a compaction that did not complete, followed by later changes
+    X509CertificateHolder certificate = createCertificate(2);
+    SerializableCertificateRecord record = new SerializableCertificateRecord(certificate.getEncoded(),
+      certificate.getSerialNumber(), certificate.getNotBefore(), certificate.getNotAfter(), false, null, null);
+    writeEntry(LogStructuredCARepository.getCompactingLogFile(logFile), RepositoryLogEntry.builder()
+      .operation(RepositoryLogEntry.Operation.add)
+      .record(record)
+      .build());
+    writeEntry(logFile, RepositoryLogEntry.builder()
+      .operation(RepositoryLogEntry.Operation.revoke)
+      .serialNumber(BigInteger.valueOf(2))
+      .revoked(true)
+      .reason(CRLReason.superseded)
+      .revocationTime(new Date())
+      .build());
+    assertTrue(LogStructuredCARepository.hasPendingChanges(logFile));
+
+    LogStructuredCARepository reopened = openRepository(Integer.MAX_VALUE);
+    assertEquals(2, reopened.getCertificateCount(false));
+    CertificateRecord revokedRecord = reopened.getCertificate(BigInteger.valueOf(2));
+    assertNotNull(revokedRecord);
+    assertTrue(revokedRecord.isRevoked());
+    assertFalse(LogStructuredCARepository.hasPendingChanges(logFile));
+    reopened.close();
+  }
+
+  @Test
+  void compactsPendingChangesForJsonRepository() throws Exception {
+    LogStructuredCARepository repository = openRepository(Integer.MAX_VALUE);
+    repository.addCertificate(createCertificate(1));
+    repository.addCertificate(createCertificate(2));
+    assertTrue(LogStructuredCARepository.hasPendingChanges(logFile));
+
+    LogStructuredCARepository.compactFiles(crlFile, snapshotFile, logFile);
+    assertFalse(LogStructuredCARepository.hasPendingChanges(logFile));
+    SerializableCertificateRecord[] records = mapper.readValue(snapshotFile, SerializableCertificateRecord[].class);
+    assertEquals(2, records.length);
+  }
+
+  private LogStructuredCARepository openRepository(int compactionThreshold) throws IOException {
+    return new LogStructuredCARepository(crlFile, snapshotFile, logFile, compactionThreshold);
+  }
+
+  private void writeEntry(File file, RepositoryLogEntry entry) throws IOException {
+    Files.write(file.toPath(), (mapper.writeValueAsString(entry) + "\n").getBytes(StandardCharsets.UTF_8),
+      StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+  }
+
+  private static X509CertificateHolder createCertificate(long serialNumber) throws Exception {
+    X500Name name = new X500Name("CN=Test " + serialNumber);
+    long now = System.currentTimeMillis();
+    return new JcaX509v3CertificateBuilder(name, BigInteger.valueOf(serialNumber), new Date(now - 60000L),
+      new Date(now + 3600000L), name, keyPair.getPublic())
+      .build(new JcaContentSignerBuilder("SHA256withECDSA").build(keyPair.getPrivate()));
+  }
+
+}
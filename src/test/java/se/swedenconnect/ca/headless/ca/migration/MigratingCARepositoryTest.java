@@ -0,0 +1,288 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.migration;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import se.swedenconnect.ca.engine.ca.repository.CARepository;
+import se.swedenconnect.ca.engine.ca.repository.CertificateRecord;
+import se.swedenconnect.ca.engine.ca.repository.SortBy;
+import se.swedenconnect.ca.engine.revocation.CertificateRevocationException;
+import se.swedenconnect.ca.engine.revocation.crl.CRLRevocationDataProvider;
+import se.swedenconnect.ca.headless.ca.db.DBCARepository;
+import se.swedenconnect.ca.headless.ca.db.DBCRLJPARepository;
+import se.swedenconnect.ca.headless.ca.db.DBCRLMetadataRepository;
+import se.swedenconnect.ca.headless.ca.db.DBJPARepository;
+import se.swedenconnect.ca.headless.ca.file.LogStructuredCARepository;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Tests the online migration of a file based repository to a database repository.
+ *
+ * <p>The source repository runs an action on the migration thread when the migration reads a particular record, so
+ * that changes can be made at a known point of the migration.</p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@DataJpaTest
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class MigratingCARepositoryTest {
+
+  private static final String INSTANCE = "test";
+  private static final long TIMEOUT_MILLIS = 20000L;
+  private static KeyPair keyPair;
+
+  @Autowired
+  DBJPARepository dbRepository;
+
+  @Autowired
+  DBCRLJPARepository crlRepository;
+
+  @TempDir
+  File repositoryDir;
+
+  private LogStructuredCARepository fileRepository;
+  private HookedRepository source;
+  private DBCARepository target;
+  private MigratingCARepository repository;
+
+  @BeforeAll
+  static void createKeyPair() throws Exception {
+    KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+    keyPairGenerator.initialize(256);
+    keyPair = keyPairGenerator.generateKeyPair();
+  }
+
+  @BeforeEach
+  void setUp() throws Exception {
+    fileRepository = new LogStructuredCARepository(new File(repositoryDir, "test.crl"),
+      new File(repositoryDir, "test-repo.json"), new File(repositoryDir, "test-repo.log"), Integer.MAX_VALUE);
+    for (long serialNumber = 1; serialNumber <= 4; serialNumber++) {
+      fileRepository.addCertificate(createCertificate(serialNumber));
+    }
+    fileRepository.revokeCertificate(BigInteger.TWO, CRLReason.certificateHold, new Date());
+    source = new HookedRepository(fileRepository);
+    target = new DBCARepository(new File(repositoryDir, "db/test.crl"), dbRepository, INSTANCE,
+      new DBCRLMetadataRepository(crlRepository));
+    repository = new MigratingCARepository(INSTANCE, source, target, 1, 10000, true);
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    repository.close();
+    fileRepository.close();
+    dbRepository.deleteAll();
+  }
+
+  @Test
+  void copiesVerifiesAndSwitchesReads() throws Exception {
+    repository.start();
+    awaitState(MigratingCARepository.MigrationState.MIGRATED);
+
+    for (long serialNumber = 1; serialNumber <= 4; serialNumber++) {
+      assertSameRecord(fileRepository.getCertificate(BigInteger.valueOf(serialNumber)),
+        target.getCertificate(BigInteger.valueOf(serialNumber)));
+    }
+    assertEquals(4, target.getCertificateCount(false));
+
+    // Reads are served by the database repository, and changes are still written to both repositories
+    target.addCertificate(createCertificate(10));
+    assertNotNull(repository.getCertificate(BigInteger.TEN));
+    assertNull(fileRepository.getCertificate(BigInteger.TEN));
+    repository.revokeCertificate(BigInteger.ONE, CRLReason.keyCompromise, new Date());
+    assertTrue(fileRepository.getCertificate(BigInteger.ONE).isRevoked());
+    assertTrue(target.getCertificate(BigInteger.ONE).isRevoked());
+  }
+
+  @Test
+  void keepsRevocationMadeDuringCopy() throws Exception {
+    BigInteger serialNumber = BigInteger.valueOf(3);
+    // Revoke the certificate after the migration has read it from the source repository
+    source.setHook(read -> read.equals(serialNumber)
+        && repository.getState() == MigratingCARepository.MigrationState.COPYING,
+      () -> repository.revokeCertificate(serialNumber, CRLReason.keyCompromise, new Date()));
+    repository.start();
+    awaitState(MigratingCARepository.MigrationState.MIGRATED);
+
+    assertTrue(source.isHookRun());
+    CertificateRecord targetRecord = target.getCertificate(serialNumber);
+    assertTrue(targetRecord.isRevoked());
+    assertEquals(CRLReason.keyCompromise, targetRecord.getReason());
+    assertSameRecord(fileRepository.getCertificate(serialNumber), targetRecord);
+  }
+
+  @Test
+  void failedTargetWriteBlocksSwitch() throws Exception {
+    // A certificate that can not be added to the database repository, as it is already there
+    X509CertificateHolder certificate = createCertificate(9);
+    target.addCertificate(certificate);
+    source.setHook(read -> repository.getState() == MigratingCARepository.MigrationState.VERIFYING,
+      () -> repository.addCertificate(certificate));
+    repository.start();
+
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (!source.isHookRun() || repository.getProcessedRecords() < 4) {
+      if (System.currentTimeMillis() > deadline) {
+        fail("Verification did not complete");
+      }
+      Thread.sleep(20);
+    }
+    // Give the verified migration time to complete, if the failed write would not stop it
+    Thread.sleep(500);
+    assertEquals(MigratingCARepository.MigrationState.VERIFYING, repository.getState());
+    assertNotNull(fileRepository.getCertificate(BigInteger.valueOf(9)));
+    // Reads are still served by the source repository
+    target.addCertificate(createCertificate(10));
+    assertNull(repository.getCertificate(BigInteger.TEN));
+  }
+
+  private void awaitState(MigratingCARepository.MigrationState state) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (repository.getState() != state) {
+      if (repository.getState() == MigratingCARepository.MigrationState.FAILED
+        || System.currentTimeMillis() > deadline) {
+        fail("Migration did not reach " + state + " - state " + repository.getState());
+      }
+      Thread.sleep(20);
+    }
+  }
+
+  private static void assertSameRecord(CertificateRecord expected, CertificateRecord actual) {
+    assertNotNull(actual);
+    assertEquals(expected.getSerialNumber(), actual.getSerialNumber());
+    assertEquals(expected.isRevoked(), actual.isRevoked());
+    assertEquals(expected.getReason(), actual.getReason());
+    assertEquals(getTime(expected.getRevocationTime()), getTime(actual.getRevocationTime()));
+  }
+
+  private static Long getTime(Date date) {
+    return date == null ? null : date.getTime();
+  }
+
+  private static X509CertificateHolder createCertificate(long serialNumber) throws Exception {
+    X500Name name = new X500Name("CN=Test " + serialNumber);
+    long now = System.currentTimeMillis();
+    return new JcaX509v3CertificateBuilder(name, BigInteger.valueOf(serialNumber), new Date(now - 60000L),
+      new Date(now + 3600000L), name, keyPair.getPublic())
+      .build(new JcaContentSignerBuilder("SHA256withECDSA").build(keyPair.getPrivate()));
+  }
+
+  /**
+   * An action run once, when a record is read.
+   */
+  @FunctionalInterface
+  private interface Hook {
+    void run() throws Exception;
+  }
+
+  /**
+   * Source repository running a hook on the migration thread after a matching record has been read.
+   */
+  private static class HookedRepository implements CARepository {
+
+    private final CARepository repository;
+    private final AtomicBoolean hookRun = new AtomicBoolean();
+    private volatile Predicate<BigInteger> hookCondition;
+    private volatile Hook hook;
+
+    HookedRepository(CARepository repository) {
+      this.repository = repository;
+    }
+
+    void setHook(Predicate<BigInteger> hookCondition, Hook hook) {
+      this.hookCondition = hookCondition;
+      this.hook = hook;
+    }
+
+    boolean isHookRun() {
+      return hookRun.get();
+    }
+
+    @Override public CertificateRecord getCertificate(BigInteger serialNumber) {
+      CertificateRecord certificateRecord = repository.getCertificate(serialNumber);
+      if (hook != null && Thread.currentThread().getName().startsWith("repository-migration")
+        && hookCondition.test(serialNumber) && hookRun.compareAndSet(false, true)) {
+        try {
+          hook.run();
+        }
+        catch (Exception ex) {
+          throw new IllegalStateException(ex);
+        }
+      }
+      return certificateRecord;
+    }
+
+    @Override public List<BigInteger> getAllCertificates() {
+      return repository.getAllCertificates();
+    }
+
+    @Override public void addCertificate(X509CertificateHolder certificate) throws IOException {
+      repository.addCertificate(certificate);
+    }
+
+    @Override public void revokeCertificate(BigInteger serialNumber, int reason, Date revocationTime)
+      throws CertificateRevocationException {
+      repository.revokeCertificate(serialNumber, reason, revocationTime);
+    }
+
+    @Override public CRLRevocationDataProvider getCRLRevocationDataProvider() {
+      return repository.getCRLRevocationDataProvider();
+    }
+
+    @Override public int getCertificateCount(boolean notRevoked) {
+      return repository.getCertificateCount(notRevoked);
+    }
+
+    @Override public List<CertificateRecord> getCertificateRange(int page, int pageSize, boolean notRevoked,
+      SortBy sortBy, boolean descending) {
+      return repository.getCertificateRange(page, pageSize, notRevoked, sortBy, descending);
+    }
+
+    @Override public List<BigInteger> removeExpiredCerts(int gracePeriodSeconds) throws IOException {
+      return repository.removeExpiredCerts(gracePeriodSeconds);
+    }
+  }
+
+}
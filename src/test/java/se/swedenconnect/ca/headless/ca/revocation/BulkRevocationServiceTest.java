@@ -0,0 +1,165 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.revocation;
+
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import se.swedenconnect.ca.engine.ca.issuer.CAService;
+import se.swedenconnect.ca.engine.ca.repository.CARepository;
+import se.swedenconnect.ca.engine.ca.repository.CertificateRecord;
+import se.swedenconnect.ca.engine.revocation.CertificateRevocationException;
+import se.swedenconnect.ca.service.base.ca.CAServices;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests the results and CRL publication of bulk revocations of a file based CA instance.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+class BulkRevocationServiceTest {
+
+  private static final String INSTANCE = "test";
+
+  private CAService caService;
+  private CARepository caRepository;
+  private BulkRevocationService bulkRevocationService;
+
+  @BeforeEach
+  void setUp() {
+    caService = mock(CAService.class);
+    caRepository = mock(CARepository.class);
+    when(caService.getCaRepository()).thenReturn(caRepository);
+    CAServices caServices = mock(CAServices.class);
+    when(caServices.getCAServiceKeys()).thenReturn(List.of(INSTANCE));
+    when(caServices.getCAService(INSTANCE)).thenReturn(caService);
+    bulkRevocationService = new BulkRevocationService(caServices);
+    for (long serialNumber = 1; serialNumber <= 4; serialNumber++) {
+      addCertificate(serialNumber, false, null);
+    }
+  }
+
+  @Test
+  void revokesSelectedCertificatesAndPublishesOneCrl() throws Exception {
+    addCertificate(5, true, CRLReason.certificateHold);
+    addCertificate(6, true, CRLReason.keyCompromise);
+
+    BulkRevocationResult result = bulkRevocationService.revokeCertificates(INSTANCE,
+      request(1, 2, 5, 6, 7));
+
+    assertEquals(5, result.getSelected());
+    assertEquals(2, result.getRevoked());
+    assertEquals(List.of("5"), result.getRevokedFromHold());
+    assertEquals(2, result.getUnchanged());
+    assertTrue(result.isCrlPublished());
+    assertNull(result.getError());
+    verify(caRepository, never()).revokeCertificate(eq(BigInteger.valueOf(6)), anyInt(), any());
+    verify(caService, times(1)).publishNewCrl();
+  }
+
+  @Test
+  void reportsPartialRevocationAndPublishesCrl() throws Exception {
+    doThrow(new CertificateRevocationException("Repository failure"))
+      .when(caRepository).revokeCertificate(eq(BigInteger.valueOf(3)), anyInt(), any());
+
+    BulkRevocationResult result = bulkRevocationService.revokeCertificates(INSTANCE, request(1, 2, 3, 4));
+
+    assertEquals(4, result.getSelected());
+    assertEquals(2, result.getRevoked());
+    assertEquals(2, result.getUnchanged());
+    assertEquals("Repository failure", result.getError());
+    // The certificates revoked before the failure are published
+    assertTrue(result.isCrlPublished());
+    verify(caService, times(1)).publishNewCrl();
+    verify(caRepository, never()).revokeCertificate(eq(BigInteger.valueOf(4)), anyInt(), any());
+  }
+
+  @Test
+  void reportsFailedCrlPublication() throws Exception {
+    when(caService.publishNewCrl()).thenThrow(new IOException("Signing failure"));
+
+    BulkRevocationResult result = bulkRevocationService.revokeCertificates(INSTANCE, request(1));
+
+    assertEquals(1, result.getRevoked());
+    assertFalse(result.isCrlPublished());
+  }
+
+  @Test
+  void publishesNoCrlWhenNothingWasRevoked() throws Exception {
+    doThrow(new CertificateRevocationException("Repository failure"))
+      .when(caRepository).revokeCertificate(eq(BigInteger.ONE), anyInt(), any());
+
+    BulkRevocationResult result = bulkRevocationService.revokeCertificates(INSTANCE, request(1, 2));
+
+    assertEquals(0, result.getRevoked());
+    assertNotNull(result.getError());
+    assertFalse(result.isCrlPublished());
+    verify(caService, never()).publishNewCrl();
+  }
+
+  @Test
+  void rejectsInvalidRequest() throws Exception {
+    assertThrows(CertificateRevocationException.class,
+      () -> bulkRevocationService.revokeCertificates("other", request(1)));
+    BulkRevocationRequest removeFromCrl = request(1);
+    removeFromCrl.setReason(CRLReason.removeFromCRL);
+    assertThrows(CertificateRevocationException.class,
+      () -> bulkRevocationService.revokeCertificates(INSTANCE, removeFromCrl));
+    BulkRevocationRequest noSelection = BulkRevocationRequest.builder().reason(CRLReason.keyCompromise).build();
+    assertThrows(CertificateRevocationException.class,
+      () -> bulkRevocationService.revokeCertificates(INSTANCE, noSelection));
+    verify(caRepository, never()).revokeCertificate(any(), anyInt(), any());
+    verify(caService, never()).publishNewCrl();
+  }
+
+  private BulkRevocationRequest request(long... serialNumbers) {
+    return BulkRevocationRequest.builder()
+      .serialNumbers(Arrays.stream(serialNumbers).mapToObj(BigInteger::valueOf).toList())
+      .reason(CRLReason.keyCompromise)
+      .build();
+  }
+
+  private void addCertificate(long serialNumber, boolean revoked, Integer reason) {
+    CertificateRecord certificateRecord = mock(CertificateRecord.class);
+    when(certificateRecord.isRevoked()).thenReturn(revoked);
+    when(certificateRecord.getReason()).thenReturn(reason);
+    when(certificateRecord.getSerialNumber()).thenReturn(BigInteger.valueOf(serialNumber));
+    when(caRepository.getCertificate(BigInteger.valueOf(serialNumber))).thenReturn(certificateRecord);
+  }
+
+}
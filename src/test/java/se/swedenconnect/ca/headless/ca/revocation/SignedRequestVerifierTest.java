@@ -0,0 +1,241 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.swedenconnect.ca.headless.ca.revocation;
+
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.asn1.cms.AttributeTable;
+import org.bouncycastle.asn1.cms.CMSAttributes;
+import org.bouncycastle.asn1.cms.Time;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.cms.DefaultSignedAttributeTableGenerator;
+import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.web.WebEndpointResponse;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import se.swedenconnect.ca.engine.revocation.CertificateRevocationException;
+import se.swedenconnect.ca.headless.ca.db.DBSignedRequestJPARepository;
+import se.swedenconnect.ca.headless.ca.db.DBSignedRequestStore;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Base64;
+import java.util.Date;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the verification of signed management requests.
+ *
+ * <p>The client {@code revoker} may revoke certificates of the instance, the client {@code issuer} may not, and the
+ * client {@code unknown} is not configured.</p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @author Stefan Santesson (stefan@idsec.se)
+ */
+@DataJpaTest
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class SignedRequestVerifierTest {
+
+  private static final String INSTANCE = "test";
+  private static final byte[] REQUEST = "{\"instance\": \"test\", \"reason\": 1, \"serialNumbers\": \"1234\"}"
+    .getBytes(StandardCharsets.UTF_8);
+  private static Client revoker;
+  private static Client issuer;
+  private static Client unknown;
+
+  @Autowired
+  DBSignedRequestJPARepository signedRequestRepository;
+
+  @TempDir
+  File clientDir;
+
+  private MockEnvironment environment;
+
+  @BeforeAll
+  static void createClients() throws Exception {
+    revoker = new Client("revoker");
+    issuer = new Client("issuer");
+    unknown = new Client("unknown");
+  }
+
+  @BeforeEach
+  void setUp() throws Exception {
+    environment = new MockEnvironment()
+      .withProperty("ca-service.cmc.client[0].cert-location", writeCertificate(revoker))
+      .withProperty("ca-service.cmc.client[0].authorization.test", "read,revoke")
+      .withProperty("ca-service.cmc.client[1].cert-location", writeCertificate(issuer))
+      .withProperty("ca-service.cmc.client[1].authorization.test", "read,issue");
+  }
+
+  @AfterEach
+  void tearDown() {
+    signedRequestRepository.deleteAll();
+  }
+
+  @Test
+  void acceptsSignedRequest() throws Exception {
+    assertArrayEquals(REQUEST, createVerifier().verify(INSTANCE, revoker.sign(REQUEST, new Date())));
+  }
+
+  @Test
+  void rejectsUnsignedRequest() {
+    SignedRequestVerifier verifier = createVerifier();
+    assertThrows(CertificateRevocationException.class, () -> verifier.verify(INSTANCE, null));
+    assertThrows(CertificateRevocationException.class, () -> verifier.verify(INSTANCE, " "));
+    assertThrows(CertificateRevocationException.class,
+      () -> verifier.verify(INSTANCE, Base64.getEncoder().encodeToString(REQUEST)));
+  }
+
+  @Test
+  void rejectsUnknownSigner() throws Exception {
+    String signedRequest = unknown.sign(REQUEST, new Date());
+    assertRejected("not signed by a configured CMC client", createVerifier(), INSTANCE, signedRequest);
+  }
+
+  @Test
+  void rejectsSignerWithoutRevokeAuthorization() throws Exception {
+    assertRejected("not authorized", createVerifier(), INSTANCE, issuer.sign(REQUEST, new Date()));
+    // The revoke authorization only applies to its instance
+    assertRejected("not authorized", createVerifier(), "other", revoker.sign(REQUEST, new Date()));
+  }
+
+  @Test
+  void rejectsStaleSigningTime() throws Exception {
+    long now = System.currentTimeMillis();
+    assertRejected("request age", createVerifier(), INSTANCE, revoker.sign(REQUEST, new Date(now - 600000L)));
+    assertRejected("request age", createVerifier(), INSTANCE, revoker.sign(REQUEST, new Date(now + 600000L)));
+  }
+
+  @Test
+  void rejectsReplay() throws Exception {
+    SignedRequestVerifier verifier = createVerifier();
+    String signedRequest = revoker.sign(REQUEST, new Date());
+    verifier.verify(INSTANCE, signedRequest);
+    assertRejected("already been used", verifier, INSTANCE, signedRequest);
+    // A new signature of the same request is a new request
+    verifier.verify(INSTANCE, revoker.sign(REQUEST, new Date()));
+  }
+
+  @Test
+  void rejectsReplayOnOtherNode() throws Exception {
+    SignedRequestVerifier verifier = createVerifier();
+    verifier.setSignedRequestStore(new DBSignedRequestStore(signedRequestRepository));
+    SignedRequestVerifier otherVerifier = createVerifier();
+    otherVerifier.setSignedRequestStore(new DBSignedRequestStore(signedRequestRepository));
+    String signedRequest = revoker.sign(REQUEST, new Date());
+
+    verifier.verify(INSTANCE, signedRequest);
+    assertRejected("already been used", otherVerifier, INSTANCE, signedRequest);
+    assertEquals(1, signedRequestRepository.count());
+  }
+
+  @Test
+  void rejectsRequestForOtherInstance() throws Exception {
+    BulkRevocationEndpoint endpoint = new BulkRevocationEndpoint(new BulkRevocationService(null), createVerifier());
+    byte[] request = "{\"instance\": \"other\", \"reason\": 1, \"serialNumbers\": \"1234\"}"
+      .getBytes(StandardCharsets.UTF_8);
+
+    WebEndpointResponse<Object> response = endpoint.revokeCertificates(INSTANCE, revoker.sign(request, new Date()));
+    assertEquals(WebEndpointResponse.STATUS_BAD_REQUEST, response.getStatus());
+    assertTrue(((Map<?, ?>) response.getBody()).get("error").toString().contains("does not apply to instance"));
+  }
+
+  private SignedRequestVerifier createVerifier() {
+    SignedRequestVerifier verifier = new SignedRequestVerifier(environment);
+    verifier.maxRequestAgeSeconds = 300;
+    return verifier;
+  }
+
+  private void assertRejected(String expectedMessage, SignedRequestVerifier verifier, String instance,
+    String signedRequest) {
+    CertificateRevocationException ex = assertThrows(CertificateRevocationException.class,
+      () -> verifier.verify(instance, signedRequest));
+    assertTrue(ex.getMessage().contains(expectedMessage), ex.getMessage());
+  }
+
+  private String writeCertificate(Client client) throws Exception {
+    File certificateFile = new File(clientDir, client.getName() + ".crt");
+    Files.write(certificateFile.toPath(), client.getCertificate().getEncoded());
+    return "file:" + certificateFile.getAbsolutePath();
+  }
+
+  /**
+   * A client signing requests with a key and a self-issued certificate.
+   */
+  private static class Client {
+
+    private final String name;
+    private final KeyPair keyPair;
+    private final X509CertificateHolder certificate;
+
+    Client(String name) throws Exception {
+      this.name = name;
+      KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+      keyPairGenerator.initialize(256);
+      this.keyPair = keyPairGenerator.generateKeyPair();
+      X500Name subject = new X500Name("CN=" + name);
+      long now = System.currentTimeMillis();
+      this.certificate = new JcaX509v3CertificateBuilder(subject, BigInteger.valueOf(now), new Date(now - 86400000L),
+        new Date(now + 86400000L), subject, keyPair.getPublic())
+        .build(new JcaContentSignerBuilder("SHA256withECDSA").build(keyPair.getPrivate()));
+    }
+
+    String getName() {
+      return name;
+    }
+
+    X509CertificateHolder getCertificate() {
+      return certificate;
+    }
+
+    String sign(byte[] content, Date signingTime) throws Exception {
+      AttributeTable signedAttributes = new AttributeTable(
+        new Attribute(CMSAttributes.signingTime, new DERSet(new Time(signingTime))));
+      CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
+      generator.addSignerInfoGenerator(new JcaSignerInfoGeneratorBuilder(new JcaDigestCalculatorProviderBuilder().build())
+        .setSignedAttributeGenerator(new DefaultSignedAttributeTableGenerator(signedAttributes))
+        .build(new JcaContentSignerBuilder("SHA256withECDSA").build(keyPair.getPrivate()), certificate));
+      generator.addCertificate(certificate);
+      return Base64.getEncoder().encodeToString(
+        generator.generate(new CMSProcessableByteArray(content), true).getEncoded());
+    }
+  }
+
+}